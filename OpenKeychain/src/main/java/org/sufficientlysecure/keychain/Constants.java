@@ -80,6 +80,7 @@ public final class Constants {
     public static final class Pref {
         public static final String PASSPHRASE_CACHE_TTL = "passphraseCacheTtl";
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
+        public static final String SESSION_KEY_CACHE = "sessionKeyCache";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_DEFAULT_VERSION = "keyServersDefaultVersion";
@@ -93,6 +94,12 @@ public final class Constants {
         public static final String FILE_USE_COMPRESSION = "useFileCompression";
         public static final String TEXT_USE_COMPRESSION = "useTextCompression";
         public static final String USE_ARMOR = "useArmor";
+        public static final String KEY_REFRESH_ENABLED = "keyRefreshEnabled";
+        public static final String KEY_REFRESH_WINDOW = "keyRefreshWindow";
+        public static final String KEY_PAIR_POOL_ENABLED = "keyPairPoolEnabled";
+        public static final String KEY_PAIR_POOL_DEMAND = "keyPairPoolDemand";
+        public static final String S2K_COUNT = "s2kCount";
+        public static final String S2K_CALIBRATION_TIME = "s2kCalibrationTime";
     }
 
     public static final class Defaults {
@@ -34,8 +34,12 @@ import android.widget.Toast;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.provider.TemporaryStorageProvider;
+import org.sufficientlysecure.keychain.service.KeyPairPoolService;
+import org.sufficientlysecure.keychain.service.KeyringSummaryService;
+import org.sufficientlysecure.keychain.service.S2kCalibrationService;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -102,6 +106,15 @@ public class KeychainApplication extends Application {
         TemporaryStorageProvider.cleanUp(this);
 
         checkConsolidateRecovery();
+
+        if (Preferences.getPreferences(this).isKeyRefreshEnabled()) {
+            KeyUpdateHelper.scheduleKeyRefresh(this);
+        }
+        KeyringSummaryService.scheduleExpiryCheck(this);
+        S2kCalibrationService.calibrateIfDue(this);
+        if (Preferences.getPreferences(this).isKeyPairPoolEnabled()) {
+            KeyPairPoolService.scheduleFill(this);
+        }
     }
 
     public static HashMap<String,Bitmap> qrCodeCache = new HashMap<>();
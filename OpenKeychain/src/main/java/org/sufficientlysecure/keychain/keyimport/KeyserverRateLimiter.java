@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * A simple token bucket per keyserver, used by background operations so they don't
+ * hammer a keyserver with requests. Interactive operations don't go through this.
+ */
+public class KeyserverRateLimiter {
+
+    /** Number of requests that may be made in a burst */
+    private static final int BUCKET_SIZE = 5;
+    /** Time it takes for a single request token to become available again */
+    private static final long REFILL_INTERVAL = 3 * 1000;
+
+    private static final HashMap<String, KeyserverRateLimiter> sLimiters = new HashMap<>();
+
+    private double mTokens = BUCKET_SIZE;
+    private long mLastRefill = SystemClock.elapsedRealtime();
+
+    public static synchronized KeyserverRateLimiter getInstance(String keyserver) {
+        KeyserverRateLimiter limiter = sLimiters.get(keyserver);
+        if (limiter == null) {
+            limiter = new KeyserverRateLimiter();
+            sLimiters.put(keyserver, limiter);
+        }
+        return limiter;
+    }
+
+    private KeyserverRateLimiter() {
+    }
+
+    /**
+     * Blocks until a request to this keyserver may be made.
+     *
+     * @return false if the thread was interrupted while waiting
+     */
+    public synchronized boolean acquire() {
+        while (true) {
+            long now = SystemClock.elapsedRealtime();
+            mTokens = Math.min(BUCKET_SIZE, mTokens + (now - mLastRefill) / (double) REFILL_INTERVAL);
+            mLastRefill = now;
+
+            if (mTokens >= 1) {
+                mTokens -= 1;
+                return true;
+            }
+
+            try {
+                wait((long) ((1 - mTokens) * REFILL_INTERVAL) + 1);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+}
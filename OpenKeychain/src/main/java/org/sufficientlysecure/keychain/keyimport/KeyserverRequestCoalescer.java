@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.sufficientlysecure.keychain.keyimport.Keyserver.QueryFailedException;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Makes sure there is only a single request in flight for each key on each keyserver.
+ *
+ * Threads that ask for a key which is already being fetched wait for the running request
+ * and receive its result, instead of querying the keyserver again.
+ */
+public class KeyserverRequestCoalescer {
+
+    private static final HashMap<String, Request> sInFlight = new HashMap<>();
+
+    private static class Request {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        String mData;
+        String mError;
+    }
+
+    /**
+     * @param keyserver   the keyserver to fetch from
+     * @param keyserverId identifies the keyserver, e.g. its uri
+     * @param query       a fingerprint or key id, as accepted by {@link Keyserver#get(String)}
+     */
+    public static String get(Keyserver keyserver, String keyserverId, String query)
+            throws QueryFailedException {
+        String key = keyserverId + " " + query.toLowerCase(Locale.ENGLISH);
+
+        Request request;
+        boolean owner = false;
+        synchronized (sInFlight) {
+            request = sInFlight.get(key);
+            if (request == null) {
+                request = new Request();
+                sInFlight.put(key, request);
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            try {
+                request.mDone.await();
+            } catch (InterruptedException e) {
+                throw new QueryFailedException("interrupted while waiting for keyserver");
+            }
+            if (request.mError != null) {
+                throw new QueryFailedException(request.mError);
+            }
+            return request.mData;
+        }
+
+        try {
+            request.mData = keyserver.get(query);
+            return request.mData;
+        } catch (QueryFailedException e) {
+            request.mError = e.getMessage();
+            throw e;
+        } finally {
+            synchronized (sInFlight) {
+                sInFlight.remove(key);
+            }
+            request.mDone.countDown();
+        }
+    }
+
+}
@@ -52,6 +52,18 @@ public class ParcelableKeyRing implements Parcelable {
         mKeybaseName = keybaseName;
     }
 
+    /**
+     * Keyring data which is updated from the referenced keyserver or keybase entry on import.
+     * At least one of keyIdHex or keybaseName must be set for this.
+     */
+    public ParcelableKeyRing(byte[] bytes, String expectedFingerprint, String keyIdHex,
+                             String keybaseName) {
+        mBytes = bytes;
+        mExpectedFingerprint = expectedFingerprint;
+        mKeyIdHex = keyIdHex;
+        mKeybaseName = keybaseName;
+    }
+
     private ParcelableKeyRing(Parcel source) {
         mBytes = source.createByteArray();
 
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.operations;
 
 import android.content.Context;
+import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
@@ -45,8 +46,18 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.NfcSign
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** An operation which implements a high level user id certification operation.
@@ -128,29 +139,84 @@ public class CertifyOperation extends BaseOperation {
                 cryptoInput.getSignatureTime(), certificationKey.getKeyId(),
                 certificationKey.getKeyId());
 
-        // Work through all requested certifications
-        for (CertifyAction action : parcel.mCertifyActions) {
+        ArrayList<CertifyAction> actions = parcel.mCertifyActions;
 
-            // Check if we were cancelled
-            if (checkCancelled()) {
-                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
-                return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+        // Load all keyrings to certify at once
+        long[] masterKeyIds = new long[actions.size()];
+        for (int i = 0; i < actions.size(); i++) {
+            masterKeyIds[i] = actions.get(i).mMasterKeyId;
+        }
+        LongSparseArray<CanonicalizedPublicKeyRing> publicRings =
+                mProviderHelper.getCanonicalizedPublicKeyRings(masterKeyIds);
+
+        final CanonicalizedSecretKey signingKey = certificationKey;
+        final Map<ByteBuffer, byte[]> signedHashes = cryptoInput.getCryptoData();
+        final Date signatureTime = cryptoInput.getSignatureTime();
+
+        // The unlocked key only hands out fresh signature generators, so certifications can
+        // run in parallel. The log is not thread safe, every certification logs into its
+        // own and they are merged in order.
+        OperationLog[] subLogs = new OperationLog[actions.size()];
+        ArrayList<Future<PgpCertifyResult>> futures = new ArrayList<>();
+        int threads = Math.min(actions.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            for (int i = 0; i < actions.size(); i++) {
+
+                // Check if we were cancelled before queueing more work
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                }
+
+                final CertifyAction action = actions.get(i);
+                final CanonicalizedPublicKeyRing publicRing = publicRings.get(action.mMasterKeyId);
+                if (action.mMasterKeyId == parcel.mMasterKeyId || publicRing == null) {
+                    futures.add(null);
+                    continue;
+                }
+                final OperationLog subLog = subLogs[i] = new OperationLog();
+                futures.add(executor.submit(new Callable<PgpCertifyResult>() {
+                    @Override
+                    public PgpCertifyResult call() {
+                        // queued certifications are skipped once cancelled
+                        if (checkCancelled()) {
+                            return null;
+                        }
+                        PgpCertifyOperation op = new PgpCertifyOperation();
+                        return op.certify(signingKey, publicRing, subLog, 2, action,
+                                signedHashes, signatureTime);
+                    }
+                }));
             }
 
-            try {
+            // Work through all requested certifications
+            for (int i = 0; i < actions.size(); i++) {
 
-                if (action.mMasterKeyId == parcel.mMasterKeyId) {
+                // Check if we were cancelled
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                }
+
+                if (actions.get(i).mMasterKeyId == parcel.mMasterKeyId) {
                     log.add(LogType.MSG_CRT_ERROR_SELF, 2);
                     certifyError += 1;
                     continue;
                 }
 
-                CanonicalizedPublicKeyRing publicRing =
-                        mProviderHelper.getCanonicalizedPublicKeyRing(action.mMasterKeyId);
+                if (futures.get(i) == null) {
+                    certifyError += 1;
+                    log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
+                    continue;
+                }
 
-                PgpCertifyOperation op = new PgpCertifyOperation();
-                PgpCertifyResult result = op.certify(certificationKey, publicRing,
-                        log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                PgpCertifyResult result = futures.get(i).get();
+                if (result == null) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                }
+                log.addAll(subLogs[i]);
 
                 if (!result.success()) {
                     certifyError += 1;
@@ -164,11 +230,19 @@ public class CertifyOperation extends BaseOperation {
 
                 certifiedKeys.add(result.getCertifiedRing());
 
-            } catch (NotFoundException e) {
-                certifyError += 1;
-                log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
             }
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
 
         if ( ! allRequiredInput.isEmpty()) {
@@ -191,8 +265,13 @@ public class CertifyOperation extends BaseOperation {
             importExportOperation = new ImportExportOperation(mContext, mProviderHelper, mProgressable);
         }
 
-        // Write all certified keys into the database
-        for (UncachedKeyRing certifiedKey : certifiedKeys) {
+        // Write all certified keys into the database, in a single transaction
+        List<SaveKeyringResult> saveResults =
+                mProviderHelper.savePublicKeyRings(certifiedKeys,
+                        new ProgressScaler(mProgressable, 0, 100, 100));
+
+        for (int i = 0; i < certifiedKeys.size(); i++) {
+            UncachedKeyRing certifiedKey = certifiedKeys.get(i);
 
             // Check if we were cancelled
             if (checkCancelled()) {
@@ -202,9 +281,7 @@ public class CertifyOperation extends BaseOperation {
 
             log.add(LogType.MSG_CRT_SAVE, 2,
                     KeyFormattingUtils.convertKeyIdToHex(certifiedKey.getMasterKeyId()));
-            // store the signed key in our local cache
-            mProviderHelper.clearLog();
-            SaveKeyringResult result = mProviderHelper.savePublicKeyRing(certifiedKey);
+            SaveKeyringResult result = saveResults.get(i);
 
             if (importExportOperation != null) {
                 // TODO use subresult, get rid of try/catch!
@@ -18,17 +18,21 @@
 package org.sufficientlysecure.keychain.operations;
 
 import android.content.Context;
+import android.database.Cursor;
 
-import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.DeleteResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 
+import java.util.HashSet;
+
 /** An operation which implements a high level keyring delete operation.
  *
  * This operation takes a list of masterKeyIds as input, deleting all
@@ -61,27 +65,50 @@ public class DeleteOperation extends BaseOperation {
 
         boolean cancelled = false;
         int success = 0, fail = 0;
-        for (long masterKeyId : masterKeyIds) {
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
+        if (checkCancelled()) {
+            cancelled = true;
+        } else {
+            // master key ids are numbers, so they can safely go into the selection as they are
+            StringBuilder ids = new StringBuilder();
+            for (long masterKeyId : masterKeyIds) {
+                if (ids.length() > 0) {
+                    ids.append(",");
+                }
+                ids.append(masterKeyId);
             }
-            int count = mProviderHelper.getContentResolver().delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null
-            );
-            if (count > 0) {
-                log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                success += 1;
-            } else {
-                log.add(LogType.MSG_DEL_KEY_FAIL, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                fail += 1;
+            String selection = Tables.KEY_RINGS_PUBLIC + "." + KeyRings.MASTER_KEY_ID
+                    + " IN (" + ids + ")";
+
+            HashSet<Long> existing = new HashSet<>();
+            Cursor cursor = mProviderHelper.getContentResolver().query(
+                    KeyRingData.buildPublicKeyRingUri(), new String[]{ KeyRingData.MASTER_KEY_ID },
+                    selection, null, null);
+            try {
+                while (cursor != null && cursor.moveToNext()) {
+                    existing.add(cursor.getLong(0));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
-        }
 
-        if (isSecret && success > 0) {
-            log.add(LogType.MSG_DEL_CONSOLIDATE, 1);
-            ConsolidateResult sub = mProviderHelper.consolidateDatabaseStep1(mProgressable);
-            log.add(sub, 2);
+            // all keyrings are deleted in one transaction, which also takes care of the
+            // certificates they made and sends a single notification
+            if (!existing.isEmpty()) {
+                mProviderHelper.getContentResolver().delete(
+                        KeyRingData.buildPublicKeyRingUri(), selection, null);
+            }
+
+            for (long masterKeyId : masterKeyIds) {
+                if (existing.contains(masterKeyId)) {
+                    log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                    success += 1;
+                } else {
+                    log.add(LogType.MSG_DEL_KEY_FAIL, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                    fail += 1;
+                }
+            }
         }
 
         int result = DeleteResult.RESULT_OK;
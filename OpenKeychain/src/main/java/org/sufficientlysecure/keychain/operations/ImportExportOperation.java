@@ -29,15 +29,19 @@ import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver.AddKeyException;
+import org.sufficientlysecure.keychain.keyimport.KeyserverRequestCoalescer;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Timer;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.FastArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -61,7 +65,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** An operation class which implements high level import and export
@@ -89,6 +95,17 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class ImportExportOperation extends BaseOperation {
 
+    /** Log entries of bulk imports held in memory, further ones are spilled to a file */
+    public static final int IMPORT_LOG_MAX_ENTRIES = 2000;
+
+    // saves of the same keyring from concurrent imports must not interleave
+    private static final Object[] sSaveLocks = new Object[16];
+    static {
+        for (int i = 0; i < sSaveLocks.length; i++) {
+            sSaveLocks[i] = new Object();
+        }
+    }
+
     public ImportExportOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
@@ -106,7 +123,7 @@ public class ImportExportOperation extends BaseOperation {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ArmoredOutputStream aos = null;
         try {
-            aos = new ArmoredOutputStream(bos);
+            aos = new FastArmoredOutputStream(bos);
             keyring.encode(aos);
             aos.close();
 
@@ -127,6 +144,164 @@ public class ImportExportOperation extends BaseOperation {
         }
     }
 
+    private static Object getSaveLock(long masterKeyId) {
+        return sSaveLocks[(int) ((masterKeyId ^ (masterKeyId >>> 32)) & (sSaveLocks.length - 1))];
+    }
+
+    /**
+     * Merges entries which refer to the same key, so they can be imported in parallel.
+     *
+     * Keyring data is merged in memory, public rings with public and secret rings with secret
+     * ones. The public and the secret part of a key stay separate entries, which are combined
+     * on save just like saveSecretKeyRing does, so no third-party certifications get lost.
+     * References to the same key on keyservers or keybase are combined into a single one, and
+     * attached to the public data of that key if there is any. Merged entries take the position
+     * of the first entry of their key. Entries which can't be decoded or merged are passed
+     * through unchanged, the import will report them.
+     */
+    public static ArrayList<ParcelableKeyRing> mergeByFingerprint(List<ParcelableKeyRing> entries) {
+        // keyed by fingerprint, or by position for entries which are passed through
+        LinkedHashMap<String, MergedEntry> merged = new LinkedHashMap<>();
+
+        for (int i = 0; i < entries.size(); i++) {
+            ParcelableKeyRing entry = entries.get(i);
+
+            if (entry.mBytes == null) {
+                if (entry.mExpectedFingerprint == null) {
+                    merged.put("#" + i, new MergedEntry(entry));
+                } else {
+                    getMergedEntry(merged, entry.mExpectedFingerprint).addReference(entry);
+                }
+                continue;
+            }
+
+            try {
+                UncachedKeyRing ring = UncachedKeyRing.decodeFromData(entry.mBytes);
+                // data which doesn't match its expected fingerprint is rejected by the import
+                if (entry.mExpectedFingerprint != null
+                        && !ring.containsSubkey(entry.mExpectedFingerprint)) {
+                    merged.put("#" + i, new MergedEntry(entry));
+                    continue;
+                }
+                String fingerprint = KeyFormattingUtils.convertFingerprintToHex(ring.getFingerprint());
+                if (!getMergedEntry(merged, fingerprint).addRing(ring)) {
+                    merged.put("#" + i, new MergedEntry(entry));
+                }
+            } catch (IOException | PgpGeneralException e) {
+                merged.put("#" + i, new MergedEntry(entry));
+            }
+        }
+
+        ArrayList<ParcelableKeyRing> result = new ArrayList<>(merged.size());
+        for (MergedEntry entry : merged.values()) {
+            try {
+                entry.addTo(result);
+            } catch (IOException e) {
+                // can't happen for rings we just decoded, pass on the originals just in case
+                result.addAll(entry.mOriginals);
+            }
+        }
+        return result;
+    }
+
+    private static MergedEntry getMergedEntry(LinkedHashMap<String, MergedEntry> merged,
+                                              String fingerprint) {
+        fingerprint = fingerprint.toLowerCase(Locale.ENGLISH);
+        MergedEntry entry = merged.get(fingerprint);
+        if (entry == null) {
+            entry = new MergedEntry(null);
+            merged.put(fingerprint, entry);
+        }
+        return entry;
+    }
+
+    /** All entries of a single key, see mergeByFingerprint */
+    private static class MergedEntry {
+        final ArrayList<ParcelableKeyRing> mOriginals = new ArrayList<>();
+        final boolean mPassThrough;
+
+        UncachedKeyRing mPublicRing;
+        UncachedKeyRing mSecretRing;
+
+        boolean mIsReference;
+        String mExpectedFingerprint;
+        String mKeyIdHex;
+        String mKeybaseName;
+
+        MergedEntry(ParcelableKeyRing passThrough) {
+            mPassThrough = passThrough != null;
+            if (mPassThrough) {
+                mOriginals.add(passThrough);
+            }
+        }
+
+        /** @return false if the ring could not be merged */
+        boolean addRing(UncachedKeyRing ring) throws IOException {
+            if (ring.isSecret()) {
+                UncachedKeyRing merged = mSecretRing == null
+                        ? ring : mSecretRing.merge(ring, new OperationLog(), 0);
+                if (merged == null) {
+                    return false;
+                }
+                mSecretRing = merged;
+            } else {
+                UncachedKeyRing merged = mPublicRing == null
+                        ? ring : mPublicRing.merge(ring, new OperationLog(), 0);
+                if (merged == null) {
+                    return false;
+                }
+                mPublicRing = merged;
+            }
+            mOriginals.add(new ParcelableKeyRing(ring.getEncoded()));
+            return true;
+        }
+
+        void addReference(ParcelableKeyRing entry) {
+            mIsReference = true;
+            if (mExpectedFingerprint == null) {
+                mExpectedFingerprint = entry.mExpectedFingerprint;
+            }
+            if (mKeyIdHex == null) {
+                mKeyIdHex = entry.mKeyIdHex;
+            }
+            if (mKeybaseName == null) {
+                mKeybaseName = entry.mKeybaseName;
+            }
+            mOriginals.add(entry);
+        }
+
+        void addTo(ArrayList<ParcelableKeyRing> result) throws IOException {
+            if (mPassThrough) {
+                result.addAll(mOriginals);
+                return;
+            }
+
+            UncachedKeyRing publicRing = mPublicRing;
+            // a reference needs some data to be attached to
+            if (publicRing == null && mSecretRing != null && mIsReference) {
+                publicRing = mSecretRing.extractPublicKeyRing();
+            }
+
+            if (publicRing == null) {
+                if (mIsReference) {
+                    result.add(new ParcelableKeyRing(mExpectedFingerprint, mKeyIdHex, mKeybaseName));
+                }
+            } else if (mIsReference) {
+                // the key id marks the data as to be updated from the keyserver as well
+                String keyIdHex = mKeyIdHex != null
+                        ? mKeyIdHex : KeyFormattingUtils.convertKeyIdToHex(publicRing.getMasterKeyId());
+                result.add(new ParcelableKeyRing(publicRing.getEncoded(),
+                        mExpectedFingerprint, keyIdHex, mKeybaseName));
+            } else {
+                result.add(new ParcelableKeyRing(publicRing.getEncoded()));
+            }
+
+            if (mSecretRing != null) {
+                result.add(new ParcelableKeyRing(mSecretRing.getEncoded()));
+            }
+        }
+    }
+
     public ImportKeyResult importKeyRings(List<ParcelableKeyRing> entries, String keyServerUri) {
 
         Iterator<ParcelableKeyRing> it = entries.iterator();
@@ -138,16 +313,16 @@ public class ImportExportOperation extends BaseOperation {
 
     public ImportKeyResult importKeyRings(ParcelableFileCache<ParcelableKeyRing> cache, String keyServerUri) {
 
-        // get entries from cached file
+        // get entries from cached file, entries which cannot be read are reported in the log
+        OperationLog log = new OperationLog();
         try {
-            IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
+            IteratorWithSize<ParcelableKeyRing> it = cache.readCache(true, log, 1);
             int numEntries = it.getSize();
 
-            return importKeyRings(it, numEntries, keyServerUri);
+            return importKeyRings(log, it, numEntries, keyServerUri);
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
-            OperationLog log = new OperationLog();
             log.add(LogType.MSG_IMPORT, 0, 0);
             log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
 
@@ -166,9 +341,26 @@ public class ImportExportOperation extends BaseOperation {
      * @return
      */
     public ImportKeyResult importKeyRings(Iterator<ParcelableKeyRing> entries, int num, String keyServerUri) {
+        return importKeyRings(new OperationLog(), entries, num, keyServerUri);
+    }
+
+    private ImportKeyResult importKeyRings(OperationLog log, Iterator<ParcelableKeyRing> entries,
+                                           int num, String keyServerUri) {
+        if (num > 1) {
+            log.setCap(IMPORT_LOG_MAX_ENTRIES, mContext.getCacheDir());
+        }
+        try {
+            return importKeyRingsInternal(log, entries, num, keyServerUri);
+        } finally {
+            // the spill file is complete once the result is handed out
+            log.closeSpill();
+        }
+    }
+
+    private ImportKeyResult importKeyRingsInternal(OperationLog log, Iterator<ParcelableKeyRing> entries,
+                                                   int num, String keyServerUri) {
         updateProgress(R.string.progress_importing, 0, 100);
 
-        OperationLog log = new OperationLog();
         log.add(LogType.MSG_IMPORT, 0, num);
 
         // If there aren't even any keys, do nothing here.
@@ -204,8 +396,8 @@ public class ImportExportOperation extends BaseOperation {
                 if (entry.mBytes != null) {
                     key = UncachedKeyRing.decodeFromData(entry.mBytes);
                 }
-                // Otherwise, we need to fetch the data from a server first
-                else {
+                // Otherwise, or if the data is a reference as well, fetch it from a server
+                if (entry.mBytes == null || entry.mKeyIdHex != null || entry.mKeybaseName != null) {
 
                     // We fetch from keyservers first, because we tend to get more certificates
                     // from there, so the number of certificates which are merged in later is smaller.
@@ -220,25 +412,43 @@ public class ImportExportOperation extends BaseOperation {
                             keyServer = new HkpKeyserver(keyServerUri);
                         }
 
+                        Timer timer = log.getTimings().start(Phase.IO);
                         try {
                             byte[] data;
                             // Download by fingerprint, or keyId - whichever is available
                             if (entry.mExpectedFingerprint != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" + entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint).getBytes();
+                                data = KeyserverRequestCoalescer.get(keyServer, keyServerUri,
+                                        "0x" + entry.mExpectedFingerprint).getBytes();
                             } else {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex).getBytes();
+                                data = KeyserverRequestCoalescer.get(keyServer, keyServerUri,
+                                        entry.mKeyIdHex).getBytes();
                             }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
+                            UncachedKeyRing keyserverKey = UncachedKeyRing.decodeFromData(data);
+                            if (keyserverKey != null) {
                                 log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
                             } else {
                                 log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
                             }
+
+                            // If there already is data for this key, merge the two
+                            if (key != null && keyserverKey != null) {
+                                log.add(LogType.MSG_IMPORT_MERGE, 3);
+                                keyserverKey = key.merge(keyserverKey, log, 4);
+                                if (keyserverKey != null) {
+                                    key = keyserverKey;
+                                } else {
+                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                                }
+                            } else if (keyserverKey != null) {
+                                key = keyserverKey;
+                            }
                         } catch (Keyserver.QueryFailedException e) {
                             Log.e(Constants.TAG, "query failed", e);
                             log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
+                        } finally {
+                            timer.stop();
                         }
                     }
 
@@ -300,12 +510,15 @@ public class ImportExportOperation extends BaseOperation {
 
                 SaveKeyringResult result;
                 mProviderHelper.clearLog();
-                if (key.isSecret()) {
-                    result = mProviderHelper.saveSecretKeyRing(key,
-                            new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100));
-                } else {
-                    result = mProviderHelper.savePublicKeyRing(key,
-                            new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100));
+                // if another thread just saved the same data, this merges to an early breakout
+                synchronized (getSaveLock(key.getMasterKeyId())) {
+                    if (key.isSecret()) {
+                        result = mProviderHelper.saveSecretKeyRing(key,
+                                new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100));
+                    } else {
+                        result = mProviderHelper.savePublicKeyRing(key,
+                                new ProgressScaler(mProgressable, (int)(position*progSteps), (int)((position+1)*progSteps), 100));
+                    }
                 }
                 if (!result.success()) {
                     badKeys += 1;
@@ -321,6 +534,7 @@ public class ImportExportOperation extends BaseOperation {
                 }
 
                 log.add(result, 2);
+                log.getTimings().addAll(result.getTimings());
 
             } catch (IOException | PgpGeneralException e) {
                 Log.e(Constants.TAG, "Encountered bad key on import!", e);
@@ -508,16 +722,15 @@ public class ImportExportOperation extends BaseOperation {
                     mContext.getResources().getQuantityString(R.plurals.progress_exporting_key,
                             numKeys), 0, numKeys);
 
+            // A single armor stream for all keys, every keyring still gets its own armor block
+            FastArmoredOutputStream arOutStream = new FastArmoredOutputStream(outStream);
+
             // For each public masterKey id
             while (!cursor.isAfterLast()) {
 
                 long keyId = cursor.getLong(0);
-                ArmoredOutputStream arOutStream = null;
 
-                // Create an output stream
                 try {
-                    arOutStream = new ArmoredOutputStream(outStream);
-
                     log.add(LogType.MSG_EXPORT_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
 
                     byte[] data = cursor.getBlob(1);
@@ -531,17 +744,12 @@ public class ImportExportOperation extends BaseOperation {
                     updateProgress(progress++, numKeys);
                     continue;
                 } finally {
-                    // make sure this is closed
-                    if (arOutStream != null) {
-                        arOutStream.close();
-                    }
-                    arOutStream = null;
+                    // make sure the armor block is complete
+                    arOutStream.finish();
                 }
 
                 if (exportSecret && cursor.getInt(3) > 0) {
                     try {
-                        arOutStream = new ArmoredOutputStream(outStream);
-
                         // export secret key part
                         log.add(LogType.MSG_EXPORT_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
                         byte[] data = cursor.getBlob(2);
@@ -555,10 +763,8 @@ public class ImportExportOperation extends BaseOperation {
                         updateProgress(progress++, numKeys);
                         continue;
                     } finally {
-                        // make sure this is closed
-                        if (arOutStream != null) {
-                            arOutStream.close();
-                        }
+                        // make sure the armor block is complete
+                        arOutStream.finish();
                     }
                 }
 
@@ -567,6 +773,8 @@ public class ImportExportOperation extends BaseOperation {
                 cursor.moveToNext();
             }
 
+            arOutStream.flush();
+
             updateProgress(R.string.progress_done, numKeys, numKeys);
 
         } catch (IOException e) {
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.util.SparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
@@ -32,12 +33,18 @@ import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -63,6 +70,9 @@ public abstract class OperationResult implements Parcelable {
         logCache = new ParcelableCache<>();
     }
 
+    /** Logs up to this many entries are parceled directly rather than through logCache */
+    private static final int LOG_INLINE_MAX_ENTRIES = 500;
+
     /** Holds the overall result, the number specifying varying degrees of success:
      *  - The first bit is 0 on overall success, 1 on overall failure
      *  - The second bit indicates if the action was cancelled - may still be an error or success!
@@ -85,8 +95,12 @@ public abstract class OperationResult implements Parcelable {
 
     public OperationResult(Parcel source) {
         mResult = source.readInt();
-        // get log out of cache based on UUID from source
-        mLog = logCache.readFromParcelAndGetFromCache(source);
+        if (source.readInt() != 0) {
+            mLog = new OperationLog(source);
+        } else {
+            // get log out of cache based on UUID from source
+            mLog = logCache.readFromParcelAndGetFromCache(source);
+        }
     }
 
     public int getResult() {
@@ -101,6 +115,11 @@ public abstract class OperationResult implements Parcelable {
         return (mResult & RESULT_CANCELLED) == RESULT_CANCELLED;
     }
 
+    /** Timings of this operation, see OperationTimings */
+    public OperationTimings getTimings() {
+        return mLog.getTimings();
+    }
+
     public OperationLog getLog() {
         SubLogEntryParcel singleSubLog = mLog.getSubResultIfSingle();
         if (singleSubLog != null) {
@@ -120,12 +139,11 @@ public abstract class OperationResult implements Parcelable {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         public LogEntryParcel(Parcel source) {
             mType = LogType.values()[source.readInt()];
-            mParameters = (Object[]) source.readSerializable();
+            mParameters = source.readArray(LogEntryParcel.class.getClassLoader());
             mIndent = source.readInt();
         }
 
@@ -138,7 +156,7 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(0);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            dest.writeArray(mParameters);
             dest.writeInt(mIndent);
         }
 
@@ -175,8 +193,6 @@ public abstract class OperationResult implements Parcelable {
         public SubLogEntryParcel(@NonNull OperationResult subResult, LogType type, int indent, Object... parameters) {
             super(type, indent, parameters);
             mSubResult = subResult;
-
-            Log.v(Constants.TAG, "log: " + this);
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -197,7 +213,7 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(1);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            dest.writeArray(mParameters);
             dest.writeInt(mIndent);
             dest.writeParcelable(mSubResult, 0);
         }
@@ -618,6 +634,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_cached),
         MSG_DC (LogLevel.DEBUG, R.string.msg_dc),
         MSG_DC_SYM (LogLevel.DEBUG, R.string.msg_dc_sym),
         MSG_DC_SYM_SKIP (LogLevel.DEBUG, R.string.msg_dc_sym_skip),
@@ -756,6 +773,14 @@ public abstract class OperationResult implements Parcelable {
         MSG_EXPORT_LOG_EXPORT_ERROR_FOPEN(LogLevel.ERROR,R.string.msg_export_log_error_fopen),
         MSG_EXPORT_LOG_EXPORT_ERROR_WRITING(LogLevel.ERROR,R.string.msg_export_log_error_writing),
         MSG_EXPORT_LOG_EXPORT_SUCCESS (LogLevel.OK, R.string.msg_export_log_success),
+
+        // compacted logs
+        MSG_LOG_REPEATED (LogLevel.DEBUG, R.plurals.msg_log_repeated),
+        MSG_LOG_SPILLED (LogLevel.INFO, R.plurals.msg_log_spilled),
+
+        // cache files
+        MSG_CACHE_WARN_CHECKSUM (LogLevel.WARN, R.string.msg_cache_warn_checksum),
+        MSG_CACHE_WARN_LOST (LogLevel.WARN, R.plurals.msg_cache_warn_lost),
         ;
 
         public final int mMsgId;
@@ -788,30 +813,323 @@ public abstract class OperationResult implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mResult);
-        // cache log and write UUID to dest
-        logCache.cacheAndWriteToParcel(mLog, dest);
+        if (mLog != null && mLog.getParcelSize() <= LOG_INLINE_MAX_ENTRIES) {
+            dest.writeInt(1);
+            mLog.writeToParcel(dest);
+        } else {
+            dest.writeInt(0);
+            // cache log and write UUID to dest
+            logCache.cacheAndWriteToParcel(mLog, dest);
+        }
     }
 
+    /**
+     * The log of an operation.
+     *
+     * Bulk operations such as large imports log a great many lines, so entries are not kept
+     * as one object each but packed into primitive arrays, with their parameters interned.
+     * Consecutive identical lines are stored once along with a repeat count. Optionally, the
+     * number of entries held in memory can be capped, see setCap. LogEntryParcels are only
+     * created when the log is read.
+     */
     public static class OperationLog implements Iterable<LogEntryParcel> {
 
-        private final List<LogEntryParcel> mParcels = new ArrayList<>();
+        // layout of a packed entry
+        private static final int TYPE_MASK = 0xffff;
+        private static final int INDENT_SHIFT = 16;
+        private static final int INDENT_MASK = 0xff;
+        private static final int PARAM_COUNT_SHIFT = 24;
+        private static final int PARAM_COUNT_MASK = 0x7f;
+        private static final int FLAG_SUB_RESULT = 1 << 31;
+
+        private static final LogType[] TYPES = LogType.values();
+
+        /** Parameters are interned up to this many distinct values per log */
+        private static final int MAX_INTERNED = 4096;
+
+        private static final String SPILL_FILE_PREFIX = "log_";
+        private static final String SPILL_FILE_SUFFIX = ".txt";
+        /** Spill files of earlier operations are deleted after this time */
+        private static final long SPILL_FILE_MAX_AGE = 24 * 60 * 60 * 1000;
+
+        private int mSize;
+        private int[] mEntries = new int[8];
+        private int[] mParamOffsets = new int[8];
+        private int[] mRepeats;
+        private Object[] mParams = new Object[8];
+        private int mParamCount;
+        private SparseArray<OperationResult> mSubResults;
+        private HashMap<Object, Object> mInterned;
+
+        private int mCap;
+        private File mSpillDir;
+        private File mSpillFile;
+        private Writer mSpillWriter;
+        private int mSpilled;
+        private int mSpillIndex;
+
+        private OperationTimings mTimings;
+
+        public OperationLog() {
+        }
+
+        /** Timings of the phases of this operation, created on first use */
+        public OperationTimings getTimings() {
+            if (mTimings == null) {
+                mTimings = new OperationTimings();
+            }
+            return mTimings;
+        }
+
+        public boolean hasTimings() {
+            return mTimings != null && !mTimings.isEmpty();
+        }
+
+        /**
+         * Caps the number of entries held in memory. Once reached, further debug and info
+         * entries below the top level, as well as sub results which succeeded without
+         * warnings, are written to a new temporary file in spillDir instead. Warnings and
+         * errors are always kept. The owner of the log should call closeSpill() once the
+         * operation is done, reading the log closes it as well.
+         */
+        public void setCap(int maxEntries, File spillDir) {
+            mCap = maxEntries;
+            mSpillDir = spillDir;
+            deleteStaleSpillFiles(spillDir);
+        }
+
+        /** Returns the file spilled entries were written to, or null if nothing was spilled */
+        public File getSpillFile() {
+            closeSpill();
+            return mSpilled > 0 ? mSpillFile : null;
+        }
+
+        private String getSpillPath() {
+            return mSpillFile != null ? mSpillFile.getPath() : "";
+        }
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            if (Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + type + ", indent " + indent + ", "
+                        + Arrays.toString(parameters));
+            }
+            add(type, indent, parameters, null, 0);
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            add(type, indent, (Object[]) null);
         }
 
         public void add(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
-            mParcels.add(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
+            LogEntryParcel first = subLog.getFirst();
+            add(first.mType, indent, first.mParameters, subResult, 0);
+        }
+
+        private void add(LogType type, int indent, Object[] parameters,
+                         OperationResult subResult, int repeats) {
+            if (isSpilled(type, indent, subResult)) {
+                spill(type, indent, parameters, subResult, repeats);
+                return;
+            }
+
+            int paramCount = parameters == null ? 0 : parameters.length;
+            int packed = type.ordinal() | (Math.max(0, Math.min(indent, INDENT_MASK)) << INDENT_SHIFT)
+                    | (paramCount << PARAM_COUNT_SHIFT) | (subResult != null ? FLAG_SUB_RESULT : 0);
+
+            if (subResult == null && mSize > 0 && mEntries[mSize - 1] == packed
+                    && paramsEqual(mSize - 1, parameters)) {
+                if (mRepeats == null) {
+                    mRepeats = new int[mEntries.length];
+                }
+                mRepeats[mSize - 1] += repeats + 1;
+                return;
+            }
+
+            if (mSize == mEntries.length) {
+                mEntries = Arrays.copyOf(mEntries, mSize * 2);
+                mParamOffsets = Arrays.copyOf(mParamOffsets, mSize * 2);
+                if (mRepeats != null) {
+                    mRepeats = Arrays.copyOf(mRepeats, mSize * 2);
+                }
+            }
+            if (mParamCount + paramCount > mParams.length) {
+                mParams = Arrays.copyOf(mParams, Math.max(mParams.length * 2, mParamCount + paramCount));
+            }
+
+            mEntries[mSize] = packed;
+            mParamOffsets[mSize] = mParamCount;
+            for (int i = 0; i < paramCount; i++) {
+                mParams[mParamCount++] = intern(parameters[i]);
+            }
+            if (repeats > 0) {
+                if (mRepeats == null) {
+                    mRepeats = new int[mEntries.length];
+                }
+                mRepeats[mSize] = repeats;
+            }
+            if (subResult != null) {
+                if (mSubResults == null) {
+                    mSubResults = new SparseArray<>();
+                }
+                mSubResults.put(mSize, subResult);
+            }
+            mSize += 1;
+        }
+
+        private Object intern(Object parameter) {
+            if (!(parameter instanceof String || parameter instanceof Integer
+                    || parameter instanceof Long)) {
+                return parameter;
+            }
+            if (mInterned == null) {
+                mInterned = new HashMap<>();
+            }
+            Object interned = mInterned.get(parameter);
+            if (interned != null) {
+                return interned;
+            }
+            if (mInterned.size() < MAX_INTERNED) {
+                mInterned.put(parameter, parameter);
+            }
+            return parameter;
+        }
+
+        private boolean paramsEqual(int index, Object[] parameters) {
+            int offset = mParamOffsets[index];
+            int count = (mEntries[index] >>> PARAM_COUNT_SHIFT) & PARAM_COUNT_MASK;
+            for (int i = 0; i < count; i++) {
+                Object param = mParams[offset + i];
+                if (param == null ? parameters[i] != null : !param.equals(parameters[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSpilled(LogType type, int indent, OperationResult subResult) {
+            if (mCap <= 0 || mSize < mCap || indent <= 0) {
+                return false;
+            }
+            if (subResult != null) {
+                return subResult.success() && !subResult.getLog().containsWarnings();
+            }
+            return type.mLevel == LogLevel.DEBUG || type.mLevel == LogLevel.INFO
+                    || type.mLevel == LogLevel.START;
+        }
+
+        private void spill(LogType type, int indent, Object[] parameters,
+                           OperationResult subResult, int repeats) {
+            if (mSpilled == 0) {
+                mSpillIndex = mSize;
+            }
+            mSpilled += repeats + 1;
+
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < indent; i++) {
+                line.append("  ");
+            }
+            line.append(type.name());
+            if (parameters != null && parameters.length > 0) {
+                line.append(' ').append(Arrays.toString(parameters));
+            }
+            if (repeats > 0) {
+                line.append(" (x").append(repeats + 1).append(')');
+            }
+            line.append('\n');
+
+            try {
+                if (mSpillWriter == null) {
+                    if (mSpillFile == null) {
+                        mSpillFile = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, mSpillDir);
+                    }
+                    mSpillWriter = new BufferedWriter(new FileWriter(mSpillFile, true));
+                }
+                mSpillWriter.write(line.toString());
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "could not write log spill file", e);
+            }
+
+            if (subResult != null) {
+                OperationLog subLog = subResult.getLog();
+                for (int i = 0; i < subLog.mSize; i++) {
+                    spill(subLog.getType(i), indent + 1 + subLog.getIndent(i),
+                            subLog.getParameters(i), subLog.getSubResult(i), subLog.getRepeats(i));
+                }
+            }
+        }
+
+        /**
+         * Flushes and closes the spill file, if any. It is reopened in append mode if more
+         * entries are spilled later on.
+         */
+        public void closeSpill() {
+            if (mSpillWriter == null) {
+                return;
+            }
+            try {
+                mSpillWriter.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "could not write log spill file", e);
+            }
+            mSpillWriter = null;
+        }
+
+        private static void deleteStaleSpillFiles(File spillDir) {
+            File[] files = spillDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            long staleBefore = System.currentTimeMillis() - SPILL_FILE_MAX_AGE;
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SPILL_FILE_PREFIX) && name.endsWith(SPILL_FILE_SUFFIX)
+                        && file.lastModified() < staleBefore && !file.delete()) {
+                    Log.e(Constants.TAG, "could not delete old log spill file " + file);
+                }
+            }
+        }
+
+        private LogType getType(int index) {
+            return TYPES[mEntries[index] & TYPE_MASK];
+        }
+
+        private int getIndent(int index) {
+            return (mEntries[index] >>> INDENT_SHIFT) & INDENT_MASK;
+        }
+
+        private Object[] getParameters(int index) {
+            int count = (mEntries[index] >>> PARAM_COUNT_SHIFT) & PARAM_COUNT_MASK;
+            if (count == 0) {
+                return null;
+            }
+            int offset = mParamOffsets[index];
+            return Arrays.copyOfRange(mParams, offset, offset + count);
+        }
+
+        private OperationResult getSubResult(int index) {
+            if ((mEntries[index] & FLAG_SUB_RESULT) == 0) {
+                return null;
+            }
+            return mSubResults.get(index);
+        }
+
+        private int getRepeats(int index) {
+            return mRepeats == null ? 0 : mRepeats[index];
+        }
+
+        private LogEntryParcel get(int index) {
+            OperationResult subResult = getSubResult(index);
+            if (subResult != null) {
+                return new SubLogEntryParcel(subResult, getType(index), getIndent(index),
+                        getParameters(index));
+            }
+            return new LogEntryParcel(getType(index), getIndent(index), getParameters(index));
         }
 
         public SubLogEntryParcel getSubResultIfSingle() {
-            if (mParcels.size() != 1) {
+            if (mSize != 1 || mSpilled > 0 || getRepeats(0) > 0) {
                 return null;
             }
             LogEntryParcel first = getFirst();
@@ -822,12 +1140,23 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void clear() {
-            mParcels.clear();
+            closeSpill();
+            mSize = 0;
+            mParamCount = 0;
+            Arrays.fill(mParams, null);
+            mRepeats = null;
+            mSubResults = null;
+            mInterned = null;
+            mSpilled = 0;
+            if (mSpillFile != null && !mSpillFile.delete()) {
+                Log.e(Constants.TAG, "could not delete log spill file " + mSpillFile);
+            }
+            mSpillFile = null;
         }
 
         public boolean containsType(LogType type) {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType == type) {
+            for (int i = 0; i < mSize; i++) {
+                if ((mEntries[i] & TYPE_MASK) == type.ordinal()) {
                     return true;
                 }
             }
@@ -835,8 +1164,9 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public boolean containsWarnings() {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType.mLevel == LogLevel.WARN || entry.mType.mLevel == LogLevel.ERROR) {
+            for (int i = 0; i < mSize; i++) {
+                LogLevel level = getType(i).mLevel;
+                if (level == LogLevel.WARN || level == LogLevel.ERROR) {
                     return true;
                 }
             }
@@ -844,38 +1174,173 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void addAll(List<LogEntryParcel> parcels) {
-            mParcels.addAll(parcels);
+            for (LogEntryParcel parcel : parcels) {
+                add(parcel.mType, parcel.mIndent, parcel.mParameters,
+                        parcel instanceof SubLogEntryParcel
+                                ? ((SubLogEntryParcel) parcel).getSubResult() : null, 0);
+            }
         }
 
+        /** Adds all entries of another log, without unpacking them */
+        public void addAll(OperationLog log) {
+            for (int i = 0; i < log.mSize; i++) {
+                add(log.getType(i), log.getIndent(i), log.getParameters(i),
+                        log.getSubResult(i), log.getRepeats(i));
+            }
+            if (log.mSpilled > 0) {
+                log.closeSpill();
+                add(LogType.MSG_LOG_SPILLED, 1, log.mSpilled, log.getSpillPath());
+            }
+        }
+
+        /**
+         * Returns the entries of this log. Repeated lines and spilled entries are represented
+         * by MSG_LOG_REPEATED and MSG_LOG_SPILLED entries, respectively.
+         */
         public List<LogEntryParcel> toList() {
-            return mParcels;
+            closeSpill();
+            ArrayList<LogEntryParcel> list = new ArrayList<>(mSize + 1);
+            for (int i = 0; i < mSize; i++) {
+                if (mSpilled > 0 && i == mSpillIndex) {
+                    list.add(new LogEntryParcel(LogType.MSG_LOG_SPILLED, 1,
+                            mSpilled, getSpillPath()));
+                }
+                list.add(get(i));
+                int repeats = getRepeats(i);
+                if (repeats > 0) {
+                    list.add(new LogEntryParcel(LogType.MSG_LOG_REPEATED, getIndent(i) + 1, repeats));
+                }
+            }
+            if (mSpilled > 0 && mSpillIndex == mSize) {
+                list.add(new LogEntryParcel(LogType.MSG_LOG_SPILLED, 1,
+                        mSpilled, getSpillPath()));
+            }
+            return list;
         }
 
         public boolean isEmpty() {
-            return mParcels.isEmpty();
+            return mSize == 0;
         }
 
         public LogEntryParcel getFirst() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            return mParcels.get(0);
+            return get(0);
         }
 
         public LogEntryParcel getLast() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            LogEntryParcel last = mParcels.get(mParcels.size() -1);
-            if (last instanceof SubLogEntryParcel) {
-                return ((SubLogEntryParcel) last).getSubResult().getLog().getLast();
+            OperationResult subResult = getSubResult(mSize - 1);
+            if (subResult != null) {
+                return subResult.getLog().getLast();
+            }
+            return get(mSize - 1);
+        }
+
+        /** Number of entries, including those of sub results, which would be parceled */
+        int getParcelSize() {
+            int size = mSize;
+            for (int i = 0; mSubResults != null && i < mSubResults.size(); i++) {
+                OperationResult subResult = mSubResults.valueAt(i);
+                size += subResult.mLog == null ? 0 : subResult.mLog.getParcelSize();
+            }
+            return size;
+        }
+
+        /**
+         * Writes this log to a parcel. Each distinct parameter object is written only once,
+         * entries refer to it by index.
+         */
+        void writeToParcel(Parcel dest) {
+            closeSpill();
+
+            IdentityHashMap<Object, Integer> pool = new IdentityHashMap<>();
+            ArrayList<Object> poolValues = new ArrayList<>();
+            int[] indexes = new int[mParamCount];
+            for (int i = 0; i < mParamCount; i++) {
+                Integer index = pool.get(mParams[i]);
+                if (index == null) {
+                    index = poolValues.size();
+                    pool.put(mParams[i], index);
+                    poolValues.add(mParams[i]);
+                }
+                indexes[i] = index;
+            }
+            dest.writeInt(poolValues.size());
+            for (Object value : poolValues) {
+                dest.writeValue(value);
+            }
+
+            dest.writeInt(mSize);
+            for (int i = 0; i < mSize; i++) {
+                dest.writeInt(mEntries[i]);
+                dest.writeInt(getRepeats(i));
+                int offset = mParamOffsets[i];
+                int count = (mEntries[i] >>> PARAM_COUNT_SHIFT) & PARAM_COUNT_MASK;
+                for (int j = 0; j < count; j++) {
+                    dest.writeInt(indexes[offset + j]);
+                }
+                if ((mEntries[i] & FLAG_SUB_RESULT) != 0) {
+                    dest.writeParcelable(mSubResults.get(i), 0);
+                }
+            }
+
+            dest.writeInt(mSpilled);
+            if (mSpilled > 0) {
+                dest.writeInt(mSpillIndex);
+                dest.writeString(getSpillPath());
+            }
+
+            dest.writeInt(hasTimings() ? 1 : 0);
+            if (hasTimings()) {
+                mTimings.writeToParcel(dest);
+            }
+        }
+
+        OperationLog(Parcel source) {
+            ClassLoader classLoader = OperationResult.class.getClassLoader();
+            Object[] pool = new Object[source.readInt()];
+            for (int i = 0; i < pool.length; i++) {
+                pool[i] = intern(source.readValue(classLoader));
+            }
+
+            int size = source.readInt();
+            for (int i = 0; i < size; i++) {
+                int packed = source.readInt();
+                int repeats = source.readInt();
+                Object[] parameters = null;
+                int count = (packed >>> PARAM_COUNT_SHIFT) & PARAM_COUNT_MASK;
+                if (count > 0) {
+                    parameters = new Object[count];
+                    for (int j = 0; j < count; j++) {
+                        parameters[j] = pool[source.readInt()];
+                    }
+                }
+                OperationResult subResult = null;
+                if ((packed & FLAG_SUB_RESULT) != 0) {
+                    subResult = source.readParcelable(classLoader);
+                }
+                add(TYPES[packed & TYPE_MASK], (packed >>> INDENT_SHIFT) & INDENT_MASK,
+                        parameters, subResult, repeats);
+            }
+
+            mSpilled = source.readInt();
+            if (mSpilled > 0) {
+                mSpillIndex = source.readInt();
+                mSpillFile = new File(source.readString());
+            }
+
+            if (source.readInt() != 0) {
+                getTimings().readFromParcel(source);
             }
-            return last;
         }
 
         @Override
         public Iterator<LogEntryParcel> iterator() {
-            return mParcels.iterator();
+            return toList().iterator();
         }
     }
 
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Debug;
+import android.os.Parcel;
+
+import org.sufficientlysecure.keychain.R;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Wall and cpu time spent in the phases of an operation, attached to its OperationLog.
+ *
+ * Timers may be nested, a phase is only charged the time which was not spent in a nested
+ * phase. For example, reading input from storage while the cipher pulls data is charged to
+ * IO, not to BULK_CIPHER. Not thread safe, timers must be started and stopped on the
+ * thread running the operation.
+ */
+public class OperationTimings {
+
+    public enum Phase {
+        KEY_LOOKUP (R.string.timing_key_lookup),
+        PASSPHRASE_FETCH (R.string.timing_passphrase_fetch),
+        S2K_UNLOCK (R.string.timing_s2k_unlock),
+        SESSION_KEY (R.string.timing_session_key),
+        BULK_CIPHER (R.string.timing_bulk_cipher),
+        COMPRESSION (R.string.timing_compression),
+        MDC_CHECK (R.string.timing_mdc_check),
+        SIGNATURE (R.string.timing_signature),
+        DB_SAVE (R.string.timing_db_save),
+        ARMOR (R.string.timing_armor),
+        IO (R.string.timing_io);
+
+        private final int mMsgId;
+
+        Phase(int msgId) {
+            mMsgId = msgId;
+        }
+
+        public int getMsgId() {
+            return mMsgId;
+        }
+    }
+
+    public static class PhaseTiming {
+        public final Phase mPhase;
+        long mWallNanos;
+        long mCpuNanos;
+        int mCount;
+
+        PhaseTiming(Phase phase) {
+            mPhase = phase;
+        }
+
+        public long getWallMillis() {
+            return mWallNanos / 1000000;
+        }
+
+        public long getCpuMillis() {
+            return mCpuNanos / 1000000;
+        }
+
+        /** Number of times this phase was entered */
+        public int getCount() {
+            return mCount;
+        }
+    }
+
+    public class Timer {
+        private final Phase mPhase;
+        private final long mWallStart = System.nanoTime();
+        private final long mCpuStart = Debug.threadCpuTimeNanos();
+        private long mChildWall;
+        private long mChildCpu;
+
+        private Timer(Phase phase) {
+            mPhase = phase;
+        }
+
+        public void stop() {
+            long wall = System.nanoTime() - mWallStart;
+            long cpu = Debug.threadCpuTimeNanos() - mCpuStart;
+
+            // timers not stopped properly (exceptions) are discarded along the way
+            while (!mActive.isEmpty() && mActive.pop() != this) {
+                // keep popping
+            }
+            Timer parent = mActive.peek();
+            if (parent != null) {
+                parent.mChildWall += wall;
+                parent.mChildCpu += cpu;
+            }
+
+            PhaseTiming timing = get(mPhase);
+            timing.mWallNanos += wall - mChildWall;
+            timing.mCpuNanos += cpu - mChildCpu;
+            timing.mCount += 1;
+        }
+    }
+
+    private final EnumMap<Phase, PhaseTiming> mTimings = new EnumMap<>(Phase.class);
+    private final ArrayDeque<Timer> mActive = new ArrayDeque<>();
+
+    public Timer start(Phase phase) {
+        Timer timer = new Timer(phase);
+        mActive.push(timer);
+        return timer;
+    }
+
+    private PhaseTiming get(Phase phase) {
+        PhaseTiming timing = mTimings.get(phase);
+        if (timing == null) {
+            timing = new PhaseTiming(phase);
+            mTimings.put(phase, timing);
+        }
+        return timing;
+    }
+
+    /** Adds the timings of a sub operation to this one. */
+    public void addAll(OperationTimings other) {
+        for (PhaseTiming otherTiming : other.mTimings.values()) {
+            PhaseTiming timing = get(otherTiming.mPhase);
+            timing.mWallNanos += otherTiming.mWallNanos;
+            timing.mCpuNanos += otherTiming.mCpuNanos;
+            timing.mCount += otherTiming.mCount;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mTimings.isEmpty();
+    }
+
+    void writeToParcel(Parcel dest) {
+        dest.writeInt(mTimings.size());
+        for (PhaseTiming timing : mTimings.values()) {
+            dest.writeInt(timing.mPhase.ordinal());
+            dest.writeLong(timing.mWallNanos);
+            dest.writeLong(timing.mCpuNanos);
+            dest.writeInt(timing.mCount);
+        }
+    }
+
+    void readFromParcel(Parcel source) {
+        Phase[] phases = Phase.values();
+        for (int i = source.readInt(); i > 0; i--) {
+            PhaseTiming timing = get(phases[source.readInt()]);
+            timing.mWallNanos += source.readLong();
+            timing.mCpuNanos += source.readLong();
+            timing.mCount += source.readInt();
+        }
+    }
+
+    /** Returns the timing of a phase, or null if it was never entered. */
+    public PhaseTiming getTiming(Phase phase) {
+        return mTimings.get(phase);
+    }
+
+    /** Returns the recorded phases, in the order of the Phase enum. */
+    public List<PhaseTiming> toList() {
+        return new ArrayList<>(mTimings.values());
+    }
+
+    /**
+     * Charges bulk reads from the returned stream to the given phase. Single byte reads are
+     * too cheap to be timed individually, they are charged to the enclosing phase.
+     */
+    public InputStream wrap(InputStream in, final Phase phase) {
+        return new FilterInputStream(in) {
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                Timer timer = start(phase);
+                try {
+                    return super.read(b, offset, length);
+                } finally {
+                    timer.stop();
+                }
+            }
+        };
+    }
+
+    /**
+     * Charges bulk writes to the returned stream to the given phase. Like for reads, single
+     * byte writes are charged to the enclosing phase.
+     */
+    public OutputStream wrap(OutputStream out, final Phase phase) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                Timer timer = start(phase);
+                try {
+                    out.write(b, offset, length);
+                } finally {
+                    timer.stop();
+                }
+            }
+        };
+    }
+
+}
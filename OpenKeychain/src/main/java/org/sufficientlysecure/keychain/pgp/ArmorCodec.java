@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+/**
+ * Table driven Base64 and CRC24 as used by ASCII armor, see RFC 4880, section 6.
+ *
+ * @see FastArmoredOutputStream
+ * @see FastArmoredInputStream
+ */
+final class ArmorCodec {
+
+    static final byte[] ENCODE_TABLE =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    /** Maps characters to their six bit value, or to INVALID */
+    static final byte[] DECODE_TABLE = new byte[256];
+    static final byte INVALID = -1;
+
+    static final int CRC24_INIT = 0xB704CE;
+    static final int CRC24_POLY = 0x1864CFB;
+
+    /**
+     * CRC_TABLES[k][b] is the crc of byte b followed by k zero bytes, starting from zero.
+     * Since the crc is 24 bits wide, three of them process three bytes at once.
+     */
+    private static final int[][] CRC_TABLES = new int[3][256];
+
+    static {
+        for (int i = 0; i < DECODE_TABLE.length; i++) {
+            DECODE_TABLE[i] = INVALID;
+        }
+        for (int i = 0; i < ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[ENCODE_TABLE[i]] = (byte) i;
+        }
+
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 16;
+            for (int j = 0; j < 8; j++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= CRC24_POLY;
+                }
+            }
+            CRC_TABLES[0][i] = crc;
+        }
+        for (int k = 1; k < CRC_TABLES.length; k++) {
+            for (int i = 0; i < 256; i++) {
+                int crc = CRC_TABLES[k - 1][i];
+                CRC_TABLES[k][i] = ((crc << 8) & 0xffffff) ^ CRC_TABLES[0][crc >>> 16];
+            }
+        }
+    }
+
+    private ArmorCodec() {
+    }
+
+    static int updateCrc(int crc, int b) {
+        return ((crc << 8) & 0xffffff) ^ CRC_TABLES[0][((crc >>> 16) ^ b) & 0xff];
+    }
+
+    static int updateCrc(int crc, byte[] data, int off, int len) {
+        int[] t0 = CRC_TABLES[0], t1 = CRC_TABLES[1], t2 = CRC_TABLES[2];
+        int end = off + len;
+        while (end - off >= 3) {
+            int x = crc ^ ((data[off] & 0xff) << 16 | (data[off + 1] & 0xff) << 8
+                    | (data[off + 2] & 0xff));
+            crc = t2[x >>> 16] ^ t1[(x >>> 8) & 0xff] ^ t0[x & 0xff];
+            off += 3;
+        }
+        while (off < end) {
+            crc = updateCrc(crc, data[off++]);
+        }
+        return crc;
+    }
+
+    /**
+     * Encodes len bytes, which must be a multiple of three.
+     *
+     * @return the offset in out after the encoded data
+     */
+    static int encode(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        byte[] table = ENCODE_TABLE;
+        int end = inOff + len;
+        while (inOff < end) {
+            int x = (in[inOff] & 0xff) << 16 | (in[inOff + 1] & 0xff) << 8 | (in[inOff + 2] & 0xff);
+            out[outOff] = table[x >>> 18];
+            out[outOff + 1] = table[(x >>> 12) & 0x3f];
+            out[outOff + 2] = table[(x >>> 6) & 0x3f];
+            out[outOff + 3] = table[x & 0x3f];
+            inOff += 3;
+            outOff += 4;
+        }
+        return outOff;
+    }
+
+    /**
+     * Encodes the last one or two bytes of the data, with padding.
+     *
+     * @return the offset in out after the encoded data
+     */
+    static int encodeFinal(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        int x = (in[inOff] & 0xff) << 16;
+        if (len > 1) {
+            x |= (in[inOff + 1] & 0xff) << 8;
+        }
+        out[outOff] = ENCODE_TABLE[x >>> 18];
+        out[outOff + 1] = ENCODE_TABLE[(x >>> 12) & 0x3f];
+        out[outOff + 2] = len > 1 ? ENCODE_TABLE[(x >>> 6) & 0x3f] : (byte) '=';
+        out[outOff + 3] = '=';
+        return outOff + 4;
+    }
+
+}
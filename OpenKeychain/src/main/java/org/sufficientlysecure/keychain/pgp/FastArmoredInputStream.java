@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.openpgp.PGPUtil;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * A drop-in replacement for spongycastle's ArmoredInputStream, which decodes the Base64
+ * body in bulk instead of one virtual call per character. It has the same semantics for
+ * armor headers and the checksum, including the end of stream after each armor block.
+ *
+ * Cleartext signatures are not supported, getDecoderStream leaves those to spongycastle.
+ */
+public class FastArmoredInputStream extends ArmoredInputStream {
+
+    private static final String ARMOR_BEGIN = "-----BEGIN PGP ";
+    private static final String ARMOR_BEGIN_CLEARTEXT = "-----BEGIN PGP SIGNED MESSAGE-----";
+    private static final int READ_AHEAD = 128;
+
+    private final InputStream mIn;
+
+    private final byte[] mInBuf = new byte[1 << 14];
+    private int mInPos, mInLen;
+
+    private final byte[] mDecoded = new byte[(1 << 14) / 4 * 3];
+    private int mDecodedPos, mDecodedLen;
+
+    /** Six bit values of the current group of four characters */
+    private int mQuad, mQuadLen;
+    /** Number of padding characters still expected for the current group */
+    private int mPaddingLeft;
+    private boolean mLineStart = true;
+
+    private int mCrc;
+    private boolean mCrcFound;
+
+    /** If the end of the current armor block is yet to be reported */
+    private boolean mBlockEnded;
+    /** If the next read starts a new armor block */
+    private boolean mStart;
+    private boolean mEndOfStream;
+
+    private String mHeaderLine;
+    private ArrayList<String> mHeaders = new ArrayList<>();
+
+    /**
+     * Returns a stream decoding the input, which may be ASCII armored or binary. This
+     * works like PGPUtil.getDecoderStream, but uses a FastArmoredInputStream for armored
+     * data other than cleartext signatures.
+     */
+    public static InputStream getDecoderStream(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+
+        in.mark(READ_AHEAD);
+        byte[] ahead = new byte[READ_AHEAD];
+        int len = 0, read;
+        while (len < ahead.length && (read = in.read(ahead, len, ahead.length - len)) > 0) {
+            len += read;
+        }
+        in.reset();
+
+        int start = 0;
+        while (start < len && Character.isWhitespace(ahead[start])) {
+            start += 1;
+        }
+        String prefix = new String(ahead, start, len - start, "ISO-8859-1");
+        if (prefix.startsWith(ARMOR_BEGIN) && !prefix.startsWith(ARMOR_BEGIN_CLEARTEXT)) {
+            return new FastArmoredInputStream(in);
+        }
+
+        return PGPUtil.getDecoderStream(in);
+    }
+
+    public FastArmoredInputStream(InputStream in) throws IOException {
+        // the original does not touch the stream if there are no headers to parse
+        super(in, false);
+        mIn = in;
+        parseHeaders();
+    }
+
+    @Override
+    public String getArmorHeaderLine() {
+        return mHeaderLine;
+    }
+
+    @Override
+    public String[] getArmorHeaders() {
+        if (mHeaders.isEmpty()) {
+            return null;
+        }
+        return mHeaders.toArray(new String[mHeaders.size()]);
+    }
+
+    @Override
+    public boolean isClearText() {
+        return false;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mDecodedLen - mDecodedPos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mDecodedPos == mDecodedLen && !decode()) {
+            return -1;
+        }
+        return mDecoded[mDecodedPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mDecodedPos == mDecodedLen && !decode()) {
+            return -1;
+        }
+        int n = Math.min(len, mDecodedLen - mDecodedPos);
+        System.arraycopy(mDecoded, mDecodedPos, b, off, n);
+        mDecodedPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private int nextByte() throws IOException {
+        if (mInPos == mInLen) {
+            mInLen = mIn.read(mInBuf, 0, mInBuf.length);
+            mInPos = 0;
+            if (mInLen <= 0) {
+                mInLen = 0;
+                return -1;
+            }
+        }
+        return mInBuf[mInPos++] & 0xff;
+    }
+
+    /** Reads a line without its line ending, or returns null at the end of the stream */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = nextByte()) >= 0) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c < 0 && line.length() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads the armor header line and the armor headers of the next block.
+     *
+     * @return false if the stream ended before another block
+     */
+    private boolean parseHeaders() throws IOException {
+        mHeaderLine = null;
+        mHeaders.clear();
+
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                return false;
+            }
+        } while (!line.startsWith("-----"));
+        mHeaderLine = line;
+
+        while ((line = readLine()) != null && line.length() > 0) {
+            mHeaders.add(line);
+        }
+
+        mCrc = ArmorCodec.CRC24_INIT;
+        mCrcFound = false;
+        mLineStart = true;
+        return true;
+    }
+
+    /**
+     * Decodes the next chunk of data.
+     *
+     * @return false if the current armor block, or the stream, has ended
+     */
+    private boolean decode() throws IOException {
+        if (mBlockEnded) {
+            // report the end of the block, the next read starts a new one
+            mBlockEnded = false;
+            mStart = true;
+            return false;
+        }
+        if (mEndOfStream) {
+            return false;
+        }
+        if (mStart) {
+            mStart = false;
+            if (!parseHeaders()) {
+                mEndOfStream = true;
+                return false;
+            }
+        }
+
+        byte[] table = ArmorCodec.DECODE_TABLE;
+        byte[] in = mInBuf;
+        byte[] out = mDecoded;
+        int outPos = 0;
+        // decoded bytes which are included in the crc already
+        int counted = 0;
+
+        boolean blockEnded = false;
+        while (outPos + 3 <= out.length) {
+
+            // fast path for whole groups within the buffer
+            if (mQuadLen == 0 && mPaddingLeft == 0) {
+                int pos = mInPos, limit = mInLen - 3;
+                while (pos < limit && outPos + 3 <= out.length) {
+                    int x = table[in[pos] & 0xff] << 18 | table[in[pos + 1] & 0xff] << 12
+                            | table[in[pos + 2] & 0xff] << 6 | table[in[pos + 3] & 0xff];
+                    // any invalid character makes this negative
+                    if (x < 0) {
+                        break;
+                    }
+                    out[outPos] = (byte) (x >> 16);
+                    out[outPos + 1] = (byte) (x >> 8);
+                    out[outPos + 2] = (byte) x;
+                    outPos += 3;
+                    pos += 4;
+                }
+                if (pos != mInPos) {
+                    mInPos = pos;
+                    mLineStart = false;
+                    continue;
+                }
+            }
+
+            int c = nextByte();
+            if (c < 0) {
+                // like the original, a missing armor tail is not an error
+                mEndOfStream = true;
+                break;
+            }
+
+            int value = table[c];
+            if (value >= 0) {
+                if (mPaddingLeft > 0) {
+                    throw new IOException("invalid armor: data after padding");
+                }
+                mQuad = mQuad << 6 | value;
+                if (++mQuadLen == 4) {
+                    out[outPos] = (byte) (mQuad >> 16);
+                    out[outPos + 1] = (byte) (mQuad >> 8);
+                    out[outPos + 2] = (byte) mQuad;
+                    outPos += 3;
+                    mQuad = 0;
+                    mQuadLen = 0;
+                }
+                mLineStart = false;
+
+            } else if (c == '\n' || c == '\r') {
+                mLineStart = true;
+
+            } else if (c == ' ' || c == '\t') {
+                // ignored, like in the original
+
+            } else if (c == '=') {
+                if (mPaddingLeft > 0) {
+                    mPaddingLeft -= 1;
+                } else if (mQuadLen == 0 && mLineStart) {
+                    mCrc = ArmorCodec.updateCrc(mCrc, out, counted, outPos - counted);
+                    counted = outPos;
+                    checkCrc();
+                } else if (mQuadLen == 2) {
+                    out[outPos++] = (byte) (mQuad >> 4);
+                    mPaddingLeft = 1;
+                    mQuad = 0;
+                    mQuadLen = 0;
+                } else if (mQuadLen == 3) {
+                    out[outPos] = (byte) (mQuad >> 10);
+                    out[outPos + 1] = (byte) (mQuad >> 2);
+                    outPos += 2;
+                    mQuad = 0;
+                    mQuadLen = 0;
+                } else {
+                    throw new IOException("invalid armor: unexpected padding");
+                }
+                mLineStart = false;
+
+            } else if (c == '-' && mLineStart) {
+                if (mQuadLen != 0 || mPaddingLeft != 0) {
+                    throw new IOException("invalid armor: incomplete data");
+                }
+                // skip the rest of the armor tail line
+                do {
+                    c = nextByte();
+                } while (c >= 0 && c != '\n' && c != '\r');
+                if (!mCrcFound) {
+                    throw new IOException("crc check not found.");
+                }
+                if (c < 0) {
+                    mEndOfStream = true;
+                }
+                blockEnded = true;
+                break;
+
+            } else {
+                throw new IOException("invalid armor: unexpected character " + c);
+            }
+        }
+
+        mCrc = ArmorCodec.updateCrc(mCrc, out, counted, outPos - counted);
+        mDecodedPos = 0;
+        mDecodedLen = outPos;
+
+        if (blockEnded) {
+            if (outPos > 0) {
+                mBlockEnded = true;
+            } else {
+                mStart = true;
+            }
+        }
+        return outPos > 0;
+    }
+
+    private void checkCrc() throws IOException {
+        int crc = 0;
+        for (int i = 0; i < 4; i++) {
+            int c;
+            do {
+                c = nextByte();
+            } while (c == ' ' || c == '\t');
+            int value = c < 0 ? -1 : ArmorCodec.DECODE_TABLE[c];
+            if (value < 0) {
+                throw new IOException("no crc found in armored message.");
+            }
+            crc = crc << 6 | value;
+        }
+        if (crc != mCrc) {
+            throw new IOException("crc check failed in armored message.");
+        }
+        mCrcFound = true;
+    }
+
+}
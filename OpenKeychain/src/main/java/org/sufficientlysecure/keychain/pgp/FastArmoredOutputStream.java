@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PacketTags;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A drop-in replacement for spongycastle's ArmoredOutputStream, which produces the same
+ * output but encodes whole arrays at once and writes to the underlying stream in large
+ * blocks, instead of a virtual call per encoded character.
+ *
+ * Like the original, the stream can be reused after close() for another armor block, and
+ * never closes the underlying stream.
+ */
+public class FastArmoredOutputStream extends ArmoredOutputStream {
+
+    private static final String NL = System.getProperty("line.separator");
+    private static final int GROUPS_PER_LINE = 16;
+
+    private static Map<String, String> sDefaultHeaders;
+
+    private final OutputStream mOut;
+    private final LinkedHashMap<String, String> mHeaders;
+
+    private final byte[] mBuf = new byte[1 << 14];
+    private int mBufPos;
+
+    private final byte[] mPending = new byte[3];
+    private int mPendingLen;
+    private int mGroupsInLine;
+    private int mCrc = ArmorCodec.CRC24_INIT;
+
+    /** The armor type of the current block, or null if it has not been started */
+    private String mType;
+
+    private boolean mClearText;
+    private boolean mNewLine;
+    private int mLastByte;
+
+    public FastArmoredOutputStream(OutputStream out) {
+        super(out);
+        mOut = out;
+        mHeaders = new LinkedHashMap<>(getDefaultHeaders());
+    }
+
+    /**
+     * Takes the default headers from spongycastle's own implementation, so the output
+     * stays the same.
+     */
+    private static synchronized Map<String, String> getDefaultHeaders() {
+        if (sDefaultHeaders != null) {
+            return sDefaultHeaders;
+        }
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ArmoredOutputStream aos = new ArmoredOutputStream(bos);
+            aos.write(0);
+            aos.close();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(bos.toByteArray()), "ISO-8859-1"));
+            // skip the armor header line, headers end with an empty line
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(": ");
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon), line.substring(colon + 2));
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError("writing to memory can't fail");
+        }
+        sDefaultHeaders = headers;
+        return headers;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        // the super constructor may set its defaults, which we have already
+        if (mHeaders == null) {
+            return;
+        }
+        if (value == null) {
+            mHeaders.remove(name);
+        } else {
+            mHeaders.put(name, value);
+        }
+    }
+
+    @Override
+    public void resetHeaders() {
+        if (mHeaders == null) {
+            return;
+        }
+        String version = mHeaders.get("Version");
+        mHeaders.clear();
+        if (version != null) {
+            mHeaders.put("Version", version);
+        }
+    }
+
+    @Override
+    public void beginClearText(int hashAlgorithm) throws IOException {
+        String hash;
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.SHA1:
+                hash = "SHA1";
+                break;
+            case HashAlgorithmTags.SHA224:
+                hash = "SHA224";
+                break;
+            case HashAlgorithmTags.SHA256:
+                hash = "SHA256";
+                break;
+            case HashAlgorithmTags.SHA384:
+                hash = "SHA384";
+                break;
+            case HashAlgorithmTags.SHA512:
+                hash = "SHA512";
+                break;
+            case HashAlgorithmTags.MD2:
+                hash = "MD2";
+                break;
+            case HashAlgorithmTags.MD5:
+                hash = "MD5";
+                break;
+            case HashAlgorithmTags.RIPEMD160:
+                hash = "RIPEMD160";
+                break;
+            default:
+                throw new IOException("unknown hash algorithm tag in beginClearText: " + hashAlgorithm);
+        }
+
+        writeAscii("-----BEGIN PGP SIGNED MESSAGE-----" + NL);
+        writeAscii("Hash: " + hash + NL + NL);
+
+        mClearText = true;
+        mNewLine = true;
+        mLastByte = 0;
+    }
+
+    @Override
+    public void endClearText() {
+        mClearText = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mClearText) {
+            writeClearText(b);
+            return;
+        }
+        if (mType == null) {
+            beginArmor(b);
+        }
+        mCrc = ArmorCodec.updateCrc(mCrc, b);
+        mPending[mPendingLen++] = (byte) b;
+        if (mPendingLen == 3) {
+            encodeGroups(mPending, 0, 3);
+            mPendingLen = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClearText) {
+            for (int i = off; i < off + len; i++) {
+                writeClearText(b[i]);
+            }
+            return;
+        }
+        if (len == 0) {
+            return;
+        }
+        if (mType == null) {
+            beginArmor(b[off]);
+        }
+        mCrc = ArmorCodec.updateCrc(mCrc, b, off, len);
+
+        // complete the group left over from the last write first
+        if (mPendingLen > 0) {
+            int n = Math.min(3 - mPendingLen, len);
+            System.arraycopy(b, off, mPending, mPendingLen, n);
+            mPendingLen += n;
+            off += n;
+            len -= n;
+            if (mPendingLen < 3) {
+                return;
+            }
+            encodeGroups(mPending, 0, 3);
+            mPendingLen = 0;
+        }
+
+        int rest = len % 3;
+        encodeGroups(b, off, len - rest);
+        System.arraycopy(b, off + len - rest, mPending, 0, rest);
+        mPendingLen = rest;
+    }
+
+    /**
+     * Ends the current armor block like close(), but without flushing the underlying stream.
+     * Useful when a lot of blocks are written in a row.
+     */
+    public void finish() throws IOException {
+        if (mType == null) {
+            return;
+        }
+
+        if (mPendingLen > 0) {
+            breakLineIfFull();
+            ensureCapacity(4);
+            mBufPos = ArmorCodec.encodeFinal(mPending, 0, mPendingLen, mBuf, mBufPos);
+        }
+        writeAscii(NL);
+
+        writeAscii("=");
+        mPending[0] = (byte) (mCrc >> 16);
+        mPending[1] = (byte) (mCrc >> 8);
+        mPending[2] = (byte) mCrc;
+        ensureCapacity(4);
+        mBufPos = ArmorCodec.encode(mPending, 0, 3, mBuf, mBufPos);
+        writeAscii(NL + "-----END PGP " + mType + "-----" + NL);
+
+        mType = null;
+        mPendingLen = 0;
+        mGroupsInLine = 0;
+        mCrc = ArmorCodec.CRC24_INIT;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    /**
+     * Ends the current armor block, if any. This does not close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+        flush();
+    }
+
+    private void beginArmor(int firstByte) throws IOException {
+        int tag;
+        if ((firstByte & 0x40) != 0) {
+            tag = firstByte & 0x3f;
+        } else {
+            tag = (firstByte & 0x3f) >> 2;
+        }
+
+        switch (tag) {
+            case PacketTags.PUBLIC_KEY:
+                mType = "PUBLIC KEY BLOCK";
+                break;
+            case PacketTags.SECRET_KEY:
+                mType = "PRIVATE KEY BLOCK";
+                break;
+            case PacketTags.SIGNATURE:
+                mType = "SIGNATURE";
+                break;
+            default:
+                mType = "MESSAGE";
+        }
+
+        writeAscii("-----BEGIN PGP " + mType + "-----" + NL);
+        String version = mHeaders.get("Version");
+        if (version != null) {
+            writeAscii("Version: " + version + NL);
+        }
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            if (!"Version".equals(header.getKey())) {
+                writeAscii(header.getKey() + ": " + header.getValue() + NL);
+            }
+        }
+        writeAscii(NL);
+    }
+
+    /** Writes clear text, dash-escaping lines as needed */
+    private void writeClearText(int b) throws IOException {
+        b &= 0xff;
+        ensureCapacity(3);
+        mBuf[mBufPos++] = (byte) b;
+        if (mNewLine) {
+            if (!(b == '\n' && mLastByte == '\r')) {
+                mNewLine = false;
+            }
+            if (b == '-') {
+                mBuf[mBufPos++] = ' ';
+                mBuf[mBufPos++] = '-';
+            }
+        }
+        if (b == '\r' || (b == '\n' && mLastByte != '\r')) {
+            mNewLine = true;
+        }
+        mLastByte = b;
+    }
+
+    /** Encodes len bytes, a multiple of three, breaking lines as needed */
+    private void encodeGroups(byte[] in, int off, int len) throws IOException {
+        while (len > 0) {
+            breakLineIfFull();
+            int groups = Math.min(len / 3, GROUPS_PER_LINE - mGroupsInLine);
+            ensureCapacity(groups * 4);
+            mBufPos = ArmorCodec.encode(in, off, groups * 3, mBuf, mBufPos);
+            mGroupsInLine += groups;
+            off += groups * 3;
+            len -= groups * 3;
+        }
+    }
+
+    private void breakLineIfFull() throws IOException {
+        if (mGroupsInLine == GROUPS_PER_LINE) {
+            writeAscii(NL);
+            mGroupsInLine = 0;
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            if (mBufPos == mBuf.length) {
+                flushBuffer();
+            }
+            mBuf[mBufPos++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int len) throws IOException {
+        if (mBuf.length - mBufPos < len) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufPos > 0) {
+            mOut.write(mBuf, 0, mBufPos);
+            mBufPos = 0;
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * In-memory pool of pre-generated key pairs, filled by KeyPairPoolService while the device
+ * is idle and charging, and drawn from by PgpKeyOperation.createKey.
+ *
+ * Only RSA and DSA pairs are pooled, generating any of the others takes no noticeable time.
+ * Which sizes are generated follows how often they were asked for. Private keys are stored
+ * encrypted with a random key which never leaves this process, like in SessionKeyCache.
+ */
+public class KeyPairPool {
+
+    /** Pairs kept per algorithm and size, the default profile takes three */
+    public static final int MAX_PER_SPEC = 3;
+    /** Number of different algorithm and size combinations kept in the pool */
+    public static final int MAX_SPECS = 2;
+    /** Pooled before anything was asked for, matches the default profile */
+    private static final String DEFAULT_SPEC = getSpec(Algorithm.RSA, 4096);
+
+    private static KeyPairPool sInstance;
+
+    private static class Entry {
+        final byte[] mEncodedPublicKey;
+        final byte[] mIv;
+        final byte[] mEncryptedPrivateKey;
+
+        Entry(byte[] encodedPublicKey, byte[] iv, byte[] encryptedPrivateKey) {
+            mEncodedPublicKey = encodedPublicKey;
+            mIv = iv;
+            mEncryptedPrivateKey = encryptedPrivateKey;
+        }
+    }
+
+    private final HashMap<String, LinkedList<Entry>> mEntries = new HashMap<>();
+    /** How often each combination was asked for, persisted by KeyPairPoolService */
+    private final HashMap<String, Integer> mDemand = new HashMap<>();
+    private boolean mDemandRestored = false;
+    /** Mirrors the preference, see KeyPairPoolService.scheduleFill and cancelFill */
+    private boolean mEnabled = false;
+    private final SecureRandom mRandom = new SecureRandom();
+    private SecretKey mWrappingKey;
+
+    public static synchronized KeyPairPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new KeyPairPool();
+        }
+        return sInstance;
+    }
+
+    private KeyPairPool() {
+    }
+
+    static boolean isPooled(Algorithm algorithm) {
+        return algorithm == Algorithm.RSA || algorithm == Algorithm.DSA;
+    }
+
+    private static String getSpec(Algorithm algorithm, int keySize) {
+        return algorithm.name() + "/" + keySize;
+    }
+
+    /**
+     * Enables or disables the pool. While disabled, nothing is taken from or put into the
+     * pool, and disabling it drops all pairs.
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * Takes a pre-generated key pair out of the pool, or returns null if there is none for
+     * this algorithm and size or the pool is disabled. Otherwise, the request is counted for
+     * future refills.
+     */
+    public synchronized KeyPair take(Algorithm algorithm, int keySize) {
+        if (!mEnabled || !isPooled(algorithm)) {
+            return null;
+        }
+        String spec = getSpec(algorithm, keySize);
+        Integer demand = mDemand.get(spec);
+        mDemand.put(spec, demand == null ? 1 : demand + 1);
+
+        LinkedList<Entry> entries = mEntries.get(spec);
+        Entry entry = entries == null ? null : entries.poll();
+        Metrics.cacheLookup("cache.key_pair_pool", entry != null);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, mWrappingKey, new IvParameterSpec(entry.mIv));
+            KeyFactory keyFactory =
+                    KeyFactory.getInstance(algorithm.name(), Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            return new KeyPair(
+                    keyFactory.generatePublic(new X509EncodedKeySpec(entry.mEncodedPublicKey)),
+                    keyFactory.generatePrivate(
+                            new PKCS8EncodedKeySpec(cipher.doFinal(entry.mEncryptedPrivateKey))));
+        } catch (GeneralSecurityException e) {
+            Log.e(Constants.TAG, "could not restore pooled key pair", e);
+            return null;
+        }
+    }
+
+    /**
+     * Generates one key pair for the combination which is missing the most pairs. This takes
+     * a long time and must not be called on the ui thread.
+     *
+     * @return false if the pool is full or disabled
+     */
+    public boolean fillOne() {
+        Algorithm algorithm;
+        int keySize;
+        synchronized (this) {
+            if (!mEnabled) {
+                return false;
+            }
+            String spec = null;
+            int missing = 0;
+            for (String wanted : getWantedSpecs()) {
+                LinkedList<Entry> entries = mEntries.get(wanted);
+                int wantedMissing = MAX_PER_SPEC - (entries == null ? 0 : entries.size());
+                if (wantedMissing > missing) {
+                    spec = wanted;
+                    missing = wantedMissing;
+                }
+            }
+            if (spec == null) {
+                return false;
+            }
+            String[] parts = spec.split("/");
+            algorithm = Algorithm.valueOf(parts[0]);
+            keySize = Integer.parseInt(parts[1]);
+        }
+
+        // generate outside of the lock, so take() isn't blocked meanwhile
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance(
+                    algorithm.name(), Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            keyGen.initialize(keySize, new SecureRandom());
+            put(algorithm, keySize, keyGen.generateKeyPair());
+            return true;
+        } catch (GeneralSecurityException e) {
+            Log.e(Constants.TAG, "could not generate pooled key pair", e);
+            return false;
+        }
+    }
+
+    private synchronized void put(Algorithm algorithm, int keySize, KeyPair keyPair)
+            throws GeneralSecurityException {
+        // the pool may have been disabled while this pair was generated
+        if (!mEnabled) {
+            return;
+        }
+        if (mWrappingKey == null) {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128, mRandom);
+            mWrappingKey = generator.generateKey();
+        }
+        byte[] iv = new byte[16];
+        mRandom.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, mWrappingKey, new IvParameterSpec(iv));
+
+        String spec = getSpec(algorithm, keySize);
+        LinkedList<Entry> entries = mEntries.get(spec);
+        if (entries == null) {
+            entries = new LinkedList<>();
+            mEntries.put(spec, entries);
+        }
+        entries.add(new Entry(keyPair.getPublic().getEncoded(), iv,
+                cipher.doFinal(keyPair.getPrivate().getEncoded())));
+    }
+
+    /** The MAX_SPECS most requested combinations, most requested first */
+    private List<String> getWantedSpecs() {
+        List<Map.Entry<String, Integer>> demand = new ArrayList<>(mDemand.entrySet());
+        Collections.sort(demand, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> lhs, Map.Entry<String, Integer> rhs) {
+                return rhs.getValue().compareTo(lhs.getValue());
+            }
+        });
+        List<String> specs = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : demand) {
+            if (specs.size() >= MAX_SPECS) {
+                break;
+            }
+            specs.add(entry.getKey());
+        }
+        if (specs.isEmpty()) {
+            specs.add(DEFAULT_SPEC);
+        }
+        return specs;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (LinkedList<Entry> entries : mEntries.values()) {
+            size += entries.size();
+        }
+        return size;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mDemand.clear();
+        mDemandRestored = false;
+        // entries encrypted with the old key are gone anyways, start over with a fresh one
+        mWrappingKey = null;
+    }
+
+    /** Demand counts in the form "RSA/4096:3,DSA/2048:1" */
+    public synchronized String getDemand() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : mDemand.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Adds demand counts as returned by getDemand in a previous process. Only the first call
+     * has an effect, since later ones would count the same requests twice.
+     */
+    public synchronized void restoreDemand(String demand) {
+        if (mDemandRestored) {
+            return;
+        }
+        mDemandRestored = true;
+        if (demand == null || demand.isEmpty()) {
+            return;
+        }
+        for (String item : demand.split(",")) {
+            String[] parts = item.split(":");
+            try {
+                String[] spec = parts[0].split("/");
+                if (parts.length != 2 || !isPooled(Algorithm.valueOf(spec[0]))) {
+                    continue;
+                }
+                Integer.parseInt(spec[1]);
+                Integer count = mDemand.get(parts[0]);
+                mDemand.put(parts[0], (count == null ? 0 : count) + Integer.parseInt(parts[1]));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                Log.e(Constants.TAG, "skipping malformed key pair pool demand " + item);
+            }
+        }
+    }
+
+}
@@ -82,7 +82,7 @@ public class PgpConstants {
      *
      * Bouncy Castle default: 0x60
      * kbsriram proposes: 0xc0
-     * OpenKeychain: 0x90
+     * OpenKeychain: 0x90, S2kCalibration only ever raises this on fast devices
      */
     public static final int SECRET_KEY_ENCRYPTOR_S2K_COUNT = 0x90;
     public static final int SECRET_KEY_ENCRYPTOR_HASH_ALGO = HashAlgorithmTags.SHA256;
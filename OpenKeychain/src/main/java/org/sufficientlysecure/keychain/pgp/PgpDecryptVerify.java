@@ -36,7 +36,6 @@ import org.spongycastle.openpgp.PGPPBEEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureList;
-import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.jcajce.JcaPGPObjectFactory;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
@@ -55,14 +54,21 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Timer;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.ReadAheadInputStream;
+import org.sufficientlysecure.keychain.util.WriteBehindOutputStream;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
@@ -75,13 +81,32 @@ import java.net.URLConnection;
 import java.security.SignatureException;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Map;
 
 public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel> {
 
+    /** Inputs of at least this size are read and written on separate threads */
+    private static final long PIPELINE_THRESHOLD = 4 * 1024 * 1024;
+    private static final int PIPELINE_BUFFER_COUNT = 4;
+    private static final int PIPELINE_BUFFER_SIZE = 1 << 16;
+
+    /** Unlocked secret keys by subkey id, shared between operations, see setUnlockedKeyCache */
+    private Map<Long, CanonicalizedSecretKey> mUnlockedKeys;
+
     public PgpDecryptVerify(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
 
+    /**
+     * Keys unlocked by this operation are put into the given map, and keys found there are
+     * used without another lookup and unlock. This lets all messages of a batch share a single
+     * S2K derivation. The map holds unlocked private keys, so it must be shared only between
+     * operations for the same caller and input, and must not outlive them.
+     */
+    public void setUnlockedKeyCache(Map<Long, CanonicalizedSecretKey> unlockedKeys) {
+        mUnlockedKeys = unlockedKeys;
+    }
+
     /**
      * Decrypts and/or verifies data based on parameters of class
      */
@@ -131,14 +156,55 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
+        // for large inputs, overlap reading, decryption and writing
+        if (inputData.getSize() < PIPELINE_THRESHOLD) {
+            return executeStreams(input, cryptoInput, inputData, outputStream);
+        }
+
+        Log.d(Constants.TAG, "Large input, decrypting with read-ahead and write-behind threads");
+        ReadAheadInputStream readAhead = new ReadAheadInputStream(inputData.getInputStream(),
+                PIPELINE_BUFFER_COUNT, PIPELINE_BUFFER_SIZE);
+        WriteBehindOutputStream writeBehind = null;
+        if (outputStream != null) {
+            writeBehind = new WriteBehindOutputStream(outputStream,
+                    PIPELINE_BUFFER_COUNT, PIPELINE_BUFFER_SIZE);
+        }
+        try {
+            DecryptVerifyResult result = executeStreams(input, cryptoInput,
+                    new InputData(readAhead, inputData.getSize(), inputData.getOriginalFilename()),
+                    writeBehind);
+            if (writeBehind != null) {
+                writeBehind.finish();
+            }
+            return result;
+        } catch (IOException e) {
+            Log.d(Constants.TAG, "IOException", e);
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_IO, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        } finally {
+            readAhead.close();
+            // no-op after finish(), otherwise make sure the writer thread doesn't wait forever
+            if (writeBehind != null) {
+                writeBehind.abort();
+            }
+        }
+    }
+
+    private DecryptVerifyResult executeStreams(PgpDecryptVerifyInputParcel input,
+            CryptoInputParcel cryptoInput, InputData inputData, OutputStream outputStream) {
         try {
             if (input.getDetachedSignature() != null) {
                 Log.d(Constants.TAG, "Detached signature present, verifying with this signature only");
 
                 return verifyDetachedSignature(input, inputData, outputStream, 0);
             } else {
+                // reading the raw input is charged to IO, decoding the armor is not
+                OperationLog log = new OperationLog();
+                InputStream rawIn = log.getTimings().wrap(inputData.getInputStream(), Phase.IO);
+
                 // automatically works with PGP ascii armor and PGP binary
-                InputStream in = PGPUtil.getDecoderStream(inputData.getInputStream());
+                InputStream in = FastArmoredInputStream.getDecoderStream(rawIn);
 
                 if (in instanceof ArmoredInputStream) {
                     ArmoredInputStream aIn = (ArmoredInputStream) in;
@@ -152,10 +218,10 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                         return verifyCleartextSignature(aIn, outputStream, 0);
                     } else {
                         // else: ascii armored encryption! go on...
-                        return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                        return decryptVerify(input, cryptoInput, in, outputStream, log, 0);
                     }
                 } else {
-                    return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                    return decryptVerify(input, cryptoInput, in, outputStream, log, 0);
                 }
             }
         } catch (PGPException e) {
@@ -308,14 +374,19 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
      */
     private DecryptVerifyResult decryptVerify(
             PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
-            InputStream in, OutputStream out, int indent) throws IOException, PGPException {
+            InputStream in, OutputStream out, OperationLog log, int indent)
+            throws IOException, PGPException {
 
-        OperationLog log = new OperationLog();
+        OperationTimings timings = log.getTimings();
+        Timer timer;
 
         log.add(LogType.MSG_DC, indent);
         indent += 1;
 
-        JcaPGPObjectFactory pgpF = new JcaPGPObjectFactory(in);
+        // in itself is still needed below to look at the armor headers. the raw input below
+        // the armor is already charged to IO, so only the decoding is charged to ARMOR here
+        JcaPGPObjectFactory pgpF = new JcaPGPObjectFactory(
+                in instanceof ArmoredInputStream ? timings.wrap(in, Phase.ARMOR) : in);
         PGPEncryptedDataList enc;
         Object o = pgpF.nextObject();
 
@@ -365,6 +436,11 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
         Passphrase passphrase = null;
         boolean skippedDisallowedKey = false;
+        boolean keyUnlocked = false;
+
+        Preferences prefs = Preferences.getPreferences(mContext);
+        boolean useSessionKeyCache = prefs.isSessionKeyCacheEnabled();
+        PublicKeyDataDecryptorFactory cachedDecryptorFactory = null;
 
         // go through all objects and find one we can decrypt
         while (it.hasNext()) {
@@ -381,7 +457,20 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 log.add(LogType.MSG_DC_ASYM, indent,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
 
+                // a key unlocked by an earlier operation of the same batch is used right away
+                CanonicalizedSecretKey unlockedKey =
+                        mUnlockedKeys != null ? mUnlockedKeys.get(subKeyId) : null;
+                if (unlockedKey != null && (input.getAllowedKeyIds() == null
+                        || input.getAllowedKeyIds().contains(unlockedKey.getRing().getMasterKeyId()))) {
+                    secretEncryptionKey = unlockedKey;
+                    asymmetricPacketFound = true;
+                    encryptedDataAsymmetric = encData;
+                    keyUnlocked = true;
+                    break;
+                }
+
                 CanonicalizedSecretKeyRing secretKeyRing;
+                timer = timings.start(Phase.KEY_LOOKUP);
                 try {
                     // get actual keyring object based on master key id
                     secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
@@ -391,6 +480,8 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
                     continue;
+                } finally {
+                    timer.stop();
                 }
                 if (secretKeyRing == null) {
                     // continue with the next packet in the while loop
@@ -427,12 +518,27 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
                 encryptedDataAsymmetric = encData;
 
+                // with a cached session key there is no need to unlock the secret key
+                if (useSessionKeyCache) {
+                    timer = timings.start(Phase.SESSION_KEY);
+                    try {
+                        cachedDecryptorFactory = SessionKeyCache.getInstance().getCachedDecryptorFactory(encData);
+                    } finally {
+                        timer.stop();
+                    }
+                    if (cachedDecryptorFactory != null) {
+                        log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1);
+                        break;
+                    }
+                }
+
                 if (secretEncryptionKey.getSecretKeyType() == SecretKeyType.DIVERT_TO_CARD) {
                     passphrase = null;
                 } else if (cryptoInput.hasPassphrase()) {
                     passphrase = cryptoInput.getPassphrase();
                 } else {
                     // if no passphrase was explicitly set try to get it from the cache service
+                    timer = timings.start(Phase.PASSPHRASE_FETCH);
                     try {
                         // returns "" if key has no passphrase
                         passphrase = getCachedPassphrase(subKeyId);
@@ -440,6 +546,8 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                     } catch (PassphraseCacheInterface.NoSecretKeyException e) {
                         log.add(LogType.MSG_DC_ERROR_NO_KEY, indent + 1);
                         return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                    } finally {
+                        timer.stop();
                     }
 
                     // if passphrase was not cached, return here indicating that a passphrase is missing!
@@ -516,31 +624,67 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                     digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
                     passphrase.getCharArray());
 
-            clear = encryptedDataSymmetric.getDataStream(decryptorFactory);
+            // the session key is derived from the passphrase via S2K here
+            timer = timings.start(Phase.S2K_UNLOCK);
+            try {
+                clear = encryptedDataSymmetric.getDataStream(decryptorFactory);
+                symmetricEncryptionAlgo = encryptedDataSymmetric.getSymmetricAlgorithm(decryptorFactory);
+            } finally {
+                timer.stop();
+            }
             encryptedData = encryptedDataSymmetric;
+        } else if (asymmetricPacketFound && cachedDecryptorFactory != null) {
+            currentProgress += 4;
+            updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
-            symmetricEncryptionAlgo = encryptedDataSymmetric.getSymmetricAlgorithm(decryptorFactory);
+            timer = timings.start(Phase.SESSION_KEY);
+            try {
+                clear = encryptedDataAsymmetric.getDataStream(cachedDecryptorFactory);
+                symmetricEncryptionAlgo = encryptedDataAsymmetric.getSymmetricAlgorithm(cachedDecryptorFactory);
+            } catch (PGPKeyValidationException | ArrayIndexOutOfBoundsException e) {
+                log.add(LogType.MSG_DC_ERROR_CORRUPT_DATA, indent + 1);
+                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            } finally {
+                timer.stop();
+            }
+            encryptedData = encryptedDataAsymmetric;
         } else if (asymmetricPacketFound) {
             currentProgress += 2;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
 
-            try {
-                log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                if (!secretEncryptionKey.unlock(passphrase)) {
-                    log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+            if (!keyUnlocked) {
+                timer = timings.start(Phase.S2K_UNLOCK);
+                try {
+                    log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
+                    if (!secretEncryptionKey.unlock(passphrase)) {
+                        log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                        return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                    }
+                } catch (PgpGeneralException e) {
+                    log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
                     return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                } finally {
+                    timer.stop();
+                }
+
+                // keys on security tokens need a tap per message anyway
+                if (mUnlockedKeys != null && passphrase != null) {
+                    mUnlockedKeys.put(secretEncryptionKey.getKeyId(), secretEncryptionKey);
                 }
-            } catch (PgpGeneralException e) {
-                log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
             }
 
             currentProgress += 2;
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
+            timer = timings.start(Phase.SESSION_KEY);
             try {
                 PublicKeyDataDecryptorFactory decryptorFactory
                         = secretEncryptionKey.getDecryptorFactory(cryptoInput);
+                if (useSessionKeyCache) {
+                    decryptorFactory = SessionKeyCache.getInstance().wrap(decryptorFactory,
+                            secretEncryptionKey.getRing().getMasterKeyId(),
+                            secretEncryptionKey.getKeyId(), prefs.getPassphraseCacheTtl());
+                }
                 try {
                     clear = encryptedDataAsymmetric.getDataStream(decryptorFactory);
                 } catch (PGPKeyValidationException | ArrayIndexOutOfBoundsException e) {
@@ -555,6 +699,8 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                         secretEncryptionKey.getRing().getMasterKeyId(),
                         secretEncryptionKey.getKeyId(), e.encryptedSessionKey
                 ));
+            } finally {
+                timer.stop();
             }
             encryptedData = encryptedDataAsymmetric;
         } else {
@@ -578,7 +724,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             log.add(LogType.MSG_DC_OLD_SYMMETRIC_ENCRYPTION_ALGO, indent + 1);
         }
 
-        JcaPGPObjectFactory plainFact = new JcaPGPObjectFactory(clear);
+        JcaPGPObjectFactory plainFact = new JcaPGPObjectFactory(timings.wrap(clear, Phase.BULK_CIPHER));
         Object dataChunk = plainFact.nextObject();
         OpenPgpSignatureResultBuilder signatureResultBuilder = new OpenPgpSignatureResultBuilder();
         int signatureIndex = -1;
@@ -595,7 +741,8 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             PGPCompressedData compressedData = (PGPCompressedData) dataChunk;
 
-            JcaPGPObjectFactory fact = new JcaPGPObjectFactory(compressedData.getDataStream());
+            JcaPGPObjectFactory fact = new JcaPGPObjectFactory(
+                    timings.wrap(compressedData.getDataStream(), Phase.COMPRESSION));
             dataChunk = fact.nextObject();
             plainFact = fact;
         }
@@ -612,17 +759,22 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             // go through all signatures
             // and find out for which signature we have a key in our database
-            for (int i = 0; i < sigList.size(); ++i) {
-                try {
-                    long sigKeyId = sigList.get(i).getKeyID();
-                    signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                    );
-                    signingKey = signingRing.getPublicKey(sigKeyId);
-                    signatureIndex = i;
-                } catch (ProviderHelper.NotFoundException e) {
-                    Log.d(Constants.TAG, "key not found, trying next signature...");
+            timer = timings.start(Phase.KEY_LOOKUP);
+            try {
+                for (int i = 0; i < sigList.size(); ++i) {
+                    try {
+                        long sigKeyId = sigList.get(i).getKeyID();
+                        signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
+                                KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
+                        );
+                        signingKey = signingRing.getPublicKey(sigKeyId);
+                        signatureIndex = i;
+                    } catch (ProviderHelper.NotFoundException e) {
+                        Log.d(Constants.TAG, "key not found, trying next signature...");
+                    }
                 }
+            } finally {
+                timer.stop();
             }
 
             if (signingKey != null) {
@@ -737,12 +889,22 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             while ((length = dataIn.read(buffer)) > 0) {
                 // Log.d(Constants.TAG, "read bytes: " + length);
                 if (out != null) {
-                    out.write(buffer, 0, length);
+                    timer = timings.start(Phase.IO);
+                    try {
+                        out.write(buffer, 0, length);
+                    } finally {
+                        timer.stop();
+                    }
                 }
 
                 // update signature buffer if signature is also present
                 if (signature != null) {
-                    signature.update(buffer, 0, length);
+                    timer = timings.start(Phase.SIGNATURE);
+                    try {
+                        signature.update(buffer, 0, length);
+                    } finally {
+                        timer.stop();
+                    }
                 }
 
                 alreadyWritten += length;
@@ -756,6 +918,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 }
                 // TODO: slow annealing to fake a progress?
             }
+            Metrics.count("bytes.decrypted", alreadyWritten);
 
             metadata = new OpenPgpMetadata(
                     originalFilename,
@@ -775,7 +938,13 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 signatureResultBuilder.setSignatureOnly(false);
 
                 // Verify signature and check binding signatures
-                boolean validSignature = signature.verify(messageSignature);
+                boolean validSignature;
+                timer = timings.start(Phase.SIGNATURE);
+                try {
+                    validSignature = signature.verify(messageSignature);
+                } finally {
+                    timer.stop();
+                }
                 if (validSignature) {
                     log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
                 } else {
@@ -800,7 +969,14 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         if (encryptedData.isIntegrityProtected()) {
             updateProgress(R.string.progress_verifying_integrity, 95, 100);
 
-            if (encryptedData.verify()) {
+            boolean integrityOk;
+            timer = timings.start(Phase.MDC_CHECK);
+            try {
+                integrityOk = encryptedData.verify();
+            } finally {
+                timer.stop();
+            }
+            if (integrityOk) {
                 log.add(LogType.MSG_DC_INTEGRITY_CHECK_OK, indent);
             } else {
                 log.add(LogType.MSG_DC_ERROR_INTEGRITY_CHECK, indent);
@@ -950,7 +1126,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
         updateProgress(R.string.progress_processing_signature, 0, 100);
         InputStream detachedSigIn = new ByteArrayInputStream(input.getDetachedSignature());
-        detachedSigIn = PGPUtil.getDecoderStream(detachedSigIn);
+        detachedSigIn = FastArmoredInputStream.getDecoderStream(detachedSigIn);
 
         JcaPGPObjectFactory pgpFact = new JcaPGPObjectFactory(detachedSigIn);
 
@@ -997,6 +1173,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 }
                 // TODO: slow annealing to fake a progress?
             }
+            Metrics.count("bytes.verified", alreadyWritten);
 
             updateProgress(R.string.progress_verifying_signature, 90, 100);
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
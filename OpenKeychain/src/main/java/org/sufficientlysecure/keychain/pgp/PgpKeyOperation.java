@@ -74,16 +74,26 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -97,6 +107,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class PgpKeyOperation {
 
+    /** How often to check for cancellation while waiting for key generation, in ms */
+    private static final long CANCEL_POLL_MS = 100;
+
     private Stack<Progressable> mProgress;
     private AtomicBoolean mCancelled;
 
@@ -155,6 +168,102 @@ public class PgpKeyOperation {
         throw new RuntimeException("Invalid choice! (can't happen)");
     }
 
+    private static int getGeneratingMessage(Algorithm algorithm) {
+        switch (algorithm) {
+            case DSA: return R.string.progress_generating_dsa;
+            case ELGAMAL: return R.string.progress_generating_elgamal;
+            case RSA: return R.string.progress_generating_rsa;
+            case ECDSA: return R.string.progress_generating_ecdsa;
+            case ECDH: return R.string.progress_generating_ecdh;
+        }
+        return R.string.progress_building_key;
+    }
+
+    /**
+     * Creates new secret keys for all given SubkeyAdds at once, each on its own thread.
+     *
+     * Key generation is by far the most expensive part of creating a key ring, and the keys
+     * are independent of each other, so this takes about as long as the slowest single key.
+     * Returns null if any key could not be created, or if the operation was cancelled.
+     *
+     * Cancellation is checked before each key is started. A key which is already being
+     * generated can't be stopped, the key pair generators don't react to interrupts, so its
+     * thread finishes it in the background and the result is dropped.
+     */
+    private PGPKeyPair[] createKeys(List<SubkeyAdd> adds, final Date creationTime,
+                                    OperationLog log, final int indent) {
+
+        PGPKeyPair[] keyPairs = new PGPKeyPair[adds.size()];
+        int threads = Math.min(adds.size(), Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            for (int i = 0; i < adds.size(); i++) {
+                if (checkCancelled()) {
+                    return null;
+                }
+                SubkeyAdd add = adds.get(i);
+                progress(getGeneratingMessage(add.mAlgorithm), i * 100 / adds.size());
+                keyPairs[i] = createKey(add, creationTime, log, indent);
+                if (keyPairs[i] == null) {
+                    return null;
+                }
+            }
+            return keyPairs;
+        }
+
+        // the log is not thread safe, every key logs into its own and they are merged in order
+        OperationLog[] subLogs = new OperationLog[adds.size()];
+        ArrayList<Future<PGPKeyPair>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < adds.size(); i++) {
+                final SubkeyAdd add = adds.get(i);
+                final OperationLog subLog = subLogs[i] = new OperationLog();
+                futures.add(executor.submit(new Callable<PGPKeyPair>() {
+                    @Override
+                    public PGPKeyPair call() {
+                        // keys waiting for a thread aren't started anymore once cancelled
+                        if (checkCancelled()) {
+                            return null;
+                        }
+                        return createKey(add, creationTime, subLog, indent);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < adds.size(); i++) {
+                progress(getGeneratingMessage(adds.get(i).mAlgorithm), i * 100 / adds.size());
+                while (keyPairs[i] == null) {
+                    if (checkCancelled()) {
+                        return null;
+                    }
+                    try {
+                        keyPairs[i] = futures.get(i).get(CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        continue;
+                    }
+                    log.addAll(subLogs[i]);
+                    if (keyPairs[i] == null) {
+                        return null;
+                    }
+                }
+            }
+            return keyPairs;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // createKey only throws unchecked exceptions, pass them on as they are
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // results of keys still in flight are of no use anymore
+            executor.shutdownNow();
+        }
+    }
+
     /** Creates new secret key. */
     private PGPKeyPair createKey(SubkeyAdd add, Date creationTime, OperationLog log, int indent) {
 
@@ -185,7 +294,6 @@ public class PgpKeyOperation {
                         log.add(LogType.MSG_CR_ERROR_FLAGS_DSA, indent);
                         return null;
                     }
-                    progress(R.string.progress_generating_dsa, 30);
                     keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     keyGen.initialize(add.mKeySize, new SecureRandom());
                     algorithm = PGPPublicKey.DSA;
@@ -197,7 +305,6 @@ public class PgpKeyOperation {
                         log.add(LogType.MSG_CR_ERROR_FLAGS_ELGAMAL, indent);
                         return null;
                     }
-                    progress(R.string.progress_generating_elgamal, 30);
                     keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     BigInteger p = Primes.getBestPrime(add.mKeySize);
                     BigInteger g = new BigInteger("2");
@@ -210,7 +317,6 @@ public class PgpKeyOperation {
                 }
 
                 case RSA: {
-                    progress(R.string.progress_generating_rsa, 30);
                     keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     keyGen.initialize(add.mKeySize, new SecureRandom());
 
@@ -223,7 +329,6 @@ public class PgpKeyOperation {
                         log.add(LogType.MSG_CR_ERROR_FLAGS_ECDSA, indent);
                         return null;
                     }
-                    progress(R.string.progress_generating_ecdsa, 30);
                     ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
                     keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     keyGen.initialize(ecParamSpec, new SecureRandom());
@@ -238,7 +343,6 @@ public class PgpKeyOperation {
                         log.add(LogType.MSG_CR_ERROR_FLAGS_ECDH, indent);
                         return null;
                     }
-                    progress(R.string.progress_generating_ecdh, 30);
                     ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
                     keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                     keyGen.initialize(ecParamSpec, new SecureRandom());
@@ -253,8 +357,17 @@ public class PgpKeyOperation {
                 }
             }
 
+            // prefer a pre-generated pair if the pool is enabled, see KeyPairPoolService
+            KeyPair keyPair = null;
+            if (KeyPairPool.isPooled(add.mAlgorithm)) {
+                keyPair = KeyPairPool.getInstance().take(add.mAlgorithm, add.mKeySize);
+            }
+            if (keyPair == null) {
+                keyPair = keyGen.generateKeyPair();
+            }
+
             // build new key pair
-            return new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), creationTime);
+            return new JcaPGPKeyPair(algorithm, keyPair, creationTime);
 
         } catch(NoSuchProviderException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException(e);
@@ -300,16 +413,40 @@ public class PgpKeyOperation {
                 return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
             }
 
+            // all keys are generated before internal() gets to check the subkeys, so do that
+            // here instead of wasting minutes on keys which would be thrown away
+            for (SubkeyAdd subAdd : saveParcel.mAddSubKeys) {
+                if (subAdd.mExpiry == null) {
+                    log.add(LogType.MSG_MF_ERROR_NULL_EXPIRY, indent);
+                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+                }
+                if (subAdd.mExpiry > 0L && new Date(subAdd.mExpiry * 1000).before(new Date())) {
+                    log.add(LogType.MSG_MF_ERROR_PAST_EXPIRY, indent);
+                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+                }
+            }
+
             Date creationTime = new Date();
 
-            subProgressPush(10, 30);
-            PGPKeyPair keyPair = createKey(add, creationTime, log, indent);
+            // generate the master key together with all subkeys, they are only bound below
+            ArrayList<SubkeyAdd> adds = new ArrayList<>();
+            adds.add(add);
+            adds.addAll(saveParcel.mAddSubKeys);
+
+            subProgressPush(10, 40);
+            PGPKeyPair[] keyPairs = createKeys(adds, creationTime, log, indent);
             subProgressPop();
 
+            if (keyPairs == null && checkCancelled()) {
+                log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                return new PgpEditKeyResult(PgpEditKeyResult.RESULT_CANCELLED, log, null);
+            }
             // return null if this failed (an error will already have been logged by createKey)
-            if (keyPair == null) {
+            if (keyPairs == null) {
                 return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
             }
+            PGPKeyPair keyPair = keyPairs[0];
+            PGPKeyPair[] subKeyPairs = Arrays.copyOfRange(keyPairs, 1, keyPairs.length);
 
             progress(R.string.progress_building_master_key, 40);
 
@@ -318,7 +455,7 @@ public class PgpKeyOperation {
                     .build().get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
             PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                     PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
-                    encryptorHashCalc, PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                    encryptorHashCalc, S2kCalibration.getS2kCount())
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
 
             PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
@@ -331,7 +468,8 @@ public class PgpKeyOperation {
 
             subProgressPush(50, 100);
             CryptoInputParcel cryptoInput = new CryptoInputParcel(creationTime, new Passphrase(""));
-            return internal(sKR, masterSecretKey, add.mFlags, add.mExpiry, cryptoInput, saveParcel, log, indent);
+            return internal(sKR, masterSecretKey, add.mFlags, add.mExpiry, cryptoInput, saveParcel,
+                    subKeyPairs, log, indent);
 
         } catch (PGPException e) {
             log.add(LogType.MSG_CR_ERROR_INTERNAL_PGP, indent);
@@ -479,7 +617,8 @@ public class PgpKeyOperation {
         Date expiryTime = wsKR.getPublicKey().getExpiryTime();
         long masterKeyExpiry = expiryTime != null ? expiryTime.getTime() / 1000 : 0L;
 
-        return internal(sKR, masterSecretKey, masterKeyFlags, masterKeyExpiry, cryptoInput, saveParcel, log, indent);
+        return internal(sKR, masterSecretKey, masterKeyFlags, masterKeyExpiry, cryptoInput, saveParcel,
+                null, log, indent);
 
     }
 
@@ -487,6 +626,7 @@ public class PgpKeyOperation {
                                      int masterKeyFlags, long masterKeyExpiry,
                                      CryptoInputParcel cryptoInput,
                                      SaveKeyringParcel saveParcel,
+                                     PGPKeyPair[] newSubKeyPairs,
                                      OperationLog log,
                                      int indent) {
 
@@ -969,13 +1109,19 @@ public class PgpKeyOperation {
                     return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
                 }
 
-                // generate a new secret key (privkey only for now)
-                subProgressPush(
-                    (i-1) * (100 / saveParcel.mAddSubKeys.size()),
-                    i * (100 / saveParcel.mAddSubKeys.size())
-                );
-                PGPKeyPair keyPair = createKey(add, cryptoInput.getSignatureTime(), log, indent);
-                subProgressPop();
+                // generate a new secret key (privkey only for now), unless that was done already
+                PGPKeyPair keyPair;
+                if (newSubKeyPairs != null) {
+                    keyPair = newSubKeyPairs[i];
+                } else {
+                    subProgressPush(
+                        (i-1) * (100 / saveParcel.mAddSubKeys.size()),
+                        i * (100 / saveParcel.mAddSubKeys.size())
+                    );
+                    progress(getGeneratingMessage(add.mAlgorithm), 30);
+                    keyPair = createKey(add, cryptoInput.getSignatureTime(), log, indent);
+                    subProgressPop();
+                }
                 if (keyPair == null) {
                     log.add(LogType.MSG_MF_ERROR_PGP, indent +1);
                     return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
@@ -1000,7 +1146,7 @@ public class PgpKeyOperation {
                             .build().get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
                     PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                             PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                            PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                            S2kCalibration.getS2kCount())
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
                                     cryptoInput.getPassphrase().getCharArray());
 
@@ -1228,68 +1374,122 @@ public class PgpKeyOperation {
         return false;
     }
 
+    /**
+     * Re-encrypts all secret keys of the ring with a new passphrase. Every key needs an S2K
+     * derivation to decrypt, so keys are processed in parallel, one thread per core. All
+     * keys are encrypted with the same salt, so the new key is derived only once.
+     */
     private static PGPSecretKeyRing applyNewPassphrase(
             PGPSecretKeyRing sKR,
             PGPPublicKey masterPublicKey,
             Passphrase passphrase,
             Passphrase newPassphrase,
-            OperationLog log, int indent) throws PGPException {
+            OperationLog log, final int indent) throws PGPException {
 
-        PGPDigestCalculator encryptorHashCalc = new JcaPGPDigestCalculatorProviderBuilder().build()
-                .get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
-        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray());
-        // Build key encryptor based on new passphrase
-        PBESecretKeyEncryptor keyEncryptorNew = new JcePBESecretKeyEncryptorBuilder(
-                PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
-                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(newPassphrase.getCharArray());
+        final S2kKeyCache.CachingDecryptor keyDecryptor =
+                S2kKeyCache.newDecryptor(passphrase.getCharArray());
+        final S2kKeyCache.CachingDecryptor emptyDecryptor =
+                S2kKeyCache.newDecryptor("".toCharArray());
+        // Build key encryptors based on new passphrase
+        final S2kKeyCache.SharedKeyEncryptors keyEncryptors = new S2kKeyCache.SharedKeyEncryptors(
+                newPassphrase.getCharArray(), S2kCalibration.getS2kCount());
 
+        ArrayList<PGPSecretKey> secretKeys = new ArrayList<>();
         // noinspection unchecked
         for (PGPSecretKey sKey : new IterableIterator<PGPSecretKey>(sKR.getSecretKeys())) {
-            log.add(LogType.MSG_MF_PASSPHRASE_KEY, indent,
-                    KeyFormattingUtils.convertKeyIdToHex(sKey.getKeyID()));
+            secretKeys.add(sKey);
+        }
 
-            boolean ok = false;
+        // the log is not thread safe, every key logs into its own and they are merged in order
+        OperationLog[] subLogs = new OperationLog[secretKeys.size()];
+        ArrayList<Future<PGPSecretKey>> futures = new ArrayList<>();
+        int threads = Math.min(secretKeys.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            for (int i = 0; i < secretKeys.size(); i++) {
+                final PGPSecretKey sKey = secretKeys.get(i);
+                final OperationLog subLog = subLogs[i] = new OperationLog();
+                futures.add(executor.submit(new Callable<PGPSecretKey>() {
+                    @Override
+                    public PGPSecretKey call() throws PGPException {
+                        return reencryptSecretKey(sKey, keyDecryptor, emptyDecryptor,
+                                keyEncryptors.newEncryptor(), subLog, indent);
+                    }
+                }));
+            }
 
-            try {
-                // try to set new passphrase
-                sKey = PGPSecretKey.copyWithNewPassword(sKey, keyDecryptor, keyEncryptorNew);
-                ok = true;
-            } catch (PGPException e) {
-
-                // if this is the master key, error!
-                if (sKey.getKeyID() == masterPublicKey.getKeyID()) {
-                    log.add(LogType.MSG_MF_ERROR_PASSPHRASE_MASTER, indent+1);
-                    return null;
-                }
+            for (int i = 0; i < secretKeys.size(); i++) {
+                PGPSecretKey sKey = futures.get(i).get();
+                log.addAll(subLogs[i]);
 
-                // being in here means decrypt failed, likely due to a bad passphrase try
-                // again with an empty passphrase, maybe we can salvage this
-                try {
-                    log.add(LogType.MSG_MF_PASSPHRASE_EMPTY_RETRY, indent+1);
-                    PBESecretKeyDecryptor emptyDecryptor =
-                            new JcePBESecretKeyDecryptorBuilder().setProvider(
-                                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
-                    sKey = PGPSecretKey.copyWithNewPassword(sKey, emptyDecryptor, keyEncryptorNew);
-                    ok = true;
-                } catch (PGPException e2) {
-                    // non-fatal but not ok, handled below
+                if (sKey == null) {
+                    // if this is the master key, error!
+                    if (secretKeys.get(i).getKeyID() == masterPublicKey.getKeyID()) {
+                        log.add(LogType.MSG_MF_ERROR_PASSPHRASE_MASTER, indent+1);
+                        return null;
+                    }
+                    // for a subkey, it's merely a warning, which is logged already
+                    continue;
                 }
+
+                sKR = PGPSecretKeyRing.insertSecretKey(sKR, sKey);
             }
 
-            if (!ok) {
-                // for a subkey, it's merely a warning
-                log.add(LogType.MSG_MF_PASSPHRASE_FAIL, indent+1,
-                        KeyFormattingUtils.convertKeyIdToHex(sKey.getKeyID()));
-                continue;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PGPException("interrupted while changing passphrase");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PGPException) {
+                throw (PGPException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            // keys still in flight after an error only produce results which are dropped
+            keyDecryptor.wipe();
+            emptyDecryptor.wipe();
+            keyEncryptors.wipe();
+        }
+
+        return sKR;
+
+    }
 
-            sKR = PGPSecretKeyRing.insertSecretKey(sKR, sKey);
+    /**
+     * Re-encrypts a single secret key, trying an empty passphrase if the given one doesn't
+     * work. Returns null if neither does.
+     */
+    private static PGPSecretKey reencryptSecretKey(PGPSecretKey sKey,
+            PBESecretKeyDecryptor keyDecryptor, PBESecretKeyDecryptor emptyDecryptor,
+            PBESecretKeyEncryptor keyEncryptorNew, OperationLog log, int indent) {
+
+        log.add(LogType.MSG_MF_PASSPHRASE_KEY, indent,
+                KeyFormattingUtils.convertKeyIdToHex(sKey.getKeyID()));
 
+        try {
+            // try to set new passphrase
+            return PGPSecretKey.copyWithNewPassword(sKey, keyDecryptor, keyEncryptorNew);
+        } catch (PGPException e) {
+            // the master key is not salvaged, the caller handles this as an error
+            if (sKey.isMasterKey()) {
+                return null;
+            }
         }
 
-        return sKR;
+        // being in here means decrypt failed, likely due to a bad passphrase try
+        // again with an empty passphrase, maybe we can salvage this
+        try {
+            log.add(LogType.MSG_MF_PASSPHRASE_EMPTY_RETRY, indent+1);
+            return PGPSecretKey.copyWithNewPassword(sKey, emptyDecryptor, keyEncryptorNew);
+        } catch (PGPException e2) {
+            // for a subkey, it's merely a warning
+            log.add(LogType.MSG_MF_PASSPHRASE_FAIL, indent+1,
+                    KeyFormattingUtils.convertKeyIdToHex(sKey.getKeyID()));
+            return null;
+        }
 
     }
 
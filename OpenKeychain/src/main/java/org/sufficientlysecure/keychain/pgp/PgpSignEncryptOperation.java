@@ -38,6 +38,9 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.BaseOperation;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Timer;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
@@ -48,10 +51,11 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -107,6 +111,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
         int indent = 0;
         OperationLog log = new OperationLog();
+        OperationTimings timings = log.getTimings();
+        Timer timer;
 
         log.add(LogType.MSG_PSE, indent);
         indent += 1;
@@ -131,7 +137,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
         ArmoredOutputStream armorOut = null;
         OutputStream out;
         if (input.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            // buffers by itself, and writes in large blocks
+            armorOut = new FastArmoredOutputStream(timings.wrap(outputStream, Phase.IO));
             if (input.getVersionHeader() != null) {
                 armorOut.setHeader("Version", input.getVersionHeader());
             }
@@ -139,9 +146,10 @@ public class PgpSignEncryptOperation extends BaseOperation {
             if (input.getCharset() != null) {
                 armorOut.setHeader("Charset", input.getCharset());
             }
-            out = armorOut;
+            // the cipher writes into the armor encoder, which is charged separately
+            out = timings.wrap(armorOut, Phase.ARMOR);
         } else {
-            out = outputStream;
+            out = timings.wrap(outputStream, Phase.IO);
         }
 
         /* Get keys for signature generation for later usage */
@@ -152,8 +160,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             try {
                 // fetch the indicated master key id (the one whose name we sign in)
-                CanonicalizedSecretKeyRing signingKeyRing =
-                        mProviderHelper.getCanonicalizedSecretKeyRing(input.getSignatureMasterKeyId());
+                CanonicalizedSecretKeyRing signingKeyRing;
+                timer = timings.start(Phase.KEY_LOOKUP);
+                try {
+                    signingKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
+                            input.getSignatureMasterKeyId());
+                } finally {
+                    timer.stop();
+                }
 
                 // fetch the specific subkey to sign with, or just use the master key if none specified
                 signingKey = signingKeyRing.getSecretKey(input.getSignatureSubKeyId());
@@ -180,9 +194,12 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     case PASSPHRASE: {
                         Passphrase localPassphrase = cryptoInput.getPassphrase();
                         if (localPassphrase == null) {
+                            timer = timings.start(Phase.PASSPHRASE_FETCH);
                             try {
                                 localPassphrase = getCachedPassphrase(signingKeyRing.getMasterKeyId(), signingKey.getKeyId());
                             } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                            } finally {
+                                timer.stop();
                             }
                         }
                         if (localPassphrase == null) {
@@ -191,7 +208,14 @@ public class PgpSignEncryptOperation extends BaseOperation {
                                     signingKeyRing.getMasterKeyId(), signingKey.getKeyId(),
                                     cryptoInput.getSignatureTime()));
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
+                        boolean unlocked;
+                        timer = timings.start(Phase.S2K_UNLOCK);
+                        try {
+                            unlocked = signingKey.unlock(localPassphrase);
+                        } finally {
+                            timer.stop();
+                        }
+                        if (!unlocked) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
@@ -259,27 +283,38 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
                 // Asymmetric encryption
-                for (long id : input.getEncryptionMasterKeyIds()) {
-                    try {
-                        CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
-                        CanonicalizedPublicKey key = keyRing.getEncryptionSubKey();
-                        cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
-                        log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
-                                KeyFormattingUtils.convertKeyIdToHex(id));
-                    } catch (PgpKeyNotFoundException e) {
-                        log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
-                                KeyFormattingUtils.convertKeyIdToHex(id));
-                        if (input.isFailOnMissingEncryptionKeyIds()) {
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                        }
-                    } catch (ProviderHelper.NotFoundException e) {
-                        log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
-                                KeyFormattingUtils.convertKeyIdToHex(id));
-                        if (input.isFailOnMissingEncryptionKeyIds()) {
-                            return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                ArrayList<Long> usedMasterKeyIds = new ArrayList<>();
+                timer = timings.start(Phase.KEY_LOOKUP);
+                try {
+                    for (long id : input.getEncryptionMasterKeyIds()) {
+                        try {
+                            CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
+                                    KeyRings.buildUnifiedKeyRingUri(id));
+                            CanonicalizedPublicKey key = keyRing.getEncryptionSubKey();
+                            cPk.addMethod(key.getPubKeyEncryptionGenerator(input.isHiddenRecipients()));
+                            usedMasterKeyIds.add(id);
+                            log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
+                                    KeyFormattingUtils.convertKeyIdToHex(id));
+                        } catch (PgpKeyNotFoundException e) {
+                            log.add(LogType.MSG_PSE_KEY_WARN, indent + 1,
+                                    KeyFormattingUtils.convertKeyIdToHex(id));
+                            if (input.isFailOnMissingEncryptionKeyIds()) {
+                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            }
+                        } catch (ProviderHelper.NotFoundException e) {
+                            log.add(LogType.MSG_PSE_KEY_UNKNOWN, indent + 1,
+                                    KeyFormattingUtils.convertKeyIdToHex(id));
+                            if (input.isFailOnMissingEncryptionKeyIds()) {
+                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            }
                         }
                     }
+                } finally {
+                    timer.stop();
+                }
+                // frequently used keys get refreshed first in the background
+                if (Preferences.getPreferences(mContext).isKeyRefreshEnabled()) {
+                    mProviderHelper.recordKeyUsage(usedMasterKeyIds);
                 }
             }
         }
@@ -323,12 +358,19 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                // encrypts the session key to all recipients, or derives it via S2K
+                timer = timings.start(Phase.SESSION_KEY);
+                try {
+                    encryptionOut = timings.wrap(cPk.open(out, new byte[1 << 16]), Phase.BULK_CIPHER);
+                } finally {
+                    timer.stop();
+                }
 
                 if (enableCompression) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
                     compressGen = new PGPCompressedDataGenerator(input.getCompressionId());
-                    bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+                    bcpgOut = new BCPGOutputStream(
+                            timings.wrap(compressGen.open(encryptionOut), Phase.COMPRESSION));
                 } else {
                     bcpgOut = new BCPGOutputStream(encryptionOut);
                 }
@@ -356,7 +398,12 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
                     // update signature buffer if signature is requested
                     if (enableSignature) {
-                        signatureGenerator.update(buffer, 0, length);
+                        timer = timings.start(Phase.SIGNATURE);
+                        try {
+                            signatureGenerator.update(buffer, 0, length);
+                        } finally {
+                            timer.stop();
+                        }
                     }
 
                     alreadyWritten += length;
@@ -365,6 +412,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                Metrics.count("bytes.encrypted", alreadyWritten);
 
                 literalGen.close();
                 indent -= 1;
@@ -416,7 +464,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 detachedByteOut = new ByteArrayOutputStream();
                 OutputStream detachedOut = detachedByteOut;
                 if (input.isEnableAsciiArmorOutput()) {
-                    detachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
+                    detachedArmorOut = new FastArmoredOutputStream(detachedOut);
                     if (input.getVersionHeader() != null) {
                         detachedArmorOut.setHeader("Version", input.getVersionHeader());
                     }
@@ -439,6 +487,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                Metrics.count("bytes.signed", alreadyWritten);
 
                 pOut = null;
             } else if (enableSignature && !input.isCleartextSignature() && !input.isDetachedSignature()) {
@@ -477,6 +526,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
                         progressScaler.setProgress((int) progress, 100);
                     }
                 }
+                Metrics.count("bytes.signed", alreadyWritten);
 
                 literalGen.close();
             } else {
@@ -487,6 +537,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
             if (enableSignature) {
                 updateProgress(R.string.progress_generating_signature, 95, 100);
+                timer = timings.start(Phase.SIGNATURE);
                 try {
                     if (detachedBcpgOut != null) {
                         signatureGenerator.generate().encode(detachedBcpgOut);
@@ -499,6 +550,8 @@ public class PgpSignEncryptOperation extends BaseOperation {
                     return new PgpSignEncryptResult(log, RequiredInputParcel.createNfcSignOperation(
                             signingKey.getRing().getMasterKeyId(), signingKey.getKeyId(),
                             e.hashToSign, e.hashAlgo, cryptoInput.getSignatureTime()));
+                } finally {
+                    timer.stop();
                 }
             }
 
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Chooses the S2K iteration count used to encrypt secret keys, based on how fast this device
+ * computes the iterated and salted SHA-256 hash that derives the key from the passphrase.
+ *
+ * The count is chosen so deriving the key takes about TARGET_UNLOCK_MS on fast devices. It
+ * never goes below PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT, which is also used until a
+ * calibrated count is set, so calibration can only make keys harder to brute force.
+ * Benchmarking and persisting the result is up to the caller, see S2kCalibrationService.
+ */
+public class S2kCalibration {
+
+    /** Time we aim to spend on key derivation for a single unlock, in ms */
+    public static final long TARGET_UNLOCK_MS = 100;
+
+    /** Never go below the fixed count used without calibration, slow devices keep that one */
+    public static final int MIN_S2K_COUNT = PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+    public static final int MAX_S2K_COUNT = 0xff;
+
+    private static final int BENCHMARK_BYTES = 1 << 20;
+    private static final int BENCHMARK_RUNS = 3;
+    private static final int SALT_LENGTH = 8;
+    private static final int PASSPHRASE_LENGTH = 16;
+
+    private static volatile int sS2kCount = PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+
+    private S2kCalibration() {
+    }
+
+    /** Returns the encoded S2K count to use for newly encrypted secret keys */
+    public static int getS2kCount() {
+        return sS2kCount;
+    }
+
+    public static void setS2kCount(int count) {
+        sS2kCount = Math.max(MIN_S2K_COUNT, Math.min(MAX_S2K_COUNT, count));
+    }
+
+    /** Returns the number of bytes hashed for an encoded count, see rfc4880 section 3.7.1.3 */
+    public static long decodeCount(int count) {
+        return (16L + (count & 15)) << ((count >> 4) + 6);
+    }
+
+    /** Returns the largest encoded count which hashes at most the given number of bytes */
+    public static int encodeCount(long bytes) {
+        int count = MIN_S2K_COUNT;
+        // decoded counts grow strictly with the encoded value
+        while (count < MAX_S2K_COUNT && decodeCount(count + 1) <= bytes) {
+            count += 1;
+        }
+        return count;
+    }
+
+    /**
+     * Measures how fast this device derives keys and returns the encoded count which takes
+     * about TARGET_UNLOCK_MS. This takes a few tenths of a second, so don't call it from the
+     * ui thread.
+     */
+    public static int benchmark() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError("SHA-256 must be available");
+        }
+
+        // like the real thing, hash salt and passphrase alternately
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] passphrase = new byte[PASSPHRASE_LENGTH];
+        random.nextBytes(salt);
+        random.nextBytes(passphrase);
+
+        // the first run also warms up the jit, so take the fastest one
+        long bestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < BENCHMARK_RUNS; run++) {
+            long start = System.nanoTime();
+            for (int done = 0; done < BENCHMARK_BYTES; done += SALT_LENGTH + PASSPHRASE_LENGTH) {
+                digest.update(salt);
+                digest.update(passphrase);
+            }
+            digest.digest();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+
+        long bytesPerMs = BENCHMARK_BYTES * 1000000L / Math.max(bestNanos, 1);
+        return encodeCount(bytesPerMs * TARGET_UNLOCK_MS);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.S2K;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPUtil;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.PBESecretKeyEncryptor;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secret key decryptors and encryptors which derive the key for an S2K specifier only once,
+ * so all secret keys of a ring can be re-encrypted in parallel without a full S2K derivation
+ * for each of them.
+ *
+ * Decryptors cache the derived key per S2K, which helps whenever keys share their salt, as
+ * all keys encrypted through one SharedKeyEncryptors instance do. Derived keys are held until
+ * wipe() is called, which callers must do once they are done.
+ */
+public class S2kKeyCache {
+
+    private S2kKeyCache() {
+    }
+
+    private static PGPDigestCalculatorProvider getCalculatorProvider() throws PGPException {
+        return new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+    }
+
+    /** Returns a thread safe decryptor which derives the key for each S2K only once */
+    public static CachingDecryptor newDecryptor(char[] passphrase) throws PGPException {
+        PGPDigestCalculatorProvider calculatorProvider = getCalculatorProvider();
+        PBESecretKeyDecryptor delegate = new JcePBESecretKeyDecryptorBuilder(calculatorProvider)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase);
+        return new CachingDecryptor(passphrase, calculatorProvider, delegate);
+    }
+
+    public static class CachingDecryptor extends PBESecretKeyDecryptor {
+        private final PBESecretKeyDecryptor mDelegate;
+        private final ConcurrentHashMap<String, byte[]> mKeys = new ConcurrentHashMap<>();
+
+        CachingDecryptor(char[] passphrase, PGPDigestCalculatorProvider calculatorProvider,
+                         PBESecretKeyDecryptor delegate) {
+            super(passphrase, calculatorProvider);
+            mDelegate = delegate;
+        }
+
+        @Override
+        public byte[] makeKeyFromPassPhrase(int keyAlgorithm, S2K s2k) throws PGPException {
+            String cacheKey = keyAlgorithm + ":" + s2k.getType() + ":" + s2k.getHashAlgorithm()
+                    + ":" + s2k.getIterationCount()
+                    + ":" + (s2k.getIV() != null ? Hex.toHexString(s2k.getIV()) : "");
+            byte[] key = mKeys.get(cacheKey);
+            if (key == null) {
+                // two threads may derive the same key at once, which is wasteful but harmless
+                key = super.makeKeyFromPassPhrase(keyAlgorithm, s2k);
+                byte[] previous = mKeys.putIfAbsent(cacheKey, key);
+                if (previous != null) {
+                    Arrays.fill(key, (byte) 0);
+                    key = previous;
+                }
+            }
+            // callers may wipe what they get, the cached key must survive that
+            return Arrays.copyOf(key, key.length);
+        }
+
+        /** Overwrites all cached keys, the decryptor must not be used afterwards */
+        public void wipe() {
+            for (byte[] key : mKeys.values()) {
+                Arrays.fill(key, (byte) 0);
+            }
+            mKeys.clear();
+        }
+
+        @Override
+        public byte[] recoverKeyData(int encAlgorithm, byte[] key, byte[] iv,
+                                     byte[] keyData, int keyOff, int keyLen) throws PGPException {
+            // this does not keep any state between calls, so sharing it is fine
+            return mDelegate.recoverKeyData(encAlgorithm, key, iv, keyData, keyOff, keyLen);
+        }
+    }
+
+    /**
+     * Hands out encryptors for one passphrase which all use the same salt, so the key is
+     * derived only once, here.
+     *
+     * Each encryptor keeps the iv of its last operation, so each of them may only be used by
+     * one thread at a time.
+     */
+    public static class SharedKeyEncryptors {
+        private final PGPDigestCalculatorProvider mCalculatorProvider;
+        private final char[] mPassphrase;
+        private final int mS2kCount;
+        private final S2K mS2k;
+        private final byte[] mKey;
+
+        public SharedKeyEncryptors(char[] passphrase, int s2kCount) throws PGPException {
+            mCalculatorProvider = getCalculatorProvider();
+            mPassphrase = passphrase;
+            mS2kCount = s2kCount;
+
+            byte[] salt = new byte[8];
+            new SecureRandom().nextBytes(salt);
+            mS2k = new S2K(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, salt, s2kCount);
+            mKey = PGPUtil.makeKeyFromPassPhrase(
+                    mCalculatorProvider.get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO),
+                    PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, mS2k, passphrase);
+        }
+
+        public PBESecretKeyEncryptor newEncryptor() throws PGPException {
+            PGPDigestCalculator hashCalc =
+                    mCalculatorProvider.get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
+            PBESecretKeyEncryptor delegate = new JcePBESecretKeyEncryptorBuilder(
+                    PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, hashCalc, mS2kCount)
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mPassphrase);
+            return new SharedKeyEncryptor(delegate, hashCalc, mS2kCount, mS2k, mKey);
+        }
+
+        /** Overwrites the derived key, no encryptor of this instance may be used afterwards */
+        public void wipe() {
+            Arrays.fill(mKey, (byte) 0);
+        }
+    }
+
+    private static class SharedKeyEncryptor extends PBESecretKeyEncryptor {
+        private final PBESecretKeyEncryptor mDelegate;
+        private final S2K mSharedS2k;
+        private final byte[] mSharedKey;
+
+        SharedKeyEncryptor(PBESecretKeyEncryptor delegate, PGPDigestCalculator hashCalc,
+                           int s2kCount, S2K s2k, byte[] key) {
+            // the passphrase is never needed here, the key is derived already
+            super(delegate.getAlgorithm(), hashCalc, s2kCount, null, null);
+            mDelegate = delegate;
+            mSharedS2k = s2k;
+            mSharedKey = key;
+        }
+
+        @Override
+        public S2K getS2K() {
+            return mSharedS2k;
+        }
+
+        @Override
+        public byte[] getKey() throws PGPException {
+            return Arrays.copyOf(mSharedKey, mSharedKey.length);
+        }
+
+        @Override
+        public byte[] encryptKeyData(byte[] keyData, int keyOff, int keyLen) throws PGPException {
+            return mDelegate.encryptKeyData(mSharedKey, keyData, keyOff, keyLen);
+        }
+
+        @Override
+        public byte[] encryptKeyData(byte[] key, byte[] keyData, int keyOff, int keyLen)
+                throws PGPException {
+            return mDelegate.encryptKeyData(key, keyData, keyOff, keyLen);
+        }
+
+        @Override
+        public byte[] getCipherIV() {
+            return mDelegate.getCipherIV();
+        }
+    }
+
+}
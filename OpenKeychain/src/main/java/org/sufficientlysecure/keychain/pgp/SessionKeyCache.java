@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.os.SystemClock;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.spongycastle.openpgp.operator.PGPDataDecryptor;
+import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * In-memory cache of recovered session keys, so a message which has been decrypted before
+ * can be decrypted again without unlocking the secret key or talking to a security token.
+ *
+ * Entries are keyed by a digest of the public key encrypted session key packet and are
+ * stored encrypted with a random key which never leaves this process.
+ */
+public class SessionKeyCache {
+
+    private static SessionKeyCache sInstance;
+
+    private static class Entry {
+        final byte[] mIv;
+        final byte[] mEncryptedSessionData;
+        final long mMasterKeyId;
+        final long mSubKeyId;
+        final long mExpiry;
+
+        Entry(byte[] iv, byte[] encryptedSessionData, long masterKeyId, long subKeyId, long expiry) {
+            mIv = iv;
+            mEncryptedSessionData = encryptedSessionData;
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+            mExpiry = expiry;
+        }
+    }
+
+    /** Thrown by the lookup factory if there is no cached session key */
+    private static class CacheMissException extends RuntimeException {
+    }
+
+    private final HashMap<ByteBuffer, Entry> mEntries = new HashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private SecretKey mWrappingKey;
+
+    public static synchronized SessionKeyCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SessionKeyCache();
+        }
+        return sInstance;
+    }
+
+    private SessionKeyCache() {
+    }
+
+    /**
+     * Returns a decryptor factory using the cached session key for this packet, or null if
+     * it is not cached.
+     */
+    public PublicKeyDataDecryptorFactory getCachedDecryptorFactory(PGPPublicKeyEncryptedData encData) {
+        PublicKeyDataDecryptorFactory factory = new ContentDecryptorFactory() {
+            @Override
+            public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) {
+                byte[] sessionData = get(getCacheKey(keyAlgorithm, secKeyData));
+                if (sessionData == null) {
+                    throw new CacheMissException();
+                }
+                return sessionData;
+            }
+        };
+
+        try {
+            // recovers the session data, which tells us whether it is in the cache
+            encData.getSymmetricAlgorithm(factory);
+            Metrics.cacheLookup("cache.session_key", true);
+            return factory;
+        } catch (CacheMissException e) {
+            Metrics.cacheLookup("cache.session_key", false);
+            return null;
+        } catch (PGPException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a decryptor factory so the session data it recovers is added to the cache.
+     *
+     * The entry is tied to the key it was recovered with, and follows the passphrase cache:
+     * a ttl of zero or less keeps it until the passphrase of that key is cleared.
+     */
+    public PublicKeyDataDecryptorFactory wrap(final PublicKeyDataDecryptorFactory factory,
+                                              final long masterKeyId, final long subKeyId,
+                                              final long ttlSeconds) {
+        return new PublicKeyDataDecryptorFactory() {
+            @Override
+            public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
+                byte[] sessionData = factory.recoverSessionData(keyAlgorithm, secKeyData);
+                put(getCacheKey(keyAlgorithm, secKeyData), sessionData,
+                        masterKeyId, subKeyId, ttlSeconds);
+                return sessionData;
+            }
+
+            @Override
+            public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm,
+                                                       byte[] key) throws PGPException {
+                return factory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+            }
+        };
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        // entries encrypted with the old key are gone anyways, start over with a fresh one
+        mWrappingKey = null;
+    }
+
+    /**
+     * Removes all session keys recovered with the given key, which may be either a master
+     * key id or a subkey id, the same way the passphrase cache is keyed.
+     */
+    public synchronized void clear(long keyId) {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mMasterKeyId == keyId || entry.mSubKeyId == keyId) {
+                it.remove();
+            }
+        }
+    }
+
+    private static ByteBuffer getCacheKey(int keyAlgorithm, byte[][] secKeyData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) keyAlgorithm);
+            for (byte[] data : secKeyData) {
+                digest.update(data);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError("SHA-256 must be available");
+        }
+    }
+
+    private synchronized byte[] get(ByteBuffer cacheKey) {
+        removeExpired();
+        Entry entry = mEntries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, mWrappingKey, new IvParameterSpec(entry.mIv));
+            return cipher.doFinal(entry.mEncryptedSessionData);
+        } catch (GeneralSecurityException e) {
+            Log.e(Constants.TAG, "could not decrypt cached session key", e);
+            mEntries.remove(cacheKey);
+            return null;
+        }
+    }
+
+    private synchronized void put(ByteBuffer cacheKey, byte[] sessionData,
+                                  long masterKeyId, long subKeyId, long ttlSeconds) {
+        removeExpired();
+        try {
+            if (mWrappingKey == null) {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(128, mRandom);
+                mWrappingKey = generator.generateKey();
+            }
+            byte[] iv = new byte[16];
+            mRandom.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, mWrappingKey, new IvParameterSpec(iv));
+            // like in PassphraseCacheService, no ttl means no timeout
+            long expiry = ttlSeconds > 0
+                    ? SystemClock.elapsedRealtime() + ttlSeconds * 1000 : Long.MAX_VALUE;
+            mEntries.put(cacheKey, new Entry(iv, cipher.doFinal(sessionData),
+                    masterKeyId, subKeyId, expiry));
+        } catch (GeneralSecurityException e) {
+            // not caching is always fine
+            Log.e(Constants.TAG, "could not cache session key", e);
+        }
+    }
+
+    private void removeExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mExpiry <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Factory which only knows how to decrypt the symmetric layer, the session data has to
+     * come from somewhere else.
+     */
+    private static abstract class ContentDecryptorFactory implements PublicKeyDataDecryptorFactory {
+        private final PublicKeyDataDecryptorFactory mContentFactory =
+                new JcePublicKeyDataDecryptorFactoryBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build((PrivateKey) null);
+
+        @Override
+        public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm,
+                                                   byte[] key) throws PGPException {
+            return mContentFactory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+        }
+    }
+
+}
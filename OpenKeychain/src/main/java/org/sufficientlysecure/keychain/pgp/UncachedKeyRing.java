@@ -232,7 +232,7 @@ public class UncachedKeyRing {
     }
 
     public void encodeArmored(OutputStream out, String version) throws IOException {
-        ArmoredOutputStream aos = new ArmoredOutputStream(out);
+        ArmoredOutputStream aos = new FastArmoredOutputStream(out);
         if (version != null) {
             aos.setHeader("Version", version);
         }
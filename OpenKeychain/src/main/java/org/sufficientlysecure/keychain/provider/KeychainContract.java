@@ -20,9 +20,12 @@ package org.sufficientlysecure.keychain.provider;
 
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
 
+import java.util.regex.Pattern;
+
 public class KeychainContract {
 
     interface KeyRingsColumns {
@@ -90,6 +93,22 @@ public class KeychainContract {
         String PACKAGE_NAME = "package_name"; // foreign key to api_apps.package_name
     }
 
+    interface KeyRefreshColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a foreign key, survives re-import
+        String LAST_REFRESHED = "last_refreshed";
+        String USE_COUNT = "use_count";
+        String LAST_ATTEMPTED = "last_attempted";
+        String FAILURE_COUNT = "failure_count"; // failed attempts since the last refresh
+    }
+
+    interface KeySearchColumns {
+        String USER_IDS = "user_ids";
+        String EMAILS = "emails";
+        String NAMES = "names";
+        String COMMENTS = "comments";
+        String KEY_IDS = "key_ids"; // hex, long and short form
+    }
+
     public static final String CONTENT_AUTHORITY = Constants.PROVIDER_AUTHORITY;
 
     private static final Uri BASE_CONTENT_URI_INTERNAL = Uri
@@ -101,7 +120,10 @@ public class KeychainContract {
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
+    public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_SUMMARY = "summary";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
@@ -113,6 +135,13 @@ public class KeychainContract {
     public static final String PATH_ACCOUNTS = "accounts";
     public static final String PATH_ALLOWED_KEYS = "allowed_keys";
 
+    public static final String BASE_KEY_REFRESH = "key_refresh";
+    public static final String PATH_USED = "used";
+    public static final String PATH_FAILED = "failed";
+
+    /** Optional query parameter limiting the number of returned rows */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     public static class KeyRings implements BaseColumns, KeysColumns, UserPacketsColumns {
         public static final String MASTER_KEY_ID = KeysColumns.MASTER_KEY_ID;
         public static final String IS_REVOKED = KeysColumns.IS_REVOKED;
@@ -126,6 +155,8 @@ public class KeychainContract {
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
+        public static final String MATCHED_USER_ID = "matched_user_id";
+        public static final String SEARCH_RANK = "search_rank";
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -139,6 +170,24 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_UNIFIED).build();
         }
 
+        /**
+         * Updating this refreshes the derived columns of all keyrings with expired subkeys.
+         */
+        public static Uri buildKeyRingSummariesUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+        }
+
+        /**
+         * Updating this refreshes the derived columns (HAS_ENCRYPT, VERIFIED, ...) of the
+         * keyring, and HAS_DUPLICATE_USER_ID of all keyrings sharing its primary user id.
+         * If a single selection argument is given, it is taken as the primary user id the
+         * keyring had before, whose keyrings are refreshed as well.
+         */
+        public static Uri buildKeyRingSummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildGenericKeyRingUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
         }
@@ -166,11 +215,27 @@ public class KeychainContract {
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /**
+         * Finds all user ids of all keys matching any of the given emails, see MATCHED_USER_ID.
+         */
+        public static Uri buildKeyRingsFindByEmailsUri(String[] emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_EMAILS).appendPath(TextUtils.join(",", emails)).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindBySubkeyUri(long subkey) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /**
+         * Finds all keys with a user id, email, name, comment or key id starting with each of
+         * the words in the given query, see SEARCH_RANK.
+         */
+        public static Uri buildUnifiedKeyRingsSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH).appendPath(query).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -355,6 +420,85 @@ public class KeychainContract {
 
     }
 
+    public static class KeyRefresh implements KeyRefreshColumns, BaseColumns {
+        public static final String FINGERPRINT = KeysColumns.FINGERPRINT;
+        public static final String EXPIRY = KeysColumns.EXPIRY;
+
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_REFRESH).build();
+
+        public static Uri buildKeyRefreshUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
+        }
+
+        public static Uri buildKeyUsedUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_USED).build();
+        }
+
+        public static Uri buildKeyFailedUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_FAILED).build();
+        }
+
+        public static Uri buildLimitedUri(int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit)).build();
+        }
+    }
+
+    public static class KeySearch implements KeySearchColumns {
+        public static final String DOCID = "docid"; // the master key id
+
+        private static final Pattern SEPARATORS = Pattern.compile("[\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+");
+
+        public static Uri buildKeySearchUri(long masterKeyId) {
+            return KeyRings.CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SEARCH).build();
+        }
+
+        /**
+         * Turns free text as typed by the user into an fts MATCH expression. Every whitespace
+         * separated word becomes a prefix term, words the tokenizer would split (like emails)
+         * become prefix phrases, so "alice@exa" matches "alice@example.com" but not a key with
+         * "alice" and "example" in different user ids. Returns null if there is nothing left to
+         * search for.
+         */
+        public static String buildMatchQuery(String query) {
+            if (query == null) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder();
+            for (String word : query.trim().split("\\s+")) {
+                // "0x1234abcd" should search for the key id
+                if (word.length() > 2 && (word.startsWith("0x") || word.startsWith("0X"))) {
+                    word = word.substring(2);
+                }
+                // same separators as the "simple" tokenizer, which leaves anything above 0x7f
+                // alone. case folding is left to the tokenizer, too.
+                String[] tokens = SEPARATORS.split(word);
+                StringBuilder phrase = new StringBuilder();
+                for (String token : tokens) {
+                    if (token.length() == 0) {
+                        continue;
+                    }
+                    if (phrase.length() > 0) {
+                        phrase.append(' ');
+                    }
+                    phrase.append(token);
+                }
+                if (phrase.length() == 0) {
+                    continue;
+                }
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append('"').append(phrase).append("*\"");
+            }
+            return builder.length() > 0 ? builder.toString() : null;
+        }
+    }
+
     private KeychainContract() {
     }
 }
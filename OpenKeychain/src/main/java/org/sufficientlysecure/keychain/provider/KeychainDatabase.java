@@ -17,11 +17,14 @@
  */
 
 package org.sufficientlysecure.keychain.provider;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -30,6 +33,7 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
@@ -41,6 +45,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Date;
 
 /**
  * SQLite Datatypes (from http://www.sqlite.org/datatype3.html)
@@ -52,7 +57,17 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg";
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 8;
+
+    /**
+     * Write-ahead log size (in pages) after which sqlite checkpoints it into the database.
+     * This is twice the default, so a keyring import doesn't trigger a checkpoint every few
+     * keys, while readers still don't have to look through too much of the log.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+    /** Size the write-ahead log is truncated to after a checkpoint, it isn't by default */
+    private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
     private Context mContext;
 
     public interface Tables {
@@ -64,11 +79,28 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
+        String KEY_REFRESH = "key_refresh";
+        String KEY_SEARCH = "key_search";
+        String KEYRING_SUMMARY = "keyring_summary";
     }
 
     public KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
+
+        // with a write-ahead log, readers (cursor loaders, api lookups) don't have to wait
+        // for a long import or consolidate, and get their own connections from the pool
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // unlike the pragma, this applies to all connections of the pool
+        db.setForeignKeyConstraintsEnabled(true);
     }
 
     @Override
@@ -174,14 +206,152 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + "FOREIGN KEY(package_name) REFERENCES "
             + "api_apps(package_name) ON DELETE CASCADE"
         + ")");
+
+        createKeyRefreshTable(db);
+        createKeySearchTable(db);
+        createKeyringSummaryTable(db);
+    }
+
+    /**
+     * Bookkeeping for the background key refresh. There is deliberately no foreign key to
+     * keyrings_public here, since every save of a keyring deletes and re-inserts it.
+     */
+    private static void createKeyRefreshTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS key_refresh ("
+            + "master_key_id INTEGER PRIMARY KEY, "
+            + "last_refreshed INTEGER, "
+            + "use_count INTEGER NOT NULL DEFAULT 0, "
+            + "last_attempted INTEGER, "
+            + "failure_count INTEGER NOT NULL DEFAULT 0"
+        + ")");
+    }
+
+    /**
+     * Full-text index over the searchable parts of each keyring, one row per master key id
+     * (stored as docid). Maintained by ProviderHelper on save and by KeychainProvider on delete,
+     * since fts tables can't take part in the ON DELETE CASCADE of keyrings_public.
+     */
+    private static void createKeySearchTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS key_search USING fts4 ("
+            + "user_ids, "
+            + "emails, "
+            + "names, "
+            + "comments, "
+            + "key_ids"
+        + ")");
+    }
+
+    /**
+     * Derived per-keyring columns of the unified query, so it doesn't have to recompute them
+     * with self-joins for every row. Rows are refreshed through updateKeyringSummaries whenever
+     * their inputs change, and once next_expiry has passed, see updateExpiredKeyringSummaries.
+     */
+    private static void createKeyringSummaryTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS keyring_summary ("
+            + "master_key_id INTEGER PRIMARY KEY, "
+            + "has_encrypt INTEGER, "
+            + "has_sign INTEGER, "
+            + "has_certify INTEGER, "
+            + "has_authenticate INTEGER, "
+            + "has_any_secret INTEGER, "
+            + "has_duplicate_user_id INTEGER, "
+            + "verified INTEGER, "
+            + "is_expired INTEGER, "
+            + "next_expiry INTEGER, "
+
+            + "FOREIGN KEY(master_key_id) REFERENCES "
+                + "keyrings_public(master_key_id) ON DELETE CASCADE"
+        + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS keyring_summary_next_expiry "
+                + "ON keyring_summary (next_expiry)");
+        // for has_duplicate_user_id
+        db.execSQL("CREATE INDEX IF NOT EXISTS user_packets_user_id ON user_packets (user_id)");
+    }
+
+    /**
+     * (Re-)computes the keyring_summary rows of all keyrings matching the selection, which
+     * refers to their master key as "k".
+     */
+    static void updateKeyringSummaries(SQLiteDatabase db, String selection, Object[] selectionArgs) {
+        long now = new Date().getTime() / 1000;
+        String sql = "INSERT OR REPLACE INTO keyring_summary ("
+                    + "master_key_id, has_encrypt, has_sign, has_certify, has_authenticate, "
+                    + "has_any_secret, has_duplicate_user_id, verified, is_expired, next_expiry"
+                + ") SELECT k.master_key_id, "
+                    + "(" + buildUsableSubkeySql("can_encrypt", false, now) + "), "
+                    + "(" + buildUsableSubkeySql("can_sign", true, now) + "), "
+                    + "(" + buildUsableSubkeySql("can_certify", true, now) + "), "
+                    + "(" + buildUsableSubkeySql("can_authenticate", true, now) + "), "
+                    + "EXISTS (SELECT 1 FROM keyrings_secret AS s"
+                        + " WHERE s.master_key_id = k.master_key_id), "
+                    + "(SELECT COUNT(*) FROM user_packets AS own"
+                        + " INNER JOIN user_packets AS dups ON (dups.user_id = own.user_id"
+                            + " AND dups.rank = 0 AND dups.master_key_id != own.master_key_id)"
+                        + " WHERE own.master_key_id = k.master_key_id AND own.rank = 0), "
+                    + "(SELECT c.verified FROM certs AS c WHERE c.master_key_id = k.master_key_id"
+                        + " AND c.verified = " + Certs.VERIFIED_SECRET + " LIMIT 1), "
+                    + "(k.expiry IS NOT NULL AND k.expiry < " + now + "), "
+                    + "(SELECT MIN(x.expiry) FROM keys AS x WHERE x.master_key_id = k.master_key_id"
+                        + " AND x.expiry >= " + now + ")"
+                + " FROM keys AS k WHERE k.rank = 0 AND (" + selection + ")";
+        if (selectionArgs == null) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql, selectionArgs);
+        }
+    }
+
+    /**
+     * Refreshes all summaries where one of the keys expired since they were computed.
+     *
+     * @return the number of refreshed summaries
+     */
+    static int updateExpiredKeyringSummaries(SQLiteDatabase db) {
+        String expired = "next_expiry < " + (new Date().getTime() / 1000);
+        db.beginTransaction();
+        try {
+            int count = (int) DatabaseUtils.queryNumEntries(db, Tables.KEYRING_SUMMARY, expired);
+            if (count > 0) {
+                updateKeyringSummaries(db, "k.master_key_id IN (SELECT master_key_id"
+                        + " FROM keyring_summary WHERE " + expired + ")", null);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Id of the first subkey (if any) which may currently be used for the given capability. */
+    private static String buildUsableSubkeySql(String capability, boolean needsSecret, long now) {
+        return "SELECT u.key_id FROM keys AS u WHERE u.master_key_id = k.master_key_id"
+                + " AND u.is_revoked = 0 AND u." + capability + " = 1"
+                + (needsSecret ? " AND u.has_secret > 1" : "")
+                + " AND (u.expiry IS NULL OR u.expiry >= " + now + ") LIMIT 1";
     }
 
     @Override
     public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
-        if (!db.isReadOnly()) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+            db.enableWriteAheadLogging();
+        }
+        // these pragmas return their new value, so they can't go through execSQL
+        queryPragma(db, "wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        queryPragma(db, "journal_size_limit=" + WAL_SIZE_LIMIT);
+    }
+
+    private static void queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
         }
     }
 
@@ -399,6 +569,29 @@ public class KeychainDatabase extends SQLiteOpenHelper {
 
                 break;
 
+            case 4:
+                createKeyRefreshTable(db);
+                break;
+
+            case 5:
+                // populated by the consolidate below
+                createKeySearchTable(db);
+                break;
+
+            case 6:
+                createKeyringSummaryTable(db);
+                updateKeyringSummaries(db, "1", null);
+                break;
+
+            case 7:
+                // a key_refresh table created by the upgrade from 4 already has these
+                if (oldVersion > 4) {
+                    db.execSQL("ALTER TABLE key_refresh ADD COLUMN last_attempted INTEGER");
+                    db.execSQL("ALTER TABLE key_refresh ADD COLUMN "
+                            + "failure_count INTEGER NOT NULL DEFAULT 0");
+                }
+                break;
+
             default:
                 break;
             }
@@ -436,7 +629,17 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (restore) {
             in = context.getDatabasePath("debug_backup.db");
             out = context.getDatabasePath(DATABASE_NAME);
+            // a leftover write-ahead log would be applied on top of the restored database
+            new File(out.getPath() + "-wal").delete();
+            new File(out.getPath() + "-shm").delete();
         } else {
+            // move everything from the write-ahead log into the database file first
+            KeychainDatabase database = new KeychainDatabase(context);
+            try {
+                queryPragma(database.getWritableDatabase(), "wal_checkpoint(FULL)");
+            } finally {
+                database.close();
+            }
             in = context.getDatabasePath(DATABASE_NAME);
             out = context.getDatabasePath("debug_backup.db");
             out.createNewFile();
@@ -453,6 +656,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
+        getWritableDatabase().execSQL("delete from " + Tables.KEY_SEARCH);
     }
 
 }
@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -35,14 +38,17 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRefresh;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -54,6 +60,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_SUMMARY = 105;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -62,6 +69,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_SECRET = 204;
     private static final int KEY_RING_CERTS = 205;
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
+    private static final int KEY_RING_SEARCH = 207;
+    private static final int KEY_RING_SUMMARY = 208;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -71,6 +80,13 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_FIND_BY_EMAILS = 402;
+    private static final int KEY_RINGS_SEARCH = 403;
+
+    private static final int KEY_REFRESH = 500;
+    private static final int KEY_REFRESH_BY_KEY = 501;
+    private static final int KEY_REFRESH_USED = 502;
+    private static final int KEY_REFRESH_FAILED = 503;
 
     protected UriMatcher mUriMatcher;
 
@@ -91,6 +107,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/summary
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -105,12 +122,17 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_SUMMARY,
+                KEY_RINGS_SUMMARY);
 
         /**
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/emails/_
+         * key_rings/search/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -119,6 +141,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAILS + "/*",
+                KEY_RINGS_FIND_BY_EMAILS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SEARCH + "/*",
+                KEY_RINGS_SEARCH);
 
         /**
          * list key_ring specifics
@@ -131,6 +159,8 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/search
+         * key_rings/_/summary
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -154,6 +184,12 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SEARCH,
+                KEY_RING_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
 
         /**
          * API apps
@@ -179,11 +215,31 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_API_APPS + "/*/"
                 + KeychainContract.PATH_ALLOWED_KEYS, API_ALLOWED_KEYS);
 
+        /**
+         * background key refresh bookkeeping
+         *
+         * <pre>
+         * key_refresh
+         * key_refresh/_ (master key id)
+         * key_refresh/_/used
+         * key_refresh/_/failed
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_REFRESH, KEY_REFRESH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_REFRESH + "/*", KEY_REFRESH_BY_KEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_REFRESH + "/*/"
+                + KeychainContract.PATH_USED, KEY_REFRESH_USED);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_REFRESH + "/*/"
+                + KeychainContract.PATH_FAILED, KEY_REFRESH_FAILED);
+
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
 
+    /** Time to wait for other writers when yielding within a batch, see applyBatch */
+    private static final long YIELD_SLEEP_MS = 10;
+
     /**
      * {@inheritDoc}
      */
@@ -245,6 +301,7 @@ public class KeychainProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
         Log.v(Constants.TAG, "query(uri=" + uri + ", proj=" + Arrays.toString(projection) + ")");
+        long startTime = System.nanoTime();
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
@@ -257,7 +314,8 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_SEARCH: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -274,15 +332,6 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
                 projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
-                projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                        "(SELECT COUNT (*) FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.USER_ID
-                                    + " = "+ Tables.USER_PACKETS + "." + UserPackets.USER_ID
-                                + ") AS " + KeyRings.HAS_DUPLICATE_USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PUBKEY_DATA);
@@ -290,20 +339,16 @@ public class KeychainProvider extends ContentProvider {
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                    "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
-                        + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + ")) AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
-                projectionMap.put(KeyRings.IS_EXPIRED,
-                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                // derived columns are precomputed, see KeychainDatabase.updateKeyringSummaries
+                for (String column : new String[] {
+                        KeyRings.HAS_DUPLICATE_USER_ID, KeyRings.VERIFIED, KeyRings.HAS_ANY_SECRET,
+                        KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN, KeyRings.HAS_CERTIFY,
+                        KeyRings.HAS_AUTHENTICATE, KeyRings.IS_EXPIRED }) {
+                    projectionMap.put(column, "summary." + column + " AS " + column);
+                }
+                if (match == KEY_RINGS_SEARCH) {
+                    projectionMap.put(KeyRings.SEARCH_RANK, "search." + KeyRings.SEARCH_RANK);
+                }
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -313,6 +358,13 @@ public class KeychainProvider extends ContentProvider {
                 // Need this as list so we can search in it
                 List<String> plist = Arrays.asList(projection);
 
+                // the fts lookup is done in a subquery, so offsets() is only evaluated for
+                // matching rows. the rank is simply the number of hits.
+                String matchQuery = null;
+                if (match == KEY_RINGS_SEARCH) {
+                    matchQuery = KeySearch.buildMatchQuery(uri.getLastPathSegment());
+                }
+
                 qb.setTables(
                     Tables.KEYS
                         + " INNER JOIN " + Tables.USER_PACKETS + " ON ("
@@ -321,14 +373,12 @@ public class KeychainProvider extends ContentProvider {
                                     + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
                             // we KNOW that the rank zero user packet is a user id!
                             + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                        + ") LEFT JOIN " + Tables.KEYRING_SUMMARY + " AS summary ON ("
+                            + "summary." + KeyRings.MASTER_KEY_ID
                                 + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
+                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                         + ")"
-                        // fairly expensive joins following, only do when requested
+                        // blob joins following, only do when requested
                         + (plist.contains(KeyRings.PUBKEY_DATA) ?
                             " INNER JOIN " + Tables.KEY_RINGS_PUBLIC + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
@@ -341,49 +391,21 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
+                        + (matchQuery != null ?
+                            " INNER JOIN (SELECT " + KeySearch.DOCID + ", ("
+                                    + "length(offsets(" + Tables.KEY_SEARCH + "))"
+                                    + " - length(replace(offsets(" + Tables.KEY_SEARCH + "), ' ', ''))"
+                                    + " + 1) / 4 AS " + KeyRings.SEARCH_RANK
+                                + " FROM " + Tables.KEY_SEARCH
+                                + " WHERE " + Tables.KEY_SEARCH + " MATCH "
+                                    + DatabaseUtils.sqlEscapeString(matchQuery)
+                                + ") AS search ON ("
+                                    + "search." + KeySearch.DOCID
+                                + " = "
+                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + ")" : "")
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
@@ -437,6 +459,18 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_SEARCH: {
+                        if (matchQuery == null) {
+                            // nothing but separators, which can't match anything. the search
+                            // table isn't joined, so a given order may not refer to its rank
+                            qb.appendWhere(" AND 0");
+                            sortOrder = null;
+                        } else if (TextUtils.isEmpty(sortOrder)) {
+                            sortOrder = "search." + KeyRings.SEARCH_RANK + " DESC, "
+                                    + Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC";
+                        }
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
@@ -449,6 +483,57 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_FIND_BY_EMAILS: {
+                // one row per user id which matches any of the emails, so all of them
+                // can be resolved in a single pass instead of one unified query each
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeyRings._ID, "matched.oid AS _id");
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
+                projectionMap.put(KeyRings.MATCHED_USER_ID,
+                        "matched." + UserPackets.USER_ID + " AS " + KeyRings.MATCHED_USER_ID);
+                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
+                projectionMap.put(KeyRings.IS_EXPIRED,
+                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
+                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.USER_PACKETS + " AS matched"
+                        + " INNER JOIN " + Tables.KEYS + " ON ("
+                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = matched." + UserPackets.MASTER_KEY_ID
+                            + " AND " + Tables.KEYS + "." + Keys.RANK + " = 0"
+                        + ") INNER JOIN " + Tables.USER_PACKETS + " ON ("
+                            + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
+                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                            + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
+                        + ")");
+
+                String emailWhere = "";
+                for (String email : uri.getLastPathSegment().split(" *, *")) {
+                    if (email.length() == 0) {
+                        continue;
+                    }
+                    if (emailWhere.length() > 0) {
+                        emailWhere += " OR ";
+                    }
+                    // match '*<email>', so it has to be at the *end* of the user id
+                    emailWhere += "matched." + UserPackets.USER_ID + " LIKE "
+                            + DatabaseUtils.sqlEscapeString("%<" + email + ">");
+                }
+                qb.appendWhere(emailWhere.length() > 0 ? "(" + emailWhere + ")" : "0");
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    // same order as the unified query, per email
+                    sortOrder = Tables.USER_PACKETS + "." + UserPackets.USER_ID + " ASC, "
+                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " ASC";
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -638,6 +723,36 @@ public class KeychainProvider extends ContentProvider {
                 qb.appendWhereEscapeString(uri.getPathSegments().get(1));
 
                 break;
+            case KEY_REFRESH: {
+                // one row per master key, whether or not it has been refreshed before
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeyRefresh._ID, Tables.KEYS + ".oid AS " + KeyRefresh._ID);
+                projectionMap.put(KeyRefresh.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRefresh.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
+                projectionMap.put(KeyRefresh.EXPIRY, Tables.KEYS + "." + Keys.EXPIRY);
+                projectionMap.put(KeyRefresh.LAST_REFRESHED,
+                        "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.LAST_REFRESHED + ", 0)"
+                                + " AS " + KeyRefresh.LAST_REFRESHED);
+                projectionMap.put(KeyRefresh.USE_COUNT,
+                        "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.USE_COUNT + ", 0)"
+                                + " AS " + KeyRefresh.USE_COUNT);
+                projectionMap.put(KeyRefresh.LAST_ATTEMPTED,
+                        "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.LAST_ATTEMPTED + ", 0)"
+                                + " AS " + KeyRefresh.LAST_ATTEMPTED);
+                projectionMap.put(KeyRefresh.FAILURE_COUNT,
+                        "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.FAILURE_COUNT + ", 0)"
+                                + " AS " + KeyRefresh.FAILURE_COUNT);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.KEYS
+                    + " LEFT JOIN " + Tables.KEY_REFRESH + " ON ("
+                        + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
+                        + Tables.KEY_REFRESH + "." + KeyRefresh.MASTER_KEY_ID
+                    + ")");
+                qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
+
+                break;
+            }
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + " (" + match + ")");
 
@@ -651,11 +766,23 @@ public class KeychainProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
+        String limit = uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_LIMIT);
+
         SQLiteDatabase db = getDb().getReadableDatabase();
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy,
+                limit);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            // the query is only executed when the window is first filled, do that here so
+            // the recorded time actually covers it
+            cursor.getCount();
+        }
+        long queryNanos = QueryProfiler.record(QueryProfiler.KIND_QUERY, match, startTime);
+        if (QueryProfiler.isSlow(queryNanos)) {
+            QueryProfiler.recordSlow(getContext(), QueryProfiler.KIND_QUERY, uri, queryNanos, db,
+                    qb.buildQuery(projection, selection, groupBy, having, orderBy, limit),
+                    selectionArgs);
         }
 
         if (Constants.DEBUG && Constants.DEBUG_LOG_DB_QUERIES) {
@@ -675,14 +802,14 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         Log.d(Constants.TAG, "insert(uri=" + uri + ", values=" + values.toString() + ")");
+        long startTime = System.nanoTime();
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
 
         Uri rowUri = null;
         Long keyId = null;
+        final int match = mUriMatcher.match(uri);
         try {
-            final int match = mUriMatcher.match(uri);
-
             switch (match) {
                 case KEY_RING_PUBLIC:
                     db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, values);
@@ -721,6 +848,15 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
 
+                case KEY_RING_SEARCH: {
+                    // set docid automatically based on given uri, replacing any previous entry
+                    keyId = Long.valueOf(uri.getPathSegments().get(1));
+                    values.put(KeySearch.DOCID, keyId);
+                    db.delete(Tables.KEY_SEARCH, KeySearch.DOCID + " = " + keyId, null);
+                    db.insertOrThrow(Tables.KEY_SEARCH, null, values);
+                    break;
+                }
+
                 case API_APPS:
                     db.insertOrThrow(Tables.API_APPS, null, values);
                     break;
@@ -758,6 +894,7 @@ public class KeychainProvider extends ContentProvider {
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
         }
+        QueryProfiler.record(getContext(), QueryProfiler.KIND_INSERT, match, uri, startTime);
 
         return rowUri;
     }
@@ -768,6 +905,7 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public int delete(Uri uri, String additionalSelection, String[] selectionArgs) {
         Log.v(Constants.TAG, "delete(uri=" + uri + ")");
+        long startTime = System.nanoTime();
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
 
@@ -778,6 +916,7 @@ public class KeychainProvider extends ContentProvider {
             // dangerous
             case KEY_RINGS_UNIFIED: {
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                db.delete(Tables.KEY_SEARCH, null, null);
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -786,11 +925,36 @@ public class KeychainProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(additionalSelection)) {
                     selection += " AND (" + additionalSelection + ")";
                 }
-                // corresponding keys and userIds are deleted by ON DELETE CASCADE
+                // keys which shared the primary user id may not be duplicates anymore
+                String primaryUserId = getPrimaryUserId(db, uri.getPathSegments().get(1));
+                // corresponding keys, userIds and summary are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                // the search index is not, see KeychainDatabase
+                if (count > 0) {
+                    db.delete(Tables.KEY_SEARCH,
+                            KeySearch.DOCID + " = " + uri.getPathSegments().get(1), null);
+                    if (primaryUserId != null) {
+                        KeychainDatabase.updateKeyringSummaries(db, "k." + Keys.MASTER_KEY_ID
+                                + " IN (SELECT " + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS
+                                    + " WHERE " + UserPackets.RANK + " = 0"
+                                    + " AND " + UserPackets.USER_ID + " = ?)",
+                                new Object[] { primaryUserId });
+                    }
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            case KEY_RINGS_PUBLIC: {
+                // bulk delete, the selection refers to keyrings_public
+                if (TextUtils.isEmpty(additionalSelection)) {
+                    throw new UnsupportedOperationException("Bulk delete requires a selection: " + uri);
+                }
+                count = deletePublicKeyRings(db, additionalSelection, selectionArgs);
+                // a single notification for all of them
+                uri = KeyRings.CONTENT_URI;
+                break;
+            }
             case KEY_RING_SECRET: {
                 @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
                 String selection  = KeyRings.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
@@ -798,6 +962,10 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                if (count > 0) {
+                    KeychainDatabase.updateKeyringSummaries(db, "k." + Keys.MASTER_KEY_ID + " = ?",
+                            new Object[] { Long.parseLong(uri.getPathSegments().get(1)) });
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -820,6 +988,7 @@ public class KeychainProvider extends ContentProvider {
 
         // notify of changes in db
         getContext().getContentResolver().notifyChange(uri, null);
+        QueryProfiler.record(getContext(), QueryProfiler.KIND_DELETE, match, uri, startTime);
 
         return count;
     }
@@ -830,12 +999,13 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         Log.v(Constants.TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
+        long startTime = System.nanoTime();
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
 
         int count = 0;
+        final int match = mUriMatcher.match(uri);
         try {
-            final int match = mUriMatcher.match(uri);
             switch (match) {
                 case KEY_RING_KEYS: {
                     if (values.size() != 1 || !values.containsKey(Keys.HAS_SECRET)) {
@@ -851,6 +1021,39 @@ public class KeychainProvider extends ContentProvider {
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
                     break;
                 }
+                case KEY_RING_SUMMARY: {
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    // this keyring, and all which share its primary user id
+                    String summarySelection = "k." + Keys.MASTER_KEY_ID + " = ?1"
+                            + " OR k." + Keys.MASTER_KEY_ID + " IN (SELECT dups." + UserPackets.MASTER_KEY_ID
+                                + " FROM " + Tables.USER_PACKETS + " AS own"
+                                + " INNER JOIN " + Tables.USER_PACKETS + " AS dups ON ("
+                                    + "dups." + UserPackets.USER_ID + " = own." + UserPackets.USER_ID
+                                    + " AND dups." + UserPackets.RANK + " = 0)"
+                                + " WHERE own." + UserPackets.MASTER_KEY_ID + " = ?1"
+                                + " AND own." + UserPackets.RANK + " = 0)";
+                    Object[] summaryArgs = new Object[] { mkid };
+                    // and all which shared the primary user id it had before it was saved
+                    if (selectionArgs != null && selectionArgs.length == 1
+                            && selectionArgs[0] != null) {
+                        summarySelection += " OR k." + Keys.MASTER_KEY_ID + " IN (SELECT "
+                                + UserPackets.MASTER_KEY_ID + " FROM " + Tables.USER_PACKETS
+                                + " WHERE " + UserPackets.RANK + " = 0"
+                                + " AND " + UserPackets.USER_ID + " = ?2)";
+                        summaryArgs = new Object[] { mkid, selectionArgs[0] };
+                    }
+                    KeychainDatabase.updateKeyringSummaries(db, summarySelection, summaryArgs);
+                    count = 1;
+                    uri = KeyRings.buildGenericKeyRingUri(mkid);
+                    break;
+                }
+                case KEY_RINGS_SUMMARY: {
+                    // only done by KeyringSummaryService, so queries never wait for it
+                    count = KeychainDatabase.updateExpiredKeyringSummaries(db);
+                    uri = KeyRings.CONTENT_URI;
+                    break;
+                }
                 case API_APPS_BY_PACKAGE_NAME:
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -859,6 +1062,49 @@ public class KeychainProvider extends ContentProvider {
                     count = db.update(Tables.API_ACCOUNTS, values,
                             buildDefaultApiAccountsSelection(uri, selection), selectionArgs);
                     break;
+                case KEY_REFRESH_BY_KEY: {
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    db.execSQL("INSERT OR IGNORE INTO " + Tables.KEY_REFRESH + " ("
+                            + KeyRefresh.MASTER_KEY_ID + ") VALUES (" + Long.toString(mkid) + ")");
+                    count = db.update(Tables.KEY_REFRESH, values,
+                            KeyRefresh.MASTER_KEY_ID + " = " + Long.toString(mkid), null);
+                    break;
+                }
+                case KEY_REFRESH_USED: {
+                    // the use_count value is an increment rather than an absolute value
+                    if (values.size() != 1 || !values.containsKey(KeyRefresh.USE_COUNT)) {
+                        throw new UnsupportedOperationException(
+                                "Only use_count column may be incremented!");
+                    }
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    int increment = values.getAsInteger(KeyRefresh.USE_COUNT);
+                    db.execSQL("INSERT OR IGNORE INTO " + Tables.KEY_REFRESH + " ("
+                            + KeyRefresh.MASTER_KEY_ID + ") VALUES (" + Long.toString(mkid) + ")");
+                    db.execSQL("UPDATE " + Tables.KEY_REFRESH + " SET "
+                            + KeyRefresh.USE_COUNT + " = " + KeyRefresh.USE_COUNT + " + "
+                            + Integer.toString(increment) + " WHERE "
+                            + KeyRefresh.MASTER_KEY_ID + " = " + Long.toString(mkid));
+                    count = 1;
+                    break;
+                }
+                case KEY_REFRESH_FAILED: {
+                    // records the time of a failed attempt, and counts it for the backoff
+                    if (values.size() != 1 || !values.containsKey(KeyRefresh.LAST_ATTEMPTED)) {
+                        throw new UnsupportedOperationException(
+                                "Only last_attempted column may be set!");
+                    }
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    long attempted = values.getAsLong(KeyRefresh.LAST_ATTEMPTED);
+                    db.execSQL("INSERT OR IGNORE INTO " + Tables.KEY_REFRESH + " ("
+                            + KeyRefresh.MASTER_KEY_ID + ") VALUES (" + Long.toString(mkid) + ")");
+                    db.execSQL("UPDATE " + Tables.KEY_REFRESH + " SET "
+                            + KeyRefresh.LAST_ATTEMPTED + " = " + Long.toString(attempted) + ", "
+                            + KeyRefresh.FAILURE_COUNT + " = " + KeyRefresh.FAILURE_COUNT + " + 1"
+                            + " WHERE " + KeyRefresh.MASTER_KEY_ID + " = " + Long.toString(mkid));
+                    count = 1;
+                    break;
+                }
                 default:
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -869,10 +1115,110 @@ public class KeychainProvider extends ContentProvider {
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
         }
+        QueryProfiler.record(getContext(), QueryProfiler.KIND_UPDATE, match, uri, startTime);
 
         return count;
     }
 
+    /**
+     * Applies the whole batch inside a single transaction, so a saved keyring is either written
+     * completely or not at all, and sqlite only has to sync once per batch.
+     * <p/>
+     * Long batches of independent operations should mark them withYieldAllowed, the transaction
+     * is then committed before such an operation if another thread is waiting to write.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long startTime = System.nanoTime();
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely(YIELD_SLEEP_MS);
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            Uri uri = operations.isEmpty() ? null : operations.get(0).getUri();
+            long batchNanos = QueryProfiler.record(QueryProfiler.KIND_BATCH,
+                    uri == null ? UriMatcher.NO_MATCH : mUriMatcher.match(uri), startTime);
+            if (QueryProfiler.isSlow(batchNanos)) {
+                QueryProfiler.recordSlow(getContext(), QueryProfiler.KIND_BATCH, uri, batchNanos,
+                        null, operations.size() + " operations", null);
+            }
+        }
+    }
+
+    private static String getPrimaryUserId(SQLiteDatabase db, String masterKeyId) {
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[] { UserPackets.USER_ID },
+                UserPackets.MASTER_KEY_ID + " = ? AND " + UserPackets.RANK + " = 0",
+                new String[] { masterKeyId }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes all public keyrings matching the selection in a single transaction. Besides
+     * what cascades, this cleans up the search index, and refreshes the summaries of keys
+     * which shared a primary user id with a deleted keyring or were certified by one.
+     */
+    private static int deletePublicKeyRings(SQLiteDatabase db, String selection,
+                                            String[] selectionArgs) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS temp.deleted_keyrings");
+            db.execSQL("CREATE TEMP TABLE deleted_keyrings AS SELECT " + KeyRings.MASTER_KEY_ID
+                    + " FROM " + Tables.KEY_RINGS_PUBLIC + " WHERE " + selection,
+                    selectionArgs != null ? selectionArgs : new String[0]);
+            String deleted = "SELECT " + KeyRings.MASTER_KEY_ID + " FROM temp.deleted_keyrings";
+
+            db.execSQL("DROP TABLE IF EXISTS temp.deleted_user_ids");
+            db.execSQL("CREATE TEMP TABLE deleted_user_ids AS SELECT DISTINCT " + UserPackets.USER_ID
+                    + " FROM " + Tables.USER_PACKETS + " WHERE " + UserPackets.RANK + " = 0"
+                    + " AND " + UserPackets.MASTER_KEY_ID + " IN (" + deleted + ")");
+
+            // corresponding keys, userIds and summary are deleted by ON DELETE CASCADE
+            int count = db.delete(Tables.KEY_RINGS_PUBLIC,
+                    KeyRings.MASTER_KEY_ID + " IN (" + deleted + ")", null);
+            // the search index is not, see KeychainDatabase
+            db.delete(Tables.KEY_SEARCH, KeySearch.DOCID + " IN (" + deleted + ")", null);
+
+            // certificates by the deleted keys are not trusted anymore
+            db.execSQL("DROP TABLE IF EXISTS temp.uncertified_keyrings");
+            db.execSQL("CREATE TEMP TABLE uncertified_keyrings AS SELECT DISTINCT "
+                    + Certs.MASTER_KEY_ID + " FROM " + Tables.CERTS
+                    + " WHERE " + Certs.KEY_ID_CERTIFIER + " IN (" + deleted + ")");
+            db.delete(Tables.CERTS, Certs.KEY_ID_CERTIFIER + " IN (" + deleted + ")", null);
+
+            KeychainDatabase.updateKeyringSummaries(db, "k." + Keys.MASTER_KEY_ID
+                    + " IN (SELECT " + Certs.MASTER_KEY_ID + " FROM temp.uncertified_keyrings)"
+                    + " OR k." + Keys.MASTER_KEY_ID + " IN (SELECT " + UserPackets.MASTER_KEY_ID
+                        + " FROM " + Tables.USER_PACKETS
+                        + " WHERE " + UserPackets.RANK + " = 0"
+                        + " AND " + UserPackets.USER_ID + " IN (SELECT " + UserPackets.USER_ID
+                            + " FROM temp.deleted_user_ids))", null);
+
+            db.execSQL("DROP TABLE temp.deleted_keyrings");
+            db.execSQL("DROP TABLE temp.deleted_user_ids");
+            db.execSQL("DROP TABLE temp.uncertified_keyrings");
+
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -37,6 +38,8 @@ import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Timer;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
@@ -54,10 +57,13 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRefresh;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.remote.AccountSettings;
 import org.sufficientlysecure.keychain.remote.AppSettings;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -79,6 +85,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -93,6 +100,9 @@ import java.util.Set;
  * method is called to start a new one specifically.
  */
 public class ProviderHelper {
+    /** The retry interval of a failing key refresh doubles at most this many times */
+    public static final int MAX_KEY_REFRESH_BACKOFF_SHIFT = 6;
+
     private final Context mContext;
     private final ContentResolver mContentResolver;
     private OperationLog mLog;
@@ -267,6 +277,65 @@ public class ProviderHelper {
         return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(queryUri, false);
     }
 
+    /**
+     * Loads a number of public keyrings with as few queries as possible. Keyrings which are
+     * not in the database are simply missing from the result.
+     */
+    public LongSparseArray<CanonicalizedPublicKeyRing> getCanonicalizedPublicKeyRings(
+            long[] masterKeyIds) {
+        return getCanonicalizedPublicKeyRings(masterKeyIds, null);
+    }
+
+    /**
+     * Like getCanonicalizedPublicKeyRings(long[]), but also puts the primary user id of each
+     * keyring found into primaryUserIds, from the same queries.
+     */
+    private LongSparseArray<CanonicalizedPublicKeyRing> getCanonicalizedPublicKeyRings(
+            long[] masterKeyIds, LongSparseArray<String> primaryUserIds) {
+        LongSparseArray<CanonicalizedPublicKeyRing> result = new LongSparseArray<>();
+
+        // stay well below sqlite's limit of host parameters per query
+        final int CHUNK_SIZE = 500;
+        for (int offset = 0; offset < masterKeyIds.length; offset += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, masterKeyIds.length - offset);
+
+            String[] ids = new String[count];
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int i = 0; i < count; i++) {
+                ids[i] = Long.toString(masterKeyIds[offset + i]);
+                if (i > 0) {
+                    placeholders.append(",?");
+                }
+            }
+            String selection = Tables.KEY_RINGS_PUBLIC + "." + KeyRings.MASTER_KEY_ID
+                    + " IN (" + placeholders + ")";
+
+            Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
+                    KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED, KeyRings.PUBKEY_DATA, KeyRings.USER_ID
+            }, selection, ids, null);
+
+            try {
+                if (cursor != null && cursor.moveToFirst()) do {
+                    long masterKeyId = cursor.getLong(0);
+                    int verified = cursor.getInt(1);
+                    byte[] blob = cursor.getBlob(2);
+                    if (blob != null) {
+                        result.put(masterKeyId, new CanonicalizedPublicKeyRing(blob, verified));
+                    }
+                    if (primaryUserIds != null && !cursor.isNull(3)) {
+                        primaryUserIds.put(masterKeyId, cursor.getString(3));
+                    }
+                } while (cursor.moveToNext());
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        return result;
+    }
+
     public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRing(long id) throws NotFoundException {
         return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), true);
     }
@@ -337,24 +406,75 @@ public class ProviderHelper {
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
                                                Progressable progress, boolean selfCertsAreTrusted) {
 
+        long masterKeyId = keyRing.getMasterKeyId();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int result = buildPublicKeyRingOperations(keyRing, progress, selfCertsAreTrusted,
+                getTrustedMasterKeys(), getPrimaryUserIdOrNull(masterKeyId), operations);
+        if (result == SaveKeyringResult.RESULT_ERROR) {
+            return result;
+        }
+
+        try {
+            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+            int deleted = mContentResolver.delete(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+            if (deleted > 0) {
+                log(LogType.MSG_IP_DELETE_OLD_OK);
+                result |= SaveKeyringResult.UPDATED;
+            } else {
+                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            }
+
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            log(LogType.MSG_IP_SUCCESS);
+            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+            return result;
+
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Log.e(Constants.TAG, "RemoteException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Log.e(Constants.TAG, "OperationApplicationException during import", e);
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+    }
+
+    /**
+     * Builds the operations which insert a public keyring, with all its keys, user ids and
+     * certificates. The old version of the keyring must be deleted before they are applied.
+     *
+     * @param trustedKeys The master keys we have a secret for, see getTrustedMasterKeys
+     * @param previousPrimaryUserId The primary user id of the old version, or null
+     * @return SAVED_PUBLIC, or RESULT_ERROR if the keyring could not be encoded
+     */
+    @SuppressWarnings("unchecked")
+    private int buildPublicKeyRingOperations(CanonicalizedPublicKeyRing keyRing,
+            Progressable progress, boolean selfCertsAreTrusted,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, String previousPrimaryUserId,
+            ArrayList<ContentProviderOperation> operations) {
+
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
 
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
             // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
 
             log(LogType.MSG_IP_INSERT_KEYRING);
             { // insert keyring
@@ -374,6 +494,8 @@ public class ProviderHelper {
             log(LogType.MSG_IP_INSERT_SUBKEYS);
             progress.setProgress(LogType.MSG_IP_INSERT_SUBKEYS.getMsgId(), 40, 100);
             mIndent += 1;
+            // hex key ids and fingerprints for the search index, without "0x"
+            StringBuilder searchKeyIds = new StringBuilder();
             { // insert subkeys
                 Uri uri = Keys.buildKeysUri(masterKeyId);
                 int rank = 0;
@@ -384,6 +506,13 @@ public class ProviderHelper {
                     );
                     mIndent += 1;
 
+                    searchKeyIds.append(KeyFormattingUtils.convertKeyIdToHex(keyId).substring(2))
+                            .append(' ')
+                            .append(KeyFormattingUtils.convertKeyIdToHexShort(keyId).substring(2))
+                            .append(' ')
+                            .append(KeyFormattingUtils.convertFingerprintToHex(key.getFingerprint()))
+                            .append(' ');
+
                     ContentValues values = new ContentValues();
                     values.put(Keys.MASTER_KEY_ID, masterKeyId);
                     values.put(Keys.RANK, rank);
@@ -439,9 +568,7 @@ public class ProviderHelper {
             }
             mIndent -= 1;
 
-            // get a list of owned secret keys, for verification filtering
-            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
-
+            // the list of owned secret keys is used for verification filtering
             // classify and order user ids. primary are moved to the front, revoked to the back,
             // otherwise the order in the keyfile is preserved.
             List<UserPacketItem> uids = new ArrayList<>();
@@ -676,6 +803,10 @@ public class ProviderHelper {
                 }
             }
 
+            operations.add(buildSearchOperations(masterKeyId, uids, searchKeyIds.toString()));
+            // must come last, it is derived from all of the above
+            operations.add(buildSummaryOperations(masterKeyId, previousPrimaryUserId));
+
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Log.e(Constants.TAG, "IOException during import", e);
@@ -684,34 +815,7 @@ public class ProviderHelper {
             mIndent -= 1;
         }
 
-        try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
-            }
-
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
-            log(LogType.MSG_IP_SUCCESS);
-            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
-            return result;
-
-        } catch (RemoteException e) {
-            log(LogType.MSG_IP_ERROR_REMOTE_EX);
-            Log.e(Constants.TAG, "RemoteException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
-        } catch (OperationApplicationException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Log.e(Constants.TAG, "OperationApplicationException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
-        }
+        return result;
 
     }
 
@@ -779,22 +883,45 @@ public class ProviderHelper {
 
             {
                 Uri uri = Keys.buildKeysUri(masterKeyId);
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>();
 
                 // first, mark all keys as not available
                 ContentValues values = new ContentValues();
                 values.put(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum());
-                mContentResolver.update(uri, values, null, null);
+                operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
 
                 // then, mark exactly the keys we have available
+                ArrayList<CanonicalizedSecretKey> subKeys = new ArrayList<>();
+                for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
+                    values = new ContentValues();
+                    values.put(Keys.HAS_SECRET, sub.getSecretKeyType().getNum());
+                    operations.add(ContentProviderOperation.newUpdate(uri).withValues(values)
+                            .withSelection(Keys.KEY_ID + " = ?",
+                                    new String[]{Long.toString(sub.getKeyId())}).build());
+                    subKeys.add(sub);
+                }
+
+                // this implicitly leaves all keys which were not in the secret key ring
+                // with has_secret = 1
+
+                operations.add(buildSummaryOperations(masterKeyId));
+
+                ContentProviderResult[] results;
+                try {
+                    results = mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(Constants.TAG, "Failed to update secret subkeys!", e);
+                    log(LogType.MSG_IS_DB_EXCEPTION);
+                    return SaveKeyringResult.RESULT_ERROR;
+                }
+
                 log(LogType.MSG_IS_IMPORTING_SUBKEYS);
                 mIndent += 1;
-                for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
-                    long id = sub.getKeyId();
-                    SecretKeyType mode = sub.getSecretKeyType();
-                    values.put(Keys.HAS_SECRET, mode.getNum());
-                    int upd = mContentResolver.update(uri, values, Keys.KEY_ID + " = ?",
-                            new String[]{Long.toString(id)});
-                    if (upd == 1) {
+                for (int i = 0; i < subKeys.size(); i++) {
+                    long id = subKeys.get(i).getKeyId();
+                    SecretKeyType mode = subKeys.get(i).getSecretKeyType();
+                    // results are offset by the first update above
+                    if (results[i + 1].count == 1) {
                         switch (mode) {
                             case PASSPHRASE:
                                 log(LogType.MSG_IS_SUBKEY_OK,
@@ -829,9 +956,6 @@ public class ProviderHelper {
                     }
                 }
                 mIndent -= 1;
-
-                // this implicitly leaves all keys which were not in the secret key ring
-                // with has_secret = 1
             }
 
             log(LogType.MSG_IS_SUCCESS);
@@ -925,15 +1049,21 @@ public class ProviderHelper {
                 canSecretRing = null;
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
-
-            // Save the saved keyring (if any)
-            if (canSecretRing != null) {
-                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
-                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
-                    result |= SaveKeyringResult.SAVED_SECRET;
+            int result;
+            Timer timer = mLog.getTimings().start(Phase.DB_SAVE);
+            try {
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+
+                // Save the saved keyring (if any)
+                if (canSecretRing != null) {
+                    progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+                    int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+                    if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                        result |= SaveKeyringResult.SAVED_SECRET;
+                    }
                 }
+            } finally {
+                timer.stop();
             }
 
             return new SaveKeyringResult(result, mLog, canSecretRing);
@@ -947,6 +1077,143 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Save a number of public keyrings into the database.
+     * <p/>
+     * Works like savePublicKeyRing, but the old keyrings and the list of trusted keys are
+     * loaded only once, and all keyrings are written in a single transaction. Keyrings which
+     * also have a secret part take the regular path, since that one needs to be kept in sync.
+     *
+     * @return One result per keyring, in the order of publicRings, each with its own log
+     */
+    public List<SaveKeyringResult> savePublicKeyRings(List<UncachedKeyRing> publicRings,
+                                                      Progressable progress) {
+
+        int size = publicRings.size();
+        SaveKeyringResult[] results = new SaveKeyringResult[size];
+        // results of keyrings in the batch are only known after it was applied
+        int[] batchedResults = new int[size];
+        OperationLog[] batchedLogs = new OperationLog[size];
+
+        long[] masterKeyIds = new long[size];
+        for (int i = 0; i < size; i++) {
+            masterKeyIds[i] = publicRings.get(i).getMasterKeyId();
+        }
+        // the primary user ids of the old versions come with them, see buildSummaryOperations
+        LongSparseArray<String> oldPrimaryUserIds = new LongSparseArray<>();
+        LongSparseArray<CanonicalizedPublicKeyRing> oldRings =
+                getCanonicalizedPublicKeyRings(masterKeyIds, oldPrimaryUserIds);
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            UncachedKeyRing publicRing = publicRings.get(i);
+            long masterKeyId = masterKeyIds[i];
+            progress.setProgress(R.string.progress_saving, i * 75 / size, 100);
+
+            clearLog();
+            if (trustedKeys.indexOfKey(masterKeyId) >= 0) {
+                results[i] = savePublicKeyRing(publicRing, new ProgressScaler());
+                continue;
+            }
+
+            try {
+                log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                mIndent += 1;
+
+                if (publicRing.isSecret()) {
+                    log(LogType.MSG_IP_BAD_TYPE_SECRET);
+                    results[i] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    continue;
+                }
+
+                CanonicalizedPublicKeyRing oldRing = oldRings.get(masterKeyId);
+                if (oldRing != null) {
+                    UncachedKeyRing oldPublicRing = oldRing.getUncachedKeyRing();
+
+                    // Merge data from new public ring into the old one
+                    log(LogType.MSG_IP_MERGE_PUBLIC);
+                    publicRing = oldPublicRing.merge(publicRing, mLog, mIndent);
+                    if (publicRing == null) {
+                        results[i] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                        continue;
+                    }
+
+                    // Early breakout if nothing changed
+                    if (Arrays.hashCode(publicRing.getEncoded())
+                            == Arrays.hashCode(oldPublicRing.getEncoded())) {
+                        log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                        results[i] = new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                        continue;
+                    }
+                }
+
+                CanonicalizedPublicKeyRing canPublicRing =
+                        (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                if (canPublicRing == null) {
+                    results[i] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                    continue;
+                }
+
+                ArrayList<ContentProviderOperation> ringOperations = new ArrayList<>();
+                int result = buildPublicKeyRingOperations(canPublicRing, new ProgressScaler(),
+                        false, trustedKeys, oldPrimaryUserIds.get(masterKeyId), ringOperations);
+                if (result == SaveKeyringResult.RESULT_ERROR) {
+                    results[i] = new SaveKeyringResult(result, mLog, null);
+                    continue;
+                }
+
+                // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+                if (oldRing != null) {
+                    operations.add(ContentProviderOperation.newDelete(
+                            KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+                    log(LogType.MSG_IP_DELETE_OLD_OK);
+                    result |= SaveKeyringResult.UPDATED;
+                }
+                operations.addAll(ringOperations);
+
+                batchedResults[i] = result;
+                batchedLogs[i] = mLog;
+
+            } catch (IOException e) {
+                log(LogType.MSG_IP_ERROR_IO_EXC);
+                results[i] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            } finally {
+                mIndent -= 1;
+            }
+        }
+
+        LogType batchResult = LogType.MSG_IP_SUCCESS;
+        if (!operations.isEmpty()) {
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            try {
+                mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException e) {
+                Log.e(Constants.TAG, "RemoteException during import", e);
+                batchResult = LogType.MSG_IP_ERROR_REMOTE_EX;
+            } catch (OperationApplicationException e) {
+                Log.e(Constants.TAG, "OperationApplicationException during import", e);
+                batchResult = LogType.MSG_IP_ERROR_OP_EXC;
+            }
+        }
+
+        ArrayList<SaveKeyringResult> resultList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            if (batchedLogs[i] != null) {
+                batchedLogs[i].add(LogType.MSG_IP_APPLY_BATCH, 1);
+                batchedLogs[i].add(batchResult, 1);
+                int result = batchResult == LogType.MSG_IP_SUCCESS
+                        ? batchedResults[i] : SaveKeyringResult.RESULT_ERROR;
+                results[i] = new SaveKeyringResult(result, batchedLogs[i], null);
+            }
+            resultList.add(results[i]);
+        }
+        progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+
+        return resultList;
+
+    }
+
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress) {
 
         try {
@@ -1038,13 +1305,18 @@ public class ProviderHelper {
 
             int result;
 
-            result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
-            if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
-                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-            }
+            Timer timer = mLog.getTimings().start(Phase.DB_SAVE);
+            try {
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
+                if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+                }
 
-            progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
-            result = saveCanonicalizedSecretKeyRing(canSecretRing);
+                progress.setProgress(LogType.MSG_IP_REINSERT_SECRET.getMsgId(), 90, 100);
+                result = saveCanonicalizedSecretKeyRing(canSecretRing);
+            } finally {
+                timer.stop();
+            }
 
             return new SaveKeyringResult(result, mLog, canSecretRing);
 
@@ -1239,7 +1511,7 @@ public class ProviderHelper {
             // Set flag that we have a cached consolidation here
             try {
                 cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
-                IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false);
+                IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false, log, indent + 1);
                 int numSecrets = itSecrets.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_SECRET, indent, numSecrets);
@@ -1267,7 +1539,7 @@ public class ProviderHelper {
             try {
 
                 cachePublic = new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
-                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache();
+                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache(true, log, indent + 1);
                 int numPublics = itPublics.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_PUBLIC, indent, numPublics);
@@ -1370,6 +1642,80 @@ public class ProviderHelper {
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
+    /**
+     * Build ContentProviderOperation to (re-)index a keyRing for full text search
+     */
+    private ContentProviderOperation
+    buildSearchOperations(long masterKeyId, List<UserPacketItem> uids, String keyIds) {
+        StringBuilder userIds = new StringBuilder(), emails = new StringBuilder(),
+                names = new StringBuilder(), comments = new StringBuilder();
+        for (UserPacketItem item : uids) {
+            // user attributes have nothing to search for
+            if (item.userId == null) {
+                continue;
+            }
+            userIds.append(item.userId).append('\n');
+            KeyRing.UserId splitUserId = KeyRing.splitUserId(item.userId);
+            if (splitUserId.email != null) {
+                emails.append(splitUserId.email).append('\n');
+            }
+            if (splitUserId.name != null) {
+                names.append(splitUserId.name).append('\n');
+            }
+            if (splitUserId.comment != null) {
+                comments.append(splitUserId.comment).append('\n');
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KeySearch.USER_IDS, userIds.toString());
+        values.put(KeySearch.EMAILS, emails.toString());
+        values.put(KeySearch.NAMES, names.toString());
+        values.put(KeySearch.COMMENTS, comments.toString());
+        values.put(KeySearch.KEY_IDS, keyIds);
+
+        Uri uri = KeySearch.buildKeySearchUri(masterKeyId);
+
+        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    }
+
+    /**
+     * Build ContentProviderOperation to refresh the derived columns of a keyRing, see
+     * KeychainDatabase.updateKeyringSummaries
+     */
+    private ContentProviderOperation buildSummaryOperations(long masterKeyId) {
+        return buildSummaryOperations(masterKeyId, null);
+    }
+
+    /**
+     * Like buildSummaryOperations(long), but also refreshes the keyRings which shared the
+     * previous primary user id of this keyRing, which may not be duplicates anymore.
+     */
+    private ContentProviderOperation buildSummaryOperations(long masterKeyId,
+            String previousPrimaryUserId) {
+        Uri uri = KeyRings.buildKeyRingSummaryUri(masterKeyId);
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newUpdate(uri).withValues(new ContentValues());
+        if (previousPrimaryUserId != null) {
+            builder.withSelection(null, new String[] { previousPrimaryUserId });
+        }
+        return builder.build();
+    }
+
+    private String getPrimaryUserIdOrNull(long masterKeyId) {
+        Cursor cursor = mContentResolver.query(UserPackets.buildUserIdsUri(masterKeyId),
+                new String[] { UserPackets.USER_ID },
+                Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0", null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
         UncachedKeyRing keyRing = UncachedKeyRing.decodeFromData(data);
 
@@ -1389,6 +1735,123 @@ public class ProviderHelper {
         return getKeyRingAsArmoredString(data);
     }
 
+    /**
+     * Returns up to limit master keys which have not been refreshed since refreshedBefore,
+     * mapped to their fingerprint. Keys that expire before expiresBefore come first, then
+     * the most used ones, then the ones which have waited the longest.
+     *
+     * Keys whose last refresh failed are only retried after retryInterval, which doubles with
+     * each further failure up to MAX_KEY_REFRESH_BACKOFF_SHIFT times.
+     *
+     * @param now timestamp in milliseconds
+     * @param refreshedBefore timestamp in milliseconds
+     * @param retryInterval time in milliseconds after a first failed attempt
+     * @param expiresBefore timestamp in seconds, as stored in the keys table
+     */
+    public LinkedHashMap<Long, String> getKeyRefreshCandidates(long now, long refreshedBefore,
+            long retryInterval, long expiresBefore, int limit) {
+        String lastRefreshed = "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.LAST_REFRESHED + ", 0)";
+        String lastAttempted = "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.LAST_ATTEMPTED + ", 0)";
+        String failureCount = "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.FAILURE_COUNT + ", 0)";
+        String useCount = "IFNULL(" + Tables.KEY_REFRESH + "." + KeyRefresh.USE_COUNT + ", 0)";
+        String expiry = Tables.KEYS + "." + Keys.EXPIRY;
+
+        // the timestamps are inlined, sqlite would compare them as text if passed as arguments
+        String selection = Tables.KEYS + "." + Keys.IS_REVOKED + " = 0"
+                + " AND " + lastRefreshed + " < " + Long.toString(refreshedBefore)
+                + " AND (" + failureCount + " = 0 OR " + lastAttempted + " + ("
+                        + Long.toString(retryInterval) + " << MIN(" + failureCount + " - 1, "
+                        + Integer.toString(MAX_KEY_REFRESH_BACKOFF_SHIFT) + ")) < "
+                        + Long.toString(now) + ")";
+
+        Cursor cursor = mContentResolver.query(KeyRefresh.buildLimitedUri(limit), new String[]{
+                KeyRefresh.MASTER_KEY_ID, KeyRefresh.FINGERPRINT
+        }, selection, null,
+                "(" + expiry + " IS NOT NULL AND " + expiry + " < " + Long.toString(expiresBefore) + ") DESC, "
+                        + useCount + " DESC, " + lastRefreshed + " ASC");
+
+        LinkedHashMap<Long, String> result = new LinkedHashMap<>();
+        try {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getLong(0),
+                            KeyFormattingUtils.convertFingerprintToHex(cursor.getBlob(1)));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /** Number of master keys in the database, used to spread refreshes over a time window. */
+    public int getMasterKeyCount() {
+        Cursor cursor = mContentResolver.query(KeyRefresh.CONTENT_URI,
+                new String[]{KeyRefresh.MASTER_KEY_ID}, null, null, null);
+        try {
+            return cursor == null ? 0 : cursor.getCount();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Marks the given master keys as refreshed, in a single batch. */
+    public void markKeysRefreshed(List<Long> masterKeyIds, long timestamp)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(masterKeyIds.size());
+        for (long masterKeyId : masterKeyIds) {
+            operations.add(ContentProviderOperation
+                    .newUpdate(KeyRefresh.buildKeyRefreshUri(masterKeyId))
+                    .withValue(KeyRefresh.LAST_REFRESHED, timestamp)
+                    .withValue(KeyRefresh.LAST_ATTEMPTED, timestamp)
+                    .withValue(KeyRefresh.FAILURE_COUNT, 0)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+    }
+
+    /**
+     * Records a failed refresh attempt of the given master keys, in a single batch. They are
+     * not retried before their backoff has passed, see getKeyRefreshCandidates.
+     */
+    public void markKeysRefreshFailed(List<Long> masterKeyIds, long timestamp)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(masterKeyIds.size());
+        for (long masterKeyId : masterKeyIds) {
+            operations.add(ContentProviderOperation
+                    .newUpdate(KeyRefresh.buildKeyFailedUri(masterKeyId))
+                    .withValue(KeyRefresh.LAST_ATTEMPTED, timestamp)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+    }
+
+    /**
+     * Counts a use of each of the given master keys, so they are preferred by the background
+     * refresh. Failures are only logged, this must never get in the way of the actual operation.
+     */
+    public void recordKeyUsage(List<Long> masterKeyIds) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(masterKeyIds.size());
+        for (long masterKeyId : masterKeyIds) {
+            operations.add(ContentProviderOperation
+                    .newUpdate(KeyRefresh.buildKeyUsedUri(masterKeyId))
+                    .withValue(KeyRefresh.USE_COUNT, 1)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "could not record key usage", e);
+        }
+    }
+
     public ArrayList<String> getRegisteredApiApps() {
         Cursor cursor = mContentResolver.query(ApiApps.CONTENT_URI, null, null, null, null);
 
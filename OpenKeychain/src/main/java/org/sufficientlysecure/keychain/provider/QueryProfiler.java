@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Process;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
+
+import java.text.DateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Instrumentation for the statements executed by KeychainProvider.
+ *
+ * Every statement is timed and recorded in Metrics per URI match. In debug builds,
+ * statements taking longer than SLOW_THRESHOLD_MS are additionally kept in a bounded ring,
+ * together with their calling package and, for queries, the output of EXPLAIN QUERY PLAN.
+ * This is meant to find the screens and API calls which end up scanning whole tables.
+ */
+public class QueryProfiler {
+
+    public static final long SLOW_THRESHOLD_MS = 50;
+    private static final int MAX_SLOW_STATEMENTS = 50;
+
+    public static final String KIND_QUERY = "query";
+    public static final String KIND_INSERT = "insert";
+    public static final String KIND_UPDATE = "update";
+    public static final String KIND_DELETE = "delete";
+    public static final String KIND_BATCH = "batch";
+
+    private static final ArrayDeque<SlowStatement> sSlowStatements = new ArrayDeque<>();
+
+    public static class SlowStatement {
+        private final long mTimestamp;
+        private final String mKind;
+        private final String mUri;
+        private final String mCaller;
+        private final long mMillis;
+        private final String mSql;
+        private final String mPlan;
+
+        SlowStatement(String kind, String uri, String caller, long millis, String sql, String plan) {
+            mTimestamp = System.currentTimeMillis();
+            mKind = kind;
+            mUri = uri;
+            mCaller = caller;
+            mMillis = millis;
+            mSql = sql;
+            mPlan = plan;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public String getKind() {
+            return mKind;
+        }
+
+        public String getUri() {
+            return mUri;
+        }
+
+        public String getCaller() {
+            return mCaller;
+        }
+
+        public long getMillis() {
+            return mMillis;
+        }
+
+        /** Returns the executed SQL, or null if it is not available for this kind of statement */
+        public String getSql() {
+            return mSql;
+        }
+
+        /** Returns the query plan, or null if none was captured */
+        public String getPlan() {
+            return mPlan;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(DateFormat.getTimeInstance().format(new Date(mTimestamp)))
+                    .append(' ').append(mKind).append(' ').append(mMillis).append(" ms\n")
+                    .append(mUri).append(" (").append(mCaller).append(")\n");
+            if (mSql != null) {
+                builder.append(mSql).append('\n');
+            }
+            if (mPlan != null) {
+                builder.append(mPlan);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Records the time of a statement which was started at startNanos, as obtained from
+     * System.nanoTime(), and returns it in nanoseconds.
+     */
+    static long record(String kind, int match, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        Metrics.recordLatency("db." + kind + "." + match, nanos);
+        if (nanos / 1000000 >= SLOW_THRESHOLD_MS) {
+            Metrics.count("db.slow." + kind + "." + match);
+        }
+        return nanos;
+    }
+
+    /**
+     * Records the time of a statement without sql, and keeps it as a slow statement if
+     * necessary.
+     */
+    static void record(Context context, String kind, int match, Uri uri, long startNanos) {
+        long nanos = record(kind, match, startNanos);
+        if (isSlow(nanos)) {
+            recordSlow(context, kind, uri, nanos, null, null, null);
+        }
+    }
+
+    /**
+     * Returns true if the details of a statement which took this long should be passed to
+     * recordSlow(). Building sql and explaining it is only worth it for slow statements, and
+     * only done in debug builds.
+     */
+    static boolean isSlow(long nanos) {
+        return Constants.DEBUG && nanos / 1000000 >= SLOW_THRESHOLD_MS;
+    }
+
+    /**
+     * Keeps a slow statement in the ring, see isSlow().
+     *
+     * @param db the database to explain sql on, or null if sql is only descriptive
+     * @param sql the executed statement, if available
+     */
+    static void recordSlow(Context context, String kind, Uri uri, long nanos,
+                           SQLiteDatabase db, String sql, String[] selectionArgs) {
+        String plan = null;
+        if (sql != null && db != null) {
+            plan = explain(db, sql, selectionArgs);
+        }
+
+        SlowStatement statement = new SlowStatement(kind, String.valueOf(uri),
+                getCaller(context), nanos / 1000000, sql, plan);
+        Log.w(Constants.TAG, "Slow statement: " + statement);
+
+        synchronized (sSlowStatements) {
+            if (sSlowStatements.size() >= MAX_SLOW_STATEMENTS) {
+                sSlowStatements.removeFirst();
+            }
+            sSlowStatements.addLast(statement);
+        }
+    }
+
+    /** Returns the recorded slow statements, most recent first */
+    public static List<SlowStatement> getSlowStatements() {
+        ArrayList<SlowStatement> result = new ArrayList<>();
+        synchronized (sSlowStatements) {
+            result.addAll(sSlowStatements);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public static void clear() {
+        synchronized (sSlowStatements) {
+            sSlowStatements.clear();
+        }
+    }
+
+    private static String explain(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+            StringBuilder plan = new StringBuilder();
+            int detailCol = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(detailCol >= 0 ? cursor.getString(detailCol) : "?").append('\n');
+            }
+            return plan.toString();
+        } catch (RuntimeException e) {
+            // explaining is best effort, this must never break the actual statement
+            Log.e(Constants.TAG, "could not explain query", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static String getCaller(Context context) {
+        int uid = Binder.getCallingUid();
+        if (uid == Process.myUid()) {
+            return "self";
+        }
+        String name = context.getPackageManager().getNameForUid(uid);
+        return name != null ? name : "uid " + uid;
+    }
+
+}
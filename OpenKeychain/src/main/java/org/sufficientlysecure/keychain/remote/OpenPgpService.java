@@ -20,10 +20,11 @@ package org.sufficientlysecure.keychain.remote;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.openintents.openpgp.IOpenPgpService;
@@ -36,6 +37,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.PgpConstants;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -43,7 +45,6 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
-import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -52,25 +53,74 @@ import org.sufficientlysecure.keychain.remote.ui.SelectAllowedKeysActivity;
 import org.sufficientlysecure.keychain.remote.ui.SelectSignKeyIdActivity;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.NfcDecryptOperationsBuilder;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
 import org.sufficientlysecure.keychain.ui.ImportKeysActivity;
 import org.sufficientlysecure.keychain.ui.NfcOperationActivity;
 import org.sufficientlysecure.keychain.ui.PassphraseDialogActivity;
 import org.sufficientlysecure.keychain.ui.ViewKeyActivity;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class OpenPgpService extends RemoteService {
 
+    /**
+     * Decrypts/verifies many messages in one call. The input is a sequence of messages, each
+     * prefixed by its length as 4 byte big-endian integer, and at most BATCH_MAX_MESSAGE_SIZE
+     * long. Larger messages reject the whole batch. The output has one entry per message, in
+     * input order: a status byte (BATCH_STATUS_OK, BATCH_STATUS_ERROR or BATCH_STATUS_PENDING),
+     * followed by the length-prefixed decrypted message, which is empty unless the status is ok.
+     * <p/>
+     * If any message needs user interaction, the result is USER_INTERACTION_REQUIRED and those
+     * messages have BATCH_STATUS_PENDING entries, while all others are decrypted as usual. After
+     * the interaction the client may retry just the pending messages. If the result is an
+     * error, the output is incomplete and must be discarded.
+     */
+    public static final String ACTION_DECRYPT_VERIFY_BATCH = "org.openintents.openpgp.action.DECRYPT_VERIFY_BATCH";
+    /** ArrayList of per-message result Intents, in input order */
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+    public static final int BATCH_STATUS_OK = 0;
+    public static final int BATCH_STATUS_ERROR = 1;
+    public static final int BATCH_STATUS_PENDING = 2;
+    /** Maximum length of a single message of a batch, larger ones need ACTION_DECRYPT_VERIFY */
+    public static final int BATCH_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+
+    /** Number of messages of a batch decrypted in parallel */
+    private static final int BATCH_THREADS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Maximum number of decrypted messages held in memory while writing the output */
+    private static final int BATCH_WINDOW = 2 * BATCH_THREADS;
+
     static final String[] EMAIL_SEARCH_PROJECTION = new String[]{
             KeyRings._ID,
             KeyRings.MASTER_KEY_ID,
+            KeyRings.MATCHED_USER_ID,
             KeyRings.IS_EXPIRED,
             KeyRings.IS_REVOKED,
     };
@@ -79,6 +129,111 @@ public class OpenPgpService extends RemoteService {
     static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
             + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
 
+    /** Time for which resolved emails are reused for repeated sends of the same app */
+    private static final long EMAIL_CACHE_TTL = 60 * 1000;
+    private static final int EMAIL_CACHE_MAX_ENTRIES = 32;
+
+    private static class ResolvedEmails {
+        final long mTimestamp = SystemClock.elapsedRealtime();
+        final ArrayList<Long> mKeyIds = new ArrayList<>();
+        final ArrayList<String> mMissingUserIds = new ArrayList<>();
+        final ArrayList<String> mDuplicateUserIds = new ArrayList<>();
+    }
+
+    private final HashMap<String, ResolvedEmails> mEmailCache = new HashMap<>();
+
+    // any change to keys may change the result of an email lookup
+    private final ContentObserver mKeyRingsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (mEmailCache) {
+                mEmailCache.clear();
+            }
+        }
+    };
+
+    /**
+     * Resolves all emails with a single query. For each email, the first matching key is
+     * selected, and if there is a second one it is pre-selected as well and the email is
+     * reported as duplicate.
+     */
+    private ResolvedEmails resolveEmails(String[] emails) {
+        String cacheKey = getCurrentCallingPackage() + "\n" + TextUtils.join(",", emails);
+        synchronized (mEmailCache) {
+            ResolvedEmails cached = mEmailCache.get(cacheKey);
+            boolean hit = cached != null
+                    && SystemClock.elapsedRealtime() - cached.mTimestamp < EMAIL_CACHE_TTL;
+            Metrics.cacheLookup("cache.email", hit);
+            if (hit) {
+                return cached;
+            }
+        }
+
+        // matching keys for each email, in the order of the unified query
+        HashMap<String, ArrayList<Long>> keyIdsByEmail = new HashMap<>();
+        Cursor cursor = getContentResolver().query(KeyRings.buildKeyRingsFindByEmailsUri(emails),
+                EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
+        try {
+            if (cursor != null) {
+                int masterKeyIdCol = cursor.getColumnIndex(KeyRings.MASTER_KEY_ID);
+                int userIdCol = cursor.getColumnIndex(KeyRings.MATCHED_USER_ID);
+                while (cursor.moveToNext()) {
+                    String email = extractEmail(cursor.getString(userIdCol));
+                    ArrayList<Long> keyIds = keyIdsByEmail.get(email);
+                    if (keyIds == null) {
+                        keyIds = new ArrayList<>();
+                        keyIdsByEmail.put(email, keyIds);
+                    }
+                    long masterKeyId = cursor.getLong(masterKeyIdCol);
+                    if (!keyIds.contains(masterKeyId)) {
+                        keyIds.add(masterKeyId);
+                    }
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        ResolvedEmails resolved = new ResolvedEmails();
+        for (String email : emails) {
+            ArrayList<Long> keyIds = keyIdsByEmail.get(email.trim().toLowerCase(Locale.ENGLISH));
+            if (keyIds != null) {
+                resolved.mKeyIds.add(keyIds.get(0));
+            } else {
+                resolved.mMissingUserIds.add(email);
+                Log.d(Constants.TAG, "user id missing");
+            }
+            // another entry for this email -> too keys with the same email inside user id
+            if (keyIds != null && keyIds.size() > 1) {
+                resolved.mDuplicateUserIds.add(email);
+
+                // also pre-select
+                resolved.mKeyIds.add(keyIds.get(1));
+                Log.d(Constants.TAG, "more than one user id with the same email");
+            }
+        }
+
+        synchronized (mEmailCache) {
+            if (mEmailCache.size() >= EMAIL_CACHE_MAX_ENTRIES) {
+                mEmailCache.clear();
+            }
+            mEmailCache.put(cacheKey, resolved);
+        }
+        return resolved;
+    }
+
+    /** Returns the lower case email at the end of a user id, i.e. the part in "<...>" */
+    private static String extractEmail(String userId) {
+        int start = userId.lastIndexOf('<');
+        int end = userId.length() - 1;
+        if (start < 0 || userId.charAt(end) != '>') {
+            return null;
+        }
+        return userId.substring(start + 1, end).trim().toLowerCase(Locale.ENGLISH);
+    }
+
     /**
      * Search database for key ids based on emails.
      */
@@ -91,36 +246,12 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingUserIds = new ArrayList<>();
         ArrayList<String> duplicateUserIds = new ArrayList<>();
         if (!noUserIdsCheck) {
-            for (String email : encryptionUserIds) {
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingUserIds.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> too keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateUserIds.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-            }
+            ResolvedEmails resolved = resolveEmails(encryptionUserIds);
+            keyIds.addAll(resolved.mKeyIds);
+            missingUserIds.addAll(resolved.mMissingUserIds);
+            duplicateUserIds.addAll(resolved.mDuplicateUserIds);
+            missingUserIdsCheck = !missingUserIds.isEmpty();
+            duplicateUserIdsCheck = !duplicateUserIds.isEmpty();
         }
 
         // convert ArrayList<Long> to long[]
@@ -505,13 +636,8 @@ public class OpenPgpService extends RemoteService {
             }
 
             String currentPkg = getCurrentCallingPackage();
-            HashSet<Long> allowedKeyIds = mProviderHelper.getAllowedKeyIdsForApp(
-                    KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
-
-            if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7) {
-                allowedKeyIds.addAll(mProviderHelper.getAllKeyIdsForApp(
-                        ApiAccounts.buildBaseUri(currentPkg)));
-            }
+            HashSet<Long> allowedKeyIds = getAllowedKeyIds(currentPkg,
+                    data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7);
 
             CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
             if (cryptoInput == null) {
@@ -550,79 +676,167 @@ public class OpenPgpService extends RemoteService {
                 result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
                 return result;
 
-            } else if (pgpResult.success()) {
+            }
+
+            if (!pgpResult.success() && pgpResult.isKeysDisallowed()) {
+                // allow user to select allowed keys
                 Intent result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_INTENT, getSelectAllowedKeysIntent(data));
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                return result;
+            }
 
-                OpenPgpSignatureResult signatureResult = pgpResult.getSignatureResult();
-                // TODO: currently RESULT_TYPE_UNENCRYPTED_UNSIGNED is never returned
-                // instead an error is returned when no pgp data has been found
-                int resultType = OpenPgpApi.RESULT_TYPE_UNENCRYPTED_UNSIGNED;
-                if (signatureResult != null) {
-                    resultType |= OpenPgpApi.RESULT_TYPE_SIGNED;
-                    if (!signatureResult.isSignatureOnly()) {
-                        resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
-                    }
+            return getDecryptVerifyResult(data, pgpResult, true);
 
-                    result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "decryptAndVerifyImpl", e);
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException when closing InputStream", e);
+                }
+            }
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException when closing OutputStream", e);
+                }
+            }
+        }
+    }
 
-                    if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 5) {
-                        // SIGNATURE_KEY_REVOKED and SIGNATURE_KEY_EXPIRED have been added in version 5
-                        if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_REVOKED
-                                || signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_EXPIRED) {
-                            signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_ERROR);
-                        }
-                    }
+    /**
+     * Builds the result Intent for a finished (not pending) decryption. Used for single
+     * decryptions as well as for each message of a batch.
+     */
+    private Intent getDecryptVerifyResult(Intent data, DecryptVerifyResult pgpResult,
+                                          boolean withPendingIntents) {
+        if (!pgpResult.success()) {
+            String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, errorMsg));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
 
-                    if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_MISSING) {
-                        // If signature is unknown we return an _additional_ PendingIntent
-                        // to retrieve the missing key
-                        result.putExtra(OpenPgpApi.RESULT_INTENT, getKeyserverPendingIntent(data, signatureResult.getKeyId()));
-                    } else {
-                        // If signature key is known, return PendingIntent to show key
-                        result.putExtra(OpenPgpApi.RESULT_INTENT, getShowKeyPendingIntent(signatureResult.getKeyId()));
-                    }
-                } else {
-                    resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
-                }
-                result.putExtra(OpenPgpApi.RESULT_TYPE, resultType);
+        Intent result = new Intent();
 
-                if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) >= 4) {
-                    OpenPgpMetadata metadata = pgpResult.getDecryptMetadata();
-                    if (metadata != null) {
-                        result.putExtra(OpenPgpApi.RESULT_METADATA, metadata);
-                    }
-                }
+        OpenPgpSignatureResult signatureResult = pgpResult.getSignatureResult();
+        // TODO: currently RESULT_TYPE_UNENCRYPTED_UNSIGNED is never returned
+        // instead an error is returned when no pgp data has been found
+        int resultType = OpenPgpApi.RESULT_TYPE_UNENCRYPTED_UNSIGNED;
+        if (signatureResult != null) {
+            resultType |= OpenPgpApi.RESULT_TYPE_SIGNED;
+            if (!signatureResult.isSignatureOnly()) {
+                resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
+            }
+
+            result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
 
-                String charset = pgpResult.getCharset();
-                if (charset != null) {
-                    result.putExtra(OpenPgpApi.RESULT_CHARSET, charset);
+            if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 5) {
+                // SIGNATURE_KEY_REVOKED and SIGNATURE_KEY_EXPIRED have been added in version 5
+                if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_REVOKED
+                        || signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_EXPIRED) {
+                    signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_ERROR);
                 }
+            }
 
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
-                return result;
-            } else {
-                //
-                if (pgpResult.isKeysDisallowed()) {
-                    // allow user to select allowed keys
-                    Intent result = new Intent();
-                    result.putExtra(OpenPgpApi.RESULT_INTENT, getSelectAllowedKeysIntent(data));
-                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                    return result;
+            // PendingIntents are skipped for batches, they would cancel each other
+            // (FLAG_CANCEL_CURRENT)
+            if (withPendingIntents) {
+                if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_MISSING) {
+                    // If signature is unknown we return an _additional_ PendingIntent
+                    // to retrieve the missing key
+                    result.putExtra(OpenPgpApi.RESULT_INTENT, getKeyserverPendingIntent(data, signatureResult.getKeyId()));
+                } else {
+                    // If signature key is known, return PendingIntent to show key
+                    result.putExtra(OpenPgpApi.RESULT_INTENT, getShowKeyPendingIntent(signatureResult.getKeyId()));
                 }
+            }
+        } else {
+            resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
+        }
+        result.putExtra(OpenPgpApi.RESULT_TYPE, resultType);
 
-                String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, errorMsg));
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
-                return result;
+        if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) >= 4) {
+            OpenPgpMetadata metadata = pgpResult.getDecryptMetadata();
+            if (metadata != null) {
+                result.putExtra(OpenPgpApi.RESULT_METADATA, metadata);
             }
+        }
 
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "decryptAndVerifyImpl", e);
-            Intent result = new Intent();
-            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
-            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
-            return result;
+        String charset = pgpResult.getCharset();
+        if (charset != null) {
+            result.putExtra(OpenPgpApi.RESULT_CHARSET, charset);
+        }
+
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+        return result;
+    }
+
+    private static class BatchEntry {
+        final DecryptVerifyResult mResult;
+        final ByteArrayOutputStream mOutput;
+
+        BatchEntry(DecryptVerifyResult result, ByteArrayOutputStream output) {
+            mResult = result;
+            mOutput = output;
+        }
+    }
+
+    /**
+     * Reads one length-prefixed message, returns null at the end of the batch. Messages
+     * longer than BATCH_MAX_MESSAGE_SIZE are rejected before anything is allocated for them.
+     */
+    static byte[] readBatchMessage(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > BATCH_MAX_MESSAGE_SIZE) {
+            throw new IOException("invalid message length " + length);
+        }
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return message;
+    }
+
+    /** Writes the output entry for one message, see ACTION_DECRYPT_VERIFY_BATCH */
+    static void writeBatchEntry(DataOutputStream out, int status, ByteArrayOutputStream message)
+            throws IOException {
+        out.writeByte(status);
+        if (status == BATCH_STATUS_OK) {
+            out.writeInt(message.size());
+            message.writeTo(out);
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+    private Intent decryptAndVerifyBatchImpl(Intent data, ParcelFileDescriptor inputDescriptor,
+                                             ParcelFileDescriptor output) {
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = new ParcelFileDescriptor.AutoCloseInputStream(inputDescriptor);
+            if (output != null) {
+                outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            }
+
+            String currentPkg = getCurrentCallingPackage();
+            HashSet<Long> allowedKeyIds = getAllowedKeyIds(currentPkg,
+                    data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7);
+
+            return decryptAndVerifyBatch(data, allowedKeyIds, inputStream, outputStream);
         } finally {
             if (inputStream != null) {
                 try {
@@ -641,6 +855,161 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Decrypts a batch read from the given stream, see ACTION_DECRYPT_VERIFY_BATCH. The
+     * streams are not closed here.
+     */
+    Intent decryptAndVerifyBatch(Intent data, final HashSet<Long> allowedKeyIds,
+                                 InputStream in, OutputStream out) {
+        ExecutorService executor = Executors.newFixedThreadPool(BATCH_THREADS);
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(in));
+            DataOutputStream outputStream = null;
+            if (out != null) {
+                outputStream = new DataOutputStream(new BufferedOutputStream(out));
+            }
+
+            // everything not depending on the message itself is done once per batch
+            CryptoInputParcel parcel = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+            if (parcel == null) {
+                parcel = new CryptoInputParcel();
+            }
+            // override passphrase in input parcel if given by API call
+            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+                parcel = new CryptoInputParcel(parcel.getSignatureTime(),
+                        new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE)));
+            }
+            final CryptoInputParcel cryptoInput = parcel;
+            // secret keys are unlocked once, and then used for all messages of the batch
+            final ConcurrentHashMap<Long, CanonicalizedSecretKey> unlockedKeys =
+                    new ConcurrentHashMap<>();
+
+            ArrayList<Intent> results = new ArrayList<>();
+            ArrayDeque<Future<BatchEntry>> inFlight = new ArrayDeque<>();
+            // session keys of all messages for the same security token are collected, so
+            // the whole batch can be decrypted with a single tap
+            NfcDecryptOperationsBuilder nfcDecryptBuilder = null;
+            // the first other interaction needed, asked for once the whole batch is written
+            Intent interactionResult = null;
+            boolean endOfInput = false;
+            boolean keysWarm = false;
+            while (!endOfInput || !inFlight.isEmpty()) {
+                if (!endOfInput) {
+                    final byte[] message = readBatchMessage(inputStream);
+                    if (message == null) {
+                        endOfInput = true;
+                    } else {
+                        // messages are decrypted one at a time until a key is unlocked, so the
+                        // others find it instead of each deriving it again in parallel
+                        if (!keysWarm && !inFlight.isEmpty()) {
+                            inFlight.peekLast().get();
+                            keysWarm = !unlockedKeys.isEmpty();
+                        }
+                        inFlight.add(executor.submit(new Callable<BatchEntry>() {
+                            @Override
+                            public BatchEntry call() {
+                                // ProviderHelper is not thread safe, use one per message
+                                PgpDecryptVerify op = new PgpDecryptVerify(OpenPgpService.this,
+                                        new ProviderHelper(OpenPgpService.this), null);
+                                op.setUnlockedKeyCache(unlockedKeys);
+                                PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel()
+                                        .setAllowSymmetricDecryption(false)
+                                        .setAllowedKeyIds(allowedKeyIds);
+                                ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+                                DecryptVerifyResult result = op.execute(input, cryptoInput,
+                                        new InputData(new ByteArrayInputStream(message), message.length),
+                                        decrypted);
+                                return new BatchEntry(result, decrypted);
+                            }
+                        }));
+                    }
+                }
+
+                // keep reading until the window is full, then write out the oldest message
+                if (!endOfInput && inFlight.size() < BATCH_WINDOW) {
+                    continue;
+                }
+
+                BatchEntry entry = inFlight.removeFirst().get();
+                DecryptVerifyResult pgpResult = entry.mResult;
+
+                // user interaction is needed only once, the client retries the pending messages
+                if (pgpResult.isPending()) {
+                    RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
+                    if (requiredInput.mType == RequiredInputType.NFC_DECRYPT) {
+                        if (nfcDecryptBuilder == null) {
+                            nfcDecryptBuilder = new NfcDecryptOperationsBuilder(
+                                    requiredInput.getMasterKeyId(), requiredInput.getSubKeyId());
+                        }
+                        // messages for other tokens are pending again when the batch is retried
+                        if (nfcDecryptBuilder.canAdd(requiredInput)) {
+                            nfcDecryptBuilder.addAll(requiredInput);
+                        }
+                    } else if (interactionResult == null) {
+                        PendingIntent pIntent = getRequiredInputPendingIntent(getBaseContext(), data, requiredInput);
+
+                        interactionResult = new Intent();
+                        interactionResult.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
+                        interactionResult.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                    }
+                    if (outputStream != null) {
+                        writeBatchEntry(outputStream, BATCH_STATUS_PENDING, null);
+                    }
+                    continue;
+                }
+                if (!pgpResult.success() && pgpResult.isKeysDisallowed()) {
+                    if (interactionResult == null) {
+                        interactionResult = new Intent();
+                        interactionResult.putExtra(OpenPgpApi.RESULT_INTENT, getSelectAllowedKeysIntent(data));
+                        interactionResult.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                    }
+                    if (outputStream != null) {
+                        writeBatchEntry(outputStream, BATCH_STATUS_PENDING, null);
+                    }
+                    continue;
+                }
+
+                results.add(getDecryptVerifyResult(data, pgpResult, false));
+                if (outputStream != null) {
+                    writeBatchEntry(outputStream, pgpResult.success()
+                            ? BATCH_STATUS_OK : BATCH_STATUS_ERROR, entry.mOutput);
+                }
+            }
+
+            if (outputStream != null) {
+                outputStream.flush();
+            }
+
+            if (interactionResult != null) {
+                return interactionResult;
+            }
+
+            if (nfcDecryptBuilder != null) {
+                PendingIntent pIntent = getRequiredInputPendingIntent(getBaseContext(), data,
+                        nfcDecryptBuilder.build());
+
+                Intent result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                return result;
+            }
+
+            Intent result = new Intent();
+            result.putParcelableArrayListExtra(RESULT_BATCH_RESULTS, results);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "decryptAndVerifyBatchImpl", e);
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private Intent getKeyImpl(Intent data) {
         try {
             long masterKeyId = data.getLongExtra(OpenPgpApi.EXTRA_KEY_ID, 0);
@@ -788,6 +1157,20 @@ public class OpenPgpService extends RemoteService {
     private final IOpenPgpService.Stub mBinder = new IOpenPgpService.Stub() {
         @Override
         public Intent execute(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
+            String action = data.getAction();
+            String metricName = "api." + (action == null ? "none"
+                    : action.substring(action.lastIndexOf('.') + 1));
+            long startTime = System.nanoTime();
+
+            Intent result = executeInternal(data, input, output);
+
+            Metrics.recordSince(metricName, startTime);
+            Metrics.count(metricName + ".result." + (result == null ? "none"
+                    : result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)));
+            return result;
+        }
+
+        private Intent executeInternal(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
             try {
                 Intent errorResult = checkRequirements(data);
                 if (errorResult != null) {
@@ -819,6 +1202,9 @@ public class OpenPgpService extends RemoteService {
                     case OpenPgpApi.ACTION_DECRYPT_METADATA: {
                         return decryptAndVerifyImpl(data, input, output, true);
                     }
+                    case ACTION_DECRYPT_VERIFY_BATCH: {
+                        return decryptAndVerifyBatchImpl(data, input, output);
+                    }
                     case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
                         return getSignKeyIdImpl(data);
                     }
@@ -853,9 +1239,26 @@ public class OpenPgpService extends RemoteService {
 
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true, mKeyRingsObserver);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mKeyRingsObserver);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer, args);
+    }
+
 }
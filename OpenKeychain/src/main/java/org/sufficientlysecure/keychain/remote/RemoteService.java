@@ -19,28 +19,38 @@ package org.sufficientlysecure.keychain.remote;
 
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
+import android.util.SparseBooleanArray;
 
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.remote.ui.RemoteServiceActivity;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * Abstract service class for remote APIs that handle app registration and user input.
@@ -58,6 +68,38 @@ public abstract class RemoteService extends Service {
     Context mContext;
     ProviderHelper mProviderHelper;
 
+    /**
+     * Caches for the authorization of callers and their allowed keys. Both are dropped
+     * whenever api_apps or anything below it changes, or when packages change. Anything
+     * computed while the caches were dropped is not cached, see mCacheGeneration.
+     */
+    private final Object mCacheLock = new Object();
+    private final SparseBooleanArray mAllowedUids = new SparseBooleanArray();
+    private final HashMap<String, HashSet<Long>> mAllowedKeyIds = new HashMap<>();
+    private int mCacheGeneration = 0;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateCaches();
+        }
+    };
+
+    private final ContentObserver mApiAppsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateCaches();
+        }
+    };
+
+    private void invalidateCaches() {
+        synchronized (mCacheLock) {
+            mAllowedUids.clear();
+            mAllowedKeyIds.clear();
+            mCacheGeneration += 1;
+        }
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -228,11 +270,26 @@ public abstract class RemoteService extends Service {
             return false;
         }
 
+        int generation;
+        synchronized (mCacheLock) {
+            boolean hit = mAllowedUids.get(uid);
+            Metrics.cacheLookup("cache.allowed_uid", hit);
+            if (hit) {
+                return true;
+            }
+            generation = mCacheGeneration;
+        }
+
         String[] callingPackages = getPackageManager().getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                synchronized (mCacheLock) {
+                    if (generation == mCacheGeneration) {
+                        mAllowedUids.put(uid, true);
+                    }
+                }
                 return true;
             }
         }
@@ -280,11 +337,61 @@ public abstract class RemoteService extends Service {
         return false;
     }
 
+    /**
+     * Returns the key ids the given package may use for decryption. The returned set is a
+     * copy and may be modified by the caller.
+     *
+     * @param includeAccountKeys also allow the keys of accounts, as done for API versions < 7
+     */
+    protected HashSet<Long> getAllowedKeyIds(String packageName, boolean includeAccountKeys) {
+        String cacheKey = includeAccountKeys ? packageName + "/" + KeychainContract.PATH_ACCOUNTS : packageName;
+
+        int generation;
+        synchronized (mCacheLock) {
+            HashSet<Long> keyIds = mAllowedKeyIds.get(cacheKey);
+            Metrics.cacheLookup("cache.allowed_keys", keyIds != null);
+            if (keyIds != null) {
+                return new HashSet<>(keyIds);
+            }
+            generation = mCacheGeneration;
+        }
+
+        HashSet<Long> keyIds = mProviderHelper.getAllowedKeyIdsForApp(
+                ApiAllowedKeys.buildBaseUri(packageName));
+        if (includeAccountKeys) {
+            keyIds.addAll(mProviderHelper.getAllKeyIdsForApp(ApiAccounts.buildBaseUri(packageName)));
+        }
+
+        synchronized (mCacheLock) {
+            if (generation == mCacheGeneration) {
+                mAllowedKeyIds.put(cacheKey, new HashSet<>(keyIds));
+            }
+        }
+        return keyIds;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         mContext = this;
         mProviderHelper = new ProviderHelper(this);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
+
+        getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true, mApiAppsObserver);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver(mPackageReceiver);
+        getContentResolver().unregisterContentObserver(mApiAppsObserver);
     }
 
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyPairPool;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/**
+ * Fills the KeyPairPool while the device is charging and not in use, started periodically
+ * once scheduleFill was called. These conditions are checked before each pair, a pair which
+ * is already being generated is finished even if the device is unplugged or used meanwhile.
+ *
+ * The pool only lives in memory, so pairs generated here are gone if the process is killed.
+ * The demand counts are persisted though, so the next fill generates the right sizes.
+ */
+public class KeyPairPoolService extends IntentService {
+
+    public static final long FILL_INTERVAL = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+    public KeyPairPoolService() {
+        super("KeyPairPoolService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Preferences prefs = Preferences.getPreferences(this);
+        if (!prefs.isKeyPairPoolEnabled()) {
+            return;
+        }
+
+        KeyPairPool pool = KeyPairPool.getInstance();
+        pool.restoreDemand(prefs.getKeyPairPoolDemand());
+        prefs.setKeyPairPoolDemand(pool.getDemand());
+
+        // key generation takes all the cpu it can get, don't compete with anything else
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        // the screen is off, so without this the device may fall asleep in the middle of a pair
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock =
+                powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "KeyPairPoolService");
+        wakeLock.acquire();
+        int generated = 0;
+        try {
+            while (isIdleAndCharging() && prefs.isKeyPairPoolEnabled() && pool.fillOne()) {
+                generated += 1;
+            }
+        } finally {
+            wakeLock.release();
+        }
+        if (generated > 0) {
+            Log.d(Constants.TAG, "Generated " + generated + " key pairs, "
+                    + pool.size() + " in pool");
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isIdleAndCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+            return false;
+        }
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return !powerManager.isInteractive();
+        }
+        return !powerManager.isScreenOn();
+    }
+
+    public static void scheduleFill(Context context) {
+        KeyPairPool.getInstance().setEnabled(true);
+
+        // don't push an already scheduled alarm further back on every app start
+        if (getPendingIntent(context, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        Log.d(Constants.TAG, "Scheduling key pair pool fill");
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + FILL_INTERVAL, FILL_INTERVAL,
+                getPendingIntent(context, 0));
+    }
+
+    public static void cancelFill(Context context) {
+        PendingIntent pendingIntent = getPendingIntent(context, PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            Log.d(Constants.TAG, "Cancelling key pair pool fill");
+            AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+        KeyPairPool.getInstance().setEnabled(false);
+    }
+
+    private static PendingIntent getPendingIntent(Context context, int flags) {
+        Intent intent = new Intent(context, KeyPairPoolService.class);
+        return PendingIntent.getService(context, 0, intent, flags);
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.text.format.DateUtils;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.KeyserverRateLimiter;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.ImportExportOperation;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Refreshes keys from the preferred keyserver in the background, started periodically
+ * by KeyUpdateHelper.
+ *
+ * Each run only refreshes its share of all keys, so that every key is refreshed once
+ * within the configured window. Progress is kept in the key_refresh table, so an
+ * interrupted run simply continues with the remaining keys the next time.
+ */
+public class KeyRefreshService extends IntentService {
+
+    /** Keys expiring within this time are refreshed before all others */
+    private static final long EXPIRY_THRESHOLD = 14 * DateUtils.DAY_IN_MILLIS;
+    /** Refresh timestamps are written to the database in batches of this size */
+    private static final int WRITE_BATCH_SIZE = 10;
+    /** After this many failures in a row the keyserver is assumed to be unreachable */
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    /** A key whose refresh failed is retried after this time, doubling with each failure */
+    private static final long RETRY_INTERVAL = KeyUpdateHelper.REFRESH_INTERVAL;
+
+    public KeyRefreshService() {
+        super("KeyRefreshService");
+        setIntentRedelivery(true);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Preferences prefs = Preferences.getPreferences(this);
+        if (!prefs.isKeyRefreshEnabled()) {
+            return;
+        }
+        String keyserver = prefs.getPreferredKeyserver();
+        if (keyserver == null) {
+            return;
+        }
+
+        ProviderHelper providerHelper = new ProviderHelper(this);
+        int total = providerHelper.getMasterKeyCount();
+        if (total == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long window = prefs.getKeyRefreshWindow() * DateUtils.DAY_IN_MILLIS;
+        // spread all keys evenly over the window, rounding up so we never fall behind
+        int limit = (int) Math.ceil(total * (double) KeyUpdateHelper.REFRESH_INTERVAL / window);
+
+        LinkedHashMap<Long, String> candidates = providerHelper.getKeyRefreshCandidates(
+                now, now - window, RETRY_INTERVAL, (now + EXPIRY_THRESHOLD) / 1000, limit);
+        Log.d(Constants.TAG, "Refreshing " + candidates.size() + " of " + total + " keys");
+
+        KeyserverRateLimiter rateLimiter = KeyserverRateLimiter.getInstance(keyserver);
+        ImportExportOperation operation =
+                new ImportExportOperation(this, providerHelper, new ProgressScaler());
+
+        ArrayList<Long> refreshed = new ArrayList<>();
+        ArrayList<Long> failed = new ArrayList<>();
+        int consecutiveFailures = 0;
+        for (Map.Entry<Long, String> candidate : candidates.entrySet()) {
+            if (!rateLimiter.acquire()) {
+                break;
+            }
+
+            ArrayList<ParcelableKeyRing> entries = new ArrayList<>(1);
+            entries.add(new ParcelableKeyRing(candidate.getValue(), null, null));
+            ImportKeyResult result = operation.importKeyRings(entries, keyserver);
+
+            // failed keys are recorded too, so they back off instead of being retried every run
+            if (result.success()) {
+                refreshed.add(candidate.getKey());
+                consecutiveFailures = 0;
+            } else {
+                failed.add(candidate.getKey());
+                consecutiveFailures += 1;
+            }
+
+            if (refreshed.size() + failed.size() >= WRITE_BATCH_SIZE) {
+                markAttempts(providerHelper, refreshed, failed, now);
+            }
+            if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                Log.w(Constants.TAG, "Keyserver unreachable, postponing key refresh");
+                break;
+            }
+        }
+
+        markAttempts(providerHelper, refreshed, failed, now);
+    }
+
+    private static void markAttempts(ProviderHelper providerHelper, ArrayList<Long> refreshed,
+                                     ArrayList<Long> failed, long timestamp) {
+        try {
+            if (!refreshed.isEmpty()) {
+                providerHelper.markKeysRefreshed(refreshed, timestamp);
+            }
+            if (!failed.isEmpty()) {
+                providerHelper.markKeysRefreshFailed(failed, timestamp);
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(Constants.TAG, "could not store key refresh progress", e);
+        }
+        refreshed.clear();
+        failed.clear();
+    }
+
+}
@@ -19,6 +19,8 @@
 package org.sufficientlysecure.keychain.service;
 
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Service;
@@ -45,6 +47,7 @@ import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyActio
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 
 /**
  * This Service contains all important long lasting operations for OpenKeychain. It receives Intents with
@@ -69,6 +72,11 @@ public class KeychainNewService extends Service implements Progressable {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer, args);
+    }
+
     /**
      * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
      */
@@ -107,9 +115,15 @@ public class KeychainNewService extends Service implements Progressable {
                     return;
                 }
 
+                String metricName = "op." + op.getClass().getSimpleName();
+                long startTime = System.nanoTime();
+
                 @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
                 OperationResult result = op.execute(inputParcel, cryptoInput);
 
+                Metrics.recordSince(metricName, startTime);
+                Metrics.count(metricName + (result.success() ? ".success" : ".failure"));
+
                 sendMessageToHandler(MessageStatus.OKAY, result);
 
             }
@@ -64,12 +64,14 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileDescriptor;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -166,6 +168,11 @@ public class KeychainService extends Service implements Progressable {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer, args);
+    }
+
     /**
      * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
      */
@@ -407,18 +414,10 @@ public class KeychainService extends Service implements Progressable {
                         if (keyList == null) {// import from file, do serially
                             serialKeyImport(null, keyServer, providerHelper);
                         } else {
-                            // if there is more than one key with the same fingerprint, we do a serial import to prevent
-                            // https://github.com/open-keychain/open-keychain/issues/1221
-                            HashSet<String> keyFingerprintSet = new HashSet<>();
-                            for (int i = 0; i < keyList.size(); i++) {
-                                keyFingerprintSet.add(keyList.get(i).mExpectedFingerprint);
-                            }
-                            if (keyFingerprintSet.size() == keyList.size()) {
-                                // all keys have unique fingerprints
-                                multiThreadedKeyImport(keyList.iterator(), keyList.size(), keyServer);
-                            } else {
-                                serialKeyImport(keyList, keyServer, providerHelper);
-                            }
+                            // keys with the same fingerprint are merged beforehand, so they can't
+                            // race each other, see https://github.com/open-keychain/open-keychain/issues/1221
+                            keyList = ImportExportOperation.mergeByFingerprint(keyList);
+                            multiThreadedKeyImport(keyList.iterator(), keyList.size(), keyServer);
                         }
 
                         break;
@@ -457,9 +456,24 @@ public class KeychainService extends Service implements Progressable {
             }
         };
 
+        final String metricName = "service." + (intent.getAction() == null ? "none"
+                : intent.getAction().substring(intent.getAction().lastIndexOf('.') + 1));
+        final Runnable innerRunnable = actionRunnable;
+        actionRunnable = new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                try {
+                    innerRunnable.run();
+                } finally {
+                    Metrics.recordSince(metricName, startTime);
+                }
+            }
+        };
+
         Thread actionThread = new Thread(actionRunnable);
         actionThread.start();
-        
+
         return START_NOT_STICKY;
     }
 
@@ -664,6 +678,7 @@ public class KeychainService extends Service implements Progressable {
          */
         public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
             mTotalKeys = totalKeys;
+            mImportLog.setCap(ImportExportOperation.IMPORT_LOG_MAX_ENTRIES, getCacheDir());
             // ignore updates from ImportExportOperation for now
             mInternalProgressable = new Progressable() {
                 @Override
@@ -718,7 +733,8 @@ public class KeychainService extends Service implements Progressable {
 
         public synchronized void accumulateKeyImport(ImportKeyResult result) {
             mImportedKeys++;
-            mImportLog.addAll(result.getLog().toList());//accumulates log
+            mImportLog.addAll(result.getLog());//accumulates log
+            mImportLog.getTimings().addAll(result.getTimings());
             mBadKeys += result.mBadKeys;
             mNewKeys += result.mNewKeys;
             mUpdatedKeys += result.mUpdatedKeys;
@@ -761,6 +777,9 @@ public class KeychainService extends Service implements Progressable {
                 }
             }
 
+            // all keys are in, so the spill file is complete
+            mImportLog.closeSpill();
+
             long masterKeyIds[] = new long[mImportedMasterKeyIds.size()];
             for (int i = 0; i < masterKeyIds.length; i++) {
                 masterKeyIds[i] = mImportedMasterKeyIds.get(i);
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Refreshes the precomputed keyring_summary rows of keys which expired since they were
+ * last saved. This runs once on app start and periodically after that, see
+ * scheduleExpiryCheck, so queries never pay for it.
+ */
+public class KeyringSummaryService extends IntentService {
+
+    public static final long CHECK_INTERVAL = AlarmManager.INTERVAL_HOUR;
+
+    public KeyringSummaryService() {
+        super("KeyringSummaryService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        int count = getContentResolver().update(
+                KeyRings.buildKeyRingSummariesUri(), new ContentValues(), null, null);
+        if (count > 0) {
+            Log.d(Constants.TAG, "Refreshed " + count + " summaries of expired keyrings");
+        }
+    }
+
+    public static void scheduleExpiryCheck(Context context) {
+        Intent intent = new Intent(context, KeyringSummaryService.class);
+        // keys may have expired while the app wasn't running
+        context.startService(intent);
+
+        // don't push an already scheduled alarm further back on every app start
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + CHECK_INTERVAL, CHECK_INTERVAL,
+                PendingIntent.getService(context, 0, intent, 0));
+    }
+
+}
@@ -43,9 +43,11 @@ import android.graphics.drawable.Drawable;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Metrics;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.Preferences;
 
@@ -398,6 +400,7 @@ public class PassphraseCacheService extends Service {
                         msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                     } else {
                         Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
+                        Metrics.cacheLookup("cache.passphrase", passphrase != null);
                         msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
                         Bundle bundle = new Bundle();
                         bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
@@ -429,6 +432,7 @@ public class PassphraseCacheService extends Service {
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
+                    SessionKeyCache.getInstance().clear(referenceKeyId);
 
                 } else {
 
@@ -437,6 +441,8 @@ public class PassphraseCacheService extends Service {
                         am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
                     }
                     mPassphraseCache.clear();
+                    // cached session keys must not outlive an explicit clear
+                    SessionKeyCache.getInstance().clear();
 
                 }
                 break;
@@ -461,6 +467,8 @@ public class PassphraseCacheService extends Service {
         cPass.getPassphrase().removeFromMemory();
         // remove passphrase object
         mPassphraseCache.remove(keyId);
+        // session keys recovered with this key go together with its passphrase
+        SessionKeyCache.getInstance().clear(keyId);
 
         Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
 
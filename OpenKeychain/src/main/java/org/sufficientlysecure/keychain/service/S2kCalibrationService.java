@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.S2kCalibration;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/**
+ * Benchmarks key derivation with S2kCalibration and persists the resulting S2K count, started
+ * by calibrateIfDue when there is no calibration yet or the last one is too old.
+ */
+public class S2kCalibrationService extends IntentService {
+
+    /** Benchmark again once in a while, the device may have gotten faster with updates */
+    public static final long CALIBRATION_INTERVAL = 30 * AlarmManager.INTERVAL_DAY;
+
+    public S2kCalibrationService() {
+        super("S2kCalibrationService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        int count = S2kCalibration.benchmark();
+        Log.d(Constants.TAG, "Calibrated S2K count: 0x" + Integer.toHexString(count)
+                + " (" + S2kCalibration.decodeCount(count) + " bytes)");
+
+        S2kCalibration.setS2kCount(count);
+        Preferences prefs = Preferences.getPreferences(this);
+        prefs.setS2kCount(count);
+        prefs.setS2kCalibrationTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Applies the persisted S2K count, and benchmarks again in the background if it is
+     * missing or older than CALIBRATION_INTERVAL.
+     */
+    public static void calibrateIfDue(Context context) {
+        Preferences prefs = Preferences.getPreferences(context);
+        int count = prefs.getS2kCount();
+        if (count != 0) {
+            S2kCalibration.setS2kCount(count);
+        }
+
+        long age = System.currentTimeMillis() - prefs.getS2kCalibrationTime();
+        if (count == 0 || age < 0 || age > CALIBRATION_INTERVAL) {
+            context.startService(new Intent(context, S2kCalibrationService.class));
+        }
+    }
+
+}
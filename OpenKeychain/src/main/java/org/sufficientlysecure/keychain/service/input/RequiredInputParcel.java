@@ -212,6 +212,48 @@ public class RequiredInputParcel implements Parcelable {
 
     }
 
+    public static class NfcDecryptOperationsBuilder {
+        ArrayList<byte[]> mInputHashes = new ArrayList<>();
+        long mMasterKeyId;
+        long mSubKeyId;
+
+        public NfcDecryptOperationsBuilder(long masterKeyId, long subKeyId) {
+            mMasterKeyId = masterKeyId;
+            mSubKeyId = subKeyId;
+        }
+
+        public RequiredInputParcel build() {
+            byte[][] inputHashes = new byte[mInputHashes.size()][];
+            mInputHashes.toArray(inputHashes);
+
+            return new RequiredInputParcel(RequiredInputType.NFC_DECRYPT,
+                    inputHashes, null, null, mMasterKeyId, mSubKeyId);
+        }
+
+        public void addHash(byte[] hash) {
+            mInputHashes.add(hash);
+        }
+
+        /** Returns whether the input can be handled in the same operation, on the same card. */
+        public boolean canAdd(RequiredInputParcel input) {
+            return input.mType == RequiredInputType.NFC_DECRYPT
+                    && input.mSubKeyId != null && input.mSubKeyId == mSubKeyId;
+        }
+
+        public void addAll(RequiredInputParcel input) {
+            if (!canAdd(input)) {
+                throw new AssertionError("operations must match, this is a programming error!");
+            }
+
+            Collections.addAll(mInputHashes, input.mInputHashes);
+        }
+
+        public boolean isEmpty() {
+            return mInputHashes.isEmpty();
+        }
+
+    }
+
     public static class NfcKeyToCardOperationsBuilder {
         ArrayList<byte[]> mSubkeysToExport = new ArrayList<>();
         Long mMasterKeyId;
@@ -23,6 +23,7 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Color;
@@ -64,9 +65,12 @@ import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.provider.QueryProfiler;
+import org.sufficientlysecure.keychain.provider.QueryProfiler.SlowStatement;
 import org.sufficientlysecure.keychain.service.KeychainService;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.ui.dialog.CustomAlertDialogBuilder;
 import org.sufficientlysecure.keychain.ui.dialog.DeleteKeyDialogFragment;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.adapter.KeyAdapter;
@@ -80,6 +84,7 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import se.emilsjolander.stickylistheaders.StickyListHeadersAdapter;
 import se.emilsjolander.stickylistheaders.StickyListHeadersListView;
@@ -105,6 +110,18 @@ public class KeyListFragment extends LoaderFragment
 
     private String mQuery;
 
+    // delay before a changed search query is applied, so typing doesn't requery on every key
+    private static final long SEARCH_DELAY_MS = 150;
+    private final Handler mSearchHandler = new Handler();
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isAdded()) {
+                getLoaderManager().restartLoader(0, null, KeyListFragment.this);
+            }
+        }
+    };
+
     private FloatingActionsMenu mFab;
 
     // This ids for multiple key export.
@@ -119,6 +136,12 @@ public class KeyListFragment extends LoaderFragment
         mExportHelper = new ExportHelper(getActivity());
     }
 
+    @Override
+    public void onDestroy() {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        super.onDestroy();
+    }
+
     /**
      * Load custom layout with StickyListView from library
      */
@@ -287,33 +310,27 @@ public class KeyListFragment extends LoaderFragment
 
     static final String ORDER =
             KeyRings.HAS_ANY_SECRET + " DESC, UPPER(" + KeyRings.USER_ID + ") ASC";
+    // search results keep secret keys first, the best matches come first within each group
+    static final String ORDER_SEARCH =
+            KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.SEARCH_RANK + " DESC, UPPER("
+                    + KeyRings.USER_ID + ") ASC";
 
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
-        }
+        // search goes through the full text index, which matches word prefixes of user ids,
+        // emails, names, comments and key ids
+        boolean searching = mQuery != null && !mQuery.trim().isEmpty();
+        Uri baseUri = searching
+                ? KeyRings.buildUnifiedKeyRingsSearchUri(mQuery.trim())
+                : KeyRings.buildUnifiedKeyRingsUri();
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
         return new CursorLoader(getActivity(), baseUri,
-                KeyListAdapter.PROJECTION, where, whereArgs, ORDER);
+                KeyListAdapter.PROJECTION, null, null, searching ? ORDER_SEARCH : ORDER);
     }
 
     @Override
@@ -419,6 +436,7 @@ public class KeyListFragment extends LoaderFragment
             menu.findItem(R.id.menu_key_list_debug_read).setVisible(true);
             menu.findItem(R.id.menu_key_list_debug_write).setVisible(true);
             menu.findItem(R.id.menu_key_list_debug_first_time).setVisible(true);
+            menu.findItem(R.id.menu_key_list_debug_slow_queries).setVisible(true);
         }
 
         // Get the searchview
@@ -503,6 +521,10 @@ public class KeyListFragment extends LoaderFragment
                 getActivity().finish();
                 return true;
 
+            case R.id.menu_key_list_debug_slow_queries:
+                showSlowQueries();
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -525,7 +547,13 @@ public class KeyListFragment extends LoaderFragment
         String tmp = (mQuery == null) ? "" : mQuery;
         if (!s.equals(tmp)) {
             mQuery = s;
-            getLoaderManager().restartLoader(0, null, this);
+            mSearchHandler.removeCallbacks(mSearchRunnable);
+            if (s.isEmpty()) {
+                // show the full list right away when the search is cleared
+                mSearchRunnable.run();
+            } else {
+                mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+            }
         }
         return true;
     }
@@ -640,6 +668,29 @@ public class KeyListFragment extends LoaderFragment
         getActivity().startService(intent);
     }
 
+    private void showSlowQueries() {
+        List<SlowStatement> statements = QueryProfiler.getSlowStatements();
+        StringBuilder message = new StringBuilder();
+        for (SlowStatement statement : statements) {
+            message.append(statement).append('\n');
+        }
+        if (statements.isEmpty()) {
+            message.append("No statements over " + QueryProfiler.SLOW_THRESHOLD_MS + " ms");
+        }
+
+        CustomAlertDialogBuilder alert = new CustomAlertDialogBuilder(getActivity());
+        alert.setTitle("Slow queries");
+        alert.setMessage(message.toString());
+        alert.setPositiveButton(android.R.string.ok, null);
+        alert.setNeutralButton("Clear", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                QueryProfiler.clear();
+            }
+        });
+        alert.show();
+    }
+
     private void consolidate() {
         // Message is received after importing is done in KeychainService
         ServiceProgressHandler saveHandler = new ServiceProgressHandler(getActivity()) {
@@ -43,6 +43,8 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogLevel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.PhaseTiming;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -86,6 +88,18 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
             return;
         }
 
+        // footer views must be added before the adapter is set
+        String timings = getPrintableTimings(getTimings());
+        if (timings != null) {
+            int padding = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                    (float) 8, getResources().getDisplayMetrics());
+            TextView timingsView = new TextView(getActivity());
+            timingsView.setPadding(padding, padding, padding, padding);
+            timingsView.setTextColor(Color.GRAY);
+            timingsView.setText(timings);
+            getListView().addFooterView(timingsView, null, false);
+        }
+
         mAdapter = new LogAdapter(getActivity(), mResult.getLog());
         setListAdapter(mAdapter);
 
@@ -136,6 +150,10 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
         try {
             pw = new PrintWriter(f);
             pw.print(getPrintableOperationLog(operationLog, ""));
+            String timings = getPrintableTimings(getTimings());
+            if (timings != null) {
+                pw.print("\n\n" + timings);
+            }
             if (pw.checkError()) {//IOException
                 Log.e(Constants.TAG, "Log Export I/O Exception " + f.getAbsolutePath());
                 currLog.add(OperationResult.LogType.MSG_EXPORT_LOG_EXPORT_ERROR_WRITING, 1);
@@ -163,6 +181,33 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
         opResult.createNotify(getActivity()).show();
     }
 
+    /**
+     * Timings of the displayed result. If only the log of a single sub result is displayed,
+     * the timings of that sub result are used.
+     */
+    private OperationTimings getTimings() {
+        OperationTimings timings = mResult.getTimings();
+        if (timings.isEmpty()) {
+            timings = mResult.getLog().getTimings();
+        }
+        return timings;
+    }
+
+    /**
+     * returns a printable summary of the time spent in each phase, or null if nothing was timed
+     */
+    private String getPrintableTimings(OperationTimings timings) {
+        if (timings.isEmpty()) {
+            return null;
+        }
+        String text = getString(R.string.timing_title);
+        for (PhaseTiming timing : timings.toList()) {
+            text += "\n" + getString(R.string.timing_entry, getString(timing.mPhase.getMsgId()),
+                    timing.getWallMillis(), timing.getCpuMillis(), timing.getCount());
+        }
+        return text;
+    }
+
     /**
      * returns an indented String of an entire OperationLog
      *
@@ -28,6 +28,7 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * This class provides a communication interface to OpenPGP applications on ISO SmartCard compliant
@@ -44,8 +45,12 @@ public class NfcOperationActivity extends BaseNfcActivity {
 
     public static final String RESULT_DATA = "result_data";
 
+    private static final String ARG_INPUT_PARCEL = "input_parcel";
+
     private RequiredInputParcel mRequiredInput;
     private Intent mServiceIntent;
+    // results of earlier taps, if the card was removed before all operations were done
+    private CryptoInputParcel mInputParcel;
 
     private static final byte[] BLANK_FINGERPRINT = {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0};
 
@@ -61,6 +66,12 @@ public class NfcOperationActivity extends BaseNfcActivity {
 
         mRequiredInput = data.getParcelable(EXTRA_REQUIRED_INPUT);
         mServiceIntent = data.getParcelable(EXTRA_SERVICE_INTENT);
+        if (savedInstanceState != null) {
+            mInputParcel = savedInstanceState.getParcelable(ARG_INPUT_PARCEL);
+        }
+        if (mInputParcel == null) {
+            mInputParcel = new CryptoInputParcel(mRequiredInput.mSignatureTime);
+        }
 
         // obtain passphrase for this subkey
         if (mRequiredInput.mType != RequiredInputParcel.RequiredInputType.NFC_KEYTOCARD) {
@@ -68,6 +79,13 @@ public class NfcOperationActivity extends BaseNfcActivity {
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        outState.putParcelable(ARG_INPUT_PARCEL, mInputParcel);
+    }
+
     @Override
     protected void initLayout() {
         setContentView(R.layout.nfc_activity);
@@ -76,12 +94,17 @@ public class NfcOperationActivity extends BaseNfcActivity {
     @Override
     protected void onNfcPerform() throws IOException {
 
-        CryptoInputParcel inputParcel = new CryptoInputParcel(mRequiredInput.mSignatureTime);
+        // all operations are done within this tap, verifying the pin only once
+        CryptoInputParcel inputParcel = mInputParcel;
+        Map<ByteBuffer, byte[]> done = inputParcel.getCryptoData();
 
         switch (mRequiredInput.mType) {
             case NFC_DECRYPT: {
                 for (int i = 0; i < mRequiredInput.mInputHashes.length; i++) {
                     byte[] hash = mRequiredInput.mInputHashes[i];
+                    if (done.containsKey(ByteBuffer.wrap(hash))) {
+                        continue;
+                    }
                     byte[] decryptedSessionKey = nfcDecryptSessionKey(hash);
                     inputParcel.addCryptoData(hash, decryptedSessionKey);
                 }
@@ -90,6 +113,9 @@ public class NfcOperationActivity extends BaseNfcActivity {
             case NFC_SIGN: {
                 for (int i = 0; i < mRequiredInput.mInputHashes.length; i++) {
                     byte[] hash = mRequiredInput.mInputHashes[i];
+                    if (done.containsKey(ByteBuffer.wrap(hash))) {
+                        continue;
+                    }
                     int algo = mRequiredInput.mSignAlgos[i];
                     byte[] signedHash = nfcCalculateSignature(hash, algo);
                     inputParcel.addCryptoData(hash, signedHash);
@@ -35,7 +35,10 @@ import android.widget.LinearLayout;
 import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
+import org.sufficientlysecure.keychain.service.KeyPairPoolService;
 import org.sufficientlysecure.keychain.ui.widget.IntegerListPreference;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper;
 import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.util.List;
@@ -81,6 +84,12 @@ public class SettingsActivity extends PreferenceActivity {
             initializeSearchKeybase(
                     (CheckBoxPreference) findPreference(Constants.Pref.SEARCH_KEYBASE)
             );
+            initializeKeyRefresh(
+                    (CheckBoxPreference) findPreference(Constants.Pref.KEY_REFRESH_ENABLED)
+            );
+            initializeKeyRefreshWindow(
+                    (IntegerListPreference) findPreference(Constants.Pref.KEY_REFRESH_WINDOW)
+            );
 
         } else if (action != null && action.equals(ACTION_PREFS_ADV)) {
             addPreferencesFromResource(R.xml.adv_preferences);
@@ -91,6 +100,12 @@ public class SettingsActivity extends PreferenceActivity {
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
+            initializeSessionKeyCache(
+                    (CheckBoxPreference) findPreference(Constants.Pref.SESSION_KEY_CACHE));
+
+            initializeKeyPairPool(
+                    (CheckBoxPreference) findPreference(Constants.Pref.KEY_PAIR_POOL_ENABLED));
+
             int[] valueIds = new int[]{
                     CompressionAlgorithmTags.UNCOMPRESSED,
                     CompressionAlgorithmTags.ZIP,
@@ -201,6 +216,12 @@ public class SettingsActivity extends PreferenceActivity {
             initializeSearchKeybase(
                     (CheckBoxPreference) findPreference(Constants.Pref.SEARCH_KEYBASE)
             );
+            initializeKeyRefresh(
+                    (CheckBoxPreference) findPreference(Constants.Pref.KEY_REFRESH_ENABLED)
+            );
+            initializeKeyRefreshWindow(
+                    (IntegerListPreference) findPreference(Constants.Pref.KEY_REFRESH_WINDOW)
+            );
         }
 
         @Override
@@ -243,6 +264,12 @@ public class SettingsActivity extends PreferenceActivity {
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
+            initializeSessionKeyCache(
+                    (CheckBoxPreference) findPreference(Constants.Pref.SESSION_KEY_CACHE));
+
+            initializeKeyPairPool(
+                    (CheckBoxPreference) findPreference(Constants.Pref.KEY_PAIR_POOL_ENABLED));
+
             int[] valueIds = new int[]{
                     CompressionAlgorithmTags.UNCOMPRESSED,
                     CompressionAlgorithmTags.ZIP,
@@ -288,6 +315,36 @@ public class SettingsActivity extends PreferenceActivity {
         });
     }
 
+    private static void initializeSessionKeyCache(final CheckBoxPreference mSessionKeyCache) {
+        mSessionKeyCache.setChecked(sPreferences.isSessionKeyCacheEnabled());
+        mSessionKeyCache.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mSessionKeyCache.setChecked((Boolean) newValue);
+                sPreferences.setSessionKeyCacheEnabled((Boolean) newValue);
+                if (!(Boolean) newValue) {
+                    SessionKeyCache.getInstance().clear();
+                }
+                return false;
+            }
+        });
+    }
+
+    private static void initializeKeyPairPool(final CheckBoxPreference mKeyPairPool) {
+        mKeyPairPool.setChecked(sPreferences.isKeyPairPoolEnabled());
+        mKeyPairPool.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mKeyPairPool.setChecked((Boolean) newValue);
+                sPreferences.setKeyPairPoolEnabled((Boolean) newValue);
+                if ((Boolean) newValue) {
+                    KeyPairPoolService.scheduleFill(preference.getContext());
+                } else {
+                    KeyPairPoolService.cancelFill(preference.getContext());
+                }
+                return false;
+            }
+        });
+    }
+
     private static void initializePassphraseCacheTtl(final IntegerListPreference mPassphraseCacheTtl) {
         mPassphraseCacheTtl.setValue("" + sPreferences.getPassphraseCacheTtl());
         mPassphraseCacheTtl.setSummary(mPassphraseCacheTtl.getEntry());
@@ -328,6 +385,37 @@ public class SettingsActivity extends PreferenceActivity {
         });
     }
 
+    private static void initializeKeyRefresh(final CheckBoxPreference mKeyRefresh) {
+        mKeyRefresh.setChecked(sPreferences.isKeyRefreshEnabled());
+        mKeyRefresh.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mKeyRefresh.setChecked((Boolean) newValue);
+                sPreferences.setKeyRefreshEnabled((Boolean) newValue);
+                if ((Boolean) newValue) {
+                    KeyUpdateHelper.scheduleKeyRefresh(preference.getContext());
+                } else {
+                    KeyUpdateHelper.cancelKeyRefresh(preference.getContext());
+                }
+                return false;
+            }
+        });
+    }
+
+    private static void initializeKeyRefreshWindow(final IntegerListPreference mKeyRefreshWindow) {
+        mKeyRefreshWindow.setValue("" + sPreferences.getKeyRefreshWindow());
+        mKeyRefreshWindow.setSummary(mKeyRefreshWindow.getEntry());
+        mKeyRefreshWindow
+                .setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        mKeyRefreshWindow.setValue(newValue.toString());
+                        mKeyRefreshWindow.setSummary(mKeyRefreshWindow.getEntry());
+                        sPreferences.setKeyRefreshWindow(Integer.parseInt(newValue.toString()));
+                        return false;
+                    }
+                });
+    }
+
     public static String keyserverSummary(Context context) {
         String[] servers = sPreferences.getKeyServers();
         String serverSummary = context.getResources().getQuantityString(
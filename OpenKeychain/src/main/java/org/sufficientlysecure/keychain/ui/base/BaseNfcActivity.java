@@ -30,6 +30,7 @@ import android.content.IntentFilter;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
+import android.os.Build;
 import android.os.Bundle;
 import android.widget.Toast;
 
@@ -54,6 +55,10 @@ import org.sufficientlysecure.keychain.ui.ViewKeyActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
+import org.sufficientlysecure.keychain.util.ApduChannel;
+import org.sufficientlysecure.keychain.util.ApduChannel.Response;
+import org.sufficientlysecure.keychain.util.ApduTransport;
+import org.sufficientlysecure.keychain.util.CardSession;
 import org.sufficientlysecure.keychain.util.Iso7816TLV;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -65,15 +70,16 @@ public abstract class BaseNfcActivity extends BaseActivity {
 
     protected Passphrase mPin;
     protected Passphrase mAdminPin;
-    protected boolean mPw1ValidForMultipleSignatures;
-    protected boolean mPw1ValidatedForSignature;
-    protected boolean mPw1ValidatedForDecrypt; // Mode 82 does other things; consider renaming?
-    protected boolean mPw3Validated;
     private NfcAdapter mNfcAdapter;
     private IsoDep mIsoDep;
+    private ApduChannel mChannel;
+    private CardSession mSession;
 
     private static final int TIMEOUT = 100000;
 
+    /** Expected response length of most commands, encoded as Le 0x00 */
+    private static final int NE_SHORT = 256;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -287,40 +293,40 @@ public abstract class BaseNfcActivity extends BaseActivity {
         mIsoDep.setTimeout(TIMEOUT); // timeout is set to 100 seconds to avoid cancellation during calculation
         mIsoDep.connect();
 
-        // SW1/2 0x9000 is the generic "ok" response, which we expect most of the time.
-        // See specification, page 51
-        String accepted = "9000";
-
-        // Command APDU (page 51) for SELECT FILE command (page 29)
-        String opening =
-                "00" // CLA
-                        + "A4" // INS
-                        + "04" // P1
-                        + "00" // P2
-                        + "06" // Lc (number of bytes)
-                        + "D27600012401" // Data (6 bytes)
-                        + "00"; // Le
-        String response = nfcCommunicate(opening);  // activate connection
-        if ( ! response.endsWith(accepted) ) {
-            throw new CardException("Initialization failed!", parseCardStatus(response));
-        }
-
-        byte[] pwStatusBytes = nfcGetPwStatusBytes();
-        mPw1ValidForMultipleSignatures = (pwStatusBytes[0] == 1);
-        mPw1ValidatedForSignature = false;
-        mPw1ValidatedForDecrypt = false;
-        mPw3Validated = false;
-
-        // TODO: Handle non-default Admin PIN
-        mAdminPin = new Passphrase("12345678");
+        nfcConnect(new IsoDepTransport(mIsoDep));
 
         onNfcPerform();
 
         mIsoDep.close();
         mIsoDep = null;
+        mChannel = null;
+        mSession = null;
 
     }
 
+    /** Selects the OpenPGP application and starts a new session with the card.
+     *
+     * This is called for every tap, with a transport talking to the tag. Tests use it to talk
+     * to an emulated card instead.
+     */
+    public void nfcConnect(ApduTransport transport) throws IOException {
+        mChannel = new ApduChannel(transport);
+        mSession = new CardSession(mChannel);
+
+        // Command APDU (page 51) for SELECT FILE command (page 29), with the OpenPGP AID
+        Response response = mChannel.transmit(0xA4, 0x04, 0x00, Hex.decode("D27600012401"), NE_SHORT);
+        if (!response.isOk()) {
+            throw new CardException("Initialization failed!", (short) response.getSw());
+        }
+
+        // contains AID, PW status and the capabilities which decide whether large commands
+        // need to be split up, so none of these need to be read separately
+        nfcGetApplicationRelatedData();
+
+        // TODO: Handle non-default Admin PIN
+        mAdminPin = new Passphrase("12345678");
+    }
+
     protected void onNfcPerform() throws IOException {
 
         final byte[] nfcFingerprints = nfcGetFingerprints();
@@ -374,11 +380,7 @@ public abstract class BaseNfcActivity extends BaseActivity {
      * @return The fingerprints of all subkeys in a contiguous byte array.
      */
     public byte[] nfcGetFingerprints() throws IOException {
-        String data = "00CA006E00";
-        byte[] buf = mIsoDep.transceive(Hex.decode(data));
-
-        Iso7816TLV tlv = Iso7816TLV.readSingle(buf, true);
-        Log.d(Constants.TAG, "nfc tlv data:\n" + tlv.prettyPrint());
+        Iso7816TLV tlv = nfcGetApplicationRelatedData();
 
         Iso7816TLV fptlv = Iso7816TLV.findRecursive(tlv, 0xc5);
         if (fptlv == null) {
@@ -388,13 +390,27 @@ public abstract class BaseNfcActivity extends BaseActivity {
         return fptlv.mV;
     }
 
+    /** Return the Application Related Data from the card. It is read only once per tap, or
+     * again after it was changed by a PUT DATA command.
+     */
+    public Iso7816TLV nfcGetApplicationRelatedData() throws IOException {
+        Iso7816TLV appData = mSession.getApplicationRelatedData();
+        if (appData == null) {
+            appData = Iso7816TLV.readSingle(nfcGetData(0x006E), true);
+            Log.d(Constants.TAG, "nfc tlv data:\n" + appData.prettyPrint());
+            mSession.setApplicationRelatedData(appData);
+        }
+        return appData;
+    }
+
     /** Return the PW Status Bytes from the card. This is a simple DO; no TLV decoding needed.
      *
-     * @return Seven bytes in fixed format, plus 0x9000 status word at the end.
+     * @return Seven bytes in fixed format.
      */
     public byte[] nfcGetPwStatusBytes() throws IOException {
-        String data = "00CA00C400";
-        return mIsoDep.transceive(Hex.decode(data));
+        nfcGetApplicationRelatedData();
+        byte[] pwStatusBytes = mSession.getPwStatusBytes();
+        return pwStatusBytes != null ? pwStatusBytes : nfcGetData(0x00C4);
     }
 
     /** Return the fingerprint from application specific data stored on tag, or
@@ -416,16 +432,35 @@ public abstract class BaseNfcActivity extends BaseActivity {
     }
 
     public byte[] nfcGetAid() throws IOException {
-
-        String info = "00CA004F00";
-        return mIsoDep.transceive(Hex.decode(info));
-
+        nfcGetApplicationRelatedData();
+        byte[] aid = mSession.getAid();
+        return aid != null ? aid : nfcGetData(0x004F);
     }
 
+    /** Return the cardholder name. It is only read once per card, unless it is changed. */
     public String nfcGetUserId() throws IOException {
+        nfcGetApplicationRelatedData();
+        String userId = mSession.getCachedUserId();
+        if (userId == null) {
+            userId = nfcGetHolderName(getHex(nfcGetData(0x0065)));
+            mSession.setCachedUserId(userId);
+        }
+        return userId;
+    }
 
-        String info = "00CA006500";
-        return nfcGetHolderName(nfcCommunicate(info));
+    /** Reads a data object from the card.
+     *
+     * @param dataObject The tag of the data object, which is used as P1 and P2.
+     * @return The contents of the data object, without status word.
+     */
+    private byte[] nfcGetData(int dataObject) throws IOException {
+        // Command APDU for GET DATA command (page 32)
+        Response response = mChannel.transmit(
+                0xCA, (dataObject & 0xFF00) >> 8, dataObject & 0xFF, null, NE_SHORT);
+        if (!response.isOk()) {
+            throw new CardException("Failed to get data.", (short) response.getSw());
+        }
+        return response.getData();
     }
 
     /**
@@ -435,11 +470,11 @@ public abstract class BaseNfcActivity extends BaseActivity {
      * @return a big integer representing the MPI for the given hash
      */
     public byte[] nfcCalculateSignature(byte[] hash, int hashAlgo) throws IOException {
-        if (!mPw1ValidatedForSignature) {
-            nfcVerifyPIN(0x81); // (Verify PW1 with mode 81 for signing)
+        if (!mSession.isPinVerified(CardSession.PW1_SIGN)) {
+            nfcVerifyPIN(CardSession.PW1_SIGN); // (Verify PW1 with mode 81 for signing)
         }
 
-        // dsi, including Lc
+        // digital signature input
         String dsi;
 
         Log.i(Constants.TAG, "Hash: " + hashAlgo);
@@ -448,8 +483,7 @@ public abstract class BaseNfcActivity extends BaseActivity {
                 if (hash.length != 20) {
                     throw new IOException("Bad hash length (" + hash.length + ", expected 10!");
                 }
-                dsi = "23" // Lc
-                        + "3021" // Tag/Length of Sequence, the 0x21 includes all following 33 bytes
+                dsi = "3021" // Tag/Length of Sequence, the 0x21 includes all following 33 bytes
                         + "3009" // Tag/Length of Sequence, the 0x09 are the following header bytes
                         + "0605" + "2B0E03021A" // OID of SHA1
                         + "0500" // TLV coding of ZERO
@@ -459,73 +493,58 @@ public abstract class BaseNfcActivity extends BaseActivity {
                 if (hash.length != 20) {
                     throw new IOException("Bad hash length (" + hash.length + ", expected 20!");
                 }
-                dsi = "233021300906052B2403020105000414" + getHex(hash);
+                dsi = "3021300906052B2403020105000414" + getHex(hash);
                 break;
             case HashAlgorithmTags.SHA224:
                 if (hash.length != 28) {
                     throw new IOException("Bad hash length (" + hash.length + ", expected 28!");
                 }
-                dsi = "2F302D300D06096086480165030402040500041C" + getHex(hash);
+                dsi = "302D300D06096086480165030402040500041C" + getHex(hash);
                 break;
             case HashAlgorithmTags.SHA256:
                 if (hash.length != 32) {
                     throw new IOException("Bad hash length (" + hash.length + ", expected 32!");
                 }
-                dsi = "333031300D060960864801650304020105000420" + getHex(hash);
+                dsi = "3031300D060960864801650304020105000420" + getHex(hash);
                 break;
             case HashAlgorithmTags.SHA384:
                 if (hash.length != 48) {
                     throw new IOException("Bad hash length (" + hash.length + ", expected 48!");
                 }
-                dsi = "433041300D060960864801650304020205000430" + getHex(hash);
+                dsi = "3041300D060960864801650304020205000430" + getHex(hash);
                 break;
             case HashAlgorithmTags.SHA512:
                 if (hash.length != 64) {
                     throw new IOException("Bad hash length (" + hash.length + ", expected 64!");
                 }
-                dsi = "533051300D060960864801650304020305000440" + getHex(hash);
+                dsi = "3051300D060960864801650304020305000440" + getHex(hash);
                 break;
             default:
                 throw new IOException("Not supported hash algo!");
         }
 
         // Command APDU for PERFORM SECURITY OPERATION: COMPUTE DIGITAL SIGNATURE (page 37)
-        String apdu  =
-                "002A9E9A" // CLA, INS, P1, P2
-                        + dsi // digital signature input
-                        + "00"; // Le
+        // Signatures which don't fit into one response are fetched by the channel with
+        // GET RESPONSE, or arrive at once if the card supports extended length.
+        Response response = mChannel.transmit(0x2A, 0x9E, 0x9A, Hex.decode(dsi), ApduChannel.NE_ANY);
 
-        String response = nfcCommunicate(apdu);
+        Log.d(Constants.TAG, "final response:" + Integer.toHexString(response.getSw()));
 
-        // split up response into signature and status
-        String status = response.substring(response.length()-4);
-        String signature = response.substring(0, response.length() - 4);
+        mSession.onSignatureComputed();
 
-        // while we are getting 0x61 status codes, retrieve more data
-        while (status.substring(0, 2).equals("61")) {
-            Log.d(Constants.TAG, "requesting more data, status " + status);
-            // Send GET RESPONSE command
-            response = nfcCommunicate("00C00000" + status.substring(2));
-            status = response.substring(response.length()-4);
-            signature += response.substring(0, response.length()-4);
-        }
-
-        Log.d(Constants.TAG, "final response:" + status);
-
-        if (!mPw1ValidForMultipleSignatures) {
-            mPw1ValidatedForSignature = false;
-        }
-
-        if ( ! "9000".equals(status)) {
-            throw new CardException("Bad NFC response code: " + status, parseCardStatus(response));
+        if (!response.isOk()) {
+            throw new CardException("Bad NFC response code: " + Integer.toHexString(response.getSw()),
+                    (short) response.getSw());
         }
 
         // Make sure the signature we received is actually the expected number of bytes long!
-        if (signature.length() != 256 && signature.length() != 512) {
-            throw new IOException("Bad signature length! Expected 128 or 256 bytes, got " + signature.length() / 2);
+        byte[] signature = response.getData();
+        if (signature.length != 128 && signature.length != 256 && signature.length != 512) {
+            throw new IOException("Bad signature length! Expected 128, 256 or 512 bytes, got "
+                    + signature.length);
         }
 
-        return Hex.decode(signature);
+        return signature;
     }
 
     /**
@@ -535,31 +554,25 @@ public abstract class BaseNfcActivity extends BaseActivity {
      * @return the decoded session key
      */
     public byte[] nfcDecryptSessionKey(byte[] encryptedSessionKey) throws IOException {
-        if (!mPw1ValidatedForDecrypt) {
-            nfcVerifyPIN(0x82); // (Verify PW1 with mode 82 for decryption)
+        if (!mSession.isPinVerified(CardSession.PW1_OTHER)) {
+            nfcVerifyPIN(CardSession.PW1_OTHER); // (Verify PW1 with mode 82 for decryption)
         }
 
-        String firstApdu = "102a8086fe";
-        String secondApdu = "002a808603";
-        String le = "00";
-
-        byte[] one = new byte[254];
-        // leave out first byte:
-        System.arraycopy(encryptedSessionKey, 1, one, 0, one.length);
+        // leave out first byte
+        byte[] data = Arrays.copyOfRange(encryptedSessionKey, 1, encryptedSessionKey.length);
 
-        byte[] two = new byte[encryptedSessionKey.length - 1 - one.length];
-        for (int i = 0; i < two.length; i++) {
-            two[i] = encryptedSessionKey[i + one.length + 1];
+        // Command APDU for PERFORM SECURITY OPERATION: DECIPHER (page 38). This is sent as
+        // a single extended length apdu if possible, chained otherwise.
+        Response response = mChannel.transmit(0x2A, 0x80, 0x86, data, NE_SHORT);
+        if (!response.isOk()) {
+            throw new CardException("Failed to decrypt session key", (short) response.getSw());
         }
 
-        String first = nfcCommunicate(firstApdu + getHex(one));
-        String second = nfcCommunicate(secondApdu + getHex(two) + le);
-
-        String decryptedSessionKey = nfcGetDataField(second);
+        byte[] decryptedSessionKey = response.getData();
 
-        Log.d(Constants.TAG, "decryptedSessionKey: " + decryptedSessionKey);
+        Log.d(Constants.TAG, "decryptedSessionKey: " + getHex(decryptedSessionKey));
 
-        return Hex.decode(decryptedSessionKey);
+        return decryptedSessionKey;
     }
 
     /** Verifies the user's PW1 or PW3 with the appropriate mode.
@@ -577,31 +590,17 @@ public abstract class BaseNfcActivity extends BaseActivity {
                 pin = new String(mPin.getCharArray()).getBytes();
             }
 
-            // SW1/2 0x9000 is the generic "ok" response, which we expect most of the time.
-            // See specification, page 51
-            String accepted = "9000";
-
             // Command APDU for VERIFY command (page 32)
-            String login =
-                    "00" // CLA
-                        + "20" // INS
-                        + "00" // P1
-                        + String.format("%02x", mode) // P2
-                        + String.format("%02x", pin.length) // Lc
-                        + Hex.toHexString(pin);
-            String response = nfcCommunicate(login); // login
-            if (!response.equals(accepted)) {
+            Response response = mChannel.transmit(0x20, 0x00, mode, pin, 0);
+            mChannel.clearCommandBuffer();
+            Arrays.fill(pin, (byte) 0);
+            if (!response.isOk()) {
                 handlePinError();
-                throw new CardException("Bad PIN!", parseCardStatus(response));
+                throw new CardException("Bad PIN!", (short) response.getSw());
             }
 
-            if (mode == 0x81) {
-                mPw1ValidatedForSignature = true;
-            } else if (mode == 0x82) {
-                mPw1ValidatedForDecrypt = true;
-            } else if (mode == 0x83) {
-                mPw3Validated = true;
-            }
+            // stays valid until the card leaves the field
+            mSession.setPinVerified(mode);
         }
     }
 
@@ -639,17 +638,13 @@ public abstract class BaseNfcActivity extends BaseActivity {
         }
 
         // Command APDU for CHANGE REFERENCE DATA command (page 32)
-        String changeReferenceDataApdu = "00" // CLA
-                + "24" // INS
-                + "00" // P1
-                + String.format("%02x", pw) // P2
-                + String.format("%02x", pin.length + newPin.length) // Lc
-                + getHex(pin)
-                + getHex(newPin);
-        String response = nfcCommunicate(changeReferenceDataApdu); // change PIN
-        if (!response.equals("9000")) {
+        byte[] data = Arrays.concatenate(pin, newPin);
+        Response response = mChannel.transmit(0x24, 0x00, pw, data, 0);
+        mChannel.clearCommandBuffer();
+        Arrays.fill(data, (byte) 0);
+        if (!response.isOk()) {
             handlePinError();
-            throw new CardException("Failed to change PIN", parseCardStatus(response));
+            throw new CardException("Failed to change PIN", (short) response.getSw());
         }
     }
 
@@ -666,23 +661,20 @@ public abstract class BaseNfcActivity extends BaseActivity {
             throw new IOException("Cannot PUT DATA with length > 254");
         }
         if (dataObject == 0x0101 || dataObject == 0x0103) {
-            if (!mPw1ValidatedForDecrypt) {
-                nfcVerifyPIN(0x82); // (Verify PW1 for non-signing operations)
+            if (!mSession.isPinVerified(CardSession.PW1_OTHER)) {
+                nfcVerifyPIN(CardSession.PW1_OTHER); // (Verify PW1 for non-signing operations)
             }
-        } else if (!mPw3Validated) {
-            nfcVerifyPIN(0x83); // (Verify PW3)
+        } else if (!mSession.isPinVerified(CardSession.PW3)) {
+            nfcVerifyPIN(CardSession.PW3); // (Verify PW3)
         }
 
-        String putDataApdu = "00" // CLA
-                + "DA" // INS
-                + String.format("%02x", (dataObject & 0xFF00) >> 8) // P1
-                + String.format("%02x", dataObject & 0xFF) // P2
-                + String.format("%02x", data.length) // Lc
-                + getHex(data);
-
-        String response = nfcCommunicate(putDataApdu); // put data
-        if (!response.equals("9000")) {
-            throw new CardException("Failed to put data.", parseCardStatus(response));
+        // Command APDU for PUT DATA command (page 33)
+        Response response = mChannel.transmit(
+                0xDA, (dataObject & 0xFF00) >> 8, dataObject & 0xFF, data, 0);
+        // this may have changed the application related data
+        mSession.invalidate();
+        if (!response.isOk()) {
+            throw new CardException("Failed to put data.", (short) response.getSw());
         }
     }
 
@@ -718,8 +710,8 @@ public abstract class BaseNfcActivity extends BaseActivity {
             throw new IOException("Invalid public exponent for smart card key.");
         }
 
-        if (!mPw3Validated) {
-            nfcVerifyPIN(0x83); // (Verify PW1 with mode 83)
+        if (!mSession.isPinVerified(CardSession.PW3)) {
+            nfcVerifyPIN(CardSession.PW3); // (Verify PW3)
         }
 
         byte[] header= Hex.decode(
@@ -768,51 +760,17 @@ public abstract class BaseNfcActivity extends BaseActivity {
         currentKeyObject = crtSecretKey.getModulus().toByteArray();
         System.arraycopy(currentKeyObject, currentKeyObject.length - 256, dataToSend, offset, 256);
 
-        String putKeyCommand = "10DB3FFF";
-        String lastPutKeyCommand = "00DB3FFF";
-
-        // Now we're ready to communicate with the card.
-        offset = 0;
-        String response;
-        while(offset < dataToSend.length) {
-            int dataRemaining = dataToSend.length - offset;
-            if (dataRemaining > 254) {
-                response = nfcCommunicate(
-                        putKeyCommand + "FE" + Hex.toHexString(dataToSend, offset, 254)
-                );
-                offset += 254;
-            } else {
-                int length = dataToSend.length - offset;
-                response = nfcCommunicate(
-                        lastPutKeyCommand + String.format("%02x", length)
-                        + Hex.toHexString(dataToSend, offset, length));
-                offset += length;
-            }
+        // Now we're ready to communicate with the card. This is a single extended length
+        // apdu if the card supports it, and uses command chaining otherwise.
+        Response response = mChannel.transmit(0xDB, 0x3F, 0xFF, dataToSend, 0);
+        mSession.invalidate();
 
-            if (!response.endsWith("9000")) {
-                throw new CardException("Key export to card failed", parseCardStatus(response));
-            }
-        }
-
-        // Clear array with secret data before we return.
+        // Clear arrays with secret data before we return.
         Arrays.fill(dataToSend, (byte) 0);
-    }
+        mChannel.clearCommandBuffer();
 
-    /**
-     * Parses out the status word from a JavaCard response string.
-     *
-     * @param response A hex string with the response from the card
-     * @return A short indicating the SW1/SW2, or 0 if a status could not be determined.
-     */
-    short parseCardStatus(String response) {
-        if (response.length() < 4) {
-            return 0; // invalid input
-        }
-
-        try {
-            return Short.parseShort(response.substring(response.length() - 4), 16);
-        } catch (NumberFormatException e) {
-            return 0;
+        if (!response.isOk()) {
+            throw new CardException("Key export to card failed", (short) response.getSw());
         }
     }
 
@@ -873,16 +831,41 @@ public abstract class BaseNfcActivity extends BaseActivity {
         return (name);
     }
 
-    private String nfcGetDataField(String output) {
-        return output.substring(0, output.length() - 4);
+    public static String getHex(byte[] raw) {
+        return new String(Hex.encode(raw));
     }
 
-    public String nfcCommunicate(String apdu) throws IOException {
-        return getHex(mIsoDep.transceive(Hex.decode(apdu)));
-    }
+    private static class IsoDepTransport implements ApduTransport {
+        private final IsoDep mIsoDep;
 
-    public static String getHex(byte[] raw) {
-        return new String(Hex.encode(raw));
+        IsoDepTransport(IsoDep isoDep) {
+            mIsoDep = isoDep;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command, int length) throws IOException {
+            if (length == command.length) {
+                return mIsoDep.transceive(command);
+            }
+            // the command may hold a PIN or key material, don't leave a copy of it around
+            byte[] copy = Arrays.copyOf(command, length);
+            try {
+                return mIsoDep.transceive(copy);
+            } finally {
+                Arrays.fill(copy, (byte) 0);
+            }
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return mIsoDep.getMaxTransceiveLength();
+        }
+
+        @Override
+        public boolean isExtendedLengthApduSupported() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    && mIsoDep.isExtendedLengthApduSupported();
+        }
     }
 
     public class CardException extends IOException {
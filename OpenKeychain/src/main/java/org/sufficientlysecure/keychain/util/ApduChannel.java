@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Byte level command and response apdus over an ApduTransport, as specified in ISO 7816-4
+ * section 5.1.
+ *
+ * Commands are sent as a single short apdu if they fit. Otherwise a single extended length
+ * apdu is used if both card and reader support it, and command chaining if they don't.
+ * Responses which don't fit are collected with GET RESPONSE, so callers always receive the
+ * complete response data. Command and response buffers are reused between exchanges.
+ */
+public class ApduChannel {
+
+    public static final int SW_OK = 0x9000;
+
+    /** Expected response length which accepts any length the card wants to send */
+    public static final int NE_ANY = 65536;
+
+    private static final int CLA = 0x00;
+    private static final int CLA_CHAINING = 0x10;
+    private static final int INS_GET_RESPONSE = 0xc0;
+    private static final int SW1_MORE_DATA = 0x61;
+
+    private static final int MAX_SHORT_LC = 255;
+    private static final int MAX_SHORT_NE = 256;
+    private static final int MAX_EXTENDED_LC = 65535;
+    /** Data per chained command, matching what was always sent to cards before */
+    private static final int CHAINING_CHUNK = 254;
+
+    private final ApduTransport mTransport;
+    private boolean mExtendedLength;
+    private int mMaxExtendedLc = MAX_EXTENDED_LC;
+
+    private byte[] mCommandBuffer = new byte[4 + 1 + MAX_SHORT_LC + 1];
+    private byte[] mResponseBuffer = new byte[MAX_SHORT_NE];
+
+    public ApduChannel(ApduTransport transport) {
+        mTransport = transport;
+    }
+
+    /** Enables extended length apdus, if both the card and the transport support them. */
+    public void setCardCapabilities(CardCapabilities capabilities) {
+        mExtendedLength = capabilities.hasExtendedLength()
+                && mTransport.isExtendedLengthApduSupported();
+        int maxLc = capabilities.getMaxCommandDataLength();
+        mMaxExtendedLc = maxLc > 0 ? Math.min(maxLc, MAX_EXTENDED_LC) : MAX_EXTENDED_LC;
+    }
+
+    public boolean isExtendedLength() {
+        return mExtendedLength;
+    }
+
+    /**
+     * Sends a command with class byte 0x00 and returns the complete response.
+     *
+     * @param data The command data, may be null
+     * @param ne The expected response length, 0 if no response data is expected
+     */
+    public Response transmit(int ins, int p1, int p2, byte[] data, int ne) throws IOException {
+        int lc = data != null ? data.length : 0;
+
+        if (lc <= MAX_SHORT_LC && ne <= MAX_SHORT_NE) {
+            return collectResponse(exchange(CLA, ins, p1, p2, data, 0, lc, ne, false));
+        }
+        if (mExtendedLength && lc <= mMaxExtendedLc
+                && getExtendedLength(lc, ne) <= mTransport.getMaxTransceiveLength()) {
+            return collectResponse(exchange(CLA, ins, p1, p2, data, 0, lc, ne, true));
+        }
+
+        // no extended apdus, send data in chunks and fetch the response with GET RESPONSE
+        int shortNe = Math.min(ne, MAX_SHORT_NE);
+        int offset = 0;
+        while (lc - offset > MAX_SHORT_LC) {
+            Response response =
+                    exchange(CLA_CHAINING, ins, p1, p2, data, offset, CHAINING_CHUNK, 0, false);
+            if (!response.isOk()) {
+                return response;
+            }
+            offset += CHAINING_CHUNK;
+        }
+        return collectResponse(
+                exchange(CLA, ins, p1, p2, data, offset, lc - offset, shortNe, false));
+    }
+
+    /** Overwrites the last command, call this after sending secret data like PINs or keys. */
+    public void clearCommandBuffer() {
+        Arrays.fill(mCommandBuffer, (byte) 0);
+    }
+
+    /** Follows up on 61xx status words with GET RESPONSE, until all data is received. */
+    private Response collectResponse(Response response) throws IOException {
+        if (response.getSw1() != SW1_MORE_DATA) {
+            return response;
+        }
+
+        int length = 0;
+        while (true) {
+            byte[] data = response.getData();
+            ensureResponseCapacity(length + data.length);
+            System.arraycopy(data, 0, mResponseBuffer, length, data.length);
+            length += data.length;
+
+            if (response.getSw1() != SW1_MORE_DATA) {
+                return new Response(Arrays.copyOf(mResponseBuffer, length), response.getSw());
+            }
+            int remaining = response.getSw2() == 0 ? MAX_SHORT_NE : response.getSw2();
+            response = exchange(CLA, INS_GET_RESPONSE, 0x00, 0x00, null, 0, 0, remaining, false);
+        }
+    }
+
+    private static int getExtendedLength(int lc, int ne) {
+        int length = 4;
+        if (lc > 0) {
+            length += 3 + lc;
+        }
+        if (ne > 0) {
+            length += lc > 0 ? 2 : 3;
+        }
+        return length;
+    }
+
+    private Response exchange(int cla, int ins, int p1, int p2, byte[] data, int offset,
+                              int lc, int ne, boolean extended) throws IOException {
+        int length = extended
+                ? getExtendedLength(lc, ne)
+                : 4 + (lc > 0 ? 1 + lc : 0) + (ne > 0 ? 1 : 0);
+        if (mCommandBuffer.length < length) {
+            // the old buffer may still hold a previous command with secret data
+            clearCommandBuffer();
+            mCommandBuffer = new byte[length];
+        }
+
+        byte[] buf = mCommandBuffer;
+        int pos = 0;
+        buf[pos++] = (byte) cla;
+        buf[pos++] = (byte) ins;
+        buf[pos++] = (byte) p1;
+        buf[pos++] = (byte) p2;
+        if (extended) {
+            if (lc > 0 || ne > 0) {
+                buf[pos++] = 0x00;
+            }
+            if (lc > 0) {
+                buf[pos++] = (byte) (lc >> 8);
+                buf[pos++] = (byte) lc;
+                System.arraycopy(data, offset, buf, pos, lc);
+                pos += lc;
+            }
+            if (ne > 0) {
+                // 0x0000 encodes 65536
+                buf[pos++] = (byte) (ne >> 8);
+                buf[pos++] = (byte) ne;
+            }
+        } else {
+            if (lc > 0) {
+                buf[pos++] = (byte) lc;
+                System.arraycopy(data, offset, buf, pos, lc);
+                pos += lc;
+            }
+            if (ne > 0) {
+                // 0x00 encodes 256
+                buf[pos++] = (byte) ne;
+            }
+        }
+
+        long startTime = System.nanoTime();
+        byte[] response = mTransport.transceive(buf, pos);
+        if (response == null || response.length < 2) {
+            throw new IOException("Invalid response apdu, no status word");
+        }
+        Metrics.recordSince("nfc.apdu", startTime);
+        Metrics.count("nfc.apdu.bytes_sent", pos);
+        Metrics.count("nfc.apdu.bytes_received", response.length);
+        return new Response(response);
+    }
+
+    private void ensureResponseCapacity(int capacity) {
+        if (mResponseBuffer.length < capacity) {
+            byte[] oldBuffer = mResponseBuffer;
+            mResponseBuffer = Arrays.copyOf(oldBuffer, Math.max(capacity, oldBuffer.length * 2));
+            // responses may hold decrypted session keys
+            Arrays.fill(oldBuffer, (byte) 0);
+        }
+    }
+
+    /** A response apdu, split into response data and status word. */
+    public static class Response {
+        private final byte[] mData;
+        private final int mSw;
+
+        Response(byte[] data, int sw) {
+            mData = data;
+            mSw = sw;
+        }
+
+        Response(byte[] apdu) {
+            this(Arrays.copyOf(apdu, apdu.length - 2),
+                    ((apdu[apdu.length - 2] & 0xff) << 8) | (apdu[apdu.length - 1] & 0xff));
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getSw() {
+            return mSw;
+        }
+
+        public int getSw1() {
+            return mSw >> 8;
+        }
+
+        public int getSw2() {
+            return mSw & 0xff;
+        }
+
+        public boolean isOk() {
+            return mSw == SW_OK;
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+
+/** Exchanges raw APDUs with a smart card, see ApduChannel. */
+public interface ApduTransport {
+
+    /**
+     * Sends the first length bytes of command to the card and returns the full response
+     * apdu, including the status word.
+     */
+    byte[] transceive(byte[] command, int length) throws IOException;
+
+    /** Returns the length of the longest command apdu which can be sent. */
+    int getMaxTransceiveLength();
+
+    /** Returns whether the reader side supports extended length apdus. */
+    boolean isExtendedLengthApduSupported();
+
+}
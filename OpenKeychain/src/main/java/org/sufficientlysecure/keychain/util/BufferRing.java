@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A small ring of reusable buffers handed back and forth between a producer and a consumer
+ * thread. Used by ReadAheadInputStream and WriteBehindOutputStream.
+ *
+ * Data is still copied into and out of the buffers, reusing them only saves allocating a
+ * new array for every chunk.
+ */
+class BufferRing {
+
+    static class Chunk {
+        final byte[] mData;
+        int mLength;
+        int mPosition;
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    /** Marks the end of the data, no more chunks follow */
+    static final Chunk END = new Chunk(0);
+
+    private final BlockingQueue<Chunk> mFree;
+    private final BlockingQueue<Chunk> mFilled;
+
+    BufferRing(int count, int size) {
+        mFree = new ArrayBlockingQueue<>(count);
+        // one more slot for END
+        mFilled = new ArrayBlockingQueue<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            mFree.add(new Chunk(size));
+        }
+    }
+
+    Chunk takeFree() throws InterruptedIOException {
+        try {
+            return mFree.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    void putFree(Chunk chunk) {
+        chunk.mLength = 0;
+        chunk.mPosition = 0;
+        mFree.add(chunk);
+    }
+
+    Chunk takeFilled() throws InterruptedIOException {
+        try {
+            return mFilled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    void putFilled(Chunk chunk) {
+        mFilled.add(chunk);
+    }
+
+}
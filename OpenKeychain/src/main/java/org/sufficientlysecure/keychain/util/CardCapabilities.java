@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+/**
+ * Capabilities of an OpenPGP card relevant for apdu transport, parsed from its application
+ * related data (DO 6E).
+ *
+ * See ISO 7816-4 section 8.1.1 for the historical bytes (DO 5F52), and the OpenPGP card
+ * specification v2.0, page 16, for the extended capabilities (DO C0).
+ */
+public class CardCapabilities {
+
+    private static final int TAG_HISTORICAL_BYTES = 0x5f52;
+    private static final int TAG_EXTENDED_CAPABILITIES = 0xc0;
+    private static final int TAG_EXTENDED_LENGTH_INFO = 0x7f66;
+
+    private static final int COMPACT_TAG_CARD_CAPABILITIES = 0x73;
+    private static final int CAPABILITY_COMMAND_CHAINING = 0x80;
+    private static final int CAPABILITY_EXTENDED_LENGTH = 0x40;
+
+    private final boolean mCommandChaining;
+    private final boolean mExtendedLength;
+    private final int mMaxCommandDataLength;
+    private final int mMaxResponseDataLength;
+
+    public CardCapabilities(boolean commandChaining, boolean extendedLength,
+                            int maxCommandDataLength, int maxResponseDataLength) {
+        mCommandChaining = commandChaining;
+        mExtendedLength = extendedLength;
+        mMaxCommandDataLength = maxCommandDataLength;
+        mMaxResponseDataLength = maxResponseDataLength;
+    }
+
+    public static CardCapabilities fromApplicationRelatedData(Iso7816TLV appData) {
+        boolean commandChaining = false;
+        boolean extendedLength = false;
+
+        Iso7816TLV historical = Iso7816TLV.findRecursive(appData, TAG_HISTORICAL_BYTES);
+        byte[] caps = historical != null ? findCardCapabilities(historical.mV) : null;
+        if (caps != null && caps.length >= 3) {
+            commandChaining = (caps[2] & CAPABILITY_COMMAND_CHAINING) != 0;
+            extendedLength = (caps[2] & CAPABILITY_EXTENDED_LENGTH) != 0;
+        }
+        // cards implementing v3.0 of the spec announce extended length support this way
+        if (Iso7816TLV.findRecursive(appData, TAG_EXTENDED_LENGTH_INFO) != null) {
+            extendedLength = true;
+        }
+
+        // max lengths of command and response data, only meaningful for extended apdus
+        int maxCommandDataLength = 0;
+        int maxResponseDataLength = 0;
+        Iso7816TLV extCaps = Iso7816TLV.findRecursive(appData, TAG_EXTENDED_CAPABILITIES);
+        if (extCaps != null && extCaps.mV.length >= 10) {
+            maxCommandDataLength = ((extCaps.mV[6] & 0xff) << 8) | (extCaps.mV[7] & 0xff);
+            maxResponseDataLength = ((extCaps.mV[8] & 0xff) << 8) | (extCaps.mV[9] & 0xff);
+        }
+
+        return new CardCapabilities(commandChaining, extendedLength,
+                maxCommandDataLength, maxResponseDataLength);
+    }
+
+    /** Returns the value of the card capabilities compact-TLV object, or null if there is none */
+    private static byte[] findCardCapabilities(byte[] historicalBytes) {
+        // only the category indicator 0x00 is followed by compact-TLV objects, and by three
+        // status indicator bytes at the very end
+        if (historicalBytes.length < 1 || historicalBytes[0] != 0x00) {
+            return null;
+        }
+        int pos = 1;
+        while (pos < historicalBytes.length - 3) {
+            int tag = historicalBytes[pos] & 0xff;
+            int length = tag & 0x0f;
+            if (pos + 1 + length > historicalBytes.length) {
+                return null;
+            }
+            if (tag == COMPACT_TAG_CARD_CAPABILITIES) {
+                byte[] value = new byte[length];
+                System.arraycopy(historicalBytes, pos + 1, value, 0, length);
+                return value;
+            }
+            pos += 1 + length;
+        }
+        return null;
+    }
+
+    public boolean hasCommandChaining() {
+        return mCommandChaining;
+    }
+
+    public boolean hasExtendedLength() {
+        return mExtendedLength;
+    }
+
+    /** Returns the maximum length of command data in an extended apdu, or 0 if unknown */
+    public int getMaxCommandDataLength() {
+        return mMaxCommandDataLength;
+    }
+
+    /** Returns the maximum length of response data to an extended apdu, or 0 if unknown */
+    public int getMaxResponseDataLength() {
+        return mMaxResponseDataLength;
+    }
+
+}
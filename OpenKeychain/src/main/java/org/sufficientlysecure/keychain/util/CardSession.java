@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State of the connection to an OpenPGP card during a single tap, from selecting the
+ * application until the card leaves the field.
+ *
+ * PIN verifications stay valid for the whole session, so all operations performed during
+ * one tap need to verify the PIN only once. Data which only changes when the card is
+ * personalized, like the cardholder name, is additionally kept per AID across sessions.
+ */
+public class CardSession {
+
+    public static final int PW1_SIGN = 0x81;
+    public static final int PW1_OTHER = 0x82;
+    public static final int PW3 = 0x83;
+
+    private static final int TAG_AID = 0x4f;
+    private static final int TAG_PW_STATUS = 0xc4;
+
+    /** Number of cards whose static data is kept, hardly anyone uses more than one or two */
+    private static final int MAX_CACHED_CARDS = 4;
+
+    /** Static card data, by hex encoded AID. The least recently used card is dropped first. */
+    private static final LinkedHashMap<String, StaticCardData> sStaticData =
+            new LinkedHashMap<String, StaticCardData>(MAX_CACHED_CARDS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, StaticCardData> eldest) {
+                    return size() > MAX_CACHED_CARDS;
+                }
+            };
+
+    private static class StaticCardData {
+        String mUserId;
+    }
+
+    private final ApduChannel mChannel;
+    private Iso7816TLV mApplicationRelatedData;
+    private String mAid;
+    private boolean mPw1ValidForMultipleSignatures;
+    private boolean mPw1VerifiedForSignature;
+    private boolean mPw1VerifiedForOther;
+    private boolean mPw3Verified;
+
+    public CardSession(ApduChannel channel) {
+        mChannel = channel;
+    }
+
+    public ApduChannel getChannel() {
+        return mChannel;
+    }
+
+    /** Returns the application related data read during this session, or null. */
+    public Iso7816TLV getApplicationRelatedData() {
+        return mApplicationRelatedData;
+    }
+
+    /**
+     * Sets the application related data read from the card. This also configures the
+     * channel for the card's capabilities.
+     */
+    public void setApplicationRelatedData(Iso7816TLV appData) {
+        mApplicationRelatedData = appData;
+        mChannel.setCardCapabilities(CardCapabilities.fromApplicationRelatedData(appData));
+
+        Iso7816TLV aid = Iso7816TLV.findRecursive(appData, TAG_AID);
+        mAid = aid != null ? Hex.toHexString(aid.mV) : null;
+
+        byte[] pwStatus = getPwStatusBytes();
+        mPw1ValidForMultipleSignatures = pwStatus != null && pwStatus[0] == 1;
+    }
+
+    /** Returns the AID of the card, or null if it is not known yet. */
+    public byte[] getAid() {
+        Iso7816TLV aid = mApplicationRelatedData != null
+                ? Iso7816TLV.findRecursive(mApplicationRelatedData, TAG_AID) : null;
+        return aid != null ? aid.mV : null;
+    }
+
+    /**
+     * Returns the PW status bytes contained in the application related data, or null if
+     * they are not known yet.
+     */
+    public byte[] getPwStatusBytes() {
+        Iso7816TLV pwStatus = mApplicationRelatedData != null
+                ? Iso7816TLV.findRecursive(mApplicationRelatedData, TAG_PW_STATUS) : null;
+        return pwStatus != null ? pwStatus.mV : null;
+    }
+
+    /**
+     * Forgets data read from the card, after it was changed. The next access reads it
+     * from the card again, in this and in later sessions.
+     */
+    public void invalidate() {
+        mApplicationRelatedData = null;
+        if (mAid != null) {
+            synchronized (sStaticData) {
+                sStaticData.remove(mAid);
+            }
+        }
+    }
+
+    public String getCachedUserId() {
+        if (mAid == null) {
+            return null;
+        }
+        synchronized (sStaticData) {
+            StaticCardData data = sStaticData.get(mAid);
+            return data != null ? data.mUserId : null;
+        }
+    }
+
+    public void setCachedUserId(String userId) {
+        if (mAid == null) {
+            return;
+        }
+        synchronized (sStaticData) {
+            StaticCardData data = sStaticData.get(mAid);
+            if (data == null) {
+                data = new StaticCardData();
+                sStaticData.put(mAid, data);
+            }
+            data.mUserId = userId;
+        }
+    }
+
+    /** Returns whether the PIN was verified for the given mode during this session. */
+    public boolean isPinVerified(int mode) {
+        switch (mode) {
+            case PW1_SIGN: return mPw1VerifiedForSignature;
+            case PW1_OTHER: return mPw1VerifiedForOther;
+            case PW3: return mPw3Verified;
+        }
+        return false;
+    }
+
+    public void setPinVerified(int mode) {
+        switch (mode) {
+            case PW1_SIGN: mPw1VerifiedForSignature = true; break;
+            case PW1_OTHER: mPw1VerifiedForOther = true; break;
+            case PW3: mPw3Verified = true; break;
+        }
+    }
+
+    /**
+     * Called after each signature. Unless the card allows PW1 to be used for multiple
+     * signatures, it has to be verified again before the next one.
+     */
+    public void onSignatureComputed() {
+        if (!mPw1ValidForMultipleSignatures) {
+            mPw1VerifiedForSignature = false;
+        }
+    }
+
+}
@@ -17,55 +17,53 @@
 
 package org.sufficientlysecure.keychain.util;
 
-public class KeyUpdateHelper {
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
 
-    /*
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.KeyRefreshService;
 
-    public void updateAllKeys(Context context, KeychainIntentServiceHandler finishedHandler) {
-        UpdateTask updateTask = new UpdateTask(context, finishedHandler);
-        updateTask.execute();
-    }
+/**
+ * Schedules the background refresh of keys from the keyserver.
+ *
+ * The alarm itself only fires once per interval and is not a wakeup alarm, the
+ * KeyRefreshService decides how many keys are actually due in each run.
+ */
+public class KeyUpdateHelper {
 
-    private class UpdateTask extends AsyncTask<Void, Void, Void> {
-        private Context mContext;
-        private KeychainIntentServiceHandler mHandler;
+    public static final long REFRESH_INTERVAL = AlarmManager.INTERVAL_HOUR;
 
-        public UpdateTask(Context context, KeychainIntentServiceHandler handler) {
-            this.mContext = context;
-            this.mHandler = handler;
+    public static void scheduleKeyRefresh(Context context) {
+        // don't push an already scheduled alarm further back on every app start
+        if (getPendingIntent(context, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
         }
 
-        @Override
-        protected Void doInBackground(Void... voids) {
-            ProviderHelper providerHelper = new ProviderHelper(mContext);
-            List<ImportKeysListEntry> keys = new ArrayList<ImportKeysListEntry>();
-            String[] servers = Preferences.getPreferences(mContext).getKeyServers();
-
-            if (servers != null && servers.length > 0) {
-                // Load all the fingerprints in the database and prepare to import them
-                for (String fprint : providerHelper.getAllFingerprints(KeychainContract.KeyRings.buildUnifiedKeyRingsUri())) {
-                    ImportKeysListEntry key = new ImportKeysListEntry();
-                    key.setFingerprintHex(fprint);
-                    key.addOrigin(servers[0]);
-                    keys.add(key);
-                }
-
-                // Start the service and update the keys
-                Intent importIntent = new Intent(mContext, KeychainService.class);
-                importIntent.setAction(KeychainService.ACTION_DOWNLOAD_AND_IMPORT_KEYS);
+        Log.d(Constants.TAG, "Scheduling background key refresh");
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + REFRESH_INTERVAL, REFRESH_INTERVAL,
+                getPendingIntent(context, 0));
+    }
 
-                Bundle importData = new Bundle();
-                importData.putParcelableArrayList(KeychainService.DOWNLOAD_KEY_LIST,
-                        new ArrayList<ImportKeysListEntry>(keys));
-                importIntent.putExtra(KeychainService.EXTRA_SERVICE_INTENT, importData);
+    public static void cancelKeyRefresh(Context context) {
+        PendingIntent pendingIntent = getPendingIntent(context, PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent == null) {
+            return;
+        }
 
-                importIntent.putExtra(KeychainService.EXTRA_MESSENGER, new Messenger(mHandler));
+        Log.d(Constants.TAG, "Cancelling background key refresh");
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(pendingIntent);
+        pendingIntent.cancel();
+    }
 
-                mContext.startService(importIntent);
-            }
-            return null;
-        }
+    private static PendingIntent getPendingIntent(Context context, int flags) {
+        Intent intent = new Intent(context, KeyRefreshService.class);
+        return PendingIntent.getService(context, 0, intent, flags);
     }
-    */
 
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of aggregated runtime metrics.
+ *
+ * Counters and latency histograms are created on first use and updated
+ * without locking, so it is safe to record from any thread, including
+ * binder threads and the provider. The aggregate is exposed through the
+ * dump() methods of our services, e.g.
+ *
+ * <pre>adb shell dumpsys activity service org.sufficientlysecure.keychain/.service.KeychainNewService</pre>
+ *
+ * Passing "--json" prints the same snapshot as JSON.
+ */
+public final class Metrics {
+
+    /** Number of power-of-two microsecond buckets, the last one is open-ended. */
+    static final int BUCKETS = 32;
+
+    private static final ConcurrentHashMap<String, AtomicLong> sCounters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> sHistograms = new ConcurrentHashMap<>();
+
+    private static final long sStartTime = SystemClock.elapsedRealtime();
+
+    private Metrics() {
+    }
+
+    public static void count(String name) {
+        count(name, 1);
+    }
+
+    public static void count(String name, long delta) {
+        AtomicLong counter = sCounters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = sCounters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    /** Records a cache lookup as name.hit or name.miss */
+    public static void cacheLookup(String name, boolean hit) {
+        count(hit ? name + ".hit" : name + ".miss");
+    }
+
+    /** Records the time elapsed since startNanos, as obtained from System.nanoTime() */
+    public static void recordSince(String name, long startNanos) {
+        recordLatency(name, System.nanoTime() - startNanos);
+    }
+
+    public static void recordLatency(String name, long nanos) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = sHistograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos / 1000);
+    }
+
+    public static long getCount(String name) {
+        AtomicLong counter = sCounters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public static Histogram getHistogram(String name) {
+        return sHistograms.get(name);
+    }
+
+    public static void reset() {
+        sCounters.clear();
+        sHistograms.clear();
+    }
+
+    /** Writes a human readable snapshot, or JSON if args contain "--json". */
+    public static void dump(PrintWriter writer, String[] args) {
+        if (args != null) {
+            for (String arg : args) {
+                if ("--json".equals(arg)) {
+                    try {
+                        writer.println(toJson().toString(2));
+                    } catch (JSONException e) {
+                        writer.println("error: " + e.getMessage());
+                    }
+                    return;
+                }
+            }
+        }
+
+        writer.println("Metrics (uptime " + (SystemClock.elapsedRealtime() - sStartTime) + " ms)");
+        writer.println("Counters:");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(sCounters).entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().get());
+        }
+        writer.println("Latencies (count, mean/p50/p90/p99/max in ms):");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(sHistograms).entrySet()) {
+            Histogram h = entry.getValue();
+            writer.println(String.format("  %s: %d, %.1f/%.1f/%.1f/%.1f/%.1f", entry.getKey(),
+                    h.getCount(), h.getMeanMicros() / 1000.0, h.getPercentileMicros(50) / 1000.0,
+                    h.getPercentileMicros(90) / 1000.0, h.getPercentileMicros(99) / 1000.0,
+                    h.getMaxMicros() / 1000.0));
+        }
+    }
+
+    public static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("uptime_ms", SystemClock.elapsedRealtime() - sStartTime);
+
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(sCounters).entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("counters", counters);
+
+        JSONObject latencies = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(sHistograms).entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().toJson());
+        }
+        json.put("latencies", latencies);
+
+        return json;
+    }
+
+    /**
+     * Latency histogram with power-of-two microsecond buckets. Bucket i holds
+     * values in [2^i, 2^(i+1)) us, bucket 0 additionally holds everything
+     * below 1 us. Percentiles are reported as the upper bound of their bucket,
+     * capped by the observed maximum.
+     */
+    public static final class Histogram {
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        void record(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            mBuckets.incrementAndGet(bucketFor(micros));
+            mSum.addAndGet(micros);
+            mCount.incrementAndGet();
+            long max;
+            do {
+                max = mMax.get();
+            } while (micros > max && !mMax.compareAndSet(max, micros));
+        }
+
+        static int bucketFor(long micros) {
+            int bucket = 63 - Long.numberOfLeadingZeros(micros);
+            return Math.max(0, Math.min(BUCKETS - 1, bucket));
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMaxMicros() {
+            return mMax.get();
+        }
+
+        public long getMeanMicros() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        public long getPercentileMicros(int percentile) {
+            long total = 0;
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                total += buckets[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= threshold) {
+                    return Math.min((1L << (i + 1)) - 1, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("sum_us", mSum.get());
+            json.put("max_us", getMaxMicros());
+            json.put("p50_us", getPercentileMicros(50));
+            json.put("p90_us", getPercentileMicros(90));
+            json.put("p99_us", getPercentileMicros(99));
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.put(mBuckets.get(i));
+            }
+            json.put("buckets", buckets);
+            return json;
+        }
+    }
+
+}
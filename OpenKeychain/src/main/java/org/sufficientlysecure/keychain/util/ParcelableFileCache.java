@@ -23,7 +23,11 @@ import android.os.Parcelable;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -32,7 +36,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
 
 /**
  * When sending large data (over 1MB) through Androids Binder IPC you get
@@ -40,9 +51,22 @@ import java.util.Iterator;
  * <p/>
  * To overcome this problem, we cache large Parcelables into a file in our private cache directory
  * instead of sending them through IPC.
+ * <p/>
+ * The file starts with a header of magic, version and number of entries. Each entry is stored
+ * as length, CRC32 and the marshalled Parcel. An index of entry offsets follows the entries,
+ * terminated by a trailer pointing to it. Files are memory mapped for reading, which allows
+ * random access from several threads through openCache(). If the trailer is missing because
+ * writing was interrupted, the entries are recovered by a scan which stops at the first entry
+ * failing its checksum. Files in the old format without header are still read sequentially.
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    private static final int MAGIC = 0x4f4b5043; // "OKPC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 16;
+
     private Context mContext;
 
     private final String mFilename;
@@ -52,34 +76,63 @@ public class ParcelableFileCache<E extends Parcelable> {
         mFilename = filename;
     }
 
-    public void writeCache(IteratorWithSize<E> it) throws IOException {
-        writeCache(it.getSize(), it);
-    }
-
-    public void writeCache(int numEntries, Iterator<E> it) throws IOException {
-
+    private File getFile() throws IOException {
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
             // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
             throw new IOException("cache dir is null!");
         }
+        return new File(cacheDir, mFilename);
+    }
 
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
+    public void writeCache(IteratorWithSize<E> it) throws IOException {
+        writeCache(it.getSize(), it);
+    }
+
+    public void writeCache(int numEntries, Iterator<E> it) throws IOException {
 
+        File tempFile = getFile();
 
-        DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
+        DataOutputStream oos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
 
         try {
+            oos.writeInt(MAGIC);
+            oos.writeInt(VERSION);
             oos.writeInt(numEntries);
 
+            long offset = HEADER_SIZE;
+            long[] index = new long[Math.max(numEntries, 16)];
+            int count = 0;
+            CRC32 crc = new CRC32();
+
             while (it.hasNext()) {
                 Parcel p = Parcel.obtain(); // creating empty parcel object
                 p.writeParcelable(it.next(), 0); // saving bundle as parcel
                 byte[] buf = p.marshall();
+                p.recycle();
+
+                crc.reset();
+                crc.update(buf, 0, buf.length);
                 oos.writeInt(buf.length);
+                oos.writeInt((int) crc.getValue());
                 oos.write(buf);
-                p.recycle();
+
+                if (count == index.length) {
+                    long[] newIndex = new long[count * 2];
+                    System.arraycopy(index, 0, newIndex, 0, count);
+                    index = newIndex;
+                }
+                index[count++] = offset;
+                offset += ENTRY_HEADER_SIZE + buf.length;
             }
+
+            for (int i = 0; i < count; i++) {
+                oos.writeLong(index[i]);
+            }
+            oos.writeLong(offset);
+            oos.writeInt(count);
+            oos.writeInt(MAGIC);
         } finally {
             oos.close();
         }
@@ -102,15 +155,315 @@ public class ParcelableFileCache<E extends Parcelable> {
      * @throws IOException if cache directory/parcel import file does not exist, or a read error
      * occurs
      */
-    public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
+    public IteratorWithSize<E> readCache(boolean deleteAfterRead) throws IOException {
+        return readCache(deleteAfterRead, null, 0);
+    }
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
+    /**
+     * Like readCache(boolean), but entries which are skipped because they failed their checksum
+     * or were lost from an incomplete file are reported to the given log.
+     * @param log the log to report skipped entries to, may be null
+     * @param indent indentation of the reported entries
+     */
+    public IteratorWithSize<E> readCache(final boolean deleteAfterRead,
+            final OperationLog log, final int indent) throws IOException {
+
+        final File tempFile = getFile();
+        if (!isIndexed(tempFile)) {
+            return readLegacyCache(tempFile, deleteAfterRead);
+        }
+
+        final MappedCache<E> cache = new MappedCache<>(tempFile);
+        final int size = cache.getSize();
+
+        return new IteratorWithSize<E>() {
+
+            int mPosition = 0;
+            E mNext = null;
+            boolean mLostReported = false;
+            boolean closed = false;
+
+            public int getSize() {
+                return size;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (!mLostReported && log != null && cache.getExpectedSize() > size) {
+                    // reported once reading starts, so it ends up within the reader's log
+                    log.add(LogType.MSG_CACHE_WARN_LOST, indent, cache.getExpectedSize() - size);
+                }
+                mLostReported = true;
+                // entries failing their checksum are skipped
+                while (mNext == null && !closed && mPosition < size) {
+                    int position = mPosition++;
+                    mNext = cache.get(position);
+                    if (mNext == null && log != null) {
+                        log.add(LogType.MSG_CACHE_WARN_CHECKSUM, indent, position);
+                    }
+                }
+                if (mNext == null) {
+                    close();
+                }
+                return mNext != null;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return mNext;
+                } finally {
+                    mNext = null;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void close() {
+                if (!closed) {
+                    cache.close();
+                    if (deleteAfterRead) {
+                        //noinspection ResultOfMethodCallIgnored
+                        tempFile.delete();
+                    }
+                }
+                closed = true;
+            }
+
+        };
+    }
+
+    /**
+     * Opens the cache file for random access. The returned MappedCache may be used from several
+     * threads, the file is not deleted. It must be closed once it is no longer used.
+     */
+    public MappedCache<E> openCache() throws IOException {
+        File tempFile = getFile();
+        if (!isIndexed(tempFile)) {
+            throw new IOException("cache file is not in indexed format");
+        }
+        return new MappedCache<>(tempFile);
+    }
+
+    private static boolean isIndexed(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "parcel import file not existing", e);
+            throw new IOException(e);
+        }
+        try {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Random access to the entries of a cache file. All reads are done with absolute offsets
+     * on the mapped file, so instances are safe to use from multiple threads. Files larger
+     * than 2GB cannot be mapped into a single buffer and are rejected.
+     */
+    public static class MappedCache<E extends Parcelable> implements Closeable {
+
+        private final RandomAccessFile mFile;
+        private volatile ByteBuffer mBuffer;
+        private final long[] mOffsets;
+        private final int mExpectedSize;
+        private final boolean mRecovered;
+
+        MappedCache(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = mFile.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("cache file too large");
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mBuffer = buffer.asReadOnlyBuffer();
+
+                if (mBuffer.limit() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC
+                        || mBuffer.getInt(4) != VERSION) {
+                    throw new IOException("bad cache file header");
+                }
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+            mExpectedSize = mBuffer.getInt(8);
+
+            long[] offsets = readIndex();
+            mRecovered = offsets == null;
+            if (offsets == null) {
+                Log.w(Constants.TAG, "cache file index missing, recovering entries");
+                offsets = scanEntries();
+            }
+            mOffsets = offsets;
+        }
+
+        /** Reads the index via the trailer, returns null if it is missing or inconsistent */
+        private long[] readIndex() {
+            ByteBuffer buffer = mBuffer;
+            int limit = buffer.limit();
+            if (limit < HEADER_SIZE + TRAILER_SIZE || buffer.getInt(limit - 4) != MAGIC) {
+                return null;
+            }
+            long indexOffset = buffer.getLong(limit - TRAILER_SIZE);
+            int count = buffer.getInt(limit - 8);
+            if (count < 0 || indexOffset < HEADER_SIZE || indexOffset > limit - TRAILER_SIZE
+                    || indexOffset + 8L * count != limit - TRAILER_SIZE) {
+                return null;
+            }
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                long offset = buffer.getLong((int) indexOffset + 8 * i);
+                // every entry must lie between the header and the index
+                if (offset < HEADER_SIZE || offset > indexOffset - ENTRY_HEADER_SIZE) {
+                    return null;
+                }
+                int length = buffer.getInt((int) offset);
+                if (length < 0 || offset + ENTRY_HEADER_SIZE + length > indexOffset) {
+                    return null;
+                }
+                offsets[i] = offset;
+            }
+            return offsets;
+        }
+
+        /** Finds entries by walking their lengths, up to the first one failing its checksum */
+        private long[] scanEntries() {
+            ByteBuffer buffer = mBuffer;
+            long limit = buffer.limit();
+            ArrayList<Long> offsets = new ArrayList<>();
+            long offset = HEADER_SIZE;
+            while (offset + ENTRY_HEADER_SIZE <= limit) {
+                int length = buffer.getInt((int) offset);
+                if (length < 0 || offset + ENTRY_HEADER_SIZE + length > limit
+                        || !checksumMatches(buffer, (int) offset)) {
+                    break;
+                }
+                offsets.add(offset);
+                offset += ENTRY_HEADER_SIZE + length;
+            }
+            long[] result = new long[offsets.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = offsets.get(i);
+            }
+            return result;
         }
 
-        final File tempFile = new File(cacheDir, mFilename);
+        private static boolean checksumMatches(ByteBuffer buffer, int offset) {
+            ByteBuffer data = sliceAt(buffer, offset);
+            CRC32 crc = new CRC32();
+            if (data.hasArray()) {
+                crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+                while (data.hasRemaining()) {
+                    int length = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, length);
+                    crc.update(chunk, 0, length);
+                }
+            }
+            return (int) crc.getValue() == buffer.getInt(offset + 4);
+        }
+
+        private static ByteBuffer sliceAt(ByteBuffer buffer, int offset) {
+            ByteBuffer data = buffer.duplicate();
+            data.position(offset + ENTRY_HEADER_SIZE);
+            data.limit(offset + ENTRY_HEADER_SIZE + buffer.getInt(offset));
+            return data.slice();
+        }
+
+        private ByteBuffer getBuffer() {
+            ByteBuffer buffer = mBuffer;
+            if (buffer == null) {
+                throw new IllegalStateException("cache is closed");
+            }
+            return buffer;
+        }
+
+        /** Number of entries available */
+        public int getSize() {
+            return mOffsets.length;
+        }
+
+        /** Number of entries the file was written with, more than getSize() if some were lost */
+        public int getExpectedSize() {
+            return mExpectedSize;
+        }
+
+        /** True if the index was missing and entries had to be recovered by scanning */
+        public boolean isRecovered() {
+            return mRecovered;
+        }
+
+        /**
+         * Returns the marshalled Parcel of an entry as a read-only view on the mapped file,
+         * without copying it. The checksum is not verified.
+         */
+        public ByteBuffer getMarshalled(int index) {
+            return sliceAt(getBuffer(), (int) mOffsets[index]);
+        }
+
+        /**
+         * Returns the entry at index, or null if it fails its checksum.
+         * @throws IllegalStateException if the cache has been closed
+         */
+        public E get(int index) {
+            ByteBuffer buffer = getBuffer();
+            int offset = (int) mOffsets[index];
+            if (!mRecovered && !checksumMatches(buffer, offset)) {
+                // recovered entries have been verified during the scan
+                Log.e(Constants.TAG, "checksum mismatch in cache entry " + index);
+                return null;
+            }
+
+            ByteBuffer data = sliceAt(buffer, offset);
+            // Parcel can only unmarshall from an array, this is the single copy of the entry
+            byte[] buf = new byte[data.remaining()];
+            data.get(buf);
+
+            Parcel parcel = Parcel.obtain(); // creating empty parcel object
+            try {
+                parcel.unmarshall(buf, 0, buf.length);
+                parcel.setDataPosition(0);
+                return parcel.readParcelable(KeychainApplication.class.getClassLoader());
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Closes the file and drops the reference to the mapping. There is no way to unmap
+         * a buffer explicitly, the mapping itself is released once it is garbage collected.
+         */
+        @Override
+        public void close() {
+            mBuffer = null;
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error closing cache file", e);
+            }
+        }
+
+    }
+
+    /** Reads a file written in the format prior to the indexed one. */
+    private IteratorWithSize<E> readLegacyCache(final File tempFile, final boolean deleteAfterRead)
+            throws IOException {
+
         final DataInputStream ois;
         try {
             ois = new DataInputStream(new FileInputStream(tempFile));
@@ -205,15 +558,7 @@ public class ParcelableFileCache<E extends Parcelable> {
     }
 
     public boolean delete() throws IOException {
-
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        final File tempFile = new File(cacheDir, mFilename);
-        return tempFile.delete();
+        return getFile().delete();
     }
 
     /** As the name implies, this is an extended iterator interface, which
@@ -95,6 +95,16 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean isSessionKeyCacheEnabled() {
+        return mSharedPreferences.getBoolean(Pref.SESSION_KEY_CACHE, false);
+    }
+
+    public void setSessionKeyCacheEnabled(boolean enabled) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.SESSION_KEY_CACHE, enabled);
+        editor.commit();
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -224,6 +234,69 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.ENCRYPT_FILENAMES, true);
     }
 
+    public boolean isKeyRefreshEnabled() {
+        return mSharedPreferences.getBoolean(Pref.KEY_REFRESH_ENABLED, false);
+    }
+
+    public void setKeyRefreshEnabled(boolean enabled) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.KEY_REFRESH_ENABLED, enabled);
+        editor.commit();
+    }
+
+    /** Time in days over which all keys should be refreshed once */
+    public int getKeyRefreshWindow() {
+        return mSharedPreferences.getInt(Pref.KEY_REFRESH_WINDOW, 7);
+    }
+
+    public void setKeyRefreshWindow(int days) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.KEY_REFRESH_WINDOW, days);
+        editor.commit();
+    }
+
+    public boolean isKeyPairPoolEnabled() {
+        return mSharedPreferences.getBoolean(Pref.KEY_PAIR_POOL_ENABLED, false);
+    }
+
+    public void setKeyPairPoolEnabled(boolean enabled) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.KEY_PAIR_POOL_ENABLED, enabled);
+        editor.commit();
+    }
+
+    /** How often each key type was generated, see KeyPairPool.getDemand */
+    public String getKeyPairPoolDemand() {
+        return mSharedPreferences.getString(Pref.KEY_PAIR_POOL_DEMAND, null);
+    }
+
+    public void setKeyPairPoolDemand(String demand) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(Pref.KEY_PAIR_POOL_DEMAND, demand);
+        editor.commit();
+    }
+
+    /** Encoded S2K count calibrated for this device, or 0 if not calibrated yet */
+    public int getS2kCount() {
+        return mSharedPreferences.getInt(Pref.S2K_COUNT, 0);
+    }
+
+    public void setS2kCount(int count) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.S2K_COUNT, count);
+        editor.commit();
+    }
+
+    public long getS2kCalibrationTime() {
+        return mSharedPreferences.getLong(Pref.S2K_CALIBRATION_TIME, 0);
+    }
+
+    public void setS2kCalibrationTime(long time) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putLong(Pref.S2K_CALIBRATION_TIME, time);
+        editor.commit();
+    }
+
     public CloudSearchPrefs getCloudSearchPrefs() {
         return new CloudSearchPrefs(mSharedPreferences.getBoolean(Pref.SEARCH_KEYSERVER, true),
                 mSharedPreferences.getBoolean(Pref.SEARCH_KEYBASE, true),
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.util.BufferRing.Chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the wrapped stream on a separate thread, a few buffers ahead of the consumer, so
+ * slow storage reads overlap with the processing of the data already read.
+ *
+ * The wrapped stream is not closed by close(), but it must not be used after this stream
+ * has been created.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private final BufferRing mRing;
+    private final Thread mReader;
+    private volatile IOException mReadException;
+
+    private Chunk mCurrent;
+    private boolean mEnd;
+
+    public ReadAheadInputStream(final InputStream in, int bufferCount, int bufferSize) {
+        mRing = new BufferRing(bufferCount, bufferSize);
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Chunk chunk = mRing.takeFree();
+                        int length = in.read(chunk.mData);
+                        if (length < 0) {
+                            mRing.putFree(chunk);
+                            break;
+                        }
+                        chunk.mLength = length;
+                        mRing.putFilled(chunk);
+                    }
+                } catch (IOException e) {
+                    mReadException = e;
+                }
+                mRing.putFilled(BufferRing.END);
+            }
+        }, "ReadAheadInputStream");
+        mReader.start();
+    }
+
+    /** Makes the next chunk current, returns false at the end of the stream. */
+    private boolean nextChunk() throws IOException {
+        if (mEnd) {
+            return false;
+        }
+        if (mCurrent != null && mCurrent.mPosition < mCurrent.mLength) {
+            return true;
+        }
+        if (mCurrent != null) {
+            mRing.putFree(mCurrent);
+            mCurrent = null;
+        }
+        Chunk chunk = mRing.takeFilled();
+        if (chunk == BufferRing.END) {
+            mEnd = true;
+            if (mReadException != null) {
+                throw mReadException;
+            }
+            return false;
+        }
+        mCurrent = chunk;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return mCurrent.mData[mCurrent.mPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(length, mCurrent.mLength - mCurrent.mPosition);
+        System.arraycopy(mCurrent.mData, mCurrent.mPosition, b, offset, count);
+        mCurrent.mPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return mCurrent == null ? 0 : mCurrent.mLength - mCurrent.mPosition;
+    }
+
+    /** Stops the reader thread. */
+    @Override
+    public void close() {
+        mEnd = true;
+        mReader.interrupt();
+    }
+
+}
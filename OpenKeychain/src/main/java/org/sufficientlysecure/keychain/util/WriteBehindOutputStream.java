@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.util.BufferRing.Chunk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Writes to the wrapped stream on a separate thread, so slow storage writes overlap with
+ * producing the next data. Write errors are reported by a later write, or by finish() at
+ * the latest.
+ *
+ * The wrapped stream is not closed, finish() has to be called to write out all data. If
+ * the producer fails, abort() must be called instead so the writer thread terminates.
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+    private final BufferRing mRing;
+    private final Thread mWriter;
+    private volatile IOException mWriteException;
+    private volatile boolean mAborted;
+
+    private Chunk mCurrent;
+    private boolean mFinished;
+
+    public WriteBehindOutputStream(final OutputStream out, int bufferCount, int bufferSize) {
+        mRing = new BufferRing(bufferCount, bufferSize);
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Chunk chunk = mRing.takeFilled();
+                        if (chunk == BufferRing.END) {
+                            break;
+                        }
+                        // after an error or abort, just recycle buffers so the producer doesn't block
+                        if (mWriteException == null && !mAborted) {
+                            try {
+                                out.write(chunk.mData, 0, chunk.mLength);
+                            } catch (IOException e) {
+                                mWriteException = e;
+                            }
+                        }
+                        mRing.putFree(chunk);
+                    }
+                    if (mWriteException == null && !mAborted) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    mWriteException = e;
+                }
+            }
+        }, "WriteBehindOutputStream");
+        mWriter.start();
+    }
+
+    private void checkState() throws IOException {
+        if (mFinished) {
+            throw new IOException("stream already finished");
+        }
+        if (mWriteException != null) {
+            throw mWriteException;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        checkState();
+        while (length > 0) {
+            if (mCurrent == null) {
+                mCurrent = mRing.takeFree();
+            }
+            int count = Math.min(length, mCurrent.mData.length - mCurrent.mLength);
+            System.arraycopy(b, offset, mCurrent.mData, mCurrent.mLength, count);
+            mCurrent.mLength += count;
+            offset += count;
+            length -= count;
+            if (mCurrent.mLength == mCurrent.mData.length) {
+                mRing.putFilled(mCurrent);
+                mCurrent = null;
+            }
+        }
+    }
+
+    /**
+     * Hands all remaining data to the writer thread and waits until it has been written
+     * to the wrapped stream.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        if (mCurrent != null && mCurrent.mLength > 0) {
+            mRing.putFilled(mCurrent);
+        }
+        mCurrent = null;
+        mRing.putFilled(BufferRing.END);
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            mWriter.interrupt();
+            throw new InterruptedIOException();
+        }
+        if (mWriteException != null) {
+            throw mWriteException;
+        }
+    }
+
+    /**
+     * Discards all data which has not been written yet and lets the writer thread terminate,
+     * without waiting for it. Does nothing if the stream has already been finished.
+     */
+    public void abort() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mAborted = true;
+        mCurrent = null;
+        mRing.putFilled(BufferRing.END);
+    }
+
+    /** Same as finish(), the wrapped stream is left open. */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+}
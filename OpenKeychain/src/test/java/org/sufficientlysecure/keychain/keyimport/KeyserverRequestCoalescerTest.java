@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.Keyserver.QueryFailedException;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyserverRequestCoalescerTest {
+
+    /** Answers each get with the query, after it is released */
+    static class BlockingKeyserver extends Keyserver {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final AtomicInteger mRequests = new AtomicInteger();
+        boolean mFail;
+
+        @Override
+        public List<ImportKeysListEntry> search(String query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String get(String keyIdHex) throws QueryFailedException {
+            mRequests.incrementAndGet();
+            mStarted.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new QueryFailedException("interrupted");
+            }
+            if (mFail) {
+                throw new QueryFailedException("not found");
+            }
+            return "data for " + keyIdHex;
+        }
+
+        @Override
+        public void add(String armoredKey) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    static class Fetch extends Thread {
+        final Keyserver mKeyserver;
+        final String mQuery;
+        String mResult;
+        String mError;
+
+        Fetch(Keyserver keyserver, String query) {
+            mKeyserver = keyserver;
+            mQuery = query;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mResult = KeyserverRequestCoalescer.get(mKeyserver, "hkp://test", mQuery);
+            } catch (QueryFailedException e) {
+                mError = e.getMessage();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsAreShared() throws Exception {
+        BlockingKeyserver keyserver = new BlockingKeyserver();
+
+        Fetch first = new Fetch(keyserver, "0xABCD");
+        first.start();
+        Assert.assertTrue("first request should start",
+                keyserver.mStarted.await(5, TimeUnit.SECONDS));
+
+        // same key in different case, while the first request is still in flight
+        Fetch second = new Fetch(keyserver, "0xabcd");
+        second.start();
+        waitUntilWaiting(second);
+
+        keyserver.mRelease.countDown();
+        first.join();
+        second.join();
+
+        Assert.assertEquals("keyserver should be queried only once", 1, keyserver.mRequests.get());
+        Assert.assertEquals("first caller should get the data", "data for 0xABCD", first.mResult);
+        Assert.assertEquals("second caller should get the same data", first.mResult, second.mResult);
+
+        // the request is done, a new one goes to the keyserver again
+        Assert.assertEquals("data for 0xabcd",
+                KeyserverRequestCoalescer.get(keyserver, "hkp://test", "0xabcd"));
+        Assert.assertEquals("finished requests should not be shared", 2, keyserver.mRequests.get());
+    }
+
+    @Test
+    public void testErrorsAreShared() throws Exception {
+        BlockingKeyserver keyserver = new BlockingKeyserver();
+        keyserver.mFail = true;
+
+        Fetch first = new Fetch(keyserver, "0x1234");
+        first.start();
+        Assert.assertTrue("first request should start",
+                keyserver.mStarted.await(5, TimeUnit.SECONDS));
+        Fetch second = new Fetch(keyserver, "0x1234");
+        second.start();
+        waitUntilWaiting(second);
+
+        keyserver.mRelease.countDown();
+        first.join();
+        second.join();
+
+        Assert.assertEquals("keyserver should be queried only once", 1, keyserver.mRequests.get());
+        Assert.assertEquals("not found", first.mError);
+        Assert.assertEquals("waiting caller should get the same error", "not found", second.mError);
+    }
+
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 500 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("second caller should wait for the first request",
+                Thread.State.WAITING, thread.getState());
+    }
+
+}
@@ -53,12 +53,14 @@ import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
 public class CertifyOperationTest {
 
-    static UncachedKeyRing mStaticRing1, mStaticRing2;
+    static UncachedKeyRing mStaticRing1, mStaticRing2, mStaticRing3;
     static Passphrase mKeyPhrase1 = TestingUtils.genPassphrase(true);
     static Passphrase mKeyPhrase2 = TestingUtils.genPassphrase(true);
 
@@ -116,6 +118,20 @@ public class CertifyOperationTest {
             mStaticRing2 = result.getRing();
         }
 
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("dazz");
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+            mStaticRing3 = result.getRing();
+        }
+
     }
 
     @Before
@@ -127,6 +143,7 @@ public class CertifyOperationTest {
 
         providerHelper.saveSecretKeyRing(mStaticRing1, new ProgressScaler());
         providerHelper.savePublicKeyRing(mStaticRing2.extractPublicKeyRing(), new ProgressScaler());
+        providerHelper.savePublicKeyRing(mStaticRing3.extractPublicKeyRing(), new ProgressScaler());
 
         // ok NOW log verbosely!
         ShadowLog.stream = System.out;
@@ -171,6 +188,89 @@ public class CertifyOperationTest {
 
     }
 
+    @Test
+    public void testCertifyMultiple() throws Exception {
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        ArrayList<String> uids = new ArrayList<String>();
+        uids.add("nonexistent");
+        actions.add(new CertifyAction(1234L, uids));
+        actions.add(new CertifyAction(mStaticRing3.getMasterKeyId(),
+                mStaticRing3.getPublicKey().getUnorderedUserIds()));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(mKeyPhrase1));
+
+        Assert.assertTrue("certification must succeed", result.success());
+        Assert.assertTrue("must contain error msg about not found",
+                result.getLog().containsType(LogType.MSG_CRT_WARN_NOT_FOUND));
+
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        Assert.assertEquals("first key must be verified now", Certs.VERIFIED_SECRET,
+                providerHelper.getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId()).getVerified());
+        Assert.assertEquals("second key must be verified now", Certs.VERIFIED_SECRET,
+                providerHelper.getCanonicalizedPublicKeyRing(mStaticRing3.getMasterKeyId()).getVerified());
+
+    }
+
+    @Test
+    public void testCertifyCancelled() throws Exception {
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, new AtomicBoolean(true));
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(mKeyPhrase1));
+
+        Assert.assertTrue("cancelled certification must report cancellation",
+                result.cancelled());
+        Assert.assertTrue("cancellation must be logged",
+                result.getLog().containsType(LogType.MSG_OPERATION_CANCELLED));
+
+        CanonicalizedPublicKeyRing ring = new ProviderHelper(RuntimeEnvironment.application)
+                .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+        Assert.assertEquals("key must not be certified after cancellation",
+                Certs.UNVERIFIED, ring.getVerified());
+    }
+
+    @Test
+    public void testCertifyCancelledDuringBatch() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+        // cancelled once the first certifications are queued
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, new AtomicBoolean(false)) {
+            @Override
+            protected boolean checkCancelled() {
+                return checks.incrementAndGet() > 2;
+            }
+        };
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        actions.add(new CertifyAction(mStaticRing3.getMasterKeyId(),
+                mStaticRing3.getPublicKey().getUnorderedUserIds()));
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(mKeyPhrase1));
+
+        Assert.assertTrue("certification cancelled during the batch must report cancellation",
+                result.cancelled());
+        Assert.assertTrue("cancellation must be logged",
+                result.getLog().containsType(LogType.MSG_OPERATION_CANCELLED));
+
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        Assert.assertEquals("no certification of a cancelled batch must be saved",
+                Certs.UNVERIFIED, providerHelper
+                        .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId()).getVerified());
+        Assert.assertEquals("no certification of a cancelled batch must be saved",
+                Certs.UNVERIFIED, providerHelper
+                        .getCanonicalizedPublicKeyRing(mStaticRing3.getMasterKeyId()).getVerified());
+    }
+
     @Test
     public void testCertifyAttribute() throws Exception {
         CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
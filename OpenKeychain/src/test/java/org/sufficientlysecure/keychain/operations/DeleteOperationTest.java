@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.operations;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.DeleteResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.io.PrintStream;
+import java.security.Security;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class DeleteOperationTest {
+
+    static UncachedKeyRing mStaticRing1, mStaticRing2, mStaticRing3;
+    static Passphrase mKeyPhrase1 = TestingUtils.genPassphrase(true);
+
+    static PrintStream oldShadowStream;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        oldShadowStream = ShadowLog.stream;
+        // ShadowLog.stream = System.out;
+
+        mStaticRing1 = createKeyRing("derp", mKeyPhrase1);
+        mStaticRing2 = createKeyRing("ditz", new Passphrase());
+        mStaticRing3 = createKeyRing("dazz", new Passphrase());
+    }
+
+    private static UncachedKeyRing createKeyRing(String userId, Passphrase passphrase) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+        return result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        // don't log verbosely here, we're not here to test imports
+        ShadowLog.stream = oldShadowStream;
+
+        providerHelper.saveSecretKeyRing(mStaticRing1, new ProgressScaler());
+        providerHelper.savePublicKeyRing(mStaticRing2.extractPublicKeyRing(), new ProgressScaler());
+        providerHelper.savePublicKeyRing(mStaticRing3.extractPublicKeyRing(), new ProgressScaler());
+
+        // ok NOW log verbosely!
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testDeleteCertifier() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                providerHelper, null, null);
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        Assert.assertTrue("certification must succeed",
+                op.execute(actions, new CryptoInputParcel(mKeyPhrase1)).success());
+
+        DeleteResult result = new DeleteOperation(RuntimeEnvironment.application,
+                providerHelper, null).execute(new long[] { mStaticRing1.getMasterKeyId() }, true);
+        Assert.assertTrue("deletion must succeed", result.success());
+        Assert.assertEquals("one key must be deleted", 1, result.mOk);
+
+        Assert.assertEquals("certified key must not be verified after certifier is deleted",
+                Certs.UNVERIFIED, providerHelper
+                        .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId()).getVerified());
+
+    }
+
+    @Test
+    public void testDeleteMultiple() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+
+        // deleting several keys at once, including one we don't have
+        DeleteResult result = new DeleteOperation(RuntimeEnvironment.application,
+                providerHelper, null).execute(new long[] { mStaticRing2.getMasterKeyId(), 1234L,
+                        mStaticRing3.getMasterKeyId() }, false);
+        Assert.assertEquals("two keys must be deleted", 2, result.mOk);
+        Assert.assertEquals("one key must fail", 1, result.mFail);
+        Assert.assertTrue("must contain error msg about failed key",
+                result.getLog().containsType(LogType.MSG_DEL_KEY_FAIL));
+        Assert.assertEquals("no keys must be left",
+                0, providerHelper.getCanonicalizedPublicKeyRings(new long[] {
+                        mStaticRing2.getMasterKeyId(), mStaticRing3.getMasterKeyId() }).size());
+        Assert.assertNotNull("other keys must be left alone",
+                providerHelper.getCanonicalizedPublicKeyRing(mStaticRing1.getMasterKeyId()));
+
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.operations;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.WrappedSignature;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+
+/** Tests for ImportExportOperation.mergeByFingerprint */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ImportTest {
+
+    static UncachedKeyRing mStaticRing1, mStaticRing2;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        PgpKeyOperation op = new PgpKeyOperation(null);
+
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("derp");
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mStaticRing1 = result.getRing();
+        }
+
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("ditz");
+            parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            mStaticRing2 = result.getRing();
+        }
+
+    }
+
+    @Test
+    public void testMergeKeepsCertifications() throws Exception {
+
+        // the public ring of the first key, certified by the second one
+        UncachedKeyRing certified;
+        {
+            UncachedKeyRing pubRing = mStaticRing1.extractPublicKeyRing();
+            CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(
+                    pubRing.getEncoded(), 0);
+            CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(
+                    mStaticRing2.getEncoded(), false, 0).getSecretKey();
+            secretKey.unlock(new Passphrase());
+            CertifyAction action = new CertifyAction(pubRing.getMasterKeyId(),
+                    publicRing.getPublicKey().getUnorderedUserIds());
+            PgpCertifyResult result = new PgpCertifyOperation().certify(
+                    secretKey, publicRing, new OperationLog(), 0, action, null, new Date());
+            Assert.assertTrue("certification must succeed", result.success());
+            certified = result.getCertifiedRing();
+        }
+        Assert.assertTrue("certified ring must contain the certification",
+                hasCertificationBy(certified, mStaticRing2.getMasterKeyId()));
+
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        entries.add(new ParcelableKeyRing(mStaticRing1.getEncoded()));
+        entries.add(new ParcelableKeyRing(certified.getEncoded()));
+
+        ArrayList<ParcelableKeyRing> merged = ImportExportOperation.mergeByFingerprint(entries);
+        Assert.assertEquals("public and secret part should stay separate", 2, merged.size());
+
+        UncachedKeyRing publicRing = UncachedKeyRing.decodeFromData(merged.get(0).mBytes);
+        UncachedKeyRing secretRing = UncachedKeyRing.decodeFromData(merged.get(1).mBytes);
+        Assert.assertFalse("public part should come first", publicRing.isSecret());
+        Assert.assertTrue("secret part should come second", secretRing.isSecret());
+        Assert.assertTrue("third-party certification must be kept",
+                hasCertificationBy(publicRing, mStaticRing2.getMasterKeyId()));
+        Assert.assertArrayEquals("secret part should be unchanged",
+                mStaticRing1.getEncoded(), secretRing.getEncoded());
+
+    }
+
+    @Test
+    public void testMergeReferencesAndOrder() throws Exception {
+
+        UncachedKeyRing pubRing1 = mStaticRing1.extractPublicKeyRing();
+        UncachedKeyRing pubRing2 = mStaticRing2.extractPublicKeyRing();
+        String fingerprint1 = KeyFormattingUtils.convertFingerprintToHex(pubRing1.getFingerprint());
+
+        ArrayList<ParcelableKeyRing> entries = new ArrayList<>();
+        entries.add(new ParcelableKeyRing(fingerprint1.toUpperCase(), null, null));
+        entries.add(new ParcelableKeyRing(pubRing2.getEncoded()));
+        entries.add(new ParcelableKeyRing(pubRing1.getEncoded()));
+        entries.add(new ParcelableKeyRing(fingerprint1, null, "derp"));
+        entries.add(new ParcelableKeyRing(null, "0x1234567812345678", null));
+
+        ArrayList<ParcelableKeyRing> merged = ImportExportOperation.mergeByFingerprint(entries);
+        Assert.assertEquals("entries of the first key should be coalesced", 3, merged.size());
+
+        ParcelableKeyRing first = merged.get(0);
+        Assert.assertNotNull("references should be attached to the data", first.mBytes);
+        Assert.assertEquals("data should be that of the first key", pubRing1.getMasterKeyId(),
+                UncachedKeyRing.decodeFromData(first.mBytes).getMasterKeyId());
+        Assert.assertNotNull("data should be marked for keyserver update", first.mKeyIdHex);
+        Assert.assertEquals("keybase reference should be kept", "derp", first.mKeybaseName);
+        Assert.assertTrue("expected fingerprint should be kept",
+                fingerprint1.equalsIgnoreCase(first.mExpectedFingerprint));
+
+        Assert.assertEquals("order of the other entries should be kept", pubRing2.getMasterKeyId(),
+                UncachedKeyRing.decodeFromData(merged.get(1).mBytes).getMasterKeyId());
+        Assert.assertEquals("reference without fingerprint should be passed through",
+                "0x1234567812345678", merged.get(2).mKeyIdHex);
+
+    }
+
+    private static boolean hasCertificationBy(UncachedKeyRing ring, long keyId) {
+        Iterator<WrappedSignature> it = ring.getPublicKey().getSignatures();
+        while (it.hasNext()) {
+            if (it.next().getKeyId() == keyId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.List;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationLogTest {
+
+    @Test
+    public void testRepeatedLines() {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 3);
+        for (int i = 0; i < 3; i++) {
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x1234");
+        }
+        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x5678");
+
+        List<LogEntryParcel> entries = log.toList();
+        Assert.assertEquals("repeated lines should be collapsed", 4, entries.size());
+        Assert.assertEquals("repeat should follow the line", LogType.MSG_LOG_REPEATED, entries.get(2).mType);
+        Assert.assertEquals("repeat count should be the first parameter", 2, entries.get(2).mParameters[0]);
+        Assert.assertEquals("parameters should be retained", "0x5678", entries.get(3).mParameters[0]);
+        Assert.assertEquals("last entry should be the last added one",
+                "0x5678", log.getLast().mParameters[0]);
+    }
+
+    @Test
+    public void testParcel() {
+        OperationLog subLog = new OperationLog();
+        subLog.add(LogType.MSG_IP, 0);
+        subLog.add(LogType.MSG_IP_PREPARE, 1);
+        DeleteResult subResult = new DeleteResult(OperationResult.RESULT_OK, subLog, 1, 0);
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 2);
+        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x1234");
+        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x1234");
+        log.add(subResult, 1);
+        DeleteResult result = new DeleteResult(OperationResult.RESULT_OK, log, 1, 0);
+
+        Parcel parcel = Parcel.obtain();
+        result.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        DeleteResult restored = DeleteResult.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        List<LogEntryParcel> expected = log.toList();
+        List<LogEntryParcel> entries = restored.getLog().toList();
+        Assert.assertEquals("log should survive parceling", expected.size(), entries.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals("types should be equal", expected.get(i).mType, entries.get(i).mType);
+            Assert.assertEquals("indents should be equal", expected.get(i).mIndent, entries.get(i).mIndent);
+        }
+        Assert.assertTrue("sub result should survive parceling",
+                entries.get(entries.size() - 1) instanceof SubLogEntryParcel);
+        Assert.assertTrue("sub log should survive parceling",
+                ((SubLogEntryParcel) entries.get(entries.size() - 1)).getSubResult()
+                        .getLog().containsType(LogType.MSG_IP_PREPARE));
+    }
+
+    @Test
+    public void testCap() throws Exception {
+        File spillDir = RuntimeEnvironment.application.getCacheDir();
+
+        OperationLog log = new OperationLog();
+        log.setCap(2, spillDir);
+        log.add(LogType.MSG_IMPORT, 0, 10);
+        for (int i = 0; i < 10; i++) {
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x" + i);
+        }
+        log.add(LogType.MSG_IMPORT_FETCH_ERROR, 1);
+        log.add(LogType.MSG_IMPORT_SUCCESS, 0);
+
+        List<LogEntryParcel> entries = log.toList();
+        Assert.assertEquals("spilled entries should be replaced by a marker",
+                LogType.MSG_LOG_SPILLED, entries.get(2).mType);
+        Assert.assertEquals("spill count should be the first parameter", 9, entries.get(2).mParameters[0]);
+        Assert.assertTrue("errors should be kept", log.containsType(LogType.MSG_IMPORT_FETCH_ERROR));
+        Assert.assertTrue("top level entries should be kept", log.containsType(LogType.MSG_IMPORT_SUCCESS));
+        File spillFile = log.getSpillFile();
+        Assert.assertTrue("spill file should have been written",
+                spillFile != null && spillFile.length() > 0);
+        Assert.assertEquals("spill file should be in the given directory",
+                spillDir, spillFile.getParentFile());
+    }
+
+    @Test
+    public void testSpillFilePerLog() throws Exception {
+        File spillDir = RuntimeEnvironment.application.getCacheDir();
+
+        OperationLog first = new OperationLog();
+        OperationLog second = new OperationLog();
+        first.setCap(1, spillDir);
+        second.setCap(1, spillDir);
+        for (OperationLog log : new OperationLog[] { first, second }) {
+            log.add(LogType.MSG_IMPORT, 0, 2);
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x1");
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x2");
+        }
+
+        // closing flushes everything written so far, without reading the log
+        first.closeSpill();
+        second.closeSpill();
+        File firstFile = first.getSpillFile();
+        File secondFile = second.getSpillFile();
+        Assert.assertNotNull(firstFile);
+        Assert.assertNotNull(secondFile);
+        Assert.assertNotEquals("concurrent logs must not share a spill file", firstFile, secondFile);
+        Assert.assertEquals("spill file must contain both entries after closing", 2,
+                countLines(firstFile));
+
+        // spilling after closing appends to the same file
+        first.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "0x3");
+        Assert.assertEquals(firstFile, first.getSpillFile());
+        Assert.assertEquals("spill file must be appended to", 3, countLines(firstFile));
+
+        first.clear();
+        Assert.assertFalse("clearing the log must delete its spill file", firstFile.exists());
+    }
+
+    @Test
+    public void testInterningIsPerLog() throws Exception {
+        OperationLog first = new OperationLog();
+        first.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, new String("0x1234"));
+        first.add(LogType.MSG_IMPORT_FETCH_ERROR, 1, new String("0x1234"));
+
+        OperationLog second = new OperationLog();
+        second.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, new String("0x1234"));
+
+        List<LogEntryParcel> firstEntries = first.toList();
+        Assert.assertSame("equal parameters should be shared within a log",
+                firstEntries.get(0).mParameters[0], firstEntries.get(1).mParameters[0]);
+        Assert.assertNotSame("parameters must not be shared across logs",
+                firstEntries.get(0).mParameters[0], second.toList().get(0).mParameters[0]);
+    }
+
+    private static int countLines(File file) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines += 1;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Timer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationTimingsTest {
+
+    @Test
+    public void testNestedPhaseTotals() throws Exception {
+        OperationTimings timings = new OperationTimings();
+
+        long start = System.nanoTime();
+        Timer outer = timings.start(Phase.BULK_CIPHER);
+        Thread.sleep(30);
+        for (int i = 0; i < 2; i++) {
+            Timer inner = timings.start(Phase.IO);
+            Thread.sleep(25);
+            inner.stop();
+        }
+        outer.stop();
+        long totalMillis = (System.nanoTime() - start) / 1000000;
+
+        long cipherMillis = timings.getTiming(Phase.BULK_CIPHER).getWallMillis();
+        long ioMillis = timings.getTiming(Phase.IO).getWallMillis();
+        Assert.assertEquals("outer phase must be entered once",
+                1, timings.getTiming(Phase.BULK_CIPHER).getCount());
+        Assert.assertEquals("inner phase must be counted per entry",
+                2, timings.getTiming(Phase.IO).getCount());
+        Assert.assertTrue("inner phase must be charged its own time", ioMillis >= 50);
+        Assert.assertTrue("outer phase must be charged its own time", cipherMillis >= 30);
+        Assert.assertTrue("outer phase must not be charged the nested time",
+                cipherMillis < totalMillis - 50 + 1);
+        Assert.assertTrue("phases must add up to the total time",
+                cipherMillis + ioMillis <= totalMillis);
+    }
+
+    @Test
+    public void testUnstoppedTimerIsDiscarded() {
+        OperationTimings timings = new OperationTimings();
+
+        Timer outer = timings.start(Phase.KEY_LOOKUP);
+        // never stopped, as if an exception skipped it
+        timings.start(Phase.DB_SAVE);
+        outer.stop();
+
+        Assert.assertNotNull("stopped timer must be recorded", timings.getTiming(Phase.KEY_LOOKUP));
+        Assert.assertNull("unstopped timer must not be recorded", timings.getTiming(Phase.DB_SAVE));
+
+        // the stack is clean again, a new timer is not nested in the discarded one
+        timings.start(Phase.SIGNATURE).stop();
+        Assert.assertEquals(1, timings.getTiming(Phase.SIGNATURE).getCount());
+    }
+
+    @Test
+    public void testStreamsTimeOnlyBulkTransfers() throws Exception {
+        OperationTimings timings = new OperationTimings();
+
+        InputStream in = timings.wrap(new ByteArrayInputStream(new byte[100]), Phase.IO);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0, in.read());
+        }
+        OutputStream out = timings.wrap(new ByteArrayOutputStream(), Phase.IO);
+        for (int i = 0; i < 10; i++) {
+            out.write(i);
+        }
+        Assert.assertTrue("single byte transfers must not be timed", timings.isEmpty());
+
+        Assert.assertEquals(90, in.read(new byte[100]));
+        out.write(new byte[10]);
+        Assert.assertEquals("bulk transfers must be timed",
+                2, timings.getTiming(Phase.IO).getCount());
+    }
+
+    @Test
+    public void testAddAll() {
+        OperationTimings timings = new OperationTimings();
+        timings.start(Phase.DB_SAVE).stop();
+
+        OperationTimings other = new OperationTimings();
+        other.start(Phase.DB_SAVE).stop();
+        other.start(Phase.IO).stop();
+
+        timings.addAll(other);
+        Assert.assertEquals(2, timings.getTiming(Phase.DB_SAVE).getCount());
+        Assert.assertEquals(1, timings.getTiming(Phase.IO).getCount());
+        Assert.assertEquals("phases must be listed in enum order",
+                Phase.DB_SAVE, timings.toList().get(0).mPhase);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class FastArmoredStreamTest {
+
+    // lengths around group and line boundaries
+    static final int[] LENGTHS = { 1, 2, 3, 4, 47, 48, 49, 50, 96, 97, 1000, 100000 };
+
+    private static byte[] randomPacket(Random random, int length, int tag) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        // new format packet header, so the armor type is well defined
+        data[0] = (byte) (0xc0 | tag);
+        return data;
+    }
+
+    private static byte[] armor(ArmoredOutputStream aos, ByteArrayOutputStream bos, byte[] data)
+            throws IOException {
+        aos.setHeader("Version", "Test");
+        aos.setHeader("Comment", "armor test");
+        // mix single bytes and arrays, to cover both paths
+        aos.write(data[0]);
+        aos.write(data, 1, data.length / 2);
+        aos.write(data, 1 + data.length / 2, data.length - 1 - data.length / 2);
+        aos.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            bos.write(buf, 0, read);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testOutputMatchesSpongycastle() throws Exception {
+        Random random = new Random(1);
+        int[] tags = { 6, 5, 2, 1 };
+        for (int length : LENGTHS) {
+            byte[] data = randomPacket(random, length, tags[length % tags.length]);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            Assert.assertArrayEquals("armored output must be identical for length " + length,
+                    armor(new ArmoredOutputStream(expected), expected, data),
+                    armor(new FastArmoredOutputStream(actual), actual, data));
+        }
+    }
+
+    @Test
+    public void testClearTextMatchesSpongycastle() throws Exception {
+        byte[] text = "-dashed\r\nline\n- more\n\nend".getBytes("UTF-8");
+        byte[] signature = randomPacket(new Random(2), 100, 2);
+
+        byte[][] results = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ArmoredOutputStream aos = i == 0
+                    ? new ArmoredOutputStream(bos) : new FastArmoredOutputStream(bos);
+            aos.beginClearText(HashAlgorithmTags.SHA256);
+            aos.write(text);
+            aos.write('\n');
+            aos.endClearText();
+            aos.write(signature);
+            aos.close();
+            results[i] = bos.toByteArray();
+        }
+        Assert.assertArrayEquals("cleartext signature must be identical", results[0], results[1]);
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        Random random = new Random(3);
+        for (int length : LENGTHS) {
+            byte[] data = randomPacket(random, length, 1);
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] armored = armor(new ArmoredOutputStream(bos), bos, data);
+
+            InputStream in = FastArmoredInputStream.getDecoderStream(new ByteArrayInputStream(armored));
+            Assert.assertTrue("armored data must be decoded by the fast stream",
+                    in instanceof FastArmoredInputStream);
+            Assert.assertArrayEquals("decoded data must match for length " + length,
+                    data, readFully(in));
+
+            ArmoredInputStream aIn = (ArmoredInputStream) in;
+            Assert.assertEquals("header line must be available",
+                    "-----BEGIN PGP MESSAGE-----", aIn.getArmorHeaderLine());
+            Assert.assertArrayEquals("headers must be available",
+                    new String[] { "Version: Test", "Comment: armor test" }, aIn.getArmorHeaders());
+        }
+    }
+
+    @Test
+    public void testDecodeBlocks() throws Exception {
+        Random random = new Random(4);
+        byte[] first = randomPacket(random, 200, 6);
+        byte[] second = randomPacket(random, 100, 6);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FastArmoredOutputStream aos = new FastArmoredOutputStream(bos);
+        aos.write(first);
+        aos.finish();
+        aos.write(second);
+        aos.close();
+
+        // every block ends the stream once, like in spongycastle
+        InputStream in = FastArmoredInputStream.getDecoderStream(
+                new ByteArrayInputStream(bos.toByteArray()));
+        Assert.assertArrayEquals("first block must be decoded", first, readFully(in));
+        Assert.assertArrayEquals("second block must be decoded", second, readFully(in));
+        Assert.assertEquals("stream must end after the last block", -1, in.read());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        byte[] binary = randomPacket(new Random(5), 100, 1);
+        Assert.assertFalse("binary data must not be armor decoded",
+                FastArmoredInputStream.getDecoderStream(new ByteArrayInputStream(binary))
+                        instanceof ArmoredInputStream);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ArmoredOutputStream aos = new ArmoredOutputStream(bos);
+        aos.beginClearText(HashAlgorithmTags.SHA256);
+        aos.write("text\n".getBytes("UTF-8"));
+        aos.endClearText();
+        aos.write(randomPacket(new Random(6), 100, 2));
+        aos.close();
+        InputStream in = FastArmoredInputStream.getDecoderStream(
+                new ByteArrayInputStream(bos.toByteArray()));
+        Assert.assertTrue("cleartext signatures must be left to spongycastle",
+                in instanceof ArmoredInputStream && !(in instanceof FastArmoredInputStream)
+                        && ((ArmoredInputStream) in).isClearText());
+    }
+
+    @Test
+    public void testBadCrc() throws Exception {
+        byte[] data = randomPacket(new Random(7), 100, 1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] armored = armor(new FastArmoredOutputStream(bos), bos, data);
+
+        String text = new String(armored, "ISO-8859-1");
+        int crcPos = text.lastIndexOf("\n=") + 2;
+        armored[crcPos] = (byte) (armored[crcPos] == 'A' ? 'B' : 'A');
+
+        try {
+            readFully(FastArmoredInputStream.getDecoderStream(new ByteArrayInputStream(armored)));
+            Assert.fail("corrupted checksum must be detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyPairPoolTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Before
+    public void setUp() {
+        KeyPairPool.getInstance().clear();
+        KeyPairPool.getInstance().setEnabled(true);
+    }
+
+    @Test
+    public void testFillAndTake() throws Exception {
+        KeyPairPool pool = KeyPairPool.getInstance();
+
+        Assert.assertNull("empty pool should have no key pair", pool.take(Algorithm.RSA, 1024));
+        Assert.assertNull("ecc keys are never pooled", pool.take(Algorithm.ECDSA, 256));
+
+        // the miss above makes RSA 1024 the most requested type
+        Assert.assertTrue("pool should not be full", pool.fillOne());
+        Assert.assertEquals("pool should have one key pair", 1, pool.size());
+        Assert.assertNull("other sizes should not be taken", pool.take(Algorithm.RSA, 2048));
+
+        KeyPair keyPair = pool.take(Algorithm.RSA, 1024);
+        Assert.assertNotNull("pooled key pair should be taken", keyPair);
+        Assert.assertEquals("pool should be empty again", 0, pool.size());
+        Assert.assertEquals("private key should match public key after decryption",
+                ((RSAPublicKey) keyPair.getPublic()).getModulus(),
+                ((RSAPrivateCrtKey) keyPair.getPrivate()).getModulus());
+        Assert.assertEquals("key pair should have the requested size",
+                1024, ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        KeyPairPool pool = KeyPairPool.getInstance();
+        pool.take(Algorithm.RSA, 1024);
+        Assert.assertTrue("pool should not be full", pool.fillOne());
+
+        pool.setEnabled(false);
+        Assert.assertEquals("disabling should drop all pairs", 0, pool.size());
+        Assert.assertFalse("disabled pool should not be filled", pool.fillOne());
+        Assert.assertNull("disabled pool should not hand out pairs", pool.take(Algorithm.RSA, 1024));
+        Assert.assertEquals("disabled pool should not count requests", "", pool.getDemand());
+    }
+
+    @Test
+    public void testDemand() throws Exception {
+        KeyPairPool pool = KeyPairPool.getInstance();
+        pool.restoreDemand("RSA/3072:5,ECDH/256:2,bogus");
+
+        String demand = pool.getDemand();
+        Assert.assertTrue("restored demand should be kept", demand.contains("RSA/3072:5"));
+        Assert.assertFalse("unpooled algorithms should be dropped", demand.contains("ECDH"));
+
+        pool.restoreDemand("RSA/3072:5");
+        Assert.assertTrue("demand should only be restored once",
+                pool.getDemand().contains("RSA/3072:5"));
+    }
+
+}
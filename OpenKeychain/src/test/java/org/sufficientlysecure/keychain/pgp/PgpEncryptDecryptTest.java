@@ -33,6 +33,7 @@ import org.spongycastle.openpgp.PGPEncryptedData;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationTimings.Phase;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
@@ -46,6 +47,7 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.Require
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
@@ -271,6 +273,13 @@ public class PgpEncryptDecryptTest {
             Assert.assertArrayEquals("decrypted ciphertext with provided passphrase should equal plaintext",
                     out.toByteArray(), plaintext.getBytes());
             Assert.assertNull("signature be empty", result.getSignatureResult());
+            Assert.assertFalse("decryption must record phase timings", result.getTimings().isEmpty());
+            Assert.assertEquals("key must be unlocked once",
+                    1, result.getTimings().getTiming(Phase.S2K_UNLOCK).getCount());
+            Assert.assertNotNull("reading input must be charged to IO",
+                    result.getTimings().getTiming(Phase.IO));
+            Assert.assertNull("binary input must not be charged to ARMOR",
+                    result.getTimings().getTiming(Phase.ARMOR));
 
             OpenPgpMetadata metadata = result.getDecryptMetadata();
             Assert.assertEquals("filesize must be correct",
@@ -536,6 +545,8 @@ public class PgpEncryptDecryptTest {
             b.setCharset("iso-2022-jp");
             PgpSignEncryptResult result = op.execute(b, new CryptoInputParcel(), data, out);
             Assert.assertTrue("encryption must succeed", result.success());
+            Assert.assertNotNull("armor encoding must be charged to ARMOR",
+                    result.getTimings().getTiming(Phase.ARMOR));
 
             ciphertext = out.toByteArray();
         }
@@ -555,6 +566,10 @@ public class PgpEncryptDecryptTest {
                     out.toByteArray(), plaindata);
             Assert.assertEquals("charset should be read correctly",
                     "iso-2022-jp", result.getCharset());
+            Assert.assertNotNull("armor decoding must be charged to ARMOR",
+                    result.getTimings().getTiming(Phase.ARMOR));
+            Assert.assertNotNull("reading the armored input must be charged to IO",
+                    result.getTimings().getTiming(Phase.IO));
             Assert.assertEquals("decrypted ciphertext should equal plaintext",
                     new String(out.toByteArray(), result.getCharset()), plaintext);
             Assert.assertNull("signature be empty", result.getSignatureResult());
@@ -562,6 +577,110 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testSessionKeyCache() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        Preferences prefs = Preferences.getPreferences(RuntimeEnvironment.application);
+        long oldTtl = prefs.getPassphraseCacheTtl();
+        prefs.setSessionKeyCacheEnabled(true);
+        // a ttl of -1 caches until cleared, it must not expire entries right away
+        prefs.setPassphraseCacheTtl(-1);
+        SessionKeyCache.getInstance().clear();
+
+        { // encrypt data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            input.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(), data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // first decryption needs the passphrase
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase1), data, out);
+
+            Assert.assertTrue("decryption with provided passphrase must succeed", result.success());
+            Assert.assertFalse("first decryption must not use a cached session key",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+        }
+
+        { // second decryption must work from the cached session key, without passphrase
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(
+                    null, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached session key must succeed", result.success());
+            Assert.assertTrue("decryption must use the cached session key",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            Assert.assertArrayEquals("decrypted ciphertext with cached session key should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+        }
+
+        // clearing the passphrase of an unrelated key keeps the session key
+        SessionKeyCache.getInstance().clear(mStaticRing2.getMasterKeyId());
+
+        { // still decrypts from the cached session key
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(
+                    null, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must still use the cached session key",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+        }
+
+        // clearing the passphrase of the decryption key drops its session keys
+        SessionKeyCache.getInstance().clear(mStaticRing1.getMasterKeyId());
+
+        { // after clearing the cache, the passphrase is required again
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(
+                    null, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption after clearing the cache should return pending", result.isPending());
+        }
+
+        prefs.setSessionKeyCacheEnabled(false);
+        prefs.setPassphraseCacheTtl((int) oldTtl);
+
+    }
+
     private PgpDecryptVerify operationWithFakePassphraseCache(
             final Passphrase passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
 
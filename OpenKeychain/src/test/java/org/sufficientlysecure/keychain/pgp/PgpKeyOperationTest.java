@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.pgp;
 import junit.framework.AssertionFailedError;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -30,6 +31,7 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.spongycastle.bcpg.BCPGInputStream;
 import org.spongycastle.bcpg.Packet;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
 import org.spongycastle.bcpg.PacketTags;
 import org.spongycastle.bcpg.S2K;
 import org.spongycastle.bcpg.SecretKeyPacket;
@@ -209,6 +211,32 @@ public class PgpKeyOperationTest {
                     LogType.MSG_CR_ERROR_NO_MASTER);
         }
 
+        {
+            parcel.reset();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.SIGN_DATA, null));
+            parcel.mAddUserIds.add("shy");
+            parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+            assertFailure("creating subkey with null expiry should fail", parcel,
+                    LogType.MSG_MF_ERROR_NULL_EXPIRY);
+        }
+
+        {
+            parcel.reset();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.SIGN_DATA, new Date().getTime() / 1000 - 10));
+            parcel.mAddUserIds.add("shy");
+            parcel.mNewUnlock = new ChangeUnlockParcel(passphrase);
+
+            assertFailure("creating subkey with past expiry should fail", parcel,
+                    LogType.MSG_MF_ERROR_PAST_EXPIRY);
+        }
+
     }
 
     @Test
@@ -228,6 +256,41 @@ public class PgpKeyOperationTest {
 
     }
 
+    @Test
+    public void testCreateKeysInParallel() throws Exception {
+        // with a single core, the keys are generated one after the other
+        Assume.assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.DSA, 1024, null, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.AUTHENTICATION, 0L));
+        parcel.mAddUserIds.add("rarity");
+        UncachedKeyRing ring = assertCreateSuccess("creating ring in parallel must succeed", parcel);
+
+        List<UncachedPublicKey> keys = KeyringTestingHelper.itToList(ring.getPublicKeys());
+        Assert.assertEquals("all keys must be in the keyring", 4, keys.size());
+
+        int[] algorithms = new int[] {
+                PublicKeyAlgorithmTags.RSA_GENERAL, PublicKeyAlgorithmTags.DSA,
+                PublicKeyAlgorithmTags.ECDH, PublicKeyAlgorithmTags.RSA_GENERAL };
+        int[] flags = new int[] {
+                KeyFlags.CERTIFY_OTHER, KeyFlags.SIGN_DATA,
+                KeyFlags.ENCRYPT_COMMS, KeyFlags.AUTHENTICATION };
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals("key " + i + " must be in requested order",
+                    algorithms[i], keys.get(i).getAlgorithm());
+            Assert.assertEquals("key " + i + " must have its requested flags",
+                    flags[i], (long) keys.get(i).getKeyUsage());
+        }
+
+    }
+
     @Test
     public void testCreatedKey() throws Exception {
 
@@ -1190,6 +1253,32 @@ public class PgpKeyOperationTest {
 
     }
 
+    @Test
+    public void testPassphraseChangeUnlocksAllKeys() throws Exception {
+
+        // keys are re-encrypted in parallel, each of them must still be usable. the second
+        // change starts from keys which share a salt, so decryption goes through the cache
+        Passphrase newPassphrase = TestingUtils.genPassphrase(true);
+        parcel.mNewUnlock = new ChangeUnlockParcel(newPassphrase);
+        UncachedKeyRing modified = applyModificationWithChecks(parcel, ring, onlyA, onlyB, cryptoInput);
+
+        Passphrase newPassphrase2 = TestingUtils.genPassphrase(true);
+        parcel.mNewUnlock = new ChangeUnlockParcel(newPassphrase2);
+        modified = applyModificationWithChecks(parcel, modified, onlyA, onlyB,
+                new CryptoInputParcel(new Date(), newPassphrase));
+
+        CanonicalizedSecretKeyRing secretRing =
+                new CanonicalizedSecretKeyRing(modified.getEncoded(), false, 0);
+        int count = 0;
+        for (CanonicalizedSecretKey key : secretRing.secretKeyIterator()) {
+            Assert.assertTrue("key " + count + " must unlock with the new passphrase",
+                    key.unlock(newPassphrase2));
+            count += 1;
+        }
+        Assert.assertEquals("all secret keys must have been checked", 3, count);
+
+    }
+
     @Test
     public void testUnlockPin() throws Exception {
 
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class S2kCalibrationTest {
+
+    @Test
+    public void testCountCoding() {
+        Assert.assertEquals("0x60 should hash 65536 bytes", 65536L, S2kCalibration.decodeCount(0x60));
+        Assert.assertEquals("0x90 should hash 524288 bytes", 524288L, S2kCalibration.decodeCount(0x90));
+        Assert.assertEquals("0xff should hash 65011712 bytes", 65011712L, S2kCalibration.decodeCount(0xff));
+
+        for (int count = S2kCalibration.MIN_S2K_COUNT; count <= S2kCalibration.MAX_S2K_COUNT; count++) {
+            long bytes = S2kCalibration.decodeCount(count);
+            Assert.assertEquals("exact byte counts should encode to themselves",
+                    count, S2kCalibration.encodeCount(bytes));
+            if (count > S2kCalibration.MIN_S2K_COUNT) {
+                Assert.assertEquals("counts should round down",
+                        count - 1, S2kCalibration.encodeCount(bytes - 1));
+            }
+        }
+
+        Assert.assertEquals("tiny counts should be raised to the minimum",
+                S2kCalibration.MIN_S2K_COUNT, S2kCalibration.encodeCount(1));
+        Assert.assertEquals("huge counts should be capped",
+                S2kCalibration.MAX_S2K_COUNT, S2kCalibration.encodeCount(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testBenchmarkAndSet() {
+        int count = S2kCalibration.benchmark();
+        Assert.assertTrue("benchmarked count should be within bounds",
+                count >= S2kCalibration.MIN_S2K_COUNT && count <= S2kCalibration.MAX_S2K_COUNT);
+
+        try {
+            S2kCalibration.setS2kCount(0x10);
+            Assert.assertEquals("set count should be raised to the minimum",
+                    S2kCalibration.MIN_S2K_COUNT, S2kCalibration.getS2kCount());
+            S2kCalibration.setS2kCount(0x60);
+            Assert.assertEquals("calibration must never go below the fixed count",
+                    PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT, S2kCalibration.getS2kCount());
+            S2kCalibration.setS2kCount(count);
+            Assert.assertEquals("set count should be used", count, S2kCalibration.getS2kCount());
+        } finally {
+            S2kCalibration.setS2kCount(PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+        }
+    }
+
+}
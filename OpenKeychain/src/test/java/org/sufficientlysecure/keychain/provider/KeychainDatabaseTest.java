@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.io.File;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainDatabaseTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testPragmas() throws Exception {
+
+        KeychainDatabase database = new KeychainDatabase(RuntimeEnvironment.application);
+        try {
+            SQLiteDatabase db = database.getWritableDatabase();
+            Assert.assertEquals("foreign keys must be enforced",
+                    1, DatabaseUtils.longForQuery(db, "PRAGMA foreign_keys", null));
+            Assert.assertEquals("auto checkpoint should be raised",
+                    2000, DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+        } finally {
+            database.close();
+        }
+
+    }
+
+    @Test
+    public void testCascade() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(ring);
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(ring.getMasterKeyId()), null, null);
+
+        KeychainDatabase database = new KeychainDatabase(RuntimeEnvironment.application);
+        try {
+            SQLiteDatabase db = database.getReadableDatabase();
+            Assert.assertEquals("keys should be deleted on cascade",
+                    0, DatabaseUtils.queryNumEntries(db, Tables.KEYS));
+            Assert.assertEquals("user ids should be deleted on cascade",
+                    0, DatabaseUtils.queryNumEntries(db, Tables.USER_PACKETS));
+        } finally {
+            database.close();
+        }
+
+    }
+
+    @Test
+    public void testDebugBackupContainsLog() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(ring);
+
+        // the keyring may still be in the write-ahead log, the backup must include it anyway
+        KeychainDatabase.debugBackup(RuntimeEnvironment.application, false);
+
+        File backup = RuntimeEnvironment.application.getDatabasePath("debug_backup.db");
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(backup.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            Cursor cursor = db.query(Tables.KEY_RINGS_PUBLIC, new String[] { KeyRingData.MASTER_KEY_ID },
+                    null, null, null, null, null);
+            try {
+                Assert.assertTrue("backup should contain the keyring", cursor.moveToFirst());
+                Assert.assertEquals("backup should contain the keyring",
+                        ring.getMasterKeyId(), cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+
+    }
+
+    UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(KeychainDatabaseTest.class.getResourceAsStream(name)).next();
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Metrics;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.security.Security;
+import java.util.HashMap;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainProviderTest {
+
+    static UncachedKeyRing mStaticRingAlice, mStaticRingAlice2, mStaticRingBob;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        mStaticRingAlice = createRing("Alice <alice@example.com>");
+        mStaticRingAlice2 = createRing("Alice Two <alice@example.com>");
+        mStaticRingBob = createRing("Bob <bob@example.com>");
+    }
+
+    private static UncachedKeyRing createRing(String userId) throws Exception {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add(userId);
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        return result.getRing().extractPublicKeyRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.savePublicKeyRing(mStaticRingAlice);
+        providerHelper.savePublicKeyRing(mStaticRingAlice2);
+        providerHelper.savePublicKeyRing(mStaticRingBob);
+    }
+
+    @Test
+    public void testFindByEmails() throws Exception {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildKeyRingsFindByEmailsUri(new String[] {
+                        "alice@example.com", "bob@example.com", "carol@example.com" }),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.MATCHED_USER_ID, KeyRings.IS_REVOKED },
+                null, null, null);
+        Assert.assertNotNull("query must return a cursor", cursor);
+
+        HashMap<Long, String> matches = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                matches.put(cursor.getLong(0), cursor.getString(1));
+                Assert.assertEquals("keys should not be revoked", 0, cursor.getInt(2));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Assert.assertEquals("all keys of matching emails should be found", 3, matches.size());
+        Assert.assertEquals("Alice <alice@example.com>", matches.get(mStaticRingAlice.getMasterKeyId()));
+        Assert.assertEquals("Alice Two <alice@example.com>",
+                matches.get(mStaticRingAlice2.getMasterKeyId()));
+        Assert.assertEquals("Bob <bob@example.com>", matches.get(mStaticRingBob.getMasterKeyId()));
+
+        // only the end of a user id is matched
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildKeyRingsFindByEmailsUri(new String[] { "example.com", "" }),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull("query must return a cursor", cursor);
+        try {
+            Assert.assertEquals("partial emails must not match", 0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testQueryTimingCoversExecution() throws Exception {
+        Metrics.reset();
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull("query must return a cursor", cursor);
+        try {
+            // sqlite only runs the statement when the window is first filled, which the
+            // provider forces before stopping the clock
+            Assert.assertTrue("query must return a windowed cursor",
+                    cursor instanceof AbstractWindowedCursor);
+            Assert.assertNotNull("statement must have been executed inside the timed section",
+                    ((AbstractWindowedCursor) cursor).getWindow());
+
+            // 101 is the KEY_RINGS_UNIFIED match
+            Metrics.Histogram histogram = Metrics.getHistogram("db.query.101");
+            Assert.assertNotNull("query time must be recorded per uri match", histogram);
+            Assert.assertEquals("query must be recorded once", 1, histogram.getCount());
+
+            Assert.assertEquals("cursor must still start before the first row", -1, cursor.getPosition());
+            Assert.assertEquals("all keys must be returned", 3, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
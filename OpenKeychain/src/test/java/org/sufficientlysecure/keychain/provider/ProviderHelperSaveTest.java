@@ -18,6 +18,10 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,14 +40,20 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -249,6 +259,183 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testKeyRefreshBookkeeping() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/symantec_public.asc");
+        mProviderHelper.savePublicKeyRing(first);
+        mProviderHelper.savePublicKeyRing(second);
+
+        long now = System.currentTimeMillis();
+
+        LinkedHashMap<Long, String> candidates =
+                mProviderHelper.getKeyRefreshCandidates(now, now, 1000, 0, 10);
+        Assert.assertEquals("both keys should be due for refresh", 2, candidates.size());
+
+        // the more often used key should come first
+        mProviderHelper.recordKeyUsage(Arrays.asList(second.getMasterKeyId(), second.getMasterKeyId()));
+        candidates = mProviderHelper.getKeyRefreshCandidates(now, now, 1000, 0, 1);
+        Assert.assertEquals("used key should be refreshed first",
+                second.getMasterKeyId(), (long) candidates.keySet().iterator().next());
+        Assert.assertEquals("candidate should map to its fingerprint",
+                KeyFormattingUtils.convertFingerprintToHex(second.getFingerprint()),
+                candidates.get(second.getMasterKeyId()));
+
+        // refreshed keys are not due anymore, even after the keyring is saved again
+        mProviderHelper.markKeysRefreshed(Arrays.asList(second.getMasterKeyId()), now);
+        mProviderHelper.savePublicKeyRing(second);
+        candidates = mProviderHelper.getKeyRefreshCandidates(now, now, 1000, 0, 10);
+        Assert.assertEquals("only unrefreshed key should be due", 1, candidates.size());
+        Assert.assertTrue("unrefreshed key should be due",
+                candidates.containsKey(first.getMasterKeyId()));
+
+        // failed keys back off, twice as long after the second failure
+        mProviderHelper.markKeysRefreshFailed(Arrays.asList(first.getMasterKeyId()), now);
+        candidates = mProviderHelper.getKeyRefreshCandidates(now + 500, now, 1000, 0, 10);
+        Assert.assertTrue("failed key should not be retried too early", candidates.isEmpty());
+        candidates = mProviderHelper.getKeyRefreshCandidates(now + 1500, now, 1000, 0, 10);
+        Assert.assertTrue("failed key should be retried after the interval",
+                candidates.containsKey(first.getMasterKeyId()));
+
+        mProviderHelper.markKeysRefreshFailed(Arrays.asList(first.getMasterKeyId()), now);
+        candidates = mProviderHelper.getKeyRefreshCandidates(now + 1500, now, 1000, 0, 10);
+        Assert.assertTrue("backoff should double after the second failure", candidates.isEmpty());
+        candidates = mProviderHelper.getKeyRefreshCandidates(now + 2500, now, 1000, 0, 10);
+        Assert.assertTrue("failed key should be retried after the doubled interval",
+                candidates.containsKey(first.getMasterKeyId()));
+
+        // a successful refresh resets the backoff
+        mProviderHelper.markKeysRefreshed(Arrays.asList(first.getMasterKeyId()), now);
+        candidates = mProviderHelper.getKeyRefreshCandidates(now + 500, now + 1, 1000, 0, 10);
+        Assert.assertEquals("refreshed keys should be due again without backoff",
+                2, candidates.size());
+
+    }
+
+    @Test public void testSearchIndex() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = ring.getMasterKeyId();
+        mProviderHelper.savePublicKeyRing(ring);
+
+        String name = KeyRing.splitUserId(ring.getPublicKey().getPrimaryUserIdWithFallback()).name;
+        String firstWord = name.split(" ")[0];
+        String namePrefix = firstWord.substring(0, Math.min(3, firstWord.length()));
+        Assert.assertTrue("name prefix should match",
+                searchFinds(namePrefix.toUpperCase(), masterKeyId));
+        Assert.assertTrue("short key id should match",
+                searchFinds(KeyFormattingUtils.convertKeyIdToHexShort(masterKeyId), masterKeyId));
+        Assert.assertFalse("unrelated word should not match",
+                searchFinds("zqxjkv", masterKeyId));
+
+        // the key list sorts search results by rank, which must work even if nothing can match
+        String order = KeyRings.SEARCH_RANK + " DESC";
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsSearchUri(namePrefix),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, order);
+        try {
+            Assert.assertTrue("search ordered by rank should find key", cursor.moveToFirst());
+        } finally {
+            cursor.close();
+        }
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsSearchUri("- ."),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, order);
+        try {
+            Assert.assertEquals("separators alone should match nothing", 0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        // saving again must not leave a stale entry behind, deleting must remove it
+        mProviderHelper.savePublicKeyRing(ring);
+        Assert.assertTrue("name prefix should match after save",
+                searchFinds(namePrefix, masterKeyId));
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        Assert.assertFalse("deleted key should not match",
+                searchFinds(namePrefix, masterKeyId));
+
+    }
+
+    @Test public void testKeyringSummary() throws Exception {
+
+        UncachedKeyRing seckey = readRingFromResource("/test-keys/symantec_secret.asc");
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+        String[] projection = new String[] { KeyRings.HAS_ANY_SECRET };
+
+        mProviderHelper.savePublicKeyRing(pubkey);
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        try {
+            Assert.assertTrue("summary of public key should be available", cursor.moveToFirst());
+            Assert.assertEquals("public key should have no secret", 0, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+
+        // the secret key save must refresh the summary as well
+        mProviderHelper.saveSecretKeyRing(seckey, new ProgressScaler());
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), projection, null, null, null);
+        try {
+            Assert.assertTrue("summary of secret key should be available", cursor.moveToFirst());
+            Assert.assertEquals("secret key should have a secret", 1, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    @Test public void testKeyringSummaryPreviousUserId() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = pubkey.getMasterKeyId();
+        mProviderHelper.savePublicKeyRing(pubkey);
+        String userId = pubkey.getPublicKey().getPrimaryUserIdWithFallback();
+
+        // pretend another key shared the primary user id, until it got a different one
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(KeyRings.HAS_DUPLICATE_USER_ID, 1);
+        db.update(Tables.KEYRING_SUMMARY, values, KeyRings.MASTER_KEY_ID + " = " + masterKeyId, null);
+        db.close();
+
+        // the summary refresh of the other key must cover keys with its previous user id
+        RuntimeEnvironment.application.getContentResolver().update(
+                KeyRings.buildKeyRingSummaryUri(1L), new ContentValues(), null, new String[] { userId });
+
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId),
+                new String[] { KeyRings.HAS_DUPLICATE_USER_ID }, null, null, null);
+        try {
+            Assert.assertTrue("summary should be available", cursor.moveToFirst());
+            Assert.assertEquals("key with previously shared user id should be refreshed",
+                    0, cursor.getInt(0));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    private boolean searchFinds(String query, long masterKeyId) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsSearchUri(query),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.SEARCH_RANK }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) == masterKeyId) {
+                    Assert.assertTrue("matching key should be ranked", cursor.getInt(1) > 0);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.QueryProfiler.SlowStatement;
+import org.sufficientlysecure.keychain.util.Metrics;
+
+import java.util.List;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class QueryProfilerTest {
+
+    /** A start time which makes the statement exactly twice as slow as the threshold */
+    private static long slowStart() {
+        return System.nanoTime() - 2 * QueryProfiler.SLOW_THRESHOLD_MS * 1000000;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Metrics.reset();
+        QueryProfiler.clear();
+    }
+
+    @Test
+    public void testFastStatement() throws Exception {
+        long nanos = QueryProfiler.record(QueryProfiler.KIND_QUERY, 1, System.nanoTime());
+
+        Assert.assertFalse("fast statement must not be treated as slow", QueryProfiler.isSlow(nanos));
+        Assert.assertEquals("time must be recorded", 1, Metrics.getHistogram("db.query.1").getCount());
+        Assert.assertEquals("fast statement must not be counted as slow", 0, Metrics.getCount("db.slow.query.1"));
+    }
+
+    @Test
+    public void testSlowStatement() throws Exception {
+        Uri uri = KeyRings.buildUnifiedKeyRingsUri();
+        QueryProfiler.record(RuntimeEnvironment.application, QueryProfiler.KIND_DELETE, 2, uri, slowStart());
+
+        Assert.assertEquals("slow statement must be counted", 1, Metrics.getCount("db.slow.delete.2"));
+        List<SlowStatement> statements = QueryProfiler.getSlowStatements();
+        if (!Constants.DEBUG) {
+            Assert.assertTrue("slow statements must only be kept in debug builds", statements.isEmpty());
+            return;
+        }
+        Assert.assertEquals("slow statement must be kept", 1, statements.size());
+        SlowStatement statement = statements.get(0);
+        Assert.assertEquals(QueryProfiler.KIND_DELETE, statement.getKind());
+        Assert.assertEquals(uri.toString(), statement.getUri());
+        Assert.assertEquals("own calls must be attributed to self", "self", statement.getCaller());
+        Assert.assertTrue(statement.getMillis() >= QueryProfiler.SLOW_THRESHOLD_MS);
+        Assert.assertNull("statement without sql must not have sql", statement.getSql());
+        Assert.assertNull("statement without sql must not have a plan", statement.getPlan());
+    }
+
+    @Test
+    public void testSlowQueryIsExplained() throws Exception {
+        long nanos = QueryProfiler.record(QueryProfiler.KIND_QUERY, 3, slowStart());
+        if (!QueryProfiler.isSlow(nanos)) {
+            Assert.assertFalse("only release builds skip slow statements", Constants.DEBUG);
+            return;
+        }
+
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase();
+        try {
+            QueryProfiler.recordSlow(RuntimeEnvironment.application, QueryProfiler.KIND_QUERY,
+                    KeyRings.buildUnifiedKeyRingsUri(), nanos, db,
+                    "SELECT * FROM keys WHERE master_key_id = ?", new String[] { "1" });
+        } finally {
+            db.close();
+        }
+
+        SlowStatement statement = QueryProfiler.getSlowStatements().get(0);
+        Assert.assertEquals("SELECT * FROM keys WHERE master_key_id = ?", statement.getSql());
+        Assert.assertNotNull("slow query must be explained", statement.getPlan());
+        Assert.assertFalse("plan must not be empty", statement.getPlan().isEmpty());
+    }
+
+    @Test
+    public void testSlowStatementsAreBounded() throws Exception {
+        if (!Constants.DEBUG) {
+            return;
+        }
+        for (int i = 0; i < 60; i++) {
+            QueryProfiler.record(RuntimeEnvironment.application, QueryProfiler.KIND_UPDATE, i,
+                    Uri.parse("content://test/" + i), slowStart());
+        }
+
+        List<SlowStatement> statements = QueryProfiler.getSlowStatements();
+        Assert.assertEquals("ring must be bounded", 50, statements.size());
+        Assert.assertEquals("most recent statement must come first",
+                "content://test/59", statements.get(0).getUri());
+        Assert.assertEquals("oldest statements must be dropped",
+                "content://test/10", statements.get(49).getUri());
+    }
+
+}
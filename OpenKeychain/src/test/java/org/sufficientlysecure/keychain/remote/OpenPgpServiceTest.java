@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.remote;
+
+import android.content.Intent;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.util.OpenPgpApi;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/** Tests for the batch decryption of OpenPgpService */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OpenPgpServiceTest {
+
+    static UncachedKeyRing mStaticRing;
+    static UncachedKeyRing mStaticLockedRing;
+
+    OpenPgpService mService;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add("blip");
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+
+        parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add("blop");
+        parcel.mNewUnlock = new ChangeUnlockParcel(TestingUtils.genPassphrase(true));
+
+        result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticLockedRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        new ProviderHelper(RuntimeEnvironment.application).saveSecretKeyRing(
+                mStaticRing, new ProgressScaler());
+        new ProviderHelper(RuntimeEnvironment.application).saveSecretKeyRing(
+                mStaticLockedRing, new ProgressScaler());
+        mService = Robolectric.buildService(OpenPgpService.class).create().get();
+    }
+
+    @Test
+    public void testDecryptBatch() throws Exception {
+        String[] plaintexts = new String[] { "first message", "second message", "third message" };
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream batchOut = new DataOutputStream(batch);
+        for (String plaintext : plaintexts) {
+            byte[] ciphertext = encrypt(plaintext);
+            batchOut.writeInt(ciphertext.length);
+            batchOut.write(ciphertext);
+        }
+        // a message which can't be decrypted must not fail the others
+        batchOut.writeInt(4);
+        batchOut.write(new byte[] { 1, 2, 3, 4 });
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = mService.decryptAndVerifyBatch(getBatchIntent(),
+                new HashSet<>(Arrays.asList(mStaticRing.getMasterKeyId())),
+                new ByteArrayInputStream(batch.toByteArray()), output);
+
+        Assert.assertEquals("batch must succeed", OpenPgpApi.RESULT_CODE_SUCCESS,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+        ArrayList<Intent> results =
+                result.getParcelableArrayListExtra(OpenPgpService.RESULT_BATCH_RESULTS);
+        Assert.assertEquals("there must be one result per message", 4, results.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+        for (int i = 0; i < plaintexts.length; i++) {
+            Assert.assertEquals("message " + i + " must succeed", OpenPgpApi.RESULT_CODE_SUCCESS,
+                    results.get(i).getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+            Assert.assertEquals("message " + i + " must have ok status",
+                    OpenPgpService.BATCH_STATUS_OK, in.readByte());
+            byte[] decrypted = new byte[in.readInt()];
+            in.readFully(decrypted);
+            Assert.assertArrayEquals("message " + i + " must be decrypted in order",
+                    plaintexts[i].getBytes(), decrypted);
+        }
+
+        Assert.assertEquals("broken message must fail", OpenPgpApi.RESULT_CODE_ERROR,
+                results.get(3).getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS));
+        Assert.assertEquals("broken message must have error status",
+                OpenPgpService.BATCH_STATUS_ERROR, in.readByte());
+        Assert.assertEquals("broken message must have no output", 0, in.readInt());
+        Assert.assertEquals("there must be no further output", -1, in.read());
+    }
+
+    @Test
+    public void testPendingMessagesKeepOutputAligned() throws Exception {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream batchOut = new DataOutputStream(batch);
+        byte[][] ciphertexts = new byte[][] {
+                encrypt("first message", mStaticRing.getMasterKeyId()),
+                encrypt("second message", mStaticLockedRing.getMasterKeyId()),
+                encrypt("third message", mStaticLockedRing.getMasterKeyId())
+        };
+        for (byte[] ciphertext : ciphertexts) {
+            batchOut.writeInt(ciphertext.length);
+            batchOut.write(ciphertext);
+        }
+
+        // no passphrase given, so the messages for the locked key need user interaction
+        Intent data = new Intent(OpenPgpService.ACTION_DECRYPT_VERIFY_BATCH);
+        data.putExtra(OpenPgpApi.EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = mService.decryptAndVerifyBatch(data, new HashSet<>(Arrays.asList(
+                        mStaticRing.getMasterKeyId(), mStaticLockedRing.getMasterKeyId())),
+                new ByteArrayInputStream(batch.toByteArray()), output);
+
+        Assert.assertEquals("locked key must require user interaction",
+                OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+        Assert.assertNotNull("result must ask for the passphrase",
+                result.getParcelableExtra(OpenPgpApi.RESULT_INTENT));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals("message for unlocked key must have ok status",
+                OpenPgpService.BATCH_STATUS_OK, in.readByte());
+        byte[] decrypted = new byte[in.readInt()];
+        in.readFully(decrypted);
+        Assert.assertArrayEquals("message for unlocked key must be decrypted",
+                "first message".getBytes(), decrypted);
+        for (int i = 1; i < 3; i++) {
+            Assert.assertEquals("message " + i + " must have pending status",
+                    OpenPgpService.BATCH_STATUS_PENDING, in.readByte());
+            Assert.assertEquals("pending message " + i + " must have no output", 0, in.readInt());
+        }
+        Assert.assertEquals("there must be no further output", -1, in.read());
+    }
+
+    @Test
+    public void testOversizedMessageRejectsBatch() throws Exception {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream batchOut = new DataOutputStream(batch);
+        batchOut.writeInt(OpenPgpService.BATCH_MAX_MESSAGE_SIZE + 1);
+        batchOut.write(new byte[16]);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = mService.decryptAndVerifyBatch(getBatchIntent(),
+                new HashSet<>(Arrays.asList(mStaticRing.getMasterKeyId())),
+                new ByteArrayInputStream(batch.toByteArray()), output);
+
+        Assert.assertEquals("oversized message must reject the batch", OpenPgpApi.RESULT_CODE_ERROR,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS));
+        Assert.assertEquals("rejected batch must have no output", 0, output.size());
+    }
+
+    private Intent getBatchIntent() {
+        Intent data = new Intent(OpenPgpService.ACTION_DECRYPT_VERIFY_BATCH);
+        data.putExtra(OpenPgpApi.EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+        data.putExtra(OpenPgpApi.EXTRA_PASSPHRASE, new char[0]);
+        return data;
+    }
+
+    private byte[] encrypt(String plaintext) {
+        return encrypt(plaintext, mStaticRing.getMasterKeyId());
+    }
+
+    private byte[] encrypt(String plaintext, long masterKeyId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+        PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+        input.setEncryptionMasterKeyIds(new long[] { masterKeyId });
+        input.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+        PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(),
+                new InputData(in, in.available()), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.remote;
+
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class RemoteServiceTest {
+
+    static final String PACKAGE_NAME = "org.example.client";
+
+    OpenPgpService mService;
+    ProviderHelper mProviderHelper;
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+
+        mService = Robolectric.buildService(OpenPgpService.class).create().get();
+        mProviderHelper = new ProviderHelper(RuntimeEnvironment.application);
+        mProviderHelper.insertApiApp(new AppSettings(PACKAGE_NAME, new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void testAllowedKeyIdsCache() throws Exception {
+        Uri allowedKeysUri = ApiAllowedKeys.buildBaseUri(PACKAGE_NAME);
+        mProviderHelper.addAllowedKeyIdForApp(allowedKeysUri, 1L);
+
+        HashSet<Long> keyIds = mService.getAllowedKeyIds(PACKAGE_NAME, false);
+        Assert.assertEquals("allowed key ids should be read from the database",
+                new HashSet<>(Arrays.asList(1L)), keyIds);
+
+        keyIds.add(2L);
+        Assert.assertEquals("returned set must be a copy of the cached one",
+                new HashSet<>(Arrays.asList(1L)), mService.getAllowedKeyIds(PACKAGE_NAME, false));
+
+        mProviderHelper.addAllowedKeyIdForApp(allowedKeysUri, 3L);
+        Assert.assertEquals("cache must be dropped when allowed keys change",
+                new HashSet<>(Arrays.asList(1L, 3L)), mService.getAllowedKeyIds(PACKAGE_NAME, false));
+
+        RuntimeEnvironment.application.getContentResolver().delete(
+                ApiApps.buildByPackageNameUri(PACKAGE_NAME), null, null);
+        Assert.assertTrue("cache must be dropped when the app is removed",
+                mService.getAllowedKeyIds(PACKAGE_NAME, false).isEmpty());
+    }
+
+}
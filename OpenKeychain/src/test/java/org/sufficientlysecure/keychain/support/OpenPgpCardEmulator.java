@@ -0,0 +1,755 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.support;
+
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.util.ApduTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+
+/**
+ * Software implementation of the OpenPGP card application, as far as we use it. It answers
+ * command apdus the way a Yubikey NEO does, so the nfc code can be tested and measured
+ * without a physical card.
+ *
+ * Supported are SELECT, GET DATA, GET RESPONSE, VERIFY, CHANGE REFERENCE DATA, PUT DATA,
+ * PUT KEY for RSA keys in the format we send, and PERFORM SECURITY OPERATION for signing
+ * and deciphering. Command chaining is always supported, extended length apdus only if the
+ * emulator is created with them. A SELECT starts a new session, like a new tap would.
+ *
+ * All exchanged apdus are counted, and each one can be delayed to simulate the latency of
+ * a real card and nfc link.
+ *
+ * References to pages are related to the OpenPGP Application on ISO SmartCard Systems
+ * specification v2.0.
+ */
+public class OpenPgpCardEmulator implements ApduTransport {
+
+    public static final byte[] AID = Hex.decode("D2760001240102000000000000010000");
+    public static final String DEFAULT_PW1 = "123456";
+    public static final String DEFAULT_PW3 = "12345678";
+
+    public static final int SLOT_SIGNATURE = 0;
+    public static final int SLOT_DECRYPTION = 1;
+    public static final int SLOT_AUTHENTICATION = 2;
+
+    private static final int SW_OK = 0x9000;
+    private static final int SW_MORE_DATA = 0x6100;
+    private static final int SW_PIN_RETRIES = 0x63c0;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_LAST_COMMAND_EXPECTED = 0x6883;
+    private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    private static final int SW_AUTH_METHOD_BLOCKED = 0x6983;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_WRONG_DATA = 0x6a80;
+    private static final int SW_FILE_NOT_FOUND = 0x6a82;
+    private static final int SW_DATA_NOT_FOUND = 0x6a88;
+    private static final int SW_WRONG_P1P2 = 0x6b00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6d00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6e00;
+
+    private static final int CLA_CHAINING = 0x10;
+    private static final int MAX_RETRIES = 3;
+    /** Max lengths of command and response data, as announced in the extended capabilities */
+    private static final int MAX_EXTENDED_LENGTH = 0x0800;
+    private static final int MAX_SHORT_LENGTH = 0x00ff;
+
+    private final boolean mExtendedLength;
+    private long mLatencyPerApduMicros;
+    private long mLatencyPerByteMicros;
+
+    // persistent card state
+    private byte[] mPw1 = DEFAULT_PW1.getBytes();
+    private byte[] mPw3 = DEFAULT_PW3.getBytes();
+    private int mPw1Retries = MAX_RETRIES;
+    private int mPw3Retries = MAX_RETRIES;
+    private boolean mPw1ValidForMultipleSignatures;
+    private final RSAPrivateCrtKey[] mKeys = new RSAPrivateCrtKey[3];
+    private final byte[] mFingerprints = new byte[60];
+    private final byte[] mTimestamps = new byte[12];
+    private byte[] mName = new byte[0];
+    private int mSignatureCount;
+    private final HashMap<Integer, byte[]> mDataObjects = new HashMap<>();
+
+    // session state
+    private boolean mSelected;
+    private boolean mPw1VerifiedForSignature;
+    private boolean mPw1VerifiedForOther;
+    private boolean mPw3Verified;
+    private final ByteArrayOutputStream mChainedData = new ByteArrayOutputStream();
+    private int mChainedIns = -1;
+    private byte[] mPendingResponse;
+    private int mPendingOffset;
+
+    // statistics
+    private int mApduCount;
+    private long mBytesReceived;
+    private long mBytesSent;
+    private long mSimulatedLatencyMicros;
+
+    public OpenPgpCardEmulator(boolean extendedLength) {
+        mExtendedLength = extendedLength;
+    }
+
+    /**
+     * Delays each apdu by a fixed time plus a time per transmitted byte, counting both
+     * command and response.
+     */
+    public void setLatency(long perApduMicros, long perByteMicros) {
+        mLatencyPerApduMicros = perApduMicros;
+        mLatencyPerByteMicros = perByteMicros;
+    }
+
+    public void setPw1(String pw1) {
+        mPw1 = pw1.getBytes();
+    }
+
+    public void setPw1ValidForMultipleSignatures(boolean validForMultipleSignatures) {
+        mPw1ValidForMultipleSignatures = validForMultipleSignatures;
+    }
+
+    public RSAPrivateCrtKey getKey(int slot) {
+        return mKeys[slot];
+    }
+
+    public byte[] getFingerprint(int slot) {
+        return Arrays.copyOfRange(mFingerprints, slot * 20, slot * 20 + 20);
+    }
+
+    public int getPw1Retries() {
+        return mPw1Retries;
+    }
+
+    public int getSignatureCount() {
+        return mSignatureCount;
+    }
+
+    public int getApduCount() {
+        return mApduCount;
+    }
+
+    /** Returns the number of bytes received by the card, in command apdus */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /** Returns the number of bytes sent by the card, in response apdus */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /** Returns the latency which was simulated, including the time it was not slept for */
+    public long getSimulatedLatencyMicros() {
+        return mSimulatedLatencyMicros;
+    }
+
+    public void resetStatistics() {
+        mApduCount = 0;
+        mBytesReceived = 0;
+        mBytesSent = 0;
+        mSimulatedLatencyMicros = 0;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command, int length) throws IOException {
+        byte[] response = process(Arrays.copyOf(command, length));
+
+        mApduCount += 1;
+        mBytesReceived += length;
+        mBytesSent += response.length;
+
+        long latency = mLatencyPerApduMicros
+                + mLatencyPerByteMicros * (length + response.length);
+        mSimulatedLatencyMicros += latency;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency / 1000, (int) (latency % 1000) * 1000);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted during simulated latency");
+            }
+        }
+
+        return response;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mExtendedLength ? 4 + 3 + MAX_EXTENDED_LENGTH + 2 : 261;
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return mExtendedLength;
+    }
+
+    private byte[] process(byte[] apdu) {
+        if (apdu.length < 4) {
+            return status(SW_WRONG_LENGTH);
+        }
+        int cla = apdu[0] & 0xff;
+        int ins = apdu[1] & 0xff;
+        int p1 = apdu[2] & 0xff;
+        int p2 = apdu[3] & 0xff;
+
+        // parse the body, page 51 and ISO 7816-4 section 5.1
+        int lc = 0;
+        int ne = 0;
+        int dataOffset;
+        if (apdu.length == 4) {
+            dataOffset = 4;
+        } else if (apdu.length == 5) {
+            dataOffset = 5;
+            ne = apdu[4] == 0 ? 256 : apdu[4] & 0xff;
+        } else if (apdu[4] != 0) {
+            lc = apdu[4] & 0xff;
+            dataOffset = 5;
+            int rest = apdu.length - dataOffset - lc;
+            if (rest == 1) {
+                ne = apdu[apdu.length - 1] == 0 ? 256 : apdu[apdu.length - 1] & 0xff;
+            } else if (rest != 0) {
+                return status(SW_WRONG_LENGTH);
+            }
+        } else {
+            if (!mExtendedLength || apdu.length < 7) {
+                return status(SW_WRONG_LENGTH);
+            }
+            if (apdu.length == 7) {
+                dataOffset = 7;
+                ne = readShort(apdu, 5);
+                ne = ne == 0 ? 65536 : ne;
+            } else {
+                lc = readShort(apdu, 5);
+                dataOffset = 7;
+                int rest = apdu.length - dataOffset - lc;
+                if (rest == 2) {
+                    ne = readShort(apdu, apdu.length - 2);
+                    ne = ne == 0 ? 65536 : ne;
+                } else if (rest != 0) {
+                    return status(SW_WRONG_LENGTH);
+                }
+            }
+        }
+        byte[] data = Arrays.copyOfRange(apdu, dataOffset, dataOffset + lc);
+
+        if (ins == 0xc0 && cla == 0x00) {
+            return getResponse(ne);
+        }
+        mPendingResponse = null;
+
+        if ((cla & ~CLA_CHAINING) != 0) {
+            return status(SW_CLA_NOT_SUPPORTED);
+        }
+        if (mChainedIns != -1 && mChainedIns != ins) {
+            resetChaining();
+            return status(SW_LAST_COMMAND_EXPECTED);
+        }
+        if ((cla & CLA_CHAINING) != 0) {
+            mChainedIns = ins;
+            mChainedData.write(data, 0, data.length);
+            return status(SW_OK);
+        }
+        if (mChainedIns != -1) {
+            mChainedData.write(data, 0, data.length);
+            data = mChainedData.toByteArray();
+            resetChaining();
+        }
+
+        if (ins == 0xa4) {
+            return select(p1, data);
+        }
+        if (!mSelected) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        switch (ins) {
+            case 0xca:
+                return getData((p1 << 8) | p2, ne);
+            case 0x20:
+                return verify(p2, data);
+            case 0x24:
+                return changeReferenceData(p2, data);
+            case 0xda:
+                return putData((p1 << 8) | p2, data);
+            case 0xdb:
+                return putKey(p1, p2, data);
+            case 0x2a:
+                if (p1 == 0x9e && p2 == 0x9a) {
+                    return computeDigitalSignature(data, ne);
+                }
+                if (p1 == 0x80 && p2 == 0x86) {
+                    return decipher(data, ne);
+                }
+                return status(SW_WRONG_P1P2);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /** SELECT (page 29), which also starts a new session */
+    private byte[] select(int p1, byte[] data) {
+        if (p1 != 0x04 || data.length < 6
+                || !Arrays.equals(Arrays.copyOf(data, 6), Arrays.copyOf(AID, 6))) {
+            mSelected = false;
+            return status(SW_FILE_NOT_FOUND);
+        }
+        mSelected = true;
+        mPw1VerifiedForSignature = false;
+        mPw1VerifiedForOther = false;
+        mPw3Verified = false;
+        return status(SW_OK);
+    }
+
+    /** GET DATA (page 32) */
+    private byte[] getData(int tag, int ne) {
+        switch (tag) {
+            case 0x004f:
+                return respond(AID, ne);
+            case 0x005e:
+                return respond(new byte[0], ne);
+            case 0x0065:
+                return respond(getCardholderRelatedData(), ne);
+            case 0x006e:
+                return respond(getApplicationRelatedData(), ne);
+            case 0x00c4:
+                return respond(getPwStatusBytes(), ne);
+            case 0x007a:
+                return respond(tlv(0x7a, tlv(0x93, new byte[] {
+                        0, (byte) (mSignatureCount >> 8), (byte) mSignatureCount })), ne);
+        }
+        byte[] value = mDataObjects.get(tag);
+        return value != null ? respond(value, ne) : status(SW_DATA_NOT_FOUND);
+    }
+
+    /** VERIFY (page 32) */
+    private byte[] verify(int mode, byte[] pin) {
+        if (mode != 0x81 && mode != 0x82 && mode != 0x83) {
+            return status(SW_WRONG_P1P2);
+        }
+        boolean admin = mode == 0x83;
+        int retries = admin ? mPw3Retries : mPw1Retries;
+
+        // without data, this returns the verification status
+        if (pin.length == 0) {
+            return status(isVerified(mode) ? SW_OK : SW_PIN_RETRIES | retries);
+        }
+        if (retries == 0) {
+            return status(SW_AUTH_METHOD_BLOCKED);
+        }
+
+        if (!Arrays.equals(pin, admin ? mPw3 : mPw1)) {
+            retries -= 1;
+            if (admin) {
+                mPw3Retries = retries;
+                mPw3Verified = false;
+            } else {
+                mPw1Retries = retries;
+                mPw1VerifiedForSignature = false;
+                mPw1VerifiedForOther = false;
+            }
+            return status(SW_PIN_RETRIES | retries);
+        }
+
+        if (admin) {
+            mPw3Retries = MAX_RETRIES;
+            mPw3Verified = true;
+        } else {
+            mPw1Retries = MAX_RETRIES;
+            if (mode == 0x81) {
+                mPw1VerifiedForSignature = true;
+            } else {
+                mPw1VerifiedForOther = true;
+            }
+        }
+        return status(SW_OK);
+    }
+
+    /** CHANGE REFERENCE DATA (page 33), the data is the old pin followed by the new one */
+    private byte[] changeReferenceData(int pw, byte[] data) {
+        if (pw != 0x81 && pw != 0x83) {
+            return status(SW_WRONG_P1P2);
+        }
+        boolean admin = pw == 0x83;
+        byte[] oldPin = admin ? mPw3 : mPw1;
+        int minLength = admin ? 8 : 6;
+        if (data.length < oldPin.length + minLength || data.length > oldPin.length + 127) {
+            return status(SW_WRONG_LENGTH);
+        }
+
+        byte[] verifyResult = verify(pw, Arrays.copyOf(data, oldPin.length));
+        if (readShort(verifyResult, 0) != SW_OK) {
+            return verifyResult;
+        }
+
+        byte[] newPin = Arrays.copyOfRange(data, oldPin.length, data.length);
+        if (admin) {
+            mPw3 = newPin;
+        } else {
+            mPw1 = newPin;
+        }
+        return status(SW_OK);
+    }
+
+    /** PUT DATA (page 33) */
+    private byte[] putData(int tag, byte[] data) {
+        boolean privateUse = tag == 0x0101 || tag == 0x0103;
+        if (privateUse ? !mPw1VerifiedForOther : !mPw3Verified) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        switch (tag) {
+            case 0x005b:
+                mName = data;
+                break;
+            case 0x00c4:
+                if (data.length != 1) {
+                    return status(SW_WRONG_LENGTH);
+                }
+                mPw1ValidForMultipleSignatures = data[0] == 1;
+                break;
+            case 0x00c7:
+            case 0x00c8:
+            case 0x00c9:
+                if (data.length != 20) {
+                    return status(SW_WRONG_LENGTH);
+                }
+                System.arraycopy(data, 0, mFingerprints, (tag - 0x00c7) * 20, 20);
+                break;
+            case 0x00ce:
+            case 0x00cf:
+            case 0x00d0:
+                if (data.length != 4) {
+                    return status(SW_WRONG_LENGTH);
+                }
+                System.arraycopy(data, 0, mTimestamps, (tag - 0x00ce) * 4, 4);
+                break;
+            default:
+                mDataObjects.put(tag, data);
+        }
+        return status(SW_OK);
+    }
+
+    /**
+     * PUT DATA with odd instruction byte, for importing a key (page 35). The data is an
+     * extended header list: a control reference template naming the key, a private key
+     * template with tags and lengths of all key parts, and their concatenated values.
+     */
+    private byte[] putKey(int p1, int p2, byte[] data) {
+        if (p1 != 0x3f || p2 != 0xff) {
+            return status(SW_WRONG_P1P2);
+        }
+        if (!mPw3Verified) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        try {
+            TlvReader reader = new TlvReader(data);
+            reader.expectTag(0x4d);
+            reader.readLength();
+
+            int slot;
+            switch (reader.readTag()) {
+                case 0xb6: slot = SLOT_SIGNATURE; break;
+                case 0xb8: slot = SLOT_DECRYPTION; break;
+                case 0xa4: slot = SLOT_AUTHENTICATION; break;
+                default: return status(SW_WRONG_DATA);
+            }
+            reader.skip(reader.readLength());
+
+            reader.expectTag(0x7f48);
+            int templateEnd = reader.readLength() + reader.mPos;
+            int[] tags = new int[16];
+            int[] lengths = new int[16];
+            int count = 0;
+            while (reader.mPos < templateEnd && count < tags.length) {
+                tags[count] = reader.readTag();
+                lengths[count] = reader.readLength();
+                count += 1;
+            }
+
+            reader.expectTag(0x5f48);
+            reader.readLength();
+            HashMap<Integer, BigInteger> parts = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                parts.put(tags[i], new BigInteger(1, reader.read(lengths[i])));
+            }
+
+            BigInteger e = parts.get(0x91);
+            BigInteger p = parts.get(0x92);
+            BigInteger q = parts.get(0x93);
+            BigInteger n = parts.get(0x97);
+            if (e == null || p == null || q == null || n == null || !p.multiply(q).equals(n)) {
+                return status(SW_WRONG_DATA);
+            }
+            BigInteger phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+            BigInteger d = e.modInverse(phi);
+            RSAPrivateCrtKeySpec spec = new RSAPrivateCrtKeySpec(n, e, d, p, q,
+                    parts.get(0x95), parts.get(0x96), parts.get(0x94));
+            mKeys[slot] = (RSAPrivateCrtKey) KeyFactory.getInstance("RSA").generatePrivate(spec);
+            if (slot == SLOT_SIGNATURE) {
+                mSignatureCount = 0;
+            }
+        } catch (IOException | GeneralSecurityException | ArithmeticException e) {
+            return status(SW_WRONG_DATA);
+        }
+
+        return status(SW_OK);
+    }
+
+    /** PERFORM SECURITY OPERATION: COMPUTE DIGITAL SIGNATURE (page 37) */
+    private byte[] computeDigitalSignature(byte[] digestInfo, int ne) {
+        if (!mPw1VerifiedForSignature) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        RSAPrivateCrtKey key = mKeys[SLOT_SIGNATURE];
+        if (key == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+
+        try {
+            // the digest info is padded and signed as is
+            Signature signature = Signature.getInstance("NONEwithRSA");
+            signature.initSign(key);
+            signature.update(digestInfo);
+            byte[] result = signature.sign();
+
+            mSignatureCount += 1;
+            if (!mPw1ValidForMultipleSignatures) {
+                mPw1VerifiedForSignature = false;
+            }
+            return respond(result, ne);
+        } catch (GeneralSecurityException e) {
+            return status(SW_WRONG_DATA);
+        }
+    }
+
+    /** PERFORM SECURITY OPERATION: DECIPHER (page 38) */
+    private byte[] decipher(byte[] data, int ne) {
+        if (!mPw1VerifiedForOther) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        RSAPrivateCrtKey key = mKeys[SLOT_DECRYPTION];
+        if (key == null) {
+            return status(SW_DATA_NOT_FOUND);
+        }
+        // the cryptogram is preceded by a padding indicator byte, which must be zero
+        if (data.length < 2 || data[0] != 0x00) {
+            return status(SW_WRONG_DATA);
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return respond(cipher.doFinal(data, 1, data.length - 1), ne);
+        } catch (GeneralSecurityException e) {
+            return status(SW_WRONG_DATA);
+        }
+    }
+
+    /** GET RESPONSE, returns the next part of a response which did not fit */
+    private byte[] getResponse(int ne) {
+        if (mPendingResponse == null) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte[] rest = Arrays.copyOfRange(mPendingResponse, mPendingOffset, mPendingResponse.length);
+        mPendingResponse = null;
+        return respond(rest, ne);
+    }
+
+    /**
+     * Returns the response data with status 9000 if it fits, otherwise as much as fits with
+     * 61xx, keeping the rest for GET RESPONSE.
+     */
+    private byte[] respond(byte[] data, int ne) {
+        if (data.length <= ne) {
+            byte[] response = Arrays.copyOf(data, data.length + 2);
+            response[data.length] = (byte) 0x90;
+            response[data.length + 1] = 0x00;
+            return response;
+        }
+
+        int remaining = data.length - ne;
+        mPendingResponse = data;
+        mPendingOffset = ne;
+        byte[] response = Arrays.copyOf(data, ne + 2);
+        int sw = SW_MORE_DATA | (remaining > 0xff ? 0x00 : remaining);
+        response[ne] = (byte) (sw >> 8);
+        response[ne + 1] = (byte) sw;
+        return response;
+    }
+
+    private byte[] getApplicationRelatedData() {
+        int maxLength = mExtendedLength ? MAX_EXTENDED_LENGTH : MAX_SHORT_LENGTH;
+        // category indicator, card capabilities (ISO 7816-4 section 8.1.1.2.7), status
+        byte[] historicalBytes = new byte[] {
+                0x00, 0x73, 0x00, 0x00, (byte) (mExtendedLength ? 0xc0 : 0x80),
+                0x05, (byte) 0x90, 0x00 };
+        byte[] extendedCapabilities = new byte[] {
+                0x70, 0x00, 0x00, 0x00, 0x00, 0x00,
+                (byte) (maxLength >> 8), (byte) maxLength,
+                (byte) (maxLength >> 8), (byte) maxLength };
+        // RSA with 2048 bit modulus, 32 bit public exponent, standard format
+        byte[] algorithmAttributes = Hex.decode("010800002000");
+
+        byte[] discretionaryData = concat(
+                tlv(0xc0, extendedCapabilities),
+                tlv(0xc1, algorithmAttributes),
+                tlv(0xc2, algorithmAttributes),
+                tlv(0xc3, algorithmAttributes),
+                tlv(0xc4, getPwStatusBytes()),
+                tlv(0xc5, mFingerprints),
+                tlv(0xc6, new byte[60]),
+                tlv(0xcd, mTimestamps));
+
+        return tlv(0x6e, concat(
+                tlv(0x4f, AID),
+                tlv(0x5f52, historicalBytes),
+                tlv(0x73, discretionaryData)));
+    }
+
+    private byte[] getCardholderRelatedData() {
+        return tlv(0x65, concat(
+                tlv(0x5b, mName),
+                tlv(0x5f2d, "en".getBytes()),
+                tlv(0x5f35, new byte[] { 0x39 })));
+    }
+
+    private byte[] getPwStatusBytes() {
+        return new byte[] {
+                (byte) (mPw1ValidForMultipleSignatures ? 1 : 0), 0x7f, 0x7f, 0x7f,
+                (byte) mPw1Retries, 0x00, (byte) mPw3Retries };
+    }
+
+    private boolean isVerified(int mode) {
+        switch (mode) {
+            case 0x81: return mPw1VerifiedForSignature;
+            case 0x82: return mPw1VerifiedForOther;
+            case 0x83: return mPw3Verified;
+        }
+        return false;
+    }
+
+    private void resetChaining() {
+        mChainedIns = -1;
+        mChainedData.reset();
+    }
+
+    private static byte[] status(int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (tag > 0xff) {
+            out.write(tag >> 8);
+        }
+        out.write(tag);
+        if (value.length < 0x80) {
+            out.write(value.length);
+        } else if (value.length <= 0xff) {
+            out.write(0x81);
+            out.write(value.length);
+        } else {
+            out.write(0x82);
+            out.write(value.length >> 8);
+            out.write(value.length);
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Reads BER-TLV encoded tags and lengths */
+    private static class TlvReader {
+        final byte[] mData;
+        int mPos;
+
+        TlvReader(byte[] data) {
+            mData = data;
+        }
+
+        int readByte() throws IOException {
+            if (mPos >= mData.length) {
+                throw new IOException("unexpected end of data");
+            }
+            return mData[mPos++] & 0xff;
+        }
+
+        int readTag() throws IOException {
+            int tag = readByte();
+            // two byte tag, ISO 7816-4 section 5.2.2.1
+            if ((tag & 0x1f) == 0x1f) {
+                tag = (tag << 8) | readByte();
+            }
+            return tag;
+        }
+
+        void expectTag(int tag) throws IOException {
+            if (readTag() != tag) {
+                throw new IOException("unexpected tag");
+            }
+        }
+
+        int readLength() throws IOException {
+            int length = readByte();
+            if (length == 0x81) {
+                length = readByte();
+            } else if (length == 0x82) {
+                length = (readByte() << 8) | readByte();
+            } else if (length > 0x7f) {
+                throw new IOException("unsupported length");
+            }
+            return length;
+        }
+
+        byte[] read(int length) throws IOException {
+            if (mPos + length > mData.length) {
+                throw new IOException("unexpected end of data");
+            }
+            mPos += length;
+            return Arrays.copyOfRange(mData, mPos - length, mPos);
+        }
+
+        void skip(int length) throws IOException {
+            read(length);
+        }
+    }
+
+}
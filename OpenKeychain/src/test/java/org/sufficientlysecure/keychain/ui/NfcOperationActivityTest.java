@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.ui;
+
+import android.app.Activity;
+import android.content.Intent;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.util.Arrays;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.NfcDecryptOperationsBuilder;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.NfcSignOperationsBuilder;
+import org.sufficientlysecure.keychain.support.OpenPgpCardEmulator;
+import org.sufficientlysecure.keychain.util.Metrics;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+
+/**
+ * Runs the nfc operations against an emulated OpenPGP card. Besides checking the results,
+ * this keeps track of the number of apdus each operation needs, which is what makes up most
+ * of the time the card has to be held to the device.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class NfcOperationActivityTest {
+
+    /** DigestInfo prefix for SHA-256, as sent to the card */
+    static final byte[] SHA256_DIGEST_INFO = Hex.decode("3031300D060960864801650304020105000420");
+
+    /** SELECT and GET DATA for the application related data */
+    static final int APDUS_PER_TAP = 2;
+
+    static UncachedKeyRing mStaticRing;
+    static Passphrase mKeyPhrase = TestingUtils.genPassphrase(true);
+
+    CanonicalizedSecretKeyRing mRing;
+    long mSignKeyId;
+    long mEncryptKeyId;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 2048, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 2048, null, KeyFlags.SIGN_DATA, 0L));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 2048, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.add("card");
+        parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase);
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Preferences.getPreferences(RuntimeEnvironment.application).setUseDefaultYubiKeyPin(true);
+
+        mRing = new CanonicalizedSecretKeyRing(mStaticRing.getEncoded(), false, 0);
+        mSignKeyId = mRing.getSecretSignId();
+        mEncryptKeyId = mRing.getEncryptId();
+    }
+
+    @Test
+    public void testKeyImport() throws Exception {
+        for (boolean extendedLength : new boolean[] { false, true }) {
+            OpenPgpCardEmulator card = new OpenPgpCardEmulator(extendedLength);
+            NfcOperationActivity activity = buildActivity(signInput(new byte[32]));
+            activity.nfcConnect(card);
+
+            card.resetStatistics();
+            CanonicalizedSecretKey key = mRing.getSecretKey(mSignKeyId);
+            activity.nfcPutKey(0xB6, key, mKeyPhrase);
+
+            Assert.assertEquals("imported key must match",
+                    key.getCrtSecretKey().getModulus(),
+                    card.getKey(OpenPgpCardEmulator.SLOT_SIGNATURE).getModulus());
+            // VERIFY, then PUT KEY in one extended apdu or four chained ones
+            Assert.assertEquals("number of apdus for key import",
+                    extendedLength ? 2 : 5, card.getApduCount());
+        }
+    }
+
+    @Test
+    public void testSign() throws Exception {
+        OpenPgpCardEmulator card = personalizedCard(false);
+
+        byte[][] hashes = new byte[][] { sha256("one"), sha256("two"), sha256("three") };
+        NfcSignOperationsBuilder builder = new NfcSignOperationsBuilder(new Date(),
+                mRing.getMasterKeyId(), mSignKeyId);
+        for (byte[] hash : hashes) {
+            builder.addHash(hash, HashAlgorithmTags.SHA256);
+        }
+
+        Metrics.reset();
+        CryptoInputParcel result = tap(buildActivity(builder.build()), card);
+
+        PublicKey publicKey = getPublicKey(card.getKey(OpenPgpCardEmulator.SLOT_SIGNATURE));
+        for (byte[] hash : hashes) {
+            byte[] signature = result.getCryptoData().get(ByteBuffer.wrap(hash));
+            Assert.assertNotNull("all hashes must be signed", signature);
+
+            Signature verifier = Signature.getInstance("NONEwithRSA");
+            verifier.initVerify(publicKey);
+            verifier.update(Arrays.concatenate(SHA256_DIGEST_INFO, hash));
+            Assert.assertTrue("signature must be valid", verifier.verify(signature));
+        }
+
+        // this card needs the pin for every signature
+        Assert.assertEquals("number of apdus for three signatures",
+                APDUS_PER_TAP + 3 * 2, card.getApduCount());
+        Assert.assertEquals("all apdus must be recorded in the metrics",
+                card.getApduCount(), Metrics.getHistogram("nfc.apdu").getCount());
+    }
+
+    @Test
+    public void testSignWithPinValidForMultipleSignatures() throws Exception {
+        OpenPgpCardEmulator card = personalizedCard(false);
+        card.setPw1ValidForMultipleSignatures(true);
+
+        NfcSignOperationsBuilder builder = new NfcSignOperationsBuilder(new Date(),
+                mRing.getMasterKeyId(), mSignKeyId);
+        builder.addHash(sha256("one"), HashAlgorithmTags.SHA256);
+        builder.addHash(sha256("two"), HashAlgorithmTags.SHA256);
+        tap(buildActivity(builder.build()), card);
+
+        Assert.assertEquals("pin must be verified only once per tap",
+                APDUS_PER_TAP + 1 + 2, card.getApduCount());
+        Assert.assertEquals("both hashes must be signed", 2, card.getSignatureCount());
+    }
+
+    @Test
+    public void testDecryptBatch() throws Exception {
+        for (boolean extendedLength : new boolean[] { false, true }) {
+            OpenPgpCardEmulator card = personalizedCard(extendedLength);
+            PublicKey publicKey = getPublicKey(card.getKey(OpenPgpCardEmulator.SLOT_DECRYPTION));
+
+            String[] sessionKeys = new String[] { "first", "second", "third" };
+            NfcDecryptOperationsBuilder builder = new NfcDecryptOperationsBuilder(
+                    mRing.getMasterKeyId(), mEncryptKeyId);
+            byte[][] mpis = new byte[sessionKeys.length][];
+            for (int i = 0; i < sessionKeys.length; i++) {
+                mpis[i] = encryptSessionKey(publicKey, sessionKeys[i].getBytes());
+                builder.addHash(mpis[i]);
+            }
+
+            CryptoInputParcel result = tap(buildActivity(builder.build()), card);
+
+            for (int i = 0; i < sessionKeys.length; i++) {
+                Assert.assertArrayEquals("session key must be decrypted",
+                        sessionKeys[i].getBytes(), result.getCryptoData().get(ByteBuffer.wrap(mpis[i])));
+            }
+            // one VERIFY for the whole batch, each DECIPHER is one extended or two chained apdus
+            Assert.assertEquals("number of apdus for three session keys",
+                    APDUS_PER_TAP + 1 + 3 * (extendedLength ? 1 : 2), card.getApduCount());
+        }
+    }
+
+    @Test
+    public void testWrongPin() throws Exception {
+        OpenPgpCardEmulator card = personalizedCard(false);
+        card.setPw1("654321");
+
+        NfcOperationActivity activity = buildActivity(signInput(sha256("one")));
+        activity.nfcConnect(card);
+        try {
+            activity.onNfcPerform();
+            Assert.fail("signing with a wrong pin must fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        Assert.assertEquals("wrong pin must use up a retry", 2, card.getPw1Retries());
+        Assert.assertEquals("nothing must be signed", 0, card.getSignatureCount());
+        Assert.assertTrue("activity must give up", activity.isFinishing());
+    }
+
+    /**
+     * Compares cards with and without extended length support, with a latency roughly like
+     * a Yubikey NEO at 106 kbit/s. Results are printed, and extended length must need fewer
+     * apdus and less time wherever it saves chaining.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        long[] importMicros = new long[2];
+        long[] decryptMicros = new long[2];
+        for (boolean extendedLength : new boolean[] { false, true }) {
+            int idx = extendedLength ? 1 : 0;
+            OpenPgpCardEmulator card = personalizedCard(extendedLength);
+            card.setLatency(2000, 80);
+
+            NfcOperationActivity activity = buildActivity(signInput(new byte[32]));
+            activity.nfcConnect(card);
+            card.resetStatistics();
+            activity.nfcPutKey(0xB8, mRing.getSecretKey(mEncryptKeyId), mKeyPhrase);
+            importMicros[idx] = checkStatistics(extendedLength, "key import",
+                    extendedLength ? 2 : 5, card);
+
+            NfcSignOperationsBuilder signBuilder = new NfcSignOperationsBuilder(new Date(),
+                    mRing.getMasterKeyId(), mSignKeyId);
+            NfcDecryptOperationsBuilder decryptBuilder = new NfcDecryptOperationsBuilder(
+                    mRing.getMasterKeyId(), mEncryptKeyId);
+            PublicKey publicKey = getPublicKey(card.getKey(OpenPgpCardEmulator.SLOT_DECRYPTION));
+            for (int i = 0; i < 10; i++) {
+                signBuilder.addHash(sha256("message " + i), HashAlgorithmTags.SHA256);
+                decryptBuilder.addHash(encryptSessionKey(publicKey, ("key " + i).getBytes()));
+            }
+
+            tap(buildActivity(signBuilder.build()), card);
+            checkStatistics(extendedLength, "10 signatures", APDUS_PER_TAP + 10 * 2, card);
+
+            tap(buildActivity(decryptBuilder.build()), card);
+            decryptMicros[idx] = checkStatistics(extendedLength, "10 session keys",
+                    APDUS_PER_TAP + 1 + 10 * (extendedLength ? 1 : 2), card);
+        }
+
+        Assert.assertTrue("key import must be faster with extended length",
+                importMicros[1] < importMicros[0]);
+        Assert.assertTrue("decryption must be faster with extended length",
+                decryptMicros[1] < decryptMicros[0]);
+    }
+
+    private OpenPgpCardEmulator personalizedCard(boolean extendedLength) throws Exception {
+        OpenPgpCardEmulator card = new OpenPgpCardEmulator(extendedLength);
+
+        NfcOperationActivity activity = buildActivity(signInput(new byte[32]));
+        activity.nfcConnect(card);
+        activity.nfcPutKey(0xB6, mRing.getSecretKey(mSignKeyId), mKeyPhrase);
+        activity.nfcPutKey(0xB8, mRing.getSecretKey(mEncryptKeyId), mKeyPhrase);
+
+        card.resetStatistics();
+        return card;
+    }
+
+    private RequiredInputParcel signInput(byte[] hash) {
+        return RequiredInputParcel.createNfcSignOperation(mRing.getMasterKeyId(), mSignKeyId,
+                hash, HashAlgorithmTags.SHA256, new Date());
+    }
+
+    private static NfcOperationActivity buildActivity(RequiredInputParcel requiredInput) {
+        Intent intent = new Intent(RuntimeEnvironment.application, NfcOperationActivity.class);
+        intent.putExtra(NfcOperationActivity.EXTRA_REQUIRED_INPUT, requiredInput);
+        return Robolectric.buildActivity(NfcOperationActivity.class).withIntent(intent).create().get();
+    }
+
+    /** Performs the required operations during a single tap, and returns the results */
+    private static CryptoInputParcel tap(NfcOperationActivity activity, OpenPgpCardEmulator card)
+            throws Exception {
+        activity.nfcConnect(card);
+        activity.onNfcPerform();
+
+        Assert.assertEquals("operation must succeed",
+                Activity.RESULT_OK, Shadows.shadowOf(activity).getResultCode());
+        return Shadows.shadowOf(activity).getResultIntent()
+                .getParcelableExtra(NfcOperationActivity.RESULT_DATA);
+    }
+
+    /**
+     * Encrypts a session key and encodes it as MPI. Only cryptograms with the highest bit set
+     * are used, since the first byte of the MPI is sent to the card as padding indicator.
+     */
+    private static byte[] encryptSessionKey(PublicKey publicKey, byte[] sessionKey)
+            throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        byte[] cryptogram;
+        do {
+            cryptogram = cipher.doFinal(sessionKey);
+        } while ((cryptogram[0] & 0x80) == 0);
+        return Arrays.concatenate(new byte[] { 0x08, 0x00 }, cryptogram);
+    }
+
+    private static PublicKey getPublicKey(RSAPrivateCrtKey key) throws Exception {
+        return KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent()));
+    }
+
+    private static byte[] sha256(String data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data.getBytes());
+    }
+
+    /** Checks and prints the statistics of an operation, returns its simulated latency. */
+    private static long checkStatistics(boolean extendedLength, String operation,
+                                        int expectedApdus, OpenPgpCardEmulator card) {
+        long micros = card.getSimulatedLatencyMicros();
+        System.out.println(String.format("%s, %s: %d apdus, %d bytes sent, %d bytes received, %d ms",
+                extendedLength ? "extended length" : "chaining", operation, card.getApduCount(),
+                card.getBytesReceived(), card.getBytesSent(), micros / 1000));
+
+        Assert.assertEquals("number of apdus for " + operation, expectedApdus, card.getApduCount());
+        Assert.assertTrue("bytes must be counted for " + operation,
+                card.getBytesReceived() > 0 && card.getBytesSent() > 0);
+        Assert.assertTrue("latency must be simulated for " + operation,
+                micros >= expectedApdus * 2000L);
+        card.resetStatistics();
+        return micros;
+    }
+
+}
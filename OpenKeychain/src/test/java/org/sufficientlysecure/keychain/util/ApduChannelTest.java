@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ApduChannelTest {
+
+    /** Records all commands, and answers with queued responses or 9000 */
+    static class RecordingTransport implements ApduTransport {
+        final ArrayList<String> mCommands = new ArrayList<>();
+        final ArrayList<byte[]> mBuffers = new ArrayList<>();
+        final LinkedList<byte[]> mResponses = new LinkedList<>();
+        final boolean mExtendedLength;
+
+        RecordingTransport(boolean extendedLength) {
+            mExtendedLength = extendedLength;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command, int length) {
+            mCommands.add(Hex.toHexString(command, 0, length));
+            mBuffers.add(command);
+            return mResponses.isEmpty() ? Hex.decode("9000") : mResponses.removeFirst();
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return mExtendedLength ? 65546 : 261;
+        }
+
+        @Override
+        public boolean isExtendedLengthApduSupported() {
+            return mExtendedLength;
+        }
+    }
+
+    @Test
+    public void testShortApdu() throws Exception {
+        RecordingTransport transport = new RecordingTransport(false);
+        transport.mResponses.add(Hex.decode("0102039000"));
+        ApduChannel channel = new ApduChannel(transport);
+
+        ApduChannel.Response response = channel.transmit(0xCA, 0x00, 0x6E, null, 256);
+        Assert.assertEquals("get data should be a short apdu with Le 00",
+                Arrays.asList("00ca006e00"), transport.mCommands);
+        Assert.assertTrue("response should be ok", response.isOk());
+        Assert.assertArrayEquals("response data should not include the status word",
+                Hex.decode("010203"), response.getData());
+
+        transport.mCommands.clear();
+        channel.transmit(0x20, 0x00, 0x81, Hex.decode("313233343536"), 0);
+        Assert.assertEquals("verify should be a short apdu without Le",
+                Arrays.asList("0020008106313233343536"), transport.mCommands);
+    }
+
+    @Test
+    public void testChainingAndGetResponse() throws Exception {
+        RecordingTransport transport = new RecordingTransport(false);
+        transport.mResponses.add(Hex.decode("9000"));
+        transport.mResponses.add(Hex.decode("aaaa6102"));
+        transport.mResponses.add(Hex.decode("bbbb9000"));
+        ApduChannel channel = new ApduChannel(transport);
+
+        byte[] data = new byte[257];
+        Arrays.fill(data, (byte) 0x11);
+        ApduChannel.Response response = channel.transmit(0x2A, 0x80, 0x86, data, 256);
+
+        Assert.assertEquals("data should be sent in two chained commands plus one get response",
+                3, transport.mCommands.size());
+        Assert.assertTrue("first command should have the chaining bit and 254 bytes",
+                transport.mCommands.get(0).startsWith("102a8086fe1111"));
+        Assert.assertEquals("last command should carry the remaining bytes and Le",
+                "002a808603" + "111111" + "00", transport.mCommands.get(1));
+        Assert.assertEquals("remaining data should be fetched with get response",
+                "00c0000002", transport.mCommands.get(2));
+        Assert.assertTrue("response should be ok", response.isOk());
+        Assert.assertArrayEquals("response data should be concatenated",
+                Hex.decode("aaaabbbb"), response.getData());
+    }
+
+    @Test
+    public void testExtendedLength() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        ApduChannel channel = new ApduChannel(transport);
+        channel.setCardCapabilities(new CardCapabilities(true, true, 0, 0));
+        Assert.assertTrue("extended length should be used", channel.isExtendedLength());
+
+        byte[] data = new byte[513];
+        channel.transmit(0x2A, 0x80, 0x86, data, ApduChannel.NE_ANY);
+        Assert.assertEquals("data should be sent in a single command", 1, transport.mCommands.size());
+        String command = transport.mCommands.get(0);
+        Assert.assertTrue("command should have an extended Lc", command.startsWith("002a8086000201"));
+        Assert.assertTrue("command should have an extended Le", command.endsWith("000000"));
+        Assert.assertEquals("command should have the expected length",
+                (4 + 3 + 513 + 2) * 2, command.length());
+
+        // the reader decides as well
+        channel = new ApduChannel(new RecordingTransport(false));
+        channel.setCardCapabilities(new CardCapabilities(true, true, 0, 0));
+        Assert.assertFalse("extended length needs reader support", channel.isExtendedLength());
+    }
+
+    @Test
+    public void testGrownBufferIsWiped() throws Exception {
+        RecordingTransport transport = new RecordingTransport(true);
+        ApduChannel channel = new ApduChannel(transport);
+        channel.setCardCapabilities(new CardCapabilities(true, true, 0, 0));
+
+        channel.transmit(0x20, 0x00, 0x81, Hex.decode("313233343536"), 0);
+        // too large for the initial buffer, which still holds the pin
+        channel.transmit(0xDB, 0x3F, 0xFF, new byte[1000], 0);
+
+        Assert.assertNotSame("command buffer should have grown",
+                transport.mBuffers.get(0), transport.mBuffers.get(1));
+        Assert.assertArrayEquals("old command buffer should be wiped",
+                new byte[transport.mBuffers.get(0).length], transport.mBuffers.get(0));
+    }
+
+    @Test
+    public void testCardCapabilities() throws Exception {
+        // application related data of a Yubikey NEO, see Iso7816TLVTest
+        String input = "6e81dd4f10d27600012401020000000000000100005f520f0073000080000000000000000000007300c00af00000ff04c000ff00ffc106010800001103c206010800001103c306010800001103c407007f7f7f030303c53c1efdb4845ca242ca6977fddb1f788094fd3b430af1114c28a08d8c5afda81191cc50ca9bf51bc99fe8e6ca03a9d4d40e7b5925cd154813df381655b2c63c000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000cd0c5423590e5423590e5423590e9000";
+        Iso7816TLV tlv = Iso7816TLV.readSingle(Hex.decode(input), true);
+
+        CardCapabilities capabilities = CardCapabilities.fromApplicationRelatedData(tlv);
+        Assert.assertTrue("card should support command chaining", capabilities.hasCommandChaining());
+        Assert.assertFalse("card should not support extended length", capabilities.hasExtendedLength());
+        Assert.assertEquals("max command data length should be read", 255,
+                capabilities.getMaxCommandDataLength());
+        Assert.assertEquals("max response data length should be read", 255,
+                capabilities.getMaxResponseDataLength());
+    }
+
+}
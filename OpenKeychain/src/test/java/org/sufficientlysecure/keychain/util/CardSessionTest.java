@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.ApduChannelTest.RecordingTransport;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CardSessionTest {
+
+    // application related data of a Yubikey NEO, PW1 is valid for a single signature
+    static final String APPLICATION_RELATED_DATA = "6e81dd4f10d27600012401020000000000000100005f520f0073000080000000000000000000007300c00af00000ff04c000ff00ffc106010800001103c206010800001103c306010800001103c407007f7f7f030303c53c1efdb4845ca242ca6977fddb1f788094fd3b430af1114c28a08d8c5afda81191cc50ca9bf51bc99fe8e6ca03a9d4d40e7b5925cd154813df381655b2c63c000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000cd0c5423590e5423590e5423590e";
+
+    private static CardSession newSession() throws Exception {
+        CardSession session = new CardSession(new ApduChannel(new RecordingTransport(false)));
+        session.setApplicationRelatedData(
+                Iso7816TLV.readSingle(Hex.decode(APPLICATION_RELATED_DATA), true));
+        return session;
+    }
+
+    @Test
+    public void testApplicationRelatedData() throws Exception {
+        CardSession session = newSession();
+
+        Assert.assertArrayEquals("aid should be taken from the application related data",
+                Hex.decode("d2760001240102000000000000010000"), session.getAid());
+        Assert.assertArrayEquals("pw status should be taken from the application related data",
+                Hex.decode("007f7f7f030303"), session.getPwStatusBytes());
+        Assert.assertTrue("card capabilities should be passed on to the channel",
+                session.getChannel() != null && !session.getChannel().isExtendedLength());
+    }
+
+    @Test
+    public void testPinState() throws Exception {
+        CardSession session = newSession();
+
+        Assert.assertFalse("pin should not be verified in a new session",
+                session.isPinVerified(CardSession.PW1_OTHER));
+
+        session.setPinVerified(CardSession.PW1_OTHER);
+        session.setPinVerified(CardSession.PW1_SIGN);
+        Assert.assertTrue("pin should stay verified for decryption",
+                session.isPinVerified(CardSession.PW1_OTHER));
+
+        session.onSignatureComputed();
+        Assert.assertFalse("pin for signing is only valid for a single signature on this card",
+                session.isPinVerified(CardSession.PW1_SIGN));
+        Assert.assertTrue("pin for decryption should not be affected by signing",
+                session.isPinVerified(CardSession.PW1_OTHER));
+
+        Assert.assertFalse("pin should not be verified in the next session",
+                newSession().isPinVerified(CardSession.PW1_OTHER));
+    }
+
+    @Test
+    public void testStaticDataCache() throws Exception {
+        CardSession session = newSession();
+        session.setCachedUserId("Alice");
+
+        Assert.assertEquals("user id should be cached for the next tap of the same card",
+                "Alice", newSession().getCachedUserId());
+
+        session.invalidate();
+        Assert.assertNull("application related data should be read again after a change",
+                session.getApplicationRelatedData());
+        Assert.assertNull("user id should be read again after a change",
+                newSession().getCachedUserId());
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class MetricsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        Metrics.reset();
+    }
+
+    @Test
+    public void testCountersAndHistograms() throws Exception {
+        Metrics.count("test.counter");
+        Metrics.count("test.counter", 41);
+        Metrics.cacheLookup("test.cache", true);
+        Metrics.cacheLookup("test.cache", false);
+        Metrics.cacheLookup("test.cache", true);
+
+        // 1ms, 2ms, 100ms
+        Metrics.recordLatency("test.latency", 1000000L);
+        Metrics.recordLatency("test.latency", 2000000L);
+        Metrics.recordLatency("test.latency", 100000000L);
+
+        Assert.assertEquals("counter should be summed", 42, Metrics.getCount("test.counter"));
+        Assert.assertEquals("hits should be counted", 2, Metrics.getCount("test.cache.hit"));
+        Assert.assertEquals("misses should be counted", 1, Metrics.getCount("test.cache.miss"));
+
+        Metrics.Histogram histogram = Metrics.getHistogram("test.latency");
+        Assert.assertEquals("all samples should be counted", 3, histogram.getCount());
+        Assert.assertEquals("max should be exact", 100000, histogram.getMaxMicros());
+        Assert.assertTrue("median should be in the 2ms bucket",
+                histogram.getPercentileMicros(50) >= 2000 && histogram.getPercentileMicros(50) < 4096);
+        Assert.assertEquals("p99 should be capped by max", 100000, histogram.getPercentileMicros(99));
+
+        JSONObject json = Metrics.toJson();
+        Assert.assertEquals("json should contain counters",
+                42, json.getJSONObject("counters").getLong("test.counter"));
+        Assert.assertEquals("json should contain histograms",
+                3, json.getJSONObject("latencies").getJSONObject("test.latency").getLong("count"));
+
+        StringWriter out = new StringWriter();
+        Metrics.dump(new PrintWriter(out), new String[] { });
+        Assert.assertTrue("dump should list counters", out.toString().contains("test.counter: 42"));
+    }
+
+}
@@ -32,8 +32,13 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.MappedCache;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -79,4 +84,148 @@ public class ParcelableFileCacheTest {
 
     }
 
+    @Test
+    public void testRandomAccess() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+        cache.writeCache(50, createBundles(50).iterator());
+
+        MappedCache<Bundle> mapped = cache.openCache();
+        Assert.assertEquals("number of entries must be correct", 50, mapped.getSize());
+        Assert.assertFalse("complete file should not need recovery", mapped.isRecovered());
+        for (int i = 49; i >= 0; i -= 7) {
+            Assert.assertEquals("entries must be accessible out of order", i, mapped.get(i).getInt("key1"));
+        }
+
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+        cache.writeCache(50, createBundles(50).iterator());
+
+        // cut off the index and part of the last entry, as if writing was interrupted
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test.pcl");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 16 - 8 * 50 - 4);
+        raf.close();
+
+        MappedCache<Bundle> mapped = cache.openCache();
+        Assert.assertTrue("truncated file should be recovered", mapped.isRecovered());
+        Assert.assertEquals("all complete entries should be recovered", 49, mapped.getSize());
+        Assert.assertEquals("expected number of entries should be retained", 50, mapped.getExpectedSize());
+
+        IteratorWithSize<Bundle> it = cache.readCache();
+        int i = 0;
+        while (it.hasNext()) {
+            Assert.assertEquals("recovered entries should be in order", i++, it.next().getInt("key1"));
+        }
+        Assert.assertEquals("iterator should return all recovered entries", 49, i);
+
+    }
+
+    @Test
+    public void testLostEntriesAreLogged() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+        cache.writeCache(50, createBundles(50).iterator());
+
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test.pcl");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 16 - 8 * 50 - 4);
+        raf.close();
+
+        OperationLog log = new OperationLog();
+        IteratorWithSize<Bundle> it = cache.readCache(true, log, 0);
+        while (it.hasNext()) {
+            it.next();
+        }
+        Assert.assertTrue("lost entries should be logged", log.containsType(LogType.MSG_CACHE_WARN_LOST));
+        Assert.assertFalse("recovered entries should not fail their checksum",
+                log.containsType(LogType.MSG_CACHE_WARN_CHECKSUM));
+
+    }
+
+    @Test
+    public void testChecksumFailureIsLogged() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+        cache.writeCache(50, createBundles(50).iterator());
+
+        // flip a byte in the data of the first entry, which follows the header and its length and crc
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test.pcl");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(12 + 8 + 4);
+        int b = raf.read();
+        raf.seek(12 + 8 + 4);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        OperationLog log = new OperationLog();
+        IteratorWithSize<Bundle> it = cache.readCache(true, log, 0);
+        int i = 0;
+        while (it.hasNext()) {
+            Assert.assertEquals("corrupted entry should be skipped", ++i, it.next().getInt("key1"));
+        }
+        Assert.assertEquals("all other entries should be returned", 49, i);
+        Assert.assertTrue("corrupted entry should be logged", log.containsType(LogType.MSG_CACHE_WARN_CHECKSUM));
+        Assert.assertFalse("no entries should be lost", log.containsType(LogType.MSG_CACHE_WARN_LOST));
+
+    }
+
+    @Test
+    public void testCorruptIndexFallsBackToScan() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+        cache.writeCache(50, createBundles(50).iterator());
+
+        // point the first index entry far beyond the end of the file
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test.pcl");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 16 - 8 * 50);
+        raf.writeLong(Long.MAX_VALUE - 4);
+        raf.close();
+
+        MappedCache<Bundle> mapped = cache.openCache();
+        try {
+            Assert.assertTrue("inconsistent index should be ignored", mapped.isRecovered());
+            Assert.assertEquals("all entries should be found by scanning", 50, mapped.getSize());
+            Assert.assertEquals("first entry should be readable", 0, mapped.get(0).getInt("key1"));
+        } finally {
+            mapped.close();
+        }
+
+    }
+
+    @Test
+    public void testClose() throws Exception {
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<Bundle>(RuntimeEnvironment.application, "test.pcl");
+        cache.writeCache(5, createBundles(5).iterator());
+
+        MappedCache<Bundle> mapped = cache.openCache();
+        Assert.assertNotNull("entry should be readable while open", mapped.get(0));
+        mapped.close();
+
+        try {
+            mapped.get(0);
+            Assert.fail("closed cache must not be readable");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+    }
+
+    private static List<Bundle> createBundles(int num) {
+        ArrayList<Bundle> list = new ArrayList<Bundle>();
+        for (int i = 0; i < num; i++) {
+            Bundle b = new Bundle();
+            b.putInt("key1", i);
+            b.putString("key2", Integer.toString(i));
+            list.add(b);
+        }
+        return list;
+    }
+
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Thialfihar <thi@thialfihar.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PipelinedStreamsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = new byte[1000 * 1000 + 17];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        // small buffers, so the ring wraps around many times
+        InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 3, 1000);
+        WriteBehindOutputStream out = new WriteBehindOutputStream(target, 3, 777);
+
+        byte[] buffer = new byte[1234];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        Assert.assertEquals("read after end of stream must return -1", -1, in.read());
+        in.close();
+        out.finish();
+
+        Assert.assertArrayEquals("data must pass through unchanged", data, target.toByteArray());
+    }
+
+    @Test
+    public void testErrorPropagation() throws Exception {
+        InputStream failingIn = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("read failed");
+            }
+        };
+        ReadAheadInputStream in = new ReadAheadInputStream(failingIn, 2, 16);
+        try {
+            in.read();
+            Assert.fail("read error must be thrown by the consumer");
+        } catch (IOException e) {
+            Assert.assertEquals("read failed", e.getMessage());
+        }
+        in.close();
+
+        OutputStream failingOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("write failed");
+            }
+        };
+        WriteBehindOutputStream out = new WriteBehindOutputStream(failingOut, 2, 16);
+        out.write(new byte[100]);
+        try {
+            out.finish();
+            Assert.fail("write error must be thrown by finish()");
+        } catch (IOException e) {
+            Assert.assertEquals("write failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testAbortStopsWriter() throws Exception {
+        final Thread[] writerThread = new Thread[1];
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        OutputStream blockingOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                writerThread[0] = Thread.currentThread();
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                target.write(b, offset, length);
+            }
+        };
+
+        WriteBehindOutputStream out = new WriteBehindOutputStream(blockingOut, 2, 16);
+        // one full chunk is handed to the writer, the partial second one stays pending
+        out.write(new byte[20]);
+        Assert.assertTrue("writer must pick up the full chunk", writing.await(5, TimeUnit.SECONDS));
+
+        // the producer fails here, without abort() the writer would wait for END forever
+        out.abort();
+        // finish after abort must not block
+        out.finish();
+        release.countDown();
+
+        writerThread[0].join(5000);
+        Assert.assertFalse("writer thread must terminate after abort", writerThread[0].isAlive());
+        Assert.assertEquals("pending data must be discarded on abort", 16, target.size());
+    }
+
+}